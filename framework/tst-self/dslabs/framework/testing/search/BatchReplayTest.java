@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) 2018 Ellis Michael (emichael@cs.washington.edu)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package dslabs.framework.testing.search;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import dslabs.framework.testing.Event;
+import dslabs.framework.testing.StatePredicate;
+import dslabs.framework.testing.search.BatchReplay.Outcome;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import org.junit.Test;
+
+public class BatchReplayTest {
+  private static final StatePredicate ALWAYS = StatePredicate.statePredicate("Always", s -> true);
+
+  private static final SearchSettings settings = new SearchSettings();
+
+  private static SerializableTrace trace(List<Event> history, StatePredicate invariant) {
+    return new SerializableTrace(
+        history,
+        Collections.singletonList(invariant),
+        VisitedSetTest.gen,
+        List.of(VisitedSetTest.r1, VisitedSetTest.r2, VisitedSetTest.r3),
+        Collections.emptyList(),
+        "0",
+        null,
+        null,
+        null);
+  }
+
+  private static List<Event> walk(SearchState s, int length, Random random) {
+    final List<Event> walk = new ArrayList<>();
+    for (int i = 0; i < length; i++) {
+      final List<Event> events = new ArrayList<>(s.events(settings));
+      final Event e = events.get(random.nextInt(events.size()));
+      walk.add(e);
+      s = s.stepEvent(e, settings, false);
+    }
+    return walk;
+  }
+
+  private static SearchState replay(SearchState s, List<Event> events) {
+    for (Event e : events) {
+      s = s.stepEvent(e, settings, false);
+    }
+    return s;
+  }
+
+  /* Replays the trace on its own, like CheckSavedTracesTest */
+  private static Outcome outcome(SerializableTrace trace) {
+    SearchState s = trace.initialState();
+    for (int i = 0; ; i++) {
+      if (s.thrownException() != null) {
+        return Outcome.EXCEPTION_THROWN;
+      }
+      for (StatePredicate invariant : trace.invariants()) {
+        if (invariant.test(s, true) != null) {
+          return Outcome.INVARIANT_VIOLATED;
+        }
+      }
+      if (i == trace.history().size()) {
+        return Outcome.PASSED;
+      }
+      s = s.stepEvent(trace.history().get(i), settings, false);
+      if (s == null) {
+        return Outcome.NOT_REPLAYABLE;
+      }
+    }
+  }
+
+  @Test
+  public void matchesIndividualReplays() {
+    final Random random = new Random(0);
+    final SearchState initial = VisitedSetTest.ringState();
+    final List<Event> base = walk(initial, 20, random);
+
+    final List<SerializableTrace> traces = new ArrayList<>();
+    for (int i = 0; i < 40; i++) {
+      final List<Event> history = new ArrayList<>(base.subList(0, random.nextInt(base.size() + 1)));
+      history.addAll(walk(replay(initial, history), 10, random));
+      traces.add(trace(history, i % 2 == 0 ? VisitedSetTest.TOKEN_MAXED.negate() : ALWAYS));
+    }
+
+    // An event which is only enabled later can't be replayed first
+    final List<Event> initiallyEnabled = new ArrayList<>(initial.events(settings));
+    final SearchState later = replay(initial, base);
+    for (Event e : later.events(settings)) {
+      if (!initiallyEnabled.contains(e)) {
+        final List<Event> history = new ArrayList<>(base);
+        history.add(0, e);
+        traces.add(trace(history, ALWAYS));
+        break;
+      }
+    }
+
+    final Map<SerializableTrace, Outcome> expected = new HashMap<>();
+    for (SerializableTrace t : traces) {
+      expected.put(t, outcome(t));
+    }
+    assertTrue(expected.containsValue(Outcome.PASSED));
+    assertTrue(expected.containsValue(Outcome.INVARIANT_VIOLATED));
+    assertTrue(expected.containsValue(Outcome.NOT_REPLAYABLE));
+
+    assertEquals(expected, BatchReplay.replay(traces, 1));
+    assertEquals(expected, BatchReplay.replay(traces, 4));
+  }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (c) 2018 Ellis Michael (emichael@cs.washington.edu)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package dslabs.framework.testing.search;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import dslabs.framework.testing.StatePredicate;
+import dslabs.framework.testing.search.SearchResults.EndCondition;
+import dslabs.framework.testing.utils.SerializableFunction;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Before;
+import org.junit.Test;
+
+public class BestFirstTest {
+  private static final AtomicInteger checked = new AtomicInteger();
+
+  private static final StatePredicate COUNT_CHECKED =
+      StatePredicate.statePredicate(
+          "States counted",
+          s -> {
+            checked.incrementAndGet();
+            return true;
+          });
+
+  /* The number of tokens the ring has yet to pass; admissible, since each pass is one step. */
+  private static final SerializableFunction<SearchState, Double> TOKENS_LEFT =
+      Heuristics.serverSum(n -> RingNode.MAX_TOKEN - ((RingNode) n).max);
+
+  @Before
+  public void setup() {
+    checked.set(0);
+  }
+
+  private static SearchSettings settings(SerializableFunction<SearchState, Double> heuristic) {
+    SearchSettings settings = new SearchSettings();
+    settings.singleThreaded(true).outputFreqSecs(-1).heuristic(heuristic);
+    settings.addInvariant(COUNT_CHECKED);
+    return settings;
+  }
+
+  private static void assertTraceFromInitialState(SearchState s) {
+    while (s.previous() != null) {
+      assertEquals(s.previous().depth() + 1, s.depth());
+      s = s.previous();
+    }
+    assertEquals(VisitedSetTest.ringState(), s);
+  }
+
+  @Test
+  public void heuristicFindsGoalsFaster() {
+    SearchSettings settings = settings(null).addGoal(VisitedSetTest.TOKEN_MAXED);
+    SearchResults results = Search.bfs(VisitedSetTest.ringState(), settings);
+    assertEquals(EndCondition.GOAL_FOUND, results.endCondition());
+    final int goalDepth = results.goalMatchingState().depth();
+    final int bfsChecked = checked.getAndSet(0);
+
+    // Greedy
+    settings = settings(TOKENS_LEFT).addGoal(VisitedSetTest.TOKEN_MAXED);
+    results = Search.bestFirst(VisitedSetTest.ringState(), settings);
+    assertEquals(EndCondition.GOAL_FOUND, results.endCondition());
+    assertTraceFromInitialState(results.goalMatchingState());
+    assertTrue(checked.getAndSet(0) < bfsChecked);
+
+    // A*, with an admissible heuristic
+    settings.heuristicDepthWeight(1);
+    results = Search.bestFirst(VisitedSetTest.ringState(), settings);
+    assertEquals(EndCondition.GOAL_FOUND, results.endCondition());
+    assertEquals(goalDepth, results.goalMatchingState().depth());
+    assertTraceFromInitialState(results.goalMatchingState());
+    assertTrue(checked.get() < bfsChecked);
+  }
+
+  @Test
+  public void exploresWholeSpace() {
+    Search.bfs(VisitedSetTest.ringState(), settings(null));
+    final int bfsChecked = checked.getAndSet(0);
+
+    SearchResults results = Search.bestFirst(VisitedSetTest.ringState(), settings(TOKENS_LEFT));
+    assertEquals(EndCondition.SPACE_EXHAUSTED, results.endCondition());
+    assertEquals(bfsChecked, checked.getAndSet(0));
+
+    // A full frontier drops states; the search still finishes, but not having exhausted the space
+    SearchSettings settings = settings(TOKENS_LEFT).bestFirstFrontierSize(1);
+    results = Search.bestFirst(VisitedSetTest.ringState(), settings);
+    assertEquals(EndCondition.STATES_DROPPED, results.endCondition());
+    assertTrue(checked.get() < bfsChecked);
+  }
+
+  @Test
+  public void unsatisfiedCountsPredicates() {
+    final SearchState s = VisitedSetTest.ringState();
+    assertEquals(
+        1.0,
+        Heuristics.unsatisfied(VisitedSetTest.TOKEN_MAXED, VisitedSetTest.TOKEN_MAXED.negate())
+            .apply(s),
+        0);
+    assertEquals(0.0, Heuristics.pendingCommands().apply(s), 0);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void requiresHeuristic() {
+    Search.bestFirst(VisitedSetTest.ringState(), new SearchSettings());
+  }
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright (c) 2018 Ellis Michael (emichael@cs.washington.edu)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package dslabs.framework.testing.search;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import dslabs.framework.testing.StatePredicate;
+import dslabs.framework.testing.search.SearchResults.EndCondition;
+import dslabs.framework.testing.search.SearchSettings.VisitedSetMode;
+import dslabs.framework.testing.search.SearchState.SearchEquivalenceWrappedSearchState;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CheckpointTest {
+  private static final Set<SearchEquivalenceWrappedSearchState> checked =
+      ConcurrentHashMap.newKeySet();
+
+  private static final StatePredicate RECORD_CHECKED =
+      StatePredicate.statePredicate(
+          "State recorded",
+          s -> {
+            checked.add(((SearchState) s).wrapped());
+            return true;
+          });
+
+  private static final StatePredicate DEPTH_2 =
+      StatePredicate.statePredicate("Depth 2 reached", s -> ((SearchState) s).depth() >= 2);
+
+  private Path dir;
+
+  @Before
+  public void setup() throws IOException {
+    dir = Files.createTempDirectory("dslabs-checkpoint-test");
+    checked.clear();
+  }
+
+  @After
+  public void cleanup() throws IOException {
+    try (Stream<Path> files = Files.walk(dir)) {
+      for (Path p : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+        Files.delete(p);
+      }
+    }
+  }
+
+  private SearchSettings settings(Path checkpointDir, boolean singleThreaded) {
+    SearchSettings settings = new SearchSettings();
+    settings.singleThreaded(singleThreaded).outputFreqSecs(-1);
+    settings.checkpointDir(checkpointDir).checkpointIntervalSecs(0);
+    return settings;
+  }
+
+  private static void assertTraceFromInitialState(SearchState s) {
+    int steps = 0;
+    while (s.previous() != null) {
+      assertEquals(s.previous().depth() + 1, s.depth());
+      s = s.previous();
+      steps++;
+    }
+    assertEquals(0, s.depth());
+    assertEquals(VisitedSetTest.ringState(), s);
+    assertTrue(steps > 0);
+  }
+
+  @Test
+  public void resumedSearchFinishes() throws IOException {
+    for (VisitedSetMode mode : VisitedSetMode.values()) {
+      for (boolean singleThreaded : new boolean[] {true, false}) {
+        cleanup();
+        Files.createDirectories(dir);
+        checked.clear();
+
+        SearchSettings settings = settings(null, singleThreaded);
+        settings.visitedSetMode(mode).bitstateMemoryBytes(1 << 16);
+        settings.addInvariant(RECORD_CHECKED);
+        assertEquals(
+            EndCondition.SPACE_EXHAUSTED,
+            Search.bfs(VisitedSetTest.ringState(), settings).endCondition());
+        final Set<SearchEquivalenceWrappedSearchState> all = new HashSet<>(checked);
+
+        // Stop at a depth limit, leaving a checkpoint of the last layer expanded
+        checked.clear();
+        settings = settings(dir, singleThreaded);
+        settings.visitedSetMode(mode).bitstateMemoryBytes(1 << 16).maxDepth(3);
+        settings.addInvariant(RECORD_CHECKED);
+        assertEquals(
+            EndCondition.SPACE_EXHAUSTED,
+            Search.bfs(VisitedSetTest.ringState(), settings).endCondition());
+        final int checkedBefore = checked.size();
+        assertTrue(checkedBefore < all.size());
+
+        settings.maxDepth(-1);
+        SearchResults results = Search.resume(dir, settings);
+        assertEquals(EndCondition.SPACE_EXHAUSTED, results.endCondition());
+        assertTrue(checked.size() > checkedBefore);
+        assertTrue(all.containsAll(checked));
+        if (mode == VisitedSetMode.FULL_STATES || mode == VisitedSetMode.COLLAPSED) {
+          assertEquals(all, checked);
+        }
+        if (mode == VisitedSetMode.BITSTATE) {
+          assertTrue(results.expectedOmissionRate() < 1e-3);
+        } else if (mode != VisitedSetMode.FINGERPRINTS_64) {
+          assertTrue(results.fingerprintCollisionProbability() < 1e-3);
+        }
+      }
+    }
+  }
+
+  @Test
+  public void resumedGoalsHaveFullTraces() throws IOException {
+    for (boolean singleThreaded : new boolean[] {true, false}) {
+      cleanup();
+      Files.createDirectories(dir);
+
+      SearchSettings fresh = settings(null, singleThreaded).addGoal(VisitedSetTest.TOKEN_MAXED);
+      final int goalDepth =
+          Search.bfs(VisitedSetTest.ringState(), fresh).goalMatchingState().depth();
+
+      // Stop early, leaving a checkpoint of the first layer
+      final Path first = dir.resolve("first"), second = dir.resolve("second");
+      SearchSettings settings = settings(first, singleThreaded).addGoal(DEPTH_2);
+      assertEquals(
+          EndCondition.GOAL_FOUND, Search.bfs(VisitedSetTest.ringState(), settings).endCondition());
+
+      // Resume with different settings, writing more checkpoints
+      settings = settings(second, singleThreaded).addGoal(VisitedSetTest.TOKEN_MAXED);
+      SearchResults results = Search.resume(first, settings);
+      assertEquals(EndCondition.GOAL_FOUND, results.endCondition());
+      assertEquals(goalDepth, results.goalMatchingState().depth());
+      assertTraceFromInitialState(results.goalMatchingState());
+
+      // Resume the resumed search with its own settings
+      results = Search.resume(second);
+      assertEquals(EndCondition.GOAL_FOUND, results.endCondition());
+      assertEquals(goalDepth, results.goalMatchingState().depth());
+      assertTraceFromInitialState(results.goalMatchingState());
+    }
+  }
+
+  @Test
+  public void unserializableSettingsMustBeGiven() {
+    final Object notSerializable = new Object();
+    final StatePredicate capturing =
+        StatePredicate.statePredicate("Captures an object", s -> notSerializable != null);
+    SearchSettings settings = settings(dir, true);
+    settings.addInvariant(capturing);
+    assertEquals(
+        EndCondition.SPACE_EXHAUSTED,
+        Search.bfs(VisitedSetTest.ringState(), settings).endCondition());
+
+    try {
+      Search.resume(dir);
+      throw new AssertionError("Resumed without settings");
+    } catch (IllegalStateException expected) {
+      // The settings were not saved
+    }
+
+    SearchResults results = Search.resume(dir, settings);
+    assertEquals(EndCondition.SPACE_EXHAUSTED, results.endCondition());
+    assertNull(results.invariantViolatingState());
+  }
+}
@@ -0,0 +1,315 @@
+/*
+ * Copyright (c) 2018 Ellis Michael (emichael@cs.washington.edu)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package dslabs.framework.testing.search;
+
+import static dslabs.framework.testing.StatePredicate.CLIENTS_DONE;
+import static dslabs.framework.testing.StatePredicate.RESULTS_OK;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import dslabs.framework.Address;
+import dslabs.framework.Client;
+import dslabs.framework.Command;
+import dslabs.framework.Message;
+import dslabs.framework.Node;
+import dslabs.framework.Result;
+import dslabs.framework.Timer;
+import dslabs.framework.testing.Event;
+import dslabs.framework.testing.LocalAddress;
+import dslabs.framework.testing.StateGenerator;
+import dslabs.framework.testing.StatePredicate;
+import dslabs.framework.testing.Workload;
+import dslabs.framework.testing.search.SearchResults.EndCondition;
+import dslabs.framework.testing.search.SearchSettings.VisitedSetMode;
+import dslabs.framework.testing.search.SearchState.SearchEquivalenceWrappedSearchState;
+import dslabs.framework.testing.utils.SerializableFunction;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import lombok.Data;
+import lombok.EqualsAndHashCode;
+import lombok.ToString;
+import org.apache.commons.lang3.tuple.ImmutablePair;
+import org.apache.commons.lang3.tuple.Pair;
+import org.junit.Test;
+
+/**
+ * Searches over a small lab-style system: client workers running a workload of commands against a
+ * server, with retry timers and at-most-once replies.
+ */
+public class ClientWorkloadTest {
+  static final Address server = new LocalAddress("server");
+
+  private static final int NUM_CLIENTS = 2, NUM_COMMANDS = 2;
+
+  static final StateGenerator gen =
+      StateGenerator.builder()
+          .serverSupplier(CounterServer::new)
+          .clientSupplier(a -> new CounterClient(a, server))
+          .workloadSupplier(a -> increments(NUM_COMMANDS, "%i"))
+          .build();
+
+  private static final Set<SearchEquivalenceWrappedSearchState> checked =
+      ConcurrentHashMap.newKeySet();
+
+  private static final StatePredicate RECORD_CHECKED =
+      StatePredicate.statePredicate(
+          "State recorded",
+          s -> {
+            checked.add(((SearchState) s).wrapped());
+            return true;
+          });
+
+  static final SerializableFunction<Pair<String, String>, Pair<Command, Result>> PARSER =
+      p ->
+          new ImmutablePair<>(
+              new Increment(p.getLeft()),
+              p.getRight() == null ? null : new Count(Integer.parseInt(p.getRight())));
+
+  /** Each client increments its own counter, expecting the given count after each command. */
+  static Workload increments(int numCommands, String expectedCount) {
+    return Workload.builder()
+        .parser(PARSER)
+        .commandStrings("%a")
+        .resultStrings(expectedCount)
+        .numTimes(numCommands)
+        .build();
+  }
+
+  static SearchState initialState() {
+    SearchState s = new SearchState(gen);
+    s.addServer(server);
+    for (int i = 1; i <= NUM_CLIENTS; i++) {
+      s.addClientWorker(new LocalAddress("client" + i));
+    }
+    return s;
+  }
+
+  private static SearchSettings settings() {
+    SearchSettings settings = new SearchSettings();
+    settings.singleThreaded(true).outputFreqSecs(-1).maxTimeSecs(30);
+    settings.addInvariant(RESULTS_OK).addInvariant(RECORD_CHECKED).addPrune(CLIENTS_DONE);
+    return settings;
+  }
+
+  /** Runs the search, which must exhaust the space, and returns the states it checked. */
+  private static Set<SearchEquivalenceWrappedSearchState> checkedStates(SearchSettings settings) {
+    checked.clear();
+    final SearchResults results = Search.bfs(initialState(), settings);
+    assertEquals(EndCondition.SPACE_EXHAUSTED, results.endCondition());
+    return new HashSet<>(checked);
+  }
+
+  @Test
+  public void visitedSetModesCheckSameStates() {
+    final Set<SearchEquivalenceWrappedSearchState> expected = checkedStates(settings());
+    assertTrue(expected.size() > 50);
+
+    for (VisitedSetMode mode :
+        new VisitedSetMode[] {
+          VisitedSetMode.FINGERPRINTS_64, VisitedSetMode.FINGERPRINTS_128, VisitedSetMode.COLLAPSED
+        }) {
+      for (boolean singleThreaded : new boolean[] {true, false}) {
+        SearchSettings settings = settings().visitedSetMode(mode);
+        settings.singleThreaded(singleThreaded);
+        assertEquals(expected, checkedStates(settings));
+      }
+    }
+  }
+
+  @Test
+  public void partialOrderReductionWithPruneChecksSameStates() {
+    final Set<SearchEquivalenceWrappedSearchState> expected = checkedStates(settings());
+
+    for (boolean singleThreaded : new boolean[] {true, false}) {
+      SearchSettings settings = settings().partialOrderReduction(true);
+      settings.singleThreaded(singleThreaded);
+      assertEquals(expected, checkedStates(settings));
+    }
+  }
+
+  @Test
+  public void fingerprintsDistinguishReachableStates() {
+    final Map<List<Long>, SearchEquivalenceWrappedSearchState> byFingerprint = new HashMap<>();
+    final Set<SearchEquivalenceWrappedSearchState> seen = new HashSet<>();
+    final Queue<SearchState> queue = new LinkedList<>();
+    queue.add(initialState());
+    while (!queue.isEmpty()) {
+      final SearchState s = queue.poll();
+      if (!seen.add(s.wrapped())) {
+        continue;
+      }
+      final SearchState fresh = s.restored(s.depth());
+      assertEquals(fresh.fingerprint(), s.fingerprint());
+      assertEquals(fresh.fingerprintHigh(), s.fingerprintHigh());
+      assertNull(byFingerprint.put(List.of(s.fingerprintHigh(), s.fingerprint()), s.wrapped()));
+      if (CLIENTS_DONE.test(s).value()) {
+        continue;
+      }
+      for (Event e : s.events(null)) {
+        queue.add(s.stepEvent(e, null, true));
+      }
+    }
+    assertEquals(seen.size(), byFingerprint.size());
+  }
+
+  @Test
+  public void findsClientsDone() {
+    for (VisitedSetMode mode : VisitedSetMode.values()) {
+      SearchSettings settings = settings().visitedSetMode(mode);
+      settings.clearPrunes().addGoal(CLIENTS_DONE);
+      SearchResults results = Search.bfs(initialState(), settings);
+      assertEquals(EndCondition.GOAL_FOUND, results.endCondition());
+      // Each command takes a request and a reply
+      assertEquals(2 * NUM_CLIENTS * NUM_COMMANDS, results.goalMatchingState().depth());
+    }
+  }
+
+  @Test
+  public void wrongResultsViolateInvariant() {
+    final SearchState initial = new SearchState(gen);
+    initial.addServer(server);
+    initial.addClientWorker(new LocalAddress("client1"), increments(NUM_COMMANDS, "%i+1"));
+
+    for (VisitedSetMode mode : VisitedSetMode.values()) {
+      SearchResults results = Search.bfs(initial, settings().visitedSetMode(mode));
+      assertEquals(EndCondition.INVARIANT_VIOLATED, results.endCondition());
+      assertNotNull(results.invariantViolatingState());
+      assertEquals(2, results.invariantViolatingState().depth());
+    }
+  }
+}
+
+@Data
+class Increment implements Command {
+  private final String key;
+}
+
+@Data
+class Count implements Result {
+  private final int count;
+}
+
+@Data
+class IncrementRequest implements Message {
+  private final Increment command;
+  private final int sequenceNum;
+}
+
+@Data
+class IncrementReply implements Message {
+  private final Count result;
+  private final int sequenceNum;
+}
+
+@Data
+class RetryTimer implements Timer {
+  static final int RETRY_MILLIS = 10;
+  private final int sequenceNum;
+}
+
+@EqualsAndHashCode(callSuper = true)
+@ToString(callSuper = true)
+class CounterServer extends Node {
+  private final Map<String, Integer> counts = new HashMap<>();
+  private final Map<Address, IncrementReply> lastReplies = new HashMap<>();
+
+  CounterServer(Address address) {
+    super(address);
+  }
+
+  @Override
+  public void init() {}
+
+  private void handleIncrementRequest(IncrementRequest m, Address sender) {
+    IncrementReply reply = lastReplies.get(sender);
+    if (reply == null || reply.sequenceNum() < m.sequenceNum()) {
+      int count = counts.merge(m.command().key(), 1, Integer::sum);
+      reply = new IncrementReply(new Count(count), m.sequenceNum());
+      lastReplies.put(sender, reply);
+    }
+    if (reply.sequenceNum() == m.sequenceNum()) {
+      send(reply, sender);
+    }
+  }
+}
+
+@EqualsAndHashCode(callSuper = true)
+@ToString(callSuper = true)
+class CounterClient extends Node implements Client {
+  private final Address server;
+  private Increment command;
+  private Count result;
+  private int sequenceNum = 0;
+
+  CounterClient(Address address, Address server) {
+    super(address);
+    this.server = server;
+  }
+
+  @Override
+  public synchronized void init() {}
+
+  @Override
+  public synchronized void sendCommand(Command command) {
+    this.command = (Increment) command;
+    result = null;
+    sequenceNum++;
+    send(new IncrementRequest(this.command, sequenceNum), server);
+    set(new RetryTimer(sequenceNum), RetryTimer.RETRY_MILLIS);
+  }
+
+  @Override
+  public synchronized boolean hasResult() {
+    return result != null;
+  }
+
+  @Override
+  public synchronized Result getResult() throws InterruptedException {
+    while (result == null) {
+      wait();
+    }
+    return result;
+  }
+
+  private synchronized void handleIncrementReply(IncrementReply m, Address sender) {
+    if (m.sequenceNum() == sequenceNum && result == null) {
+      result = m.result();
+      notify();
+    }
+  }
+
+  private synchronized void onRetryTimer(RetryTimer t) {
+    if (t.sequenceNum() == sequenceNum && result == null) {
+      send(new IncrementRequest(command, sequenceNum), server);
+      set(t, RetryTimer.RETRY_MILLIS);
+    }
+  }
+}
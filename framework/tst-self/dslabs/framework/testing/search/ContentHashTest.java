@@ -0,0 +1,127 @@
+/*
+ * Copyright (c) 2018 Ellis Michael (emichael@cs.washington.edu)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package dslabs.framework.testing.search;
+
+import static dslabs.framework.testing.search.VisitedSetTest.r1;
+import static dslabs.framework.testing.search.VisitedSetTest.r2;
+import static dslabs.framework.testing.search.VisitedSetTest.r3;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+
+import dslabs.framework.testing.StateGenerator;
+import dslabs.framework.testing.TimerEnvelope;
+import dslabs.framework.testing.Workload;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+
+public class ContentHashTest {
+  private static void assertSameHash(Object o1, Object o2) {
+    assertEquals(o1, o2);
+    assertArrayEquals(ContentHash.of(o1), ContentHash.of(o2));
+  }
+
+  private static void assertDifferentHash(Object o1, Object o2) {
+    assertFalse(Arrays.equals(ContentHash.of(o1), ContentHash.of(o2)));
+  }
+
+  @Test
+  public void distinguishesEqualHashCodes() {
+    final RingNode n1 = new RingNode(r1, r2), n2 = new RingNode(r1, r2);
+    n2.max = 1;
+    n2.ticks = -59;
+    assertNotEquals(n1, n2);
+    assertEquals(n1.hashCode(), n2.hashCode());
+    assertDifferentHash(n1, n2);
+
+    assertEquals("Aa".hashCode(), "BB".hashCode());
+    assertDifferentHash("Aa", "BB");
+    assertDifferentHash(new Token(1), new Token(2));
+    assertDifferentHash(List.of("a", "b"), List.of("b", "a"));
+  }
+
+  @Test
+  public void consistentWithEquals() {
+    final RingNode n1 = new RingNode(r1, r2), n2 = new RingNode(r1, r2);
+    n1.max = n2.max = 3;
+    assertSameHash(n1, n2);
+
+    // Sets and maps hash the same whatever their iteration order and implementation
+    final Map<String, Integer> m1 = new HashMap<>(), m2 = new LinkedHashMap<>(64);
+    m1.put("Aa", 1);
+    m1.put("BB", 2);
+    m2.put("BB", 2);
+    m2.put("Aa", 1);
+    assertSameHash(m1, m2);
+    assertSameHash(m1.keySet(), Map.of("BB", 0, "Aa", 0).keySet());
+    assertSameHash(new ArrayList<>(List.of(1, 2)), List.of(1, 2));
+
+    // Timers only compare their destination, timer, and bounds
+    assertSameHash(
+        new TimerEnvelope(r1, new Tick(), 10, 20), new TimerEnvelope(r1, new Tick(), 10, 20));
+    assertDifferentHash(
+        new TimerEnvelope(r1, new Tick(), 10, 20), new TimerEnvelope(r2, new Tick(), 10, 20));
+    assertSameHash(
+        TimerQueue.empty().plus(new TimerEnvelope(r1, new Tick(), 10, 10)),
+        TimerQueue.empty().plus(new TimerEnvelope(r1, new Tick(), 10, 10)));
+  }
+
+  private static SearchState ringState(int max, int ticks) {
+    final StateGenerator gen =
+        StateGenerator.builder()
+            .serverSupplier(
+                address -> {
+                  final RingNode n =
+                      new RingNode(address, address.equals(r1) ? r2 : address.equals(r2) ? r3 : r1);
+                  if (address.equals(r1)) {
+                    n.max = max;
+                    n.ticks = ticks;
+                  }
+                  return n;
+                })
+            .clientSupplier(() -> null)
+            .workloadSupplier((Workload) null)
+            .build();
+    final SearchState s = new SearchState(gen);
+    s.addServer(r1);
+    s.addServer(r2);
+    s.addServer(r3);
+    return s;
+  }
+
+  @Test
+  public void fingerprintsDistinguishEqualHashCodes() {
+    final SearchState s1 = ringState(0, 0), s2 = ringState(1, -59);
+    assertNotEquals(s1.wrapped(), s2.wrapped());
+    assertEquals(s1.server(r1).hashCode(), s2.server(r1).hashCode());
+    assertNotEquals(s1.fingerprint(), s2.fingerprint());
+    assertNotEquals(s1.fingerprintHigh(), s2.fingerprintHigh());
+    assertEquals(ringState(1, -59).fingerprint(), s2.fingerprint());
+  }
+}
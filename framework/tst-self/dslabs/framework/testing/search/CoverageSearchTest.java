@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) 2018 Ellis Michael (emichael@cs.washington.edu)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package dslabs.framework.testing.search;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import dslabs.framework.testing.LocalAddress;
+import dslabs.framework.testing.StatePredicate;
+import dslabs.framework.testing.Workload;
+import dslabs.framework.testing.search.SearchResults.EndCondition;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CoverageSearchTest {
+  private static final AtomicInteger checked = new AtomicInteger();
+
+  private static final StatePredicate COUNT_CHECKED =
+      StatePredicate.statePredicate(
+          "States counted",
+          s -> {
+            checked.incrementAndGet();
+            return true;
+          });
+
+  @Before
+  public void setup() {
+    checked.set(0);
+  }
+
+  private static SearchSettings settings() {
+    SearchSettings settings = new SearchSettings();
+    settings.singleThreaded(true).outputFreqSecs(-1).maxTimeSecs(1);
+    settings.addInvariant(COUNT_CHECKED);
+    return settings;
+  }
+
+  private static void assertTraceFromInitialState(SearchState s) {
+    while (s.previous() != null) {
+      assertEquals(s.previous().depth() + 1, s.depth());
+      s = s.previous();
+    }
+    assertEquals(VisitedSetTest.ringState(), s);
+  }
+
+  @Test
+  public void findsGoal() {
+    SearchSettings settings = settings().addGoal(VisitedSetTest.TOKEN_MAXED);
+    SearchResults results = Search.coverageGuided(VisitedSetTest.ringState(), settings);
+    assertEquals(EndCondition.GOAL_FOUND, results.endCondition());
+    assertTraceFromInitialState(results.goalMatchingState());
+
+    settings.singleThreaded(false).numThreads(4);
+    results = Search.coverageGuided(VisitedSetTest.ringState(), settings);
+    assertEquals(EndCondition.GOAL_FOUND, results.endCondition());
+    assertTraceFromInitialState(results.goalMatchingState());
+  }
+
+  @Test
+  public void checksStatesOnce() {
+    SearchSettings settings = settings().maxDepth(8);
+    Search.bfs(VisitedSetTest.ringState(), settings);
+    final int reachable = checked.getAndSet(0);
+
+    SearchResults results = Search.coverageGuided(VisitedSetTest.ringState(), settings);
+    assertEquals(EndCondition.TIME_EXHAUSTED, results.endCondition());
+    assertTrue(checked.get() > 1);
+    assertTrue(checked.get() <= reachable);
+  }
+
+  @Test
+  public void corpusSizeCapped() {
+    // An endless workload, so new node states keep being found
+    final SearchState initial = new SearchState(ClientWorkloadTest.gen);
+    initial.addServer(ClientWorkloadTest.server);
+    initial.addClientWorker(
+        new LocalAddress("client1"),
+        Workload.builder()
+            .commandStrings("%a")
+            .parser(ClientWorkloadTest.PARSER)
+            .infinite(true)
+            .build());
+
+    // Uncapped, the corpus grows past 8 entries well within the time limit
+    final CoverageSearch search = new CoverageSearch(settings().coverageCorpusSize(8));
+    assertEquals(EndCondition.TIME_EXHAUSTED, search.run(initial).endCondition());
+    assertEquals(8, search.corpusSize());
+  }
+}
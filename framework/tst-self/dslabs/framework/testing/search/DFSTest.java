@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) 2018 Ellis Michael (emichael@cs.washington.edu)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package dslabs.framework.testing.search;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+import dslabs.framework.testing.StatePredicate;
+import dslabs.framework.testing.search.SearchResults.EndCondition;
+import dslabs.framework.testing.search.SearchSettings.VisitedSetMode;
+import dslabs.framework.testing.search.SearchState.SearchEquivalenceWrappedSearchState;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import org.junit.Test;
+
+public class DFSTest {
+  private static final Set<SearchEquivalenceWrappedSearchState> checked =
+      ConcurrentHashMap.newKeySet();
+
+  private static final StatePredicate RECORD_CHECKED =
+      StatePredicate.statePredicate(
+          "State recorded",
+          s -> {
+            checked.add(((SearchState) s).wrapped());
+            return true;
+          });
+
+  private static Set<SearchEquivalenceWrappedSearchState> bfsChecked(int maxDepth) {
+    checked.clear();
+    SearchSettings settings = new SearchSettings();
+    settings.maxDepth(maxDepth).singleThreaded(true).outputFreqSecs(-1);
+    settings.addInvariant(RECORD_CHECKED);
+    assertEquals(
+        EndCondition.SPACE_EXHAUSTED,
+        Search.bfs(VisitedSetTest.ringState(), settings).endCondition());
+    return new HashSet<>(checked);
+  }
+
+  @Test
+  public void checksSameStatesAsBfs() {
+    for (int maxDepth : new int[] {-1, 3}) {
+      final Set<SearchEquivalenceWrappedSearchState> expected = bfsChecked(maxDepth);
+      for (VisitedSetMode mode : VisitedSetMode.values()) {
+        for (boolean singleThreaded : new boolean[] {true, false}) {
+          checked.clear();
+          SearchSettings settings = new SearchSettings().visitedSetMode(mode);
+          settings.maxDepth(maxDepth).singleThreaded(singleThreaded).outputFreqSecs(-1);
+          settings.addInvariant(RECORD_CHECKED);
+          if (maxDepth >= 0 && mode == VisitedSetMode.BITSTATE) {
+            assertThrows(
+                IllegalArgumentException.class,
+                () -> Search.exhaustiveDfs(VisitedSetTest.ringState(), settings));
+            continue;
+          }
+          SearchResults results = Search.exhaustiveDfs(VisitedSetTest.ringState(), settings);
+          assertEquals(EndCondition.SPACE_EXHAUSTED, results.endCondition());
+          assertEquals(expected, checked);
+
+          // Lossiness is reported from the visited set, depth-limited or not
+          final boolean fingerprints =
+              mode == VisitedSetMode.FINGERPRINTS_64 || mode == VisitedSetMode.FINGERPRINTS_128;
+          assertEquals(fingerprints, results.fingerprintCollisionProbability() != null);
+          if (fingerprints) {
+            assertTrue(results.fingerprintCollisionProbability() > 0);
+          }
+        }
+      }
+    }
+  }
+
+  @Test
+  public void findsGoal() {
+    for (boolean singleThreaded : new boolean[] {true, false}) {
+      SearchSettings settings = new SearchSettings();
+      settings.singleThreaded(singleThreaded).outputFreqSecs(-1);
+      settings.addGoal(VisitedSetTest.TOKEN_MAXED);
+      SearchResults results = Search.exhaustiveDfs(VisitedSetTest.ringState(), settings);
+      assertEquals(EndCondition.GOAL_FOUND, results.endCondition());
+      assertTrue(results.goalMatchingState().depth() >= RingNode.MAX_TOKEN);
+
+      // Not reachable within the depth limit
+      settings.maxDepth(RingNode.MAX_TOKEN - 1);
+      results = Search.exhaustiveDfs(VisitedSetTest.ringState(), settings);
+      assertEquals(EndCondition.SPACE_EXHAUSTED, results.endCondition());
+    }
+  }
+
+  @Test
+  public void iterativeDeepeningFindsShallowGoal() {
+    for (int step : new int[] {1, 2}) {
+      for (boolean singleThreaded : new boolean[] {true, false}) {
+        SearchSettings settings = new SearchSettings().iterativeDeepeningStep(step);
+        settings.singleThreaded(singleThreaded).outputFreqSecs(-1);
+        settings.addGoal(VisitedSetTest.TOKEN_MAXED);
+        SearchResults results = Search.exhaustiveDfs(VisitedSetTest.ringState(), settings);
+        assertEquals(EndCondition.GOAL_FOUND, results.endCondition());
+        assertTrue(results.goalMatchingState().depth() >= RingNode.MAX_TOKEN);
+        assertTrue(results.goalMatchingState().depth() < RingNode.MAX_TOKEN + step);
+
+        // Stops deepening once nothing was cut off
+        settings.clearGoals();
+        results = Search.exhaustiveDfs(VisitedSetTest.ringState(), settings);
+        assertEquals(EndCondition.SPACE_EXHAUSTED, results.endCondition());
+      }
+    }
+  }
+}
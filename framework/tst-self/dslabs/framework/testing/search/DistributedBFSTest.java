@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) 2018 Ellis Michael (emichael@cs.washington.edu)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package dslabs.framework.testing.search;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThrows;
+
+import dslabs.framework.Address;
+import dslabs.framework.testing.StateGenerator;
+import dslabs.framework.testing.Workload;
+import dslabs.framework.testing.search.SearchResults.EndCondition;
+import dslabs.framework.testing.search.SearchSettings.VisitedSetMode;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import org.junit.Test;
+
+public class DistributedBFSTest {
+  private static SearchSettings settings(int workers) {
+    SearchSettings settings = new SearchSettings();
+    settings.numWorkerProcesses(workers).outputFreqSecs(-1);
+    return settings;
+  }
+
+  private static void assertTraceFromInitialState(SearchState s) {
+    while (s.previous() != null) {
+      assertEquals(s.previous().depth() + 1, s.depth());
+      s = s.previous();
+    }
+    assertEquals(0, s.depth());
+    assertEquals(VisitedSetTest.ringState(), s);
+  }
+
+  @Test
+  public void terminalStatesMatchBFS() {
+    final SearchState goal =
+        Search.bfs(
+                VisitedSetTest.ringState(),
+                new SearchSettings().addGoal(VisitedSetTest.TOKEN_MAXED))
+            .goalMatchingState();
+
+    for (int workers : new int[] {1, 3}) {
+      SearchResults results =
+          Search.distributedBfs(
+              VisitedSetTest.ringState(), settings(workers).addGoal(VisitedSetTest.TOKEN_MAXED));
+      assertEquals(EndCondition.GOAL_FOUND, results.endCondition());
+      assertEquals(goal.depth(), results.goalMatchingState().depth());
+      assertTraceFromInitialState(results.goalMatchingState());
+
+      results =
+          Search.distributedBfs(
+              VisitedSetTest.ringState(),
+              settings(workers).addInvariant(VisitedSetTest.TOKEN_MAXED.negate()));
+      assertEquals(EndCondition.INVARIANT_VIOLATED, results.endCondition());
+      assertEquals(goal.depth(), results.invariantViolatingState().depth());
+      assertTraceFromInitialState(results.invariantViolatingState());
+    }
+  }
+
+  @Test
+  public void spaceExhausted() {
+    SearchResults results = Search.distributedBfs(VisitedSetTest.ringState(), settings(2));
+    assertEquals(EndCondition.SPACE_EXHAUSTED, results.endCondition());
+    assertNull(results.fingerprintCollisionProbability());
+
+    // No goal is reachable within the depth limit
+    SearchSettings settings = settings(2).addGoal(VisitedSetTest.TOKEN_MAXED);
+    settings.maxDepth(RingNode.MAX_TOKEN - 1);
+    results = Search.distributedBfs(VisitedSetTest.ringState(), settings);
+    assertEquals(EndCondition.SPACE_EXHAUSTED, results.endCondition());
+  }
+
+  @Test
+  public void stopsAtStateBudget() {
+    SearchResults results =
+        Search.distributedBfs(VisitedSetTest.ringState(), settings(2).maxStates(10));
+    assertEquals(EndCondition.STATE_LIMIT_EXCEEDED, results.endCondition());
+  }
+
+  @Test
+  public void workersReportLossiness() {
+    SearchSettings settings = settings(2).visitedSetMode(VisitedSetMode.FINGERPRINTS_64);
+    SearchResults results = Search.distributedBfs(VisitedSetTest.ringState(), settings);
+    assertEquals(EndCondition.SPACE_EXHAUSTED, results.endCondition());
+    assertNotNull(results.fingerprintCollisionProbability());
+  }
+
+  @Test(timeout = 60000)
+  public void workerFailureFailsSearch() {
+    // Workers cannot read states in which a node has seen the second token
+    final StateGenerator gen =
+        StateGenerator.builder()
+            .serverSupplier(
+                address ->
+                    new PoisonedRingNode(
+                        address,
+                        address.equals(VisitedSetTest.r1)
+                            ? VisitedSetTest.r2
+                            : address.equals(VisitedSetTest.r2)
+                                ? VisitedSetTest.r3
+                                : VisitedSetTest.r1))
+            .clientSupplier(() -> null)
+            .workloadSupplier((Workload) null)
+            .build();
+    final SearchState initial = new SearchState(gen);
+    initial.addServer(VisitedSetTest.r1);
+    initial.addServer(VisitedSetTest.r2);
+    initial.addServer(VisitedSetTest.r3);
+
+    assertThrows(RuntimeException.class, () -> Search.distributedBfs(initial, settings(2)));
+  }
+}
+
+class PoisonedRingNode extends RingNode {
+  PoisonedRingNode(Address address, Address next) {
+    super(address, next);
+  }
+
+  private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+    in.defaultReadObject();
+    if (max >= 2) {
+      throw new InvalidObjectException("Poisoned node");
+    }
+  }
+}
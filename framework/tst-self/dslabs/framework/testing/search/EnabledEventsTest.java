@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) 2018 Ellis Michael (emichael@cs.washington.edu)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package dslabs.framework.testing.search;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import dslabs.framework.testing.Event;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.Queue;
+import java.util.Set;
+import org.junit.Test;
+
+public class EnabledEventsTest {
+  /**
+   * Explores the ring state space with the settings active, as if a search were running, checking
+   * that the incrementally maintained events match the events computed from scratch.
+   */
+  private static int checkIncrementalEvents(SearchSettings settings) {
+    final SearchSettings inactive = settings.clone();
+    settings.activeSearch(new BFS(settings));
+
+    final Set<Object> visited = new HashSet<>();
+    final Queue<SearchState> queue = new LinkedList<>();
+    final SearchState initial = VisitedSetTest.ringState();
+    visited.add(initial.wrapped());
+    queue.add(initial);
+    int numEvents = 0;
+    while (!queue.isEmpty()) {
+      SearchState s = queue.poll();
+      final Set<Event> events = new HashSet<>(s.events(settings));
+      assertEquals(new HashSet<>(s.events(inactive)), events);
+      numEvents += events.size();
+      for (Event e : events) {
+        SearchState next = s.stepEvent(e, settings, true);
+        if (visited.add(next.wrapped())) {
+          queue.add(next);
+        }
+      }
+    }
+    return numEvents;
+  }
+
+  @Test
+  public void incrementalEventsMatch() {
+    final int all = checkIncrementalEvents(new SearchSettings());
+    assertTrue(all > 0);
+
+    final int partitioned =
+        checkIncrementalEvents(
+            new SearchSettings().linkActive(VisitedSetTest.r2, VisitedSetTest.r3, false));
+    assertTrue(partitioned > 0 && partitioned < all);
+
+    final int noTimers =
+        checkIncrementalEvents(new SearchSettings().deliverTimers(VisitedSetTest.r1, false));
+    assertTrue(noTimers > 0 && noTimers < all);
+  }
+
+  @Test
+  public void modifiedStatesRecomputeEvents() {
+    final SearchSettings settings = new SearchSettings();
+    settings.activeSearch(new BFS(settings));
+    final SearchState s = VisitedSetTest.ringState();
+    final int before = s.events(settings).size();
+
+    s.dropPendingMessages();
+    final int dropped = s.events(settings).size();
+    assertTrue(dropped < before);
+
+    s.undropMessages();
+    assertEquals(before, s.events(settings).size());
+  }
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright (c) 2018 Ellis Michael (emichael@cs.washington.edu)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package dslabs.framework.testing.search;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.collect.Iterables;
+import dslabs.framework.testing.StatePredicate;
+import dslabs.framework.testing.search.SearchResults.EndCondition;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryNotEmptyException;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ExternalBFSTest {
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  private SearchSettings settings(boolean singleThreaded) {
+    SearchSettings settings = new SearchSettings();
+    settings.singleThreaded(singleThreaded).outputFreqSecs(-1);
+    // Force many segments per layer
+    settings.externalMemoryDir(folder.getRoot().toPath()).externalMemorySegmentSize(4);
+    return settings;
+  }
+
+  private void assertValidTrace(SearchState s, int depth) {
+    assertNotNull(s);
+    assertEquals(depth, s.depth());
+    assertEquals(depth + 1, Iterables.size(s.trace()));
+    SearchState replayed = Iterables.getFirst(s.trace(), null);
+    for (SearchState t : Iterables.skip(s.trace(), 1)) {
+      replayed = replayed.stepEvent(t.previousEvent(), null, false);
+      assertNotNull(replayed);
+    }
+    assertEquals(s, replayed);
+  }
+
+  private void assertCleanedUp() {
+    assertEquals(0, Objects.requireNonNull(new File(folder.getRoot().toString()).list()).length);
+  }
+
+  @Test
+  public void goalFoundAndSpaceExhausted() {
+    for (boolean singleThreaded : new boolean[] {true, false}) {
+      SearchSettings settings = settings(singleThreaded);
+      settings.addGoal(VisitedSetTest.TOKEN_MAXED);
+      SearchResults results = Search.externalBfs(VisitedSetTest.ringState(), settings);
+      assertEquals(EndCondition.GOAL_FOUND, results.endCondition());
+      assertValidTrace(results.goalMatchingState(), RingNode.MAX_TOKEN);
+      assertCleanedUp();
+
+      settings.clearGoals();
+      results = Search.externalBfs(VisitedSetTest.ringState(), settings);
+      assertEquals(EndCondition.SPACE_EXHAUSTED, results.endCondition());
+      assertTrue(results.fingerprintCollisionProbability() < 1e-3);
+      assertCleanedUp();
+    }
+  }
+
+  @Test
+  public void invariantViolated() {
+    for (boolean singleThreaded : new boolean[] {true, false}) {
+      SearchSettings settings = settings(singleThreaded);
+      settings.addInvariant(VisitedSetTest.TOKEN_MAXED.negate());
+      SearchResults results = Search.externalBfs(VisitedSetTest.ringState(), settings);
+      assertEquals(EndCondition.INVARIANT_VIOLATED, results.endCondition());
+      assertValidTrace(results.invariantViolatingState(), RingNode.MAX_TOKEN);
+      assertCleanedUp();
+    }
+  }
+
+  @Test
+  public void depthLimited() {
+    SearchSettings settings = settings(true);
+    settings.maxDepth(RingNode.MAX_TOKEN - 1);
+    settings.addGoal(VisitedSetTest.TOKEN_MAXED);
+    SearchResults results = Search.externalBfs(VisitedSetTest.ringState(), settings);
+    assertEquals(EndCondition.SPACE_EXHAUSTED, results.endCondition());
+    assertCleanedUp();
+  }
+
+  @Test
+  public void exceptionThrown() {
+    SearchState initialState = new SearchState(SearchAndTraceMinimizerTest.gen);
+    initialState.addServer(SearchAndTraceMinimizerTest.a);
+    initialState.addServer(SearchAndTraceMinimizerTest.b);
+
+    StatePredicate noop = StatePredicate.statePredicate("noop", s -> true);
+    SearchSettings settings = settings(true);
+    settings.addInvariant(noop);
+    SearchResults results = Search.externalBfs(initialState, settings);
+    assertEquals(EndCondition.EXCEPTION_THROWN, results.endCondition());
+    assertNotNull(results.exceptionalState().thrownException());
+    assertEquals(2, results.exceptionalState().depth());
+    assertEquals(3, Iterables.size(results.exceptionalState().trace()));
+    assertCleanedUp();
+  }
+
+  @Test
+  public void ioErrorFailsSearch() {
+    for (boolean singleThreaded : new boolean[] {true, false}) {
+      // Delete the search's files from under it once the second layer is being expanded
+      final AtomicBoolean deleted = new AtomicBoolean();
+      final StatePredicate deleteFiles =
+          StatePredicate.statePredicate(
+              "Files deleted",
+              s -> {
+                if (((SearchState) s).depth() == 2 && !deleted.getAndSet(true)) {
+                  for (File dir : Objects.requireNonNull(folder.getRoot().listFiles())) {
+                    for (File f : Objects.requireNonNull(dir.listFiles())) {
+                      f.delete();
+                    }
+                  }
+                }
+                return true;
+              });
+      final SearchSettings settings = settings(singleThreaded);
+      settings.addInvariant(deleteFiles);
+      assertThrows(
+          UncheckedIOException.class,
+          () -> Search.externalBfs(VisitedSetTest.ringState(), settings));
+      assertCleanedUp();
+    }
+  }
+
+  @Test
+  public void cleanupErrorDoesNotMaskFailure() {
+    // Delete the search's files, and leave a directory behind which cleanup can't delete
+    final AtomicBoolean deleted = new AtomicBoolean();
+    final StatePredicate deleteFiles =
+        StatePredicate.statePredicate(
+            "Files deleted",
+            s -> {
+              if (((SearchState) s).depth() == 2 && !deleted.getAndSet(true)) {
+                for (File dir : Objects.requireNonNull(folder.getRoot().listFiles())) {
+                  for (File f : Objects.requireNonNull(dir.listFiles())) {
+                    f.delete();
+                  }
+                  final File junk = new File(dir, "junk");
+                  try {
+                    assertTrue(junk.mkdir() && new File(junk, "file").createNewFile());
+                  } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                  }
+                }
+              }
+              return true;
+            });
+    final SearchSettings settings = settings(true);
+    settings.addInvariant(deleteFiles);
+    final UncheckedIOException e =
+        assertThrows(
+            UncheckedIOException.class,
+            () -> Search.externalBfs(VisitedSetTest.ringState(), settings));
+    assertFalse(e.getCause() instanceof DirectoryNotEmptyException);
+    assertEquals(1, e.getSuppressed().length);
+    assertTrue(e.getSuppressed()[0].getCause() instanceof DirectoryNotEmptyException);
+  }
+
+  @Test
+  public void unusableDirectoryFailsSearch() throws IOException {
+    // The directory can't be created inside a regular file
+    final SearchSettings settings = settings(true);
+    settings.externalMemoryDir(folder.newFile().toPath().resolve("search"));
+    assertThrows(
+        UncheckedIOException.class, () -> Search.externalBfs(VisitedSetTest.ringState(), settings));
+    assertNull(settings.activeSearch());
+  }
+}
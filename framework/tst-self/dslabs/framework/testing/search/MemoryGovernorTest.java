@@ -0,0 +1,151 @@
+/*
+ * Copyright (c) 2018 Ellis Michael (emichael@cs.washington.edu)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package dslabs.framework.testing.search;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import dslabs.framework.testing.Event;
+import dslabs.framework.testing.StatePredicate;
+import dslabs.framework.testing.search.MemoryGovernor.Pressure;
+import dslabs.framework.testing.search.SearchResults.EndCondition;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MemoryGovernorTest {
+  private static final AtomicInteger checked = new AtomicInteger();
+
+  private static final StatePredicate COUNT_CHECKED =
+      StatePredicate.statePredicate(
+          "States counted",
+          s -> {
+            checked.incrementAndGet();
+            return true;
+          });
+
+  @Before
+  public void setup() {
+    checked.set(0);
+  }
+
+  private static SearchSettings settings() {
+    SearchSettings settings = new SearchSettings();
+    settings.singleThreaded(true).outputFreqSecs(-1).maxTimeSecs(10);
+    settings.addInvariant(COUNT_CHECKED);
+    return settings;
+  }
+
+  @Test
+  public void pressureThresholds() {
+    assertEquals(Pressure.NORMAL, MemoryGovernor.pressure(1L << 40, -1));
+    assertEquals(Pressure.NORMAL, MemoryGovernor.pressure(74, 100));
+    assertEquals(Pressure.HIGH, MemoryGovernor.pressure(75, 100));
+    assertEquals(Pressure.CRITICAL, MemoryGovernor.pressure(90, 100));
+  }
+
+  @Test
+  public void stopsAtStateBudget() {
+    SearchResults results = Search.bfs(VisitedSetTest.ringState(), settings().maxStates(10));
+    assertEquals(EndCondition.STATE_LIMIT_EXCEEDED, results.endCondition());
+    assertTrue(checked.get() >= 10 && checked.get() < 20);
+
+    results =
+        Search.bfs(
+            VisitedSetTest.ringState(),
+            settings().maxStates(10).singleThreaded(false).numThreads(4));
+    assertEquals(EndCondition.STATE_LIMIT_EXCEEDED, results.endCondition());
+
+    // Terminal states and exhausted spaces take precedence
+    results =
+        Search.bfs(
+            VisitedSetTest.ringState(),
+            settings().maxStates(10).addGoal(VisitedSetTest.TOKEN_MAXED.negate()));
+    assertEquals(EndCondition.GOAL_FOUND, results.endCondition());
+  }
+
+  @Test
+  public void stopsAtMemoryBudget() {
+    // Make sure the heap has been collected, so there is an occupancy to compare to the budget
+    System.gc();
+    SearchResults results = Search.bfs(VisitedSetTest.ringState(), settings().maxMemoryBytes(1));
+    assertEquals(EndCondition.MEMORY_EXHAUSTED, results.endCondition());
+    // Full states are not switched to fingerprints unless the settings allow it
+    assertNull(results.fingerprintCollisionProbability());
+
+    results =
+        Search.dfs(
+            VisitedSetTest.ringState(),
+            settings().maxMemoryBytes(1).maxDepth(8).singleThreaded(false).numThreads(2));
+    assertEquals(EndCondition.MEMORY_EXHAUSTED, results.endCondition());
+
+    results =
+        Search.bfs(
+            VisitedSetTest.ringState(),
+            settings().maxMemoryBytes(1).memoryGovernor(false).maxDepth(4));
+    assertEquals(EndCondition.SPACE_EXHAUSTED, results.endCondition());
+  }
+
+  @Test
+  public void fingerprintsOnlyWhenAllowed() {
+    final SearchSettings settings = settings();
+    final VisitedSet full = VisitedSet.create(settings);
+    full.add(VisitedSetTest.ringState());
+    assertSame(full, new BFS(settings).shedMemory(full));
+
+    settings.fingerprintsUnderMemoryPressure(true);
+    final VisitedSet fingerprinted = new BFS(settings).shedMemory(full);
+    assertNotSame(full, fingerprinted);
+    assertEquals(full.size(), fingerprinted.size());
+  }
+
+  @Test
+  public void fingerprintedSetKeepsStates() {
+    final SearchSettings settings = new SearchSettings();
+    final VisitedSet full = VisitedSet.create(settings);
+    final List<SearchState> states = new ArrayList<>();
+    SearchState s = VisitedSetTest.ringState();
+    for (int i = 0; i < 8; i++) {
+      states.add(s);
+      full.add(s);
+      final Event e = s.events(settings).iterator().next();
+      s = s.stepEvent(e, settings, true);
+    }
+
+    final VisitedSet fingerprinted = full.fingerprinted(settings);
+    assertNotNull(fingerprinted);
+    assertEquals(full.size(), fingerprinted.size());
+    for (SearchState state : states) {
+      assertFalse(fingerprinted.add(state));
+    }
+    assertTrue(fingerprinted.add(s) || states.contains(s));
+    assertEquals(null, fingerprinted.fingerprinted(settings));
+  }
+}
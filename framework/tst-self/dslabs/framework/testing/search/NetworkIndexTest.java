@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) 2018 Ellis Michael (emichael@cs.washington.edu)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package dslabs.framework.testing.search;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Sets;
+import dslabs.framework.Address;
+import dslabs.framework.Message;
+import dslabs.framework.testing.Event;
+import dslabs.framework.testing.MessageEnvelope;
+import dslabs.framework.testing.StatePredicate;
+import dslabs.framework.testing.search.SearchResults.EndCondition;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.Queue;
+import java.util.Set;
+import org.junit.Test;
+
+public class NetworkIndexTest {
+  private static final Address[] ADDRESSES = {
+    VisitedSetTest.r1, VisitedSetTest.r2, VisitedSetTest.r3
+  };
+
+  private static class Unsent implements Message {}
+
+  private static Set<MessageEnvelope> scanned(
+      SearchState s, com.google.common.base.Predicate<MessageEnvelope> predicate) {
+    return Sets.newHashSet(Iterables.filter(s.network(), predicate));
+  }
+
+  private static void checkQueries(SearchState s) {
+    assertEquals(scanned(s, me -> true), Sets.newHashSet(s.messagesOfType(Message.class)));
+    assertEquals(
+        scanned(s, me -> me.message() instanceof Token),
+        Sets.newHashSet(s.messagesOfType(Token.class)));
+    assertTrue(Iterables.isEmpty(s.messagesOfType(Unsent.class)));
+    for (Address to : ADDRESSES) {
+      assertEquals(scanned(s, me -> me.to().equals(to)), Sets.newHashSet(s.messagesTo(to)));
+      for (Address from : ADDRESSES) {
+        assertEquals(
+            scanned(s, me -> me.from().equals(from) && me.to().equals(to)),
+            Sets.newHashSet(s.messagesBetween(from, to)));
+      }
+    }
+    // No duplicates
+    assertEquals(Iterables.size(s.network()), Iterables.size(s.messagesOfType(Message.class)));
+  }
+
+  @Test
+  public void indexedQueriesMatchScans() {
+    final Set<Object> visited = new HashSet<>();
+    final Queue<SearchState> queue = new LinkedList<>();
+    final SearchState initial = VisitedSetTest.ringState();
+    visited.add(initial.wrapped());
+    queue.add(initial);
+    int numStates = 0;
+    while (!queue.isEmpty()) {
+      SearchState s = queue.poll();
+      // Only query some states, so successors both inherit and build the type index
+      if (numStates++ % 2 == 0) {
+        checkQueries(s);
+      }
+      for (Event e : s.events(null)) {
+        SearchState next = s.stepEvent(e, null, true);
+        if (visited.add(next.wrapped())) {
+          queue.add(next);
+        }
+      }
+    }
+    assertTrue(numStates > 1);
+  }
+
+  @Test
+  public void droppedMessagesQueried() {
+    SearchState s = VisitedSetTest.ringState();
+    checkQueries(s);
+    s.dropPendingMessages();
+    checkQueries(s);
+    assertEquals(1, Iterables.size(s.messagesOfType(Token.class)));
+
+    SearchState next = s.stepEvent(s.events(null).iterator().next(), null, true);
+    checkQueries(next);
+    next.undropMessagesTo(VisitedSetTest.r2);
+    checkQueries(next);
+    next.undropMessages();
+    checkQueries(next);
+  }
+
+  private static int goalDepth(StatePredicate goal) {
+    SearchSettings settings = new SearchSettings();
+    settings.singleThreaded(true).outputFreqSecs(-1);
+    settings.addGoal(goal);
+    SearchResults results = Search.bfs(VisitedSetTest.ringState(), settings);
+    assertEquals(EndCondition.GOAL_FOUND, results.endCondition());
+    return results.goalMatchingState().depth();
+  }
+
+  @Test
+  public void predicateBuildersMatchScans() {
+    assertEquals(
+        goalDepth(
+            StatePredicate.containsMessageMatching(
+                "last token", m -> m instanceof Token && ((Token) m).n() == RingNode.MAX_TOKEN)),
+        goalDepth(
+            StatePredicate.containsMessageOfType(
+                "last token", Token.class, t -> t.n() == RingNode.MAX_TOKEN)));
+    assertEquals(
+        StatePredicate.containsMessageMatching("last token", m -> true).name(),
+        StatePredicate.containsMessageOfType("last token", Token.class, t -> true).name());
+
+    assertEquals(
+        goalDepth(
+            StatePredicate.containsEnvelopMatching(
+                "to r3", me -> me.to().equals(VisitedSetTest.r3))),
+        goalDepth(StatePredicate.containsMessageTo(VisitedSetTest.r3)));
+  }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2018 Ellis Michael (emichael@cs.washington.edu)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package dslabs.framework.testing.search;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import com.google.common.collect.Iterables;
+import dslabs.framework.testing.StatePredicate;
+import dslabs.framework.testing.search.SearchResults.EndCondition;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+
+public class ParallelBFSTest {
+  private static SearchSettings settings(int numThreads) {
+    SearchSettings settings = new SearchSettings();
+    settings.numThreads(numThreads).outputFreqSecs(-1);
+    return settings;
+  }
+
+  @Test
+  public void findsShortestCounterexample() {
+    for (int numThreads : new int[] {2, 8}) {
+      SearchSettings settings = settings(numThreads);
+      settings.addInvariant(VisitedSetTest.TOKEN_MAXED.negate());
+      SearchResults results = new ParallelBFS(settings).run(VisitedSetTest.ringState());
+      assertEquals(EndCondition.INVARIANT_VIOLATED, results.endCondition());
+      SearchState s = results.invariantViolatingState();
+      assertNotNull(s);
+      assertEquals(RingNode.MAX_TOKEN, s.depth());
+      assertEquals(RingNode.MAX_TOKEN + 1, Iterables.size(s.trace()));
+    }
+  }
+
+  @Test
+  public void exhaustsSpace() {
+    for (int numThreads : new int[] {2, 8}) {
+      SearchSettings settings = settings(numThreads);
+      SearchResults results = new ParallelBFS(settings).run(VisitedSetTest.ringState());
+      assertEquals(EndCondition.SPACE_EXHAUSTED, results.endCondition());
+
+      settings.maxDepth(RingNode.MAX_TOKEN - 1).addGoal(VisitedSetTest.TOKEN_MAXED);
+      results = new ParallelBFS(settings).run(VisitedSetTest.ringState());
+      assertEquals(EndCondition.SPACE_EXHAUSTED, results.endCondition());
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void needsSeveralThreads() {
+    // Single-threaded searches use BFS
+    new ParallelBFS(settings(1));
+  }
+
+  @Test
+  public void exceptionThrown() {
+    SearchState initialState = new SearchState(SearchAndTraceMinimizerTest.gen);
+    initialState.addServer(SearchAndTraceMinimizerTest.a);
+    initialState.addServer(SearchAndTraceMinimizerTest.b);
+
+    SearchResults results = new ParallelBFS(settings(4)).run(initialState);
+    assertEquals(EndCondition.EXCEPTION_THROWN, results.endCondition());
+    assertEquals(2, results.exceptionalState().depth());
+  }
+
+  @Test
+  public void noStatesCheckedAfterReturning() throws InterruptedException {
+    final AtomicInteger checked = new AtomicInteger();
+    final SearchSettings settings = settings(4).maxTimeSecs(1);
+    settings.addInvariant(
+        StatePredicate.statePredicate(
+            "States counted",
+            s -> {
+              // Slow enough that the time limit is reached with tasks in flight
+              try {
+                Thread.sleep(50);
+              } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+              }
+              checked.incrementAndGet();
+              return true;
+            }));
+    SearchResults results = Search.bfs(VisitedSetTest.ringState(), settings);
+    assertEquals(EndCondition.TIME_EXHAUSTED, results.endCondition());
+
+    final int checkedOnReturn = checked.get();
+    Thread.sleep(200);
+    assertEquals(checkedOnReturn, checked.get());
+  }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright (c) 2018 Ellis Michael (emichael@cs.washington.edu)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package dslabs.framework.testing.search;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import dslabs.framework.testing.StatePredicate;
+import dslabs.framework.testing.StatePredicate.ReadSet;
+import dslabs.framework.testing.search.SearchResults.EndCondition;
+import dslabs.framework.testing.utils.Cloning;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Test;
+
+public class PredicateReadSetTest {
+  private static final AtomicLong evaluations = new AtomicLong();
+
+  private static StatePredicate r1Saw(int token) {
+    return StatePredicate.statePredicate(
+        "r1 saw token " + token,
+        s -> {
+          evaluations.incrementAndGet();
+          return ((RingNode) s.server(VisitedSetTest.r1)).max >= token;
+        });
+  }
+
+  private static final StatePredicate R1_NOT_PAST_MAX =
+      StatePredicate.statePredicate(
+          "r1 never saw a token past the last one",
+          s -> {
+            evaluations.incrementAndGet();
+            return ((RingNode) s.server(VisitedSetTest.r1)).max <= RingNode.MAX_TOKEN;
+          });
+
+  private static long evaluationsDuringSearch(SearchSettings settings) {
+    evaluations.set(0);
+    settings.singleThreaded(true).outputFreqSecs(-1);
+    assertEquals(
+        EndCondition.SPACE_EXHAUSTED,
+        Search.bfs(VisitedSetTest.ringState(), settings).endCondition());
+    return evaluations.get();
+  }
+
+  @Test
+  public void skipsUnaffectedInvariants() {
+    final long undeclared =
+        evaluationsDuringSearch(new SearchSettings().addInvariant(R1_NOT_PAST_MAX));
+    final long declared =
+        evaluationsDuringSearch(
+            new SearchSettings()
+                .addInvariant(R1_NOT_PAST_MAX.readsOnly(ReadSet.nodes(VisitedSetTest.r1))));
+    assertTrue(declared > 0);
+    assertTrue(declared < undeclared);
+  }
+
+  private static int goalDepth(StatePredicate goal) {
+    SearchSettings settings = new SearchSettings();
+    settings.singleThreaded(true).outputFreqSecs(-1);
+    settings.addGoal(goal);
+    SearchResults results = Search.bfs(VisitedSetTest.ringState(), settings);
+    assertEquals(EndCondition.GOAL_FOUND, results.endCondition());
+    return results.goalMatchingState().depth();
+  }
+
+  @Test
+  public void findsSameGoal() {
+    for (int token = 1; token < RingNode.MAX_TOKEN; token++) {
+      assertEquals(
+          goalDepth(r1Saw(token)),
+          goalDepth(r1Saw(token).readsOnly(ReadSet.nodes(VisitedSetTest.r1))));
+    }
+  }
+
+  @Test
+  public void readSetsCombine() {
+    final StatePredicate p = r1Saw(1);
+    assertEquals(ReadSet.everything(), p.readSet());
+
+    final ReadSet r1 = ReadSet.nodes(VisitedSetTest.r1);
+    final ReadSet r2 = ReadSet.nodes(VisitedSetTest.r2);
+    assertTrue(r1.affectedBy(VisitedSetTest.r1, false, false));
+    assertFalse(r1.affectedBy(VisitedSetTest.r2, false, true));
+    assertTrue(ReadSet.network().affectedBy(VisitedSetTest.r2, false, true));
+    assertFalse(ReadSet.network().affectedBy(VisitedSetTest.r2, true, false));
+    assertTrue(ReadSet.clientWorkers().affectedBy(VisitedSetTest.r2, true, false));
+    assertTrue(ReadSet.everything().affectedBy(VisitedSetTest.r2, false, false));
+
+    final StatePredicate both = p.readsOnly(r1).and(r1Saw(2).readsOnly(r2));
+    assertEquals(r1.union(r2), both.readSet());
+    assertTrue(both.readSet().affectedBy(VisitedSetTest.r2, false, false));
+    assertFalse(both.readSet().affectedBy(VisitedSetTest.r3, false, true));
+    assertEquals(r1, p.readsOnly(r1).negate().readSet());
+    assertEquals(ReadSet.everything(), p.readsOnly(r1).or(r1Saw(2)).readSet());
+
+    assertEquals(both.readSet(), Cloning.clone(both).readSet());
+  }
+}
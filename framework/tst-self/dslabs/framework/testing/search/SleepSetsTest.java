@@ -0,0 +1,203 @@
+/*
+ * Copyright (c) 2018 Ellis Michael (emichael@cs.washington.edu)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package dslabs.framework.testing.search;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import dslabs.framework.Address;
+import dslabs.framework.testing.AbstractState;
+import dslabs.framework.testing.Event;
+import dslabs.framework.testing.StatePredicate;
+import dslabs.framework.testing.search.SearchResults.EndCondition;
+import dslabs.framework.testing.search.SearchSettings.VisitedSetMode;
+import dslabs.framework.testing.search.SearchState.SearchEquivalenceWrappedSearchState;
+import dslabs.framework.testing.search.SleepSets.Discovery;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import org.junit.Test;
+
+public class SleepSetsTest {
+  private static final Set<SearchEquivalenceWrappedSearchState> checked =
+      ConcurrentHashMap.newKeySet();
+
+  private static final StatePredicate RECORD_CHECKED =
+      StatePredicate.statePredicate(
+          "State recorded",
+          s -> {
+            checked.add(((SearchState) s).wrapped());
+            return true;
+          });
+
+  /** Returns the number of events stepped to explore the whole space. */
+  private static long explore(SearchState initial, boolean reduce, Set<Object> states) {
+    final SearchSettings settings = new SearchSettings().partialOrderReduction(true);
+    final VisitedSet visited = VisitedSet.create(settings);
+    final SleepSets sleepSets = SleepSets.create(visited, settings);
+    final Queue<SearchState> queue = new LinkedList<>();
+    long stepped = 0;
+    visited.add(initial);
+    queue.add(initial);
+    while (!queue.isEmpty()) {
+      SearchState s = queue.poll();
+      states.add(s.wrapped());
+      List<Event> events =
+          reduce ? sleepSets.events(s, settings) : new LinkedList<>(s.events(settings));
+      for (int i = 0; i < events.size(); i++) {
+        SearchState next = s.stepEvent(events.get(i), settings, true);
+        stepped++;
+        if (reduce) {
+          final Discovery discovery = sleepSets.discover(s, events, i, next);
+          if (discovery == Discovery.NEW) {
+            sleepSets.checked(next, false);
+          }
+          if (discovery != Discovery.SEEN) {
+            queue.add(next);
+          }
+        } else if (visited.add(next)) {
+          queue.add(next);
+        }
+      }
+      SleepSets.expanded(s);
+    }
+    return stepped;
+  }
+
+  @Test
+  public void sameStatesFewerTransitions() {
+    final Set<Object> full = new HashSet<>(), reduced = new HashSet<>();
+    final long fullSteps = explore(VisitedSetTest.ringState(), false, full);
+    final long reducedSteps = explore(VisitedSetTest.ringState(), true, reduced);
+    assertEquals(full, reduced);
+    assertTrue(reducedSteps < fullSteps);
+  }
+
+  @Test
+  public void searchChecksSameStates() {
+    checked.clear();
+    SearchSettings settings = new SearchSettings();
+    settings.singleThreaded(true).outputFreqSecs(-1);
+    settings.addInvariant(RECORD_CHECKED);
+    assertEquals(
+        EndCondition.SPACE_EXHAUSTED,
+        Search.bfs(VisitedSetTest.ringState(), settings).endCondition());
+    final Set<SearchEquivalenceWrappedSearchState> expected = new HashSet<>(checked);
+
+    for (boolean singleThreaded : new boolean[] {true, false}) {
+      checked.clear();
+      settings.singleThreaded(singleThreaded).partialOrderReduction(true);
+      assertEquals(
+          EndCondition.SPACE_EXHAUSTED,
+          Search.bfs(VisitedSetTest.ringState(), settings).endCondition());
+      assertEquals(expected, checked);
+    }
+  }
+
+  @Test
+  public void findsShortestGoal() {
+    for (VisitedSetMode mode : VisitedSetMode.values()) {
+      for (boolean singleThreaded : new boolean[] {true, false}) {
+        SearchSettings settings = new SearchSettings().visitedSetMode(mode);
+        settings.partialOrderReduction(true).singleThreaded(singleThreaded).outputFreqSecs(-1);
+        settings.addGoal(VisitedSetTest.TOKEN_MAXED);
+        SearchResults results = Search.bfs(VisitedSetTest.ringState(), settings);
+        assertEquals(EndCondition.GOAL_FOUND, results.endCondition());
+        assertEquals(RingNode.MAX_TOKEN, results.goalMatchingState().depth());
+      }
+    }
+  }
+
+  @Test
+  public void prunedStatesNotExpanded() {
+    final int maxDepth = 3;
+    for (boolean singleThreaded : new boolean[] {true, false}) {
+      checked.clear();
+      SearchSettings settings = new SearchSettings().maxDepth(maxDepth);
+      settings.singleThreaded(singleThreaded).outputFreqSecs(-1);
+      settings.addInvariant(RECORD_CHECKED);
+      Search.bfs(VisitedSetTest.ringState(), settings);
+      final Set<SearchEquivalenceWrappedSearchState> expected = new HashSet<>(checked);
+
+      checked.clear();
+      settings.partialOrderReduction(true);
+      settings.addInvariant(
+          StatePredicate.statePredicate(
+              "Depth limit respected", s -> ((SearchState) s).depth() <= maxDepth));
+      assertEquals(
+          EndCondition.SPACE_EXHAUSTED,
+          Search.bfs(VisitedSetTest.ringState(), settings).endCondition());
+      assertEquals(expected, checked);
+    }
+  }
+
+  private static int ticks(AbstractState s, Address address) {
+    return ((RingNode) s.server(address)).ticks;
+  }
+
+  @Test
+  public void prunesCheckSameStates() {
+    final List<StatePredicate> prunes =
+        List.of(
+            StatePredicate.statePredicate(
+                "r1 ticked once, r2 not yet",
+                s -> ticks(s, VisitedSetTest.r1) == 1 && ticks(s, VisitedSetTest.r2) == 0),
+            StatePredicate.statePredicate("r1 ticked once", s -> ticks(s, VisitedSetTest.r1) == 1));
+    for (StatePredicate prune : prunes) {
+      for (boolean singleThreaded : new boolean[] {true, false}) {
+        checked.clear();
+        SearchSettings settings = new SearchSettings();
+        settings.singleThreaded(singleThreaded).outputFreqSecs(-1);
+        settings.addInvariant(RECORD_CHECKED).addPrune(prune);
+        Search.bfs(VisitedSetTest.ringState(), settings);
+        final Set<SearchEquivalenceWrappedSearchState> expected = new HashSet<>(checked);
+
+        checked.clear();
+        settings.partialOrderReduction(true);
+        assertEquals(
+            EndCondition.SPACE_EXHAUSTED,
+            Search.bfs(VisitedSetTest.ringState(), settings).endCondition());
+        assertEquals(expected, checked);
+      }
+    }
+  }
+
+  @Test
+  public void onlyWithFullStates() {
+    for (VisitedSetMode mode : VisitedSetMode.values()) {
+      SearchSettings settings = new SearchSettings().visitedSetMode(mode);
+      settings.partialOrderReduction(true);
+      assertEquals(
+          mode == VisitedSetMode.FULL_STATES,
+          SleepSets.create(VisitedSet.create(settings), settings) != null);
+    }
+
+    SearchSettings settings = new SearchSettings().partialOrderReduction(true);
+    settings.addPrune(VisitedSetTest.TOKEN_MAXED);
+    assertNull(SleepSets.create(VisitedSet.create(settings), settings));
+  }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) 2018 Ellis Michael (emichael@cs.washington.edu)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package dslabs.framework.testing.search;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import dslabs.framework.testing.StatePredicate;
+import dslabs.framework.testing.search.SearchResults.EndCondition;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SwarmSearchTest {
+  private static final AtomicInteger checked = new AtomicInteger();
+
+  private static final StatePredicate COUNT_CHECKED =
+      StatePredicate.statePredicate(
+          "States counted",
+          s -> {
+            checked.incrementAndGet();
+            return true;
+          });
+
+  @Before
+  public void setup() {
+    checked.set(0);
+  }
+
+  private static SearchSettings settings() {
+    SearchSettings settings = new SearchSettings();
+    settings.singleThreaded(true).outputFreqSecs(-1).maxTimeSecs(1);
+    settings.swarmSeed(42L).addInvariant(COUNT_CHECKED);
+    return settings;
+  }
+
+  private static void assertTraceFromInitialState(SearchState s) {
+    while (s.previous() != null) {
+      assertEquals(s.previous().depth() + 1, s.depth());
+      s = s.previous();
+    }
+    assertEquals(VisitedSetTest.ringState(), s);
+  }
+
+  @Test
+  public void findsGoal() {
+    SearchSettings settings = settings().addGoal(VisitedSetTest.TOKEN_MAXED);
+    SearchResults results = Search.swarm(VisitedSetTest.ringState(), settings);
+    assertEquals(EndCondition.GOAL_FOUND, results.endCondition());
+    assertTraceFromInitialState(results.goalMatchingState());
+
+    settings.singleThreaded(false).numThreads(4);
+    results = Search.swarm(VisitedSetTest.ringState(), settings);
+    assertEquals(EndCondition.GOAL_FOUND, results.endCondition());
+    assertTraceFromInitialState(results.goalMatchingState());
+  }
+
+  @Test
+  public void findsGoalWithinDepthLimit() {
+    SearchSettings settings = settings().addGoal(VisitedSetTest.TOKEN_MAXED).maxDepth(4);
+    SearchResults results = Search.swarm(VisitedSetTest.ringState(), settings);
+    assertEquals(EndCondition.GOAL_FOUND, results.endCondition());
+    assertEquals(4, results.goalMatchingState().depth());
+  }
+
+  @Test
+  public void cachedStatesAreNotChecked() {
+    Search.bfs(VisitedSetTest.ringState(), settings().maxDepth(8));
+    final int reachable = checked.getAndSet(0);
+
+    // Unless they collide in the cache, no state is checked twice
+    SearchResults results = Search.swarm(VisitedSetTest.ringState(), settings().maxDepth(8));
+    assertEquals(EndCondition.TIME_EXHAUSTED, results.endCondition());
+    final int cached = checked.getAndSet(0);
+    assertTrue(cached <= reachable);
+
+    results = Search.swarm(VisitedSetTest.ringState(), settings().maxDepth(8).swarmCacheSize(1));
+    assertEquals(EndCondition.TIME_EXHAUSTED, results.endCondition());
+    assertTrue(checked.get() > 10 * cached);
+  }
+}
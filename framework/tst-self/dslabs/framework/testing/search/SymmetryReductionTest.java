@@ -0,0 +1,208 @@
+/*
+ * Copyright (c) 2018 Ellis Michael (emichael@cs.washington.edu)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package dslabs.framework.testing.search;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import dslabs.framework.Address;
+import dslabs.framework.Message;
+import dslabs.framework.Node;
+import dslabs.framework.testing.Event;
+import dslabs.framework.testing.LocalAddress;
+import dslabs.framework.testing.StateGenerator;
+import dslabs.framework.testing.StatePredicate;
+import dslabs.framework.testing.Workload;
+import dslabs.framework.testing.search.SearchResults.EndCondition;
+import dslabs.framework.testing.search.SearchSettings.VisitedSetMode;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.Queue;
+import java.util.Set;
+import lombok.Data;
+import lombok.EqualsAndHashCode;
+import lombok.ToString;
+import org.junit.Test;
+
+public class SymmetryReductionTest {
+  static final Address p1 = new LocalAddress("p1"),
+      p2 = new LocalAddress("p2"),
+      p3 = new LocalAddress("p3");
+
+  static final StateGenerator gen =
+      StateGenerator.builder()
+          .serverSupplier(PeerNode::new)
+          .clientSupplier(() -> null)
+          .workloadSupplier((Workload) null)
+          .build();
+
+  static final StatePredicate ALL_POKED =
+      StatePredicate.statePredicate(
+          "Every node was poked",
+          s -> {
+            for (Node n : s.servers()) {
+              if (((PeerNode) n).pokedBy == null) {
+                return false;
+              }
+            }
+            return true;
+          });
+
+  static SearchState peerState() {
+    SearchState s = new SearchState(gen);
+    s.addServer(p1);
+    s.addServer(p2);
+    s.addServer(p3);
+    return s;
+  }
+
+  private static Set<Object> reachable(SearchSettings settings) {
+    final VisitedSet visited = VisitedSet.create(settings);
+    final SymmetryReduction symmetry = SymmetryReduction.create(settings);
+    final Set<Object> representatives = new HashSet<>();
+    final Queue<SearchState> queue = new LinkedList<>();
+    final SearchState initial = peerState();
+    visited.add(initial);
+    queue.add(initial);
+    while (!queue.isEmpty()) {
+      SearchState s = queue.poll();
+      representatives.add(symmetry.canonical(s).wrapped());
+      for (Event e : s.events(settings)) {
+        SearchState next = s.stepEvent(e, settings, true);
+        if (visited.add(next)) {
+          queue.add(next);
+        }
+      }
+    }
+    assertEquals(representatives.size(), visited.size());
+    return representatives;
+  }
+
+  @Test
+  public void permutedStatesHaveSameRepresentative() {
+    final SymmetryReduction symmetry =
+        SymmetryReduction.create(new SearchSettings().addSymmetricNodes(p1, p2, p3));
+    final SearchState s = peerState();
+    Event e1 = null, e3 = null;
+    for (Event e : s.events(null)) {
+      if (e.locationRootAddress().equals(p1)) {
+        e1 = e;
+      } else if (e.locationRootAddress().equals(p3)) {
+        e3 = e;
+      }
+    }
+    final SearchState n1 = s.stepEvent(e1, null, true), n3 = s.stepEvent(e3, null, true);
+    assertNotEquals(n1, n3);
+    assertEquals(symmetry.canonical(n1), symmetry.canonical(n3));
+    assertEquals(symmetry.canonical(s), s);
+  }
+
+  @Test
+  public void visitsOneStatePerClass() {
+    final SearchSettings settings = new SearchSettings().addSymmetricNodes(p1, p2, p3);
+    final Set<Object> reduced = reachable(settings);
+
+    // Every state of the full space is represented
+    final Set<Object> full = new HashSet<>();
+    final SearchSettings unreduced = new SearchSettings();
+    final VisitedSet visited = VisitedSet.create(unreduced);
+    final SymmetryReduction symmetry = SymmetryReduction.create(settings);
+    final Queue<SearchState> queue = new LinkedList<>();
+    visited.add(peerState());
+    queue.add(peerState());
+    while (!queue.isEmpty()) {
+      SearchState s = queue.poll();
+      full.add(symmetry.canonical(s).wrapped());
+      for (SearchState next : s.step(unreduced)) {
+        if (visited.add(next)) {
+          queue.add(next);
+        }
+      }
+    }
+    assertEquals(full, reduced);
+    assertTrue(visited.size() > 3 * reduced.size());
+
+    // Partial symmetry still reduces, but less
+    final SearchSettings pair = new SearchSettings().addSymmetricNodes(p1, p2);
+    final long pairSize = reachable(pair).size();
+    assertTrue(pairSize > reduced.size() && pairSize < visited.size());
+  }
+
+  @Test
+  public void bfsWithSymmetry() {
+    for (VisitedSetMode mode : VisitedSetMode.values()) {
+      for (boolean singleThreaded : new boolean[] {true, false}) {
+        SearchSettings settings = new SearchSettings().visitedSetMode(mode);
+        settings.addSymmetricNodes(p1, p2, p3).singleThreaded(singleThreaded).outputFreqSecs(-1);
+        settings.addGoal(ALL_POKED);
+        SearchResults results = Search.bfs(peerState(), settings);
+        assertEquals(EndCondition.GOAL_FOUND, results.endCondition());
+        assertEquals(5, results.goalMatchingState().depth());
+
+        settings.clearGoals();
+        results = Search.bfs(peerState(), settings);
+        assertEquals(EndCondition.SPACE_EXHAUSTED, results.endCondition());
+        assertEquals(mode == VisitedSetMode.BITSTATE, results.expectedOmissionRate() != null);
+      }
+    }
+  }
+}
+
+/** Ticks once, then pokes its peers; remembers who poked it last. */
+@EqualsAndHashCode(callSuper = true)
+@ToString(callSuper = true)
+class PeerNode extends Node {
+  private final Set<Address> peers = new HashSet<>();
+  boolean ticked = false;
+  Address pokedBy = null;
+
+  PeerNode(Address address) {
+    super(address);
+    for (Address a :
+        new Address[] {
+          SymmetryReductionTest.p1, SymmetryReductionTest.p2, SymmetryReductionTest.p3
+        }) {
+      if (!a.equals(address)) {
+        peers.add(a);
+      }
+    }
+  }
+
+  @Override
+  public void init() {
+    set(new Tick(), 10);
+  }
+
+  void onTick(Tick t) {
+    ticked = true;
+    broadcast(new Poke(), peers);
+  }
+
+  void handlePoke(Poke p, Address sender) {
+    pokedBy = sender;
+  }
+}
+
+@Data
+class Poke implements Message {}
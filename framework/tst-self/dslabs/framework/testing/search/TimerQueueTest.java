@@ -27,12 +27,16 @@ import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertTrue;
 
+import com.google.common.collect.Lists;
 import dslabs.framework.Timer;
 import dslabs.framework.testing.LocalAddress;
 import dslabs.framework.testing.TimerEnvelope;
+import dslabs.framework.testing.utils.Cloning;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Random;
 import lombok.Data;
 import org.junit.Before;
 import org.junit.Test;
@@ -42,11 +46,11 @@ public class TimerQueueTest {
   @Data
   private static class T implements Timer {}
 
-  private TimerQueue tq = new TimerQueue();
+  private TimerQueue tq = TimerQueue.empty();
 
   @Before
   public void setUp() {
-    tq = new TimerQueue();
+    tq = TimerQueue.empty();
   }
 
   private static TimerEnvelope te(int n, int timerLengthMillis) {
@@ -102,14 +106,14 @@ public class TimerQueueTest {
 
   @Test
   public void basicAdd() {
-    tq.add(te(1, 1));
+    tq = tq.plus(te(1, 1));
     assertDeliverable(te(1, 1));
   }
 
   @Test
   public void sameLengthNotDeliverable() {
-    tq.add(te(1, 1));
-    tq.add(te(2, 1));
+    tq = tq.plus(te(1, 1));
+    tq = tq.plus(te(2, 1));
 
     assertDeliverable(te(1, 1));
     assertNotDeliverable(te(2, 1));
@@ -117,8 +121,8 @@ public class TimerQueueTest {
 
   @Test
   public void shorterFirstNotDeliverable() {
-    tq.add(te(1, 1));
-    tq.add(te(2, 2));
+    tq = tq.plus(te(1, 1));
+    tq = tq.plus(te(2, 2));
 
     assertDeliverable(te(1, 1));
     assertNotDeliverable(te(2, 1));
@@ -126,21 +130,21 @@ public class TimerQueueTest {
 
   @Test
   public void longerFirstDeliverable() {
-    tq.add(te(1, 2));
-    tq.add(te(2, 1));
+    tq = tq.plus(te(1, 2));
+    tq = tq.plus(te(2, 1));
 
     assertDeliverable(te(1, 2), te(2, 1));
   }
 
   @Test
   public void addRemoveGet() {
-    tq.add(te(1, 1));
-    tq.add(te(2, 2));
+    tq = tq.plus(te(1, 1));
+    tq = tq.plus(te(2, 2));
 
     assertDeliverable(te(1, 1));
     assertNotDeliverable(te(2, 1));
 
-    tq.remove(te(1, 1));
+    tq = tq.minus(te(1, 1));
 
     assertDeliverable(te(2, 2));
     assertNotDeliverable(te(1, 1));
@@ -148,7 +152,7 @@ public class TimerQueueTest {
 
   @Test
   public void canRemoveNonexistent() {
-    tq.remove(te(1, 1));
+    tq = tq.minus(te(1, 1));
   }
 
   @Test
@@ -159,9 +163,9 @@ public class TimerQueueTest {
           for (int l = k; l <= 4; l++) {
             setUp();
             TimerEnvelope te1 = te(1, i, j), te2 = te(2, k, l);
-            tq.add(te1);
+            tq = tq.plus(te1);
             assertDeliverable(te1);
-            tq.add(te2);
+            tq = tq.plus(te2);
             assertDeliverable(te1);
             if (te2.minTimerLengthMillis() < te1.maxTimerLengthMillis()) {
               assertDeliverable(te2);
@@ -173,4 +177,76 @@ public class TimerQueueTest {
       }
     }
   }
+
+  /* The original list-based implementation, as a reference */
+  private static List<TimerEnvelope> referenceDeliverable(List<TimerEnvelope> timers) {
+    final List<TimerEnvelope> deliverable = new ArrayList<>();
+    int minMax = Integer.MAX_VALUE;
+    for (TimerEnvelope te : timers) {
+      if (te.minTimerLengthMillis() < minMax) {
+        deliverable.add(te);
+      }
+      minMax = Math.min(minMax, te.maxTimerLengthMillis());
+    }
+    return deliverable;
+  }
+
+  @Test
+  public void matchesReferenceImplementation() {
+    final Random rand = new Random(0);
+    final List<TimerEnvelope> reference = new ArrayList<>();
+    for (int i = 0; i < 2000; i++) {
+      final TimerEnvelope te;
+      if (!reference.isEmpty() && rand.nextInt(3) == 0) {
+        // Duplicate an existing timer
+        te = reference.get(rand.nextInt(reference.size()));
+      } else {
+        final int min = rand.nextInt(10);
+        te = te(rand.nextInt(5), min, min + rand.nextInt(5));
+      }
+
+      final TimerQueue before = tq;
+      if (rand.nextInt(5) < 3) {
+        tq = tq.plus(te);
+        reference.add(te);
+      } else {
+        tq = tq.minus(te);
+        reference.remove(te);
+      }
+
+      assertEquals(reference.size(), tq.size());
+      assertEquals(reference, Lists.newArrayList(tq));
+      assertEquals(referenceDeliverable(reference), tq.deliverable());
+      for (TimerEnvelope t : reference) {
+        assertEquals(referenceDeliverable(reference).contains(t), tq.isDeliverable(t));
+      }
+      assertFalse(tq.isDeliverable(te(7, 1)));
+
+      // Older versions are unaffected
+      if (before != tq) {
+        assertNotEquals(before, tq);
+      }
+    }
+  }
+
+  @Test
+  public void equalityIgnoresHistory() {
+    TimerQueue q1 = TimerQueue.empty().plus(te(1, 1)).plus(te(2, 2)).plus(te(3, 3));
+    TimerQueue q2 = TimerQueue.empty().plus(te(4, 4)).plus(te(1, 1)).plus(te(2, 2));
+    q2 = q2.minus(te(4, 4)).plus(te(3, 3));
+    assertEquals(q1, q2);
+    assertEquals(q1.hashCode(), q2.hashCode());
+
+    final TimerQueue q3 = TimerQueue.empty().plus(te(2, 2)).plus(te(1, 1)).plus(te(3, 3));
+    assertNotEquals(q1, q3);
+  }
+
+  @Test
+  public void serialization() {
+    tq = tq.plus(te(1, 1)).plus(te(2, 3)).plus(te(1, 1));
+    final TimerQueue copy = Cloning.clone(tq);
+    assertEquals(tq, copy);
+    assertEquals(tq.deliverable(), copy.deliverable());
+    assertEquals(tq.plus(te(3, 1)), copy.plus(te(3, 1)));
+  }
 }
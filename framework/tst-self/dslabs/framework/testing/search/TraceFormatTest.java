@@ -0,0 +1,158 @@
+/*
+ * Copyright (c) 2018 Ellis Michael (emichael@cs.washington.edu)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package dslabs.framework.testing.search;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import dslabs.framework.testing.Event;
+import dslabs.framework.testing.StatePredicate;
+import dslabs.framework.testing.utils.Cloning;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TraceFormatTest {
+  private Path dir;
+
+  @Before
+  public void setup() throws IOException {
+    dir = Files.createTempDirectory("traces");
+  }
+
+  @After
+  public void teardown() throws IOException {
+    try (var files = Files.list(dir)) {
+      for (Path p : (Iterable<Path>) files::iterator) {
+        Files.delete(p);
+      }
+    }
+    Files.delete(dir);
+  }
+
+  private static SerializableTrace trace(int length) {
+    final SearchSettings settings = new SearchSettings();
+    final Random random = new Random(0);
+    final List<Event> history = new ArrayList<>();
+    SearchState s = VisitedSetTest.ringState();
+    for (int i = 0; i < length; i++) {
+      final List<Event> events = new ArrayList<>(s.events(settings));
+      final Event e = events.get(random.nextInt(events.size()));
+      history.add(e);
+      s = s.stepEvent(e, settings, false);
+    }
+    return new SerializableTrace(
+        history,
+        Collections.singletonList(VisitedSetTest.TOKEN_MAXED.negate()),
+        VisitedSetTest.gen,
+        List.of(VisitedSetTest.r1, VisitedSetTest.r2, VisitedSetTest.r3),
+        Collections.emptyList(),
+        "0",
+        2,
+        "TestClass",
+        null);
+  }
+
+  private Path write(SerializableTrace trace, boolean compress) throws IOException {
+    final Path path = dir.resolve((compress ? "compressed" : "plain") + ".trace");
+    try (OutputStream out = Files.newOutputStream(path)) {
+      TraceFormat.write(trace, out, compress);
+    }
+    return path;
+  }
+
+  private static void assertSameTrace(SerializableTrace expected, SerializableTrace actual) {
+    assertNotNull(actual);
+    assertEquals(expected.history(), actual.history());
+    assertEquals(expected.labId(), actual.labId());
+    assertEquals(expected.labPart(), actual.labPart());
+    assertEquals(expected.testClassName(), actual.testClassName());
+    assertNull(actual.testMethodName());
+    assertEquals(expected.createdDate(), actual.createdDate());
+    assertEquals(new ArrayList<>(expected.servers()), new ArrayList<>(actual.servers()));
+    assertEquals(expected.initialState(), actual.initialState());
+    assertEquals(expected.endState(), actual.endState());
+
+    final StatePredicate invariant = actual.invariants().iterator().next();
+    assertEquals(
+        expected.invariants().iterator().next().test(expected.endState(), true) == null,
+        invariant.test(actual.endState(), true) == null);
+  }
+
+  @Test
+  public void roundTrips() throws IOException {
+    final SerializableTrace trace = trace(40);
+    for (boolean compress : new boolean[] {false, true}) {
+      final Path path = write(trace, compress);
+      assertTrue(TraceFormat.isTraceFile(path));
+      assertSameTrace(trace, SerializableTrace.loadTrace(path.toString()));
+    }
+  }
+
+  @Test
+  public void loadedTracesAreSerializable() throws IOException {
+    final SerializableTrace trace = trace(40);
+    for (boolean compress : new boolean[] {false, true}) {
+      // Before any event has been decoded
+      final SerializableTrace loaded =
+          SerializableTrace.loadTrace(write(trace, compress).toString());
+      assertSameTrace(trace, Cloning.deserialize(Cloning.serialize(loaded)));
+    }
+  }
+
+  @Test
+  public void smallerThanJavaSerialization() throws IOException {
+    final SerializableTrace trace = trace(200);
+    final Path legacy = dir.resolve("legacy.trace");
+    try (ObjectOutputStream out = new ObjectOutputStream(Files.newOutputStream(legacy))) {
+      out.writeObject(trace);
+    }
+    final long plain = Files.size(write(trace, false));
+    final long compressed = Files.size(write(trace, true));
+    assertTrue(plain < Files.size(legacy));
+    assertTrue(compressed < plain);
+  }
+
+  @Test
+  public void loadsLegacyTraces() throws IOException {
+    final SerializableTrace trace = trace(20);
+    final Path legacy = dir.resolve("legacy.trace");
+    try (ObjectOutputStream out = new ObjectOutputStream(Files.newOutputStream(legacy))) {
+      out.writeObject(trace);
+    }
+    assertFalse(TraceFormat.isTraceFile(legacy));
+    assertSameTrace(trace, SerializableTrace.loadTrace(legacy.toString()));
+  }
+}
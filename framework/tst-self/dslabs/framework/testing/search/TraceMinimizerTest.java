@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2018 Ellis Michael (emichael@cs.washington.edu)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package dslabs.framework.testing.search;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import dslabs.framework.testing.Event;
+import dslabs.framework.testing.StatePredicate.PredicateResult;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+
+public class TraceMinimizerTest {
+  private static final int WALK_LENGTH = 300;
+
+  /* A long random walk through the ring which ends with the last token seen */
+  private static SearchState longTrace(SearchSettings settings) {
+    final Random random = new Random(0);
+    SearchState s = VisitedSetTest.ringState();
+    for (int i = 0; i < WALK_LENGTH || !VisitedSetTest.TOKEN_MAXED.test(s).value(); i++) {
+      final List<Event> events = new ArrayList<>(s.events(settings));
+      s = s.stepEvent(events.get(random.nextInt(events.size())), settings, false);
+    }
+    return s;
+  }
+
+  private static List<Event> trace(SearchState s) {
+    final LinkedList<Event> trace = new LinkedList<>();
+    for (; s.previous() != null; s = s.previous()) {
+      trace.addFirst(s.previousEvent());
+    }
+    return trace;
+  }
+
+  private static SearchState replay(List<Event> events, SearchSettings settings) {
+    SearchState s = VisitedSetTest.ringState();
+    for (Event e : events) {
+      s = s.stepEvent(e, settings, false);
+      if (s == null) {
+        return null;
+      }
+    }
+    return s;
+  }
+
+  @Test
+  public void minimizedTraceIsOneMinimal() {
+    final SearchSettings settings = new SearchSettings().singleThreaded(true);
+    final SearchState s = longTrace(settings);
+    assertTrue(s.depth() >= WALK_LENGTH);
+    final PredicateResult r = VisitedSetTest.TOKEN_MAXED.test(s);
+
+    final SearchState minimized = TraceMinimizer.minimizeTrace(s, r, settings);
+    final List<Event> trace = trace(minimized);
+    assertEquals(minimized.depth(), trace.size());
+    assertTrue(VisitedSetTest.TOKEN_MAXED.test(replay(trace, settings)).value());
+
+    for (int i = 0; i < trace.size(); i++) {
+      final List<Event> shorter = new ArrayList<>(trace);
+      shorter.remove(i);
+      final SearchState t = replay(shorter, settings);
+      assertFalse(t != null && VisitedSetTest.TOKEN_MAXED.test(t).value());
+    }
+  }
+
+  @Test
+  public void parallelMinimizationIsDeterministic() {
+    final SearchSettings settings = new SearchSettings().singleThreaded(true);
+    final SearchState s = longTrace(settings);
+    final PredicateResult r = VisitedSetTest.TOKEN_MAXED.test(s);
+    final List<Event> sequential = trace(TraceMinimizer.minimizeTrace(s, r, settings));
+
+    settings.singleThreaded(false).numThreads(4);
+    assertEquals(sequential, trace(TraceMinimizer.minimizeTrace(s, r, settings)));
+  }
+}
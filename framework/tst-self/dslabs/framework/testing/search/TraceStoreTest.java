@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2018 Ellis Michael (emichael@cs.washington.edu)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package dslabs.framework.testing.search;
+
+import static org.junit.Assert.assertEquals;
+
+import dslabs.framework.testing.Event;
+import dslabs.framework.testing.StatePredicate;
+import dslabs.framework.testing.search.SearchResults.EndCondition;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+
+public class TraceStoreTest {
+  /* Holds iff the state's previous state, if any, was detached */
+  private static final StatePredicate PREVIOUS_DETACHED =
+      StatePredicate.statePredicate(
+          "Previous state detached",
+          s -> {
+            final SearchState previous = ((SearchState) s).previous();
+            return previous == null || previous.previous() == null;
+          });
+
+  private static void assertTraceFromInitialState(SearchState s) {
+    while (s.previous() != null) {
+      assertEquals(s.previous().depth() + 1, s.depth());
+      s = s.previous();
+    }
+    assertEquals(VisitedSetTest.ringState(), s);
+  }
+
+  @Test
+  public void tracesSpanChunks() throws InterruptedException {
+    final List<Event> events =
+        new ArrayList<>(VisitedSetTest.ringState().events(new SearchSettings()));
+    final TraceStore store = new TraceStore();
+    final int length = 50_000;
+
+    // Interleave the entries of several traces
+    final List<Thread> threads = new ArrayList<>();
+    final int[] last = new int[4];
+    for (int t = 0; t < last.length; t++) {
+      final int thread = t;
+      threads.add(
+          new Thread(
+              () -> {
+                int id = TraceStore.ROOT;
+                for (int i = 0; i < length; i++) {
+                  id = store.add(id, events.get((thread + i) % events.size()));
+                }
+                last[thread] = id;
+              }));
+    }
+    for (Thread t : threads) {
+      t.start();
+    }
+    for (Thread t : threads) {
+      t.join();
+    }
+
+    assertEquals(length * last.length, store.size());
+    for (int t = 0; t < last.length; t++) {
+      final List<Event> trace = store.trace(last[t]);
+      assertEquals(length, trace.size());
+      for (int i = 0; i < length; i++) {
+        assertEquals(events.get((t + i) % events.size()), trace.get(i));
+      }
+    }
+    assertEquals(0, store.trace(TraceStore.ROOT).size());
+  }
+
+  @Test
+  public void frontierStatesAreDetached() {
+    SearchSettings settings = new SearchSettings();
+    settings.singleThreaded(true).outputFreqSecs(-1);
+    settings.addInvariant(PREVIOUS_DETACHED);
+    assertEquals(
+        EndCondition.SPACE_EXHAUSTED,
+        Search.bfs(VisitedSetTest.ringState(), settings).endCondition());
+
+    settings.compactTraces(false);
+    assertEquals(
+        EndCondition.INVARIANT_VIOLATED,
+        Search.bfs(VisitedSetTest.ringState(), settings).endCondition());
+  }
+
+  @Test
+  public void tracesAreRebuilt() {
+    SearchSettings settings = new SearchSettings();
+    settings.outputFreqSecs(-1).addGoal(VisitedSetTest.TOKEN_MAXED);
+    for (boolean singleThreaded : new boolean[] {true, false}) {
+      settings.singleThreaded(singleThreaded);
+      SearchResults results = Search.bfs(VisitedSetTest.ringState(), settings);
+      assertEquals(EndCondition.GOAL_FOUND, results.endCondition());
+      assertEquals(4, results.goalMatchingState().depth());
+      assertTraceFromInitialState(results.goalMatchingState());
+    }
+
+    settings.singleThreaded(true).heuristic(Heuristics.pendingCommands());
+    SearchResults results = Search.bestFirst(VisitedSetTest.ringState(), settings);
+    assertEquals(EndCondition.GOAL_FOUND, results.endCondition());
+    assertTraceFromInitialState(results.goalMatchingState());
+  }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) 2018 Ellis Michael (emichael@cs.washington.edu)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package dslabs.framework.testing.search;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import dslabs.framework.Address;
+import dslabs.framework.testing.Event;
+import dslabs.framework.testing.search.SearchResults.EndCondition;
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import org.junit.Test;
+
+public class TransitionCacheTest {
+  /** Maps each reachable state to its fingerprint, stepping with the given settings. */
+  private static Map<Object, List<Long>> explore(SearchSettings settings) {
+    final Map<Object, List<Long>> states = new HashMap<>();
+    final Queue<SearchState> queue = new LinkedList<>();
+    final SearchState initial = VisitedSetTest.ringState();
+    states.put(initial.wrapped(), List.of(initial.fingerprintHigh(), initial.fingerprint()));
+    queue.add(initial);
+    while (!queue.isEmpty()) {
+      SearchState s = queue.poll();
+      for (Event e : s.events(settings)) {
+        SearchState next = s.stepEvent(e, settings, true);
+        if (!states.containsKey(next.wrapped())) {
+          states.put(next.wrapped(), List.of(next.fingerprintHigh(), next.fingerprint()));
+          queue.add(next);
+        }
+      }
+    }
+    return states;
+  }
+
+  /** Makes the settings step with the cache, as if a search were running. */
+  private static void activate(SearchSettings settings, TransitionCache cache) {
+    final Search search = new BFS(settings);
+    search.transitionCache(cache);
+    settings.activeSearch(search);
+  }
+
+  @Test
+  public void cachedTransitionsReachSameStates() {
+    final Map<Object, List<Long>> expected = explore(new SearchSettings());
+
+    for (int size : new int[] {1, 1 << 14}) {
+      final SearchSettings settings = new SearchSettings().transitionCacheSize(size);
+      final TransitionCache cache = TransitionCache.create(settings);
+      assertNotNull(cache);
+      activate(settings, cache);
+      assertEquals(expected, explore(settings));
+      if (size > 1) {
+        assertTrue(cache.hits() > cache.misses());
+      }
+    }
+  }
+
+  @Test
+  public void hitsShareResultingNode() {
+    final SearchSettings settings = new SearchSettings();
+    activate(settings, TransitionCache.create(settings));
+    final SearchState s = VisitedSetTest.ringState();
+    final Event e = s.events(settings).iterator().next();
+    final SearchState n1 = s.stepEvent(e, settings, true), n2 = s.stepEvent(e, settings, true);
+    assertEquals(n1, n2);
+    assertEquals(n1.newMessages(), n2.newMessages());
+    assertEquals(n1.newTimers(), n2.newTimers());
+    final Address to = e.locationRootAddress();
+    assertSame(n1.node(to), n2.node(to));
+  }
+
+  @Test
+  public void cachedNodesDoNotKeepStatesReachable() throws InterruptedException {
+    final SearchSettings settings = new SearchSettings();
+    final TransitionCache cache = TransitionCache.create(settings);
+    activate(settings, cache);
+    final SearchState s = VisitedSetTest.ringState();
+    final Event e = s.events(settings).iterator().next();
+    final WeakReference<SearchState> stepped = new WeakReference<>(s.stepEvent(e, settings, true));
+    for (int i = 0; i < 100 && stepped.get() != null; i++) {
+      System.gc();
+      Thread.sleep(10);
+    }
+    assertNull(stepped.get());
+
+    // The transition is still cached, and its node can be stepped further once cloned
+    final SearchState n = s.stepEvent(e, settings, true);
+    assertEquals(1, cache.hits());
+    for (Event next : n.events(settings)) {
+      assertNotNull(n.stepEvent(next, settings, true));
+    }
+  }
+
+  @Test
+  public void cacheOnlyUsedDuringSearch() {
+    final SearchSettings settings = new SearchSettings();
+    settings.singleThreaded(true).outputFreqSecs(-1);
+    assertEquals(
+        EndCondition.SPACE_EXHAUSTED,
+        Search.bfs(VisitedSetTest.ringState(), settings).endCondition());
+    assertNull(settings.activeSearch());
+
+    assertNull(TransitionCache.create(new SearchSettings().transitionCacheSize(0)));
+  }
+}
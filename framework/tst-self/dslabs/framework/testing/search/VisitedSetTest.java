@@ -0,0 +1,378 @@
+/*
+ * Copyright (c) 2018 Ellis Michael (emichael@cs.washington.edu)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package dslabs.framework.testing.search;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+import dslabs.framework.Address;
+import dslabs.framework.Message;
+import dslabs.framework.Node;
+import dslabs.framework.Timer;
+import dslabs.framework.testing.Event;
+import dslabs.framework.testing.LocalAddress;
+import dslabs.framework.testing.StateGenerator;
+import dslabs.framework.testing.StatePredicate;
+import dslabs.framework.testing.Workload;
+import dslabs.framework.testing.search.SearchResults.EndCondition;
+import dslabs.framework.testing.search.SearchSettings.VisitedSetMode;
+import dslabs.framework.testing.search.SearchState.SearchEquivalenceWrappedSearchState;
+import dslabs.framework.testing.search.VisitedSet.DepthVisitedSet;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.Queue;
+import java.util.Random;
+import java.util.Set;
+import lombok.Data;
+import lombok.EqualsAndHashCode;
+import lombok.ToString;
+import org.junit.Before;
+import org.junit.Test;
+
+public class VisitedSetTest {
+  static final Address r1 = new LocalAddress("r1"),
+      r2 = new LocalAddress("r2"),
+      r3 = new LocalAddress("r3");
+
+  static final StateGenerator gen =
+      StateGenerator.builder()
+          .serverSupplier(
+              address ->
+                  new RingNode(address, address.equals(r1) ? r2 : address.equals(r2) ? r3 : r1))
+          .clientSupplier(() -> null)
+          .workloadSupplier((Workload) null)
+          .build();
+
+  static final StatePredicate TOKEN_MAXED =
+      StatePredicate.statePredicate(
+          "Some node saw the last token",
+          s -> {
+            for (Node n : s.servers()) {
+              if (((RingNode) n).max == RingNode.MAX_TOKEN) {
+                return true;
+              }
+            }
+            return false;
+          });
+
+  private SearchState initSearchState;
+
+  static SearchState ringState() {
+    SearchState s = new SearchState(gen);
+    s.addServer(r1);
+    s.addServer(r2);
+    s.addServer(r3);
+    return s;
+  }
+
+  @Before
+  public void setup() {
+    initSearchState = ringState();
+  }
+
+  private static long countReachable(SearchState initial, VisitedSetMode mode) {
+    final SearchSettings settings = new SearchSettings().visitedSetMode(mode);
+    final VisitedSet visited = VisitedSet.create(settings);
+    final Queue<SearchState> queue = new LinkedList<>();
+    visited.add(initial);
+    queue.add(initial);
+    while (!queue.isEmpty()) {
+      SearchState s = queue.poll();
+      for (Event e : s.events(settings)) {
+        SearchState next = s.stepEvent(e, settings, true);
+        if (next != null && visited.add(next)) {
+          queue.add(next);
+        }
+      }
+    }
+    return visited.size();
+  }
+
+  @Test
+  public void fingerprintsMatchFullStateCount() {
+    final long full = countReachable(initSearchState, VisitedSetMode.FULL_STATES);
+    assertTrue(full > 10);
+    assertEquals(full, countReachable(initSearchState, VisitedSetMode.FINGERPRINTS_64));
+    assertEquals(full, countReachable(initSearchState, VisitedSetMode.FINGERPRINTS_128));
+    assertEquals(full, countReachable(initSearchState, VisitedSetMode.COLLAPSED));
+  }
+
+  @Test
+  public void onlyBitstateSetsLackDepths() {
+    for (VisitedSetMode mode : VisitedSetMode.values()) {
+      final SearchSettings settings = new SearchSettings().visitedSetMode(mode);
+      if (mode == VisitedSetMode.BITSTATE) {
+        assertFalse(VisitedSet.create(settings) instanceof DepthVisitedSet);
+        assertThrows(IllegalArgumentException.class, () -> VisitedSet.createWithDepths(settings));
+        continue;
+      }
+      assertTrue(VisitedSet.create(settings) instanceof DepthVisitedSet);
+      final DepthVisitedSet set = VisitedSet.createWithDepths(settings);
+      assertEquals(VisitedSet.NOT_VISITED, set.add(initSearchState, 5));
+      assertEquals(5, set.add(initSearchState, 7));
+      assertEquals(5, set.add(initSearchState, 3));
+      assertEquals(3, set.add(initSearchState, 3));
+    }
+  }
+
+  @Test
+  public void collapsedStatesShareComponents() {
+    final CollapseTable table = new CollapseTable();
+    final Set<CollapseTable.Tuple> tuples = new HashSet<>();
+    final Set<SearchEquivalenceWrappedSearchState> states = new HashSet<>();
+    final Queue<SearchState> queue = new LinkedList<>();
+    queue.add(initSearchState);
+    long components = 0;
+    while (!queue.isEmpty()) {
+      SearchState s = queue.poll();
+      CollapseTable.Tuple t = table.collapse(s);
+      assertEquals(states.add(s.wrapped()), tuples.add(t));
+      assertEquals(t, table.collapse(s.restored(0)));
+      components += t.size();
+      for (SearchState next : s.step(null)) {
+        if (!states.contains(next.wrapped())) {
+          queue.add(next);
+        }
+      }
+    }
+
+    // Dropped messages are part of the state
+    SearchState s = ringState();
+    CollapseTable.Tuple before = table.collapse(s);
+    s.dropPendingMessages();
+    assertNotEquals(before, table.collapse(s));
+    s.undropMessages();
+    assertEquals(before, table.collapse(s));
+
+    assertTrue(table.size() * 4 < components);
+  }
+
+  @Test
+  public void equalStatesHaveEqualFingerprints() {
+    SearchState s1 = ringState(), s2 = ringState();
+    assertEquals(s1, s2);
+    assertEquals(s1.fingerprint(), s2.fingerprint());
+    assertEquals(s1.fingerprintHigh(), s2.fingerprintHigh());
+
+    Event e = s1.events(null).iterator().next();
+    SearchState n1 = s1.stepEvent(e, null, true), n2 = s2.stepEvent(e, null, true);
+    assertEquals(n1.fingerprint(), n2.fingerprint());
+    assertFalse(s1.fingerprint() == n1.fingerprint());
+  }
+
+  @Test
+  public void fingerprintInvalidatedOnModification() {
+    SearchState s = ringState();
+    long before = s.fingerprint();
+    s.dropPendingMessages();
+    assertFalse(before == s.fingerprint());
+    s.undropMessages();
+    assertEquals(before, s.fingerprint());
+  }
+
+  @Test
+  public void incrementalFingerprintsMatchRecomputed() {
+    final Queue<SearchState> queue = new LinkedList<>();
+    final VisitedSet visited = VisitedSet.create(new SearchSettings());
+    queue.add(initSearchState);
+    while (!queue.isEmpty()) {
+      SearchState s = queue.poll();
+      // A restored state has no cached terms and recomputes everything from scratch
+      SearchState fresh = s.restored(s.depth());
+      assertEquals(fresh.fingerprint(), s.fingerprint());
+      assertEquals(fresh.fingerprintHigh(), s.fingerprintHigh());
+      assertEquals(fresh.wrapped(), s.wrapped());
+      assertEquals(fresh.wrapped().hashCode(), s.wrapped().hashCode());
+
+      for (SearchState next : s.step(null)) {
+        if (next != null && visited.add(next)) {
+          queue.add(next);
+        }
+      }
+    }
+
+    SearchState s = ringState();
+    s.dropPendingMessages();
+    SearchState next = s.stepEvent(s.events(null).iterator().next(), null, true);
+    next.undropMessages();
+    assertEquals(next.restored(0).fingerprint(), next.fingerprint());
+  }
+
+  @Test
+  public void fingerprintSetBasics() {
+    for (boolean wide : new boolean[] {false, true}) {
+      FingerprintSet set = new FingerprintSet(wide, 4);
+      Random rand = new Random(0);
+      for (int i = 0; i < 100000; i++) {
+        long l = rand.nextLong();
+        assertTrue(set.add(l, l * 31));
+        assertFalse(set.add(l, l * 31));
+      }
+      assertTrue(set.add(0, 0));
+      assertFalse(set.add(0, 0));
+      assertEquals(100001, set.size());
+    }
+  }
+
+  @Test
+  public void fingerprintSetKeepsSmallestDepth() {
+    final FingerprintSet set = new FingerprintSet(true, 1);
+    assertTrue(set.add(1, 1));
+    for (int i = 2; i < 10000; i++) {
+      assertEquals(Integer.MAX_VALUE, set.add(i, i, i % 7 + 3));
+    }
+    // Entries keep their depths as the set grows
+    for (int i = 2; i < 10000; i++) {
+      assertEquals(i % 7 + 3, set.add(i, i, 5));
+      assertEquals(Math.min(i % 7 + 3, 5), set.add(i, i, 9));
+    }
+    assertEquals(Integer.MIN_VALUE, set.add(1, 1, 0));
+    assertEquals(9999, set.size());
+  }
+
+  @Test
+  public void bitstateSetBasics() {
+    final BitstateSet set = new BitstateSet(1 << 20, 3);
+    assertEquals(8L << 20, set.numBits());
+    final Random rand = new Random(0);
+    int added = 0;
+    for (int i = 0; i < 100000; i++) {
+      long l = rand.nextLong();
+      if (set.add(l * 31, l)) {
+        added++;
+      }
+      assertFalse(set.add(l * 31, l));
+    }
+    assertEquals(added, set.size());
+    // Expected false positives at this fill are well under 1 in 10^4
+    assertTrue(added > 100000 - 10);
+
+    assertEquals(0.0, BitstateSet.expectedOmissionRate(0, 1 << 10, 3), 0.0);
+    final double low = BitstateSet.expectedOmissionRate(1000, 1L << 30, 3),
+        high = BitstateSet.expectedOmissionRate(1000, 1L << 12, 3);
+    assertTrue(low < 1e-12);
+    assertTrue(high > 0.01 && high < 1);
+  }
+
+  @Test
+  public void bitstateOmitsStatesWhenFull() {
+    final long full = countReachable(initSearchState, VisitedSetMode.FULL_STATES);
+    SearchSettings settings =
+        new SearchSettings().visitedSetMode(VisitedSetMode.BITSTATE).bitstateMemoryBytes(8);
+    settings.singleThreaded(true).outputFreqSecs(-1);
+    SearchResults results = Search.bfs(initSearchState, settings);
+    assertEquals(EndCondition.SPACE_EXHAUSTED, results.endCondition());
+    assertTrue(results.expectedOmissionRate() > 0.1);
+    assertTrue(BitstateSet.falsePositiveProbability(full, 64, 3) > 0.1);
+  }
+
+  @Test
+  public void collisionEstimateUsesFullWidth() {
+    // About 77k states would make a 32-bit collision likely, but not a 64- or 128-bit one
+    assertTrue(FingerprintSet.collisionProbability(77_000, 32) > 0.4);
+    assertTrue(FingerprintSet.collisionProbability(77_000, 64) < 1e-9);
+    assertTrue(FingerprintSet.collisionProbability(77_000, 128) < 1e-20);
+  }
+
+  @Test
+  public void bfsWithFingerprints() {
+    for (VisitedSetMode mode : VisitedSetMode.values()) {
+      for (boolean singleThreaded : new boolean[] {true, false}) {
+        SearchSettings settings = new SearchSettings().visitedSetMode(mode);
+        settings.singleThreaded(singleThreaded).outputFreqSecs(-1);
+        settings.addGoal(TOKEN_MAXED);
+        SearchResults results = Search.bfs(initSearchState, settings);
+        assertEquals(EndCondition.GOAL_FOUND, results.endCondition());
+        assertEquals(RingNode.MAX_TOKEN, results.goalMatchingState().depth());
+
+        settings.clearGoals();
+        results = Search.bfs(initSearchState, settings);
+        assertEquals(EndCondition.SPACE_EXHAUSTED, results.endCondition());
+        if (mode == VisitedSetMode.FINGERPRINTS_64 || mode == VisitedSetMode.FINGERPRINTS_128) {
+          assertNotNull(results.fingerprintCollisionProbability());
+          assertTrue(results.fingerprintCollisionProbability() > 0);
+          assertTrue(
+              results.fingerprintCollisionProbability()
+                  < (mode == VisitedSetMode.FINGERPRINTS_128 ? 1e-30 : 1e-12));
+        } else {
+          assertNull(results.fingerprintCollisionProbability());
+        }
+        if (mode == VisitedSetMode.BITSTATE) {
+          assertNotNull(results.expectedOmissionRate());
+          assertTrue(results.expectedOmissionRate() < 1e-6);
+        } else {
+          assertNull(results.expectedOmissionRate());
+        }
+      }
+    }
+  }
+}
+
+@EqualsAndHashCode(callSuper = true)
+@ToString(callSuper = true)
+class RingNode extends Node {
+  static final int MAX_TOKEN = 4, MAX_TICKS = 2;
+
+  private final Address next;
+  int max = 0, ticks = 0;
+
+  RingNode(Address address, Address next) {
+    super(address);
+    this.next = next;
+  }
+
+  @Override
+  public void init() {
+    if (address().equals(VisitedSetTest.r1)) {
+      send(new Token(1), next);
+    }
+    set(new Tick(), 10);
+  }
+
+  void handleToken(Token t, Address sender) {
+    max = Math.max(max, t.n());
+    if (t.n() < MAX_TOKEN) {
+      send(new Token(t.n() + 1), next);
+    }
+  }
+
+  void onTick(Tick t) {
+    ticks++;
+    if (ticks < MAX_TICKS) {
+      set(t, 10);
+    }
+  }
+}
+
+@Data
+class Token implements Message {
+  private final int n;
+}
+
+@Data
+class Tick implements Timer {}
@@ -0,0 +1,131 @@
+/*
+ * Copyright (c) 2018 Ellis Michael (emichael@cs.washington.edu)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package dslabs.framework.testing.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import lombok.RequiredArgsConstructor;
+import lombok.ToString;
+import org.junit.Test;
+
+public class PersistentMapTest {
+  /** Key with a small hash space, to exercise collision nodes. */
+  @RequiredArgsConstructor
+  @ToString
+  private static final class Key implements Serializable {
+    private final int id;
+
+    @Override
+    public boolean equals(Object o) {
+      return o instanceof Key && ((Key) o).id == id;
+    }
+
+    @Override
+    public int hashCode() {
+      return id % 37;
+    }
+  }
+
+  @Test
+  public void matchesHashMap() {
+    for (int keySpace : new int[] {10, 1000, 100000}) {
+      final Random rand = new Random(keySpace);
+      final Map<Object, Integer> expected = new HashMap<>();
+      PersistentMap<Object, Integer> actual = PersistentMap.empty();
+
+      for (int i = 0; i < 20000; i++) {
+        final int k = rand.nextInt(keySpace);
+        final Object key = rand.nextBoolean() ? k : new Key(k);
+        if (rand.nextInt(3) == 0) {
+          expected.remove(key);
+          actual = actual.minus(key);
+        } else {
+          expected.put(key, i);
+          actual = actual.plus(key, i);
+        }
+        assertEquals(expected.size(), actual.size());
+        assertEquals(expected.get(key), actual.get(key));
+        assertEquals(expected.containsKey(key), actual.containsKey(key));
+      }
+
+      assertEquals(expected, actual);
+      assertEquals(actual, expected);
+      assertEquals(expected.hashCode(), actual.hashCode());
+      assertEquals(expected.size(), actual.entrySet().size());
+      assertEquals(actual, Cloning.clone(actual));
+      assertEquals(actual, Cloning.deserialize(Cloning.serialize(actual)));
+    }
+  }
+
+  @Test
+  public void sharesStructure() {
+    PersistentMap<Integer, String> m = PersistentMap.empty();
+    for (int i = 0; i < 100; i++) {
+      m = m.plus(i, "" + i);
+    }
+    final PersistentMap<Integer, String> m2 = m.plus(1000, "1000");
+    assertFalse(m.containsKey(1000));
+    assertEquals("1000", m2.get(1000));
+    assertEquals(101, m2.size());
+
+    final String value = m.get(5);
+    assertSame(m, m.plus(5, value));
+    assertSame(m, m.minus(1000));
+    assertNull(m.get(null));
+    assertTrue(m.minus(5).size() == 99 && m.size() == 100);
+  }
+
+  @Test
+  public void persistentSet() {
+    final Random rand = new Random(0);
+    final Set<Key> expected = new HashSet<>();
+    PersistentSet<Key> actual = PersistentSet.empty();
+    for (int i = 0; i < 5000; i++) {
+      final Key k = new Key(rand.nextInt(500));
+      if (rand.nextBoolean()) {
+        expected.add(k);
+        actual = actual.plus(k);
+      } else {
+        expected.remove(k);
+        actual = actual.minus(k);
+      }
+    }
+    assertEquals(expected, actual);
+    assertEquals(actual, expected);
+    assertEquals(expected.hashCode(), actual.hashCode());
+    assertSame(actual, actual.plusAll(expected));
+    final PersistentSet<Key> deserialized = Cloning.deserialize(Cloning.serialize(actual));
+    assertEquals(actual, deserialized);
+    assertSame(deserialized, deserialized.plusAll(expected));
+  }
+}
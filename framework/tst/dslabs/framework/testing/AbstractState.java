@@ -28,11 +28,12 @@ import com.google.common.collect.Multiset;
 import dslabs.framework.Address;
 import dslabs.framework.Client;
 import dslabs.framework.Command;
+import dslabs.framework.Message;
 import dslabs.framework.Node;
 import dslabs.framework.Result;
 import dslabs.framework.testing.utils.Cloning;
+import dslabs.framework.testing.utils.PersistentMap;
 import java.io.Serializable;
-import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -48,9 +49,10 @@ import lombok.extern.java.Log;
 @ToString(exclude = {"gen"})
 @Log
 public abstract class AbstractState implements Serializable {
-  private final Map<Address, Node> servers;
-  private final Map<Address, ClientWorker> clientWorkers;
-  private final Map<Address, Node> clients;
+  // Persistent, so that successor states can share them with their predecessors
+  private PersistentMap<Address, Node> servers;
+  private PersistentMap<Address, ClientWorker> clientWorkers;
+  private PersistentMap<Address, Node> clients;
 
   protected final transient StateGenerator gen;
 
@@ -82,9 +84,9 @@ public abstract class AbstractState implements Serializable {
       }
     }
 
-    this.servers = stateGenerator.servers(servers);
-    this.clientWorkers = stateGenerator.clientWorkers(clientWorkers);
-    this.clients = stateGenerator.clients(clients);
+    this.servers = PersistentMap.copyOf(stateGenerator.servers(servers));
+    this.clientWorkers = PersistentMap.copyOf(stateGenerator.clientWorkers(clientWorkers));
+    this.clients = PersistentMap.copyOf(stateGenerator.clients(clients));
     this.gen = stateGenerator;
 
     // Setup the nodes
@@ -94,9 +96,9 @@ public abstract class AbstractState implements Serializable {
   }
 
   protected AbstractState(AbstractState source, Address addressToClone) {
-    servers = new HashMap<>(source.servers);
-    clientWorkers = new HashMap<>(source.clientWorkers);
-    clients = new HashMap<>(source.clients);
+    servers = source.servers;
+    clientWorkers = source.clientWorkers;
+    clients = source.clients;
     gen = source.gen;
 
     if (addressToClone == null) {
@@ -104,16 +106,68 @@ public abstract class AbstractState implements Serializable {
     }
 
     if (servers.containsKey(addressToClone)) {
-      servers.put(addressToClone, Cloning.clone(servers.get(addressToClone)));
+      servers = servers.plus(addressToClone, Cloning.clone(servers.get(addressToClone)));
     } else if (clientWorkers.containsKey(addressToClone)) {
-      clientWorkers.put(addressToClone, Cloning.clone(clientWorkers.get(addressToClone)));
+      clientWorkers =
+          clientWorkers.plus(addressToClone, Cloning.clone(clientWorkers.get(addressToClone)));
     } else if (clients.containsKey(addressToClone)) {
-      clients.put(addressToClone, Cloning.clone(clients.get(addressToClone)));
+      clients = clients.plus(addressToClone, Cloning.clone(clients.get(addressToClone)));
     } else {
       LOG.severe("Given address not found");
     }
   }
 
+  /** Shares everything with the source state except the node at address, which is replaced. */
+  protected AbstractState(AbstractState source, Address address, Node replacement) {
+    servers = source.servers;
+    clientWorkers = source.clientWorkers;
+    clients = source.clients;
+    gen = source.gen;
+
+    if (servers.containsKey(address)) {
+      servers = servers.plus(address, replacement);
+    } else if (clientWorkers.containsKey(address)) {
+      clientWorkers = clientWorkers.plus(address, (ClientWorker) replacement);
+    } else if (clients.containsKey(address)) {
+      clients = clients.plus(address, replacement);
+    } else {
+      LOG.severe("Given address not found");
+    }
+  }
+
+  /**
+   * The messages in the network whose payload is an instance of the given type. Implementations may
+   * answer this from an index rather than scanning the whole network.
+   *
+   * @param type the message type
+   * @return the matching messages
+   */
+  public Iterable<MessageEnvelope> messagesOfType(Class<? extends Message> type) {
+    return Iterables.filter(network(), me -> type.isInstance(me.message()));
+  }
+
+  /**
+   * The messages in the network destined for the given address. Implementations may answer this
+   * from an index rather than scanning the whole network.
+   *
+   * @param to the destination address
+   * @return the matching messages
+   */
+  public Iterable<MessageEnvelope> messagesTo(Address to) {
+    return Iterables.filter(network(), me -> me.to().equals(to));
+  }
+
+  /**
+   * The messages in the network sent over the given link.
+   *
+   * @param from the sender's address
+   * @param to the destination address
+   * @return the matching messages
+   */
+  public Iterable<MessageEnvelope> messagesBetween(Address from, Address to) {
+    return Iterables.filter(messagesTo(to), me -> me.from().equals(from));
+  }
+
   public synchronized Iterable<Address> addresses() {
     return Iterables.concat(serverAddresses(), clientWorkerAddresses(), clientAddresses());
   }
@@ -198,9 +252,9 @@ public abstract class AbstractState implements Serializable {
   }
 
   public synchronized void removeNode(Address address) throws InterruptedException {
-    servers.remove(address);
-    clientWorkers.remove(address);
-    clients.remove(address);
+    servers = servers.minus(address);
+    clientWorkers = clientWorkers.minus(address);
+    clients = clients.minus(address);
     cleanupNode(address);
   }
 
@@ -209,7 +263,7 @@ public abstract class AbstractState implements Serializable {
       LOG.severe("Re-adding an existing address to state");
       return;
     }
-    servers.put(address, gen.server(address));
+    servers = servers.plus(address, gen.server(address));
     setupNode(address);
   }
 
@@ -218,7 +272,7 @@ public abstract class AbstractState implements Serializable {
       LOG.severe("Re-adding an existing address to state");
       return;
     }
-    clientWorkers.put(address, gen.clientWorker(address));
+    clientWorkers = clientWorkers.plus(address, gen.clientWorker(address));
     setupNode(address);
   }
 
@@ -227,7 +281,8 @@ public abstract class AbstractState implements Serializable {
       LOG.severe("Re-adding an existing address to state");
       return;
     }
-    clientWorkers.put(address, gen.clientWorker(address, recordCommandsAndResults));
+    clientWorkers =
+        clientWorkers.plus(address, gen.clientWorker(address, recordCommandsAndResults));
     setupNode(address);
   }
 
@@ -236,7 +291,7 @@ public abstract class AbstractState implements Serializable {
       LOG.severe("Re-adding an existing address to state");
       return;
     }
-    clientWorkers.put(address, gen.clientWorker(address, workload));
+    clientWorkers = clientWorkers.plus(address, gen.clientWorker(address, workload));
     setupNode(address);
   }
 
@@ -246,7 +301,8 @@ public abstract class AbstractState implements Serializable {
       LOG.severe("Re-adding an existing address to state");
       return;
     }
-    clientWorkers.put(address, gen.clientWorker(address, workload, recordCommandsAndResults));
+    clientWorkers =
+        clientWorkers.plus(address, gen.clientWorker(address, workload, recordCommandsAndResults));
     setupNode(address);
   }
 
@@ -256,7 +312,7 @@ public abstract class AbstractState implements Serializable {
       return null;
     }
     C client = gen.client(address);
-    clients.put(address, client);
+    clients = clients.plus(address, client);
     setupNode(address);
     return client;
   }
@@ -22,6 +22,8 @@
 
 package dslabs.framework.testing;
 
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import dslabs.framework.Address;
 import dslabs.framework.Message;
@@ -32,17 +34,18 @@ import java.io.PrintWriter;
 import java.io.Serializable;
 import java.io.StringWriter;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
 import java.util.stream.Collectors;
 import java.util.stream.StreamSupport;
+import lombok.EqualsAndHashCode;
 import lombok.Getter;
 import lombok.NonNull;
-import lombok.RequiredArgsConstructor;
+import lombok.ToString;
 import org.apache.commons.lang3.tuple.ImmutablePair;
 import org.apache.commons.lang3.tuple.Pair;
 
-@RequiredArgsConstructor
 public class StatePredicate implements Serializable {
   public static final Pair<Boolean, String> TRUE_NO_MESSAGE = new ImmutablePair<>(true, null);
   public static final Pair<Boolean, String> FALSE_NO_MESSAGE = new ImmutablePair<>(false, null);
@@ -52,6 +55,7 @@ public class StatePredicate implements Serializable {
   public static final StatePredicate RESULTS_OK =
       statePredicateWithMessage(
           "Clients got expected results",
+          ReadSet.clientWorkers(),
           s -> {
             for (ClientWorker c : s.clientWorkers()) {
               if (!c.resultsOk()) {
@@ -74,17 +78,22 @@ public class StatePredicate implements Serializable {
       resultPredicate("No results returned", rs -> rs.size() <= 0, Quantifier.ALL);
 
   public static final StatePredicate CLIENTS_DONE =
-      statePredicate("All clients' workloads finished", AbstractState::clientWorkersDone);
+      statePredicate(
+          "All clients' workloads finished",
+          ReadSet.clientWorkers(),
+          AbstractState::clientWorkersDone);
 
   public static StatePredicate clientDone(Address clientWorkerAddress) {
     return statePredicate(
         String.format("%s's workload finished", clientWorkerAddress),
+        ReadSet.nodes(clientWorkerAddress),
         s -> s.clientWorker(clientWorkerAddress).done());
   }
 
   public static StatePredicate clientHasResults(Address clientWorkerAddress, int numResults) {
     return statePredicate(
         String.format("%s received %s results", clientWorkerAddress, numResults),
+        ReadSet.nodes(clientWorkerAddress),
         s -> s.clientWorker(clientWorkerAddress).results().size() == numResults);
   }
 
@@ -140,6 +149,7 @@ public class StatePredicate implements Serializable {
       String name, SerializablePredicate<MessageEnvelope> predicate) {
     return statePredicate(
         String.format("Network contains message satisfying: %s", name),
+        ReadSet.network(),
         s -> StreamSupport.stream(s.network().spliterator(), false).anyMatch(predicate));
   }
 
@@ -148,6 +158,52 @@ public class StatePredicate implements Serializable {
     return containsEnvelopMatching(name, e -> predicate.test(e.message()));
   }
 
+  /**
+   * Whether the network contains a message of the given type satisfying the predicate. Only the
+   * messages of that type are examined; search states keep them indexed by type. The predicate is
+   * named like {@link #containsMessageMatching(String, SerializablePredicate)}'s.
+   */
+  public static <M extends Message> StatePredicate containsMessageOfType(
+      String name, Class<M> type, SerializablePredicate<? super M> predicate) {
+    return statePredicate(
+        String.format("Network contains message satisfying: %s", name),
+        ReadSet.network(),
+        s -> {
+          for (MessageEnvelope me : s.messagesOfType(type)) {
+            if (predicate.test(type.cast(me.message()))) {
+              return true;
+            }
+          }
+          return false;
+        });
+  }
+
+  public static StatePredicate containsMessageOfType(Class<? extends Message> type) {
+    return statePredicate(
+        String.format("Network contains %s", type.getSimpleName()),
+        ReadSet.network(),
+        s -> !Iterables.isEmpty(s.messagesOfType(type)));
+  }
+
+  /**
+   * Whether the network contains a message destined for the given address satisfying the predicate.
+   * Only the messages to that address are examined; search states keep them indexed by destination.
+   */
+  public static StatePredicate containsMessageTo(
+      String name, Address to, SerializablePredicate<MessageEnvelope> predicate) {
+    return statePredicate(
+        String.format("Network contains message to %s satisfying: %s", to, name),
+        ReadSet.network(),
+        s -> Iterables.any(s.messagesTo(to), predicate::test));
+  }
+
+  public static StatePredicate containsMessageTo(Address to) {
+    return statePredicate(
+        String.format("Network contains message to %s", to),
+        ReadSet.network(),
+        s -> !Iterables.isEmpty(s.messagesTo(to)));
+  }
+
   public static StatePredicate resultsHaveType(Address clientAddress, Class<?> c) {
     return resultPredicate(
         String.format("All results for %s have type %s", clientAddress, c.getSimpleName()),
@@ -160,6 +216,114 @@ public class StatePredicate implements Serializable {
   @Getter private final String name;
   @NonNull private final SerializableFunction<AbstractState, Pair<Boolean, String>> predicate;
 
+  /** The parts of the state the predicate reads; see {@link ReadSet}. */
+  @Getter private final ReadSet readSet;
+
+  public StatePredicate(
+      String name, @NonNull SerializableFunction<AbstractState, Pair<Boolean, String>> predicate) {
+    this(name, predicate, ReadSet.everything());
+  }
+
+  private StatePredicate(
+      String name,
+      @NonNull SerializableFunction<AbstractState, Pair<Boolean, String>> predicate,
+      @NonNull ReadSet readSet) {
+    this.name = name;
+    this.predicate = predicate;
+    this.readSet = readSet;
+  }
+
+  /**
+   * Returns an equivalent predicate which declares that it only reads the given parts of states.
+   * The declaration must be accurate; a search skips re-evaluating the predicate on a state when
+   * none of the parts it reads changed since the previous state.
+   *
+   * @param readSet the parts of states the predicate reads
+   * @return the new predicate
+   */
+  public StatePredicate readsOnly(@NonNull ReadSet readSet) {
+    return new StatePredicate(name, predicate, readSet);
+  }
+
+  /**
+   * The parts of a state a {@link StatePredicate} reads: the whole state (the default), the network
+   * (not including timers), all {@link ClientWorker}s, specific nodes (including their timers), or
+   * a union of these.
+   *
+   * <p>During a search, every invariant, goal, and prune has its normal value on a state which the
+   * search found valid. A successor differs from such a state only in the node that was stepped,
+   * that node's timers, and the messages it sent, so a predicate which reads none of those has the
+   * same value on the successor and is not evaluated again.
+   */
+  @EqualsAndHashCode
+  @ToString
+  public static final class ReadSet implements Serializable {
+    private static final ReadSet EVERYTHING = new ReadSet(true, false, false, ImmutableSet.of()),
+        NETWORK = new ReadSet(false, true, false, ImmutableSet.of()),
+        CLIENT_WORKERS = new ReadSet(false, false, true, ImmutableSet.of());
+    private final boolean everything, network, clientWorkers;
+    private final ImmutableSet<Address> nodes;
+
+    private ReadSet(
+        boolean everything, boolean network, boolean clientWorkers, ImmutableSet<Address> nodes) {
+      this.everything = everything;
+      this.network = network;
+      this.clientWorkers = clientWorkers;
+      this.nodes = nodes;
+    }
+
+    public static ReadSet everything() {
+      return EVERYTHING;
+    }
+
+    public static ReadSet network() {
+      return NETWORK;
+    }
+
+    public static ReadSet clientWorkers() {
+      return CLIENT_WORKERS;
+    }
+
+    public static ReadSet nodes(Address... addresses) {
+      return nodes(Arrays.asList(addresses));
+    }
+
+    public static ReadSet nodes(Iterable<Address> addresses) {
+      final ImmutableSet.Builder<Address> nodes = ImmutableSet.builder();
+      for (Address a : addresses) {
+        nodes.add(a.rootAddress());
+      }
+      return new ReadSet(false, false, false, nodes.build());
+    }
+
+    public ReadSet union(@NonNull ReadSet other) {
+      if (everything || other.everything) {
+        return EVERYTHING;
+      }
+      return new ReadSet(
+          false,
+          network || other.network,
+          clientWorkers || other.clientWorkers,
+          ImmutableSet.<Address>builder().addAll(nodes).addAll(other.nodes).build());
+    }
+
+    /**
+     * Whether a step might have changed the parts of the state in this read set.
+     *
+     * @param stepped the root address of the node which was stepped
+     * @param steppedClientWorker whether that node is a {@link ClientWorker}
+     * @param networkChanged whether the step added messages to the network
+     * @return whether the predicate must be evaluated again
+     */
+    public boolean affectedBy(
+        Address stepped, boolean steppedClientWorker, boolean networkChanged) {
+      return everything
+          || (network && networkChanged)
+          || (clientWorkers && steppedClientWorker)
+          || nodes.contains(stepped);
+    }
+  }
+
   private static <T> SerializableFunction<T, Pair<Boolean, String>> addNullMessage(
       String name, SerializablePredicate<T> predicate) {
     return t -> new ImmutablePair<>(predicate.test(t), null);
@@ -171,15 +335,36 @@ public class StatePredicate implements Serializable {
     return new StatePredicate(name, predicateWithMessage);
   }
 
+  /**
+   * Like {@link #statePredicateWithMessage(String, SerializableFunction)}, but declares the parts
+   * of states the predicate reads; see {@link #readsOnly(ReadSet)}.
+   */
+  public static StatePredicate statePredicateWithMessage(
+      String name,
+      @NonNull ReadSet readSet,
+      SerializableFunction<AbstractState, Pair<Boolean, String>> predicateWithMessage) {
+    return new StatePredicate(name, predicateWithMessage, readSet);
+  }
+
   public static StatePredicate statePredicate(
       String name, SerializablePredicate<AbstractState> predicate) {
     return statePredicateWithMessage(name, addNullMessage(name, predicate));
   }
 
+  /**
+   * Like {@link #statePredicate(String, SerializablePredicate)}, but declares the parts of states
+   * the predicate reads; see {@link #readsOnly(ReadSet)}.
+   */
+  public static StatePredicate statePredicate(
+      String name, @NonNull ReadSet readSet, SerializablePredicate<AbstractState> predicate) {
+    return statePredicateWithMessage(name, readSet, addNullMessage(name, predicate));
+  }
+
   public static StatePredicate resultsPredicateWithMessage(
       String name,
       SerializableFunction<Collection<List<Result>>, Pair<Boolean, String>> predicate) {
-    return statePredicateWithMessage(name, s -> predicate.apply(s.results().values()));
+    return statePredicateWithMessage(
+        name, ReadSet.clientWorkers(), s -> predicate.apply(s.results().values()));
   }
 
   public static StatePredicate resultsPredicate(
@@ -240,7 +425,9 @@ public class StatePredicate implements Serializable {
       Address clientWorkerAddress,
       SerializableFunction<List<Result>, Pair<Boolean, String>> predicate) {
     return statePredicateWithMessage(
-        name, s -> predicate.apply(s.clientWorker(clientWorkerAddress).results()));
+        name,
+        ReadSet.nodes(clientWorkerAddress),
+        s -> predicate.apply(s.clientWorker(clientWorkerAddress).results()));
   }
 
   public static StatePredicate resultPredicate(
@@ -388,6 +575,7 @@ public class StatePredicate implements Serializable {
     }
     return statePredicateWithMessage(
         newName,
+        readSet,
         s -> {
           Pair<Boolean, String> ret = predicate.apply(s);
           return new ImmutablePair<>(!ret.getLeft(), ret.getRight());
@@ -397,6 +585,7 @@ public class StatePredicate implements Serializable {
   public StatePredicate and(@NonNull StatePredicate other) {
     return statePredicateWithMessage(
         String.format("(%s) ∧ (%s)", this.name, other.name),
+        readSet.union(other.readSet),
         s -> {
           Pair<Boolean, String> ret1 = predicate.apply(s);
           Pair<Boolean, String> ret2;
@@ -413,6 +602,7 @@ public class StatePredicate implements Serializable {
   public StatePredicate or(@NonNull StatePredicate other) {
     return statePredicateWithMessage(
         String.format("(%s) ∨ (%s)", this.name, other.name),
+        readSet.union(other.readSet),
         s -> {
           Pair<Boolean, String> ret1 = predicate.apply(s);
           Pair<Boolean, String> ret2;
@@ -428,7 +618,9 @@ public class StatePredicate implements Serializable {
 
   public StatePredicate implies(StatePredicate other) {
     return statePredicateWithMessage(
-        String.format("(%s) → (%s)", this.name, other.name), this.negate().or(other).predicate);
+        String.format("(%s) → (%s)", this.name, other.name),
+        readSet.union(other.readSet),
+        this.negate().or(other).predicate);
   }
 
   @Override
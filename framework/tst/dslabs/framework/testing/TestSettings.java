@@ -25,6 +25,7 @@ package dslabs.framework.testing;
 import dslabs.framework.Address;
 import dslabs.framework.testing.StatePredicate.PredicateResult;
 import dslabs.framework.testing.utils.GlobalSettings;
+import java.io.Serializable;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Map;
@@ -43,7 +44,7 @@ import org.apache.commons.lang3.tuple.Pair;
  */
 @Getter
 @Setter
-public abstract class TestSettings<T extends TestSettings<T>> {
+public abstract class TestSettings<T extends TestSettings<T>> implements Serializable {
   /* Defaults */
   private static final int DEFAULT_TIME_LIMIT_SECS = 5;
 
@@ -229,9 +230,13 @@ public abstract class TestSettings<T extends TestSettings<T>> {
       return true;
     }
 
-    Boolean b = linkActive.get(new ImmutablePair<>(from, to));
-    if (b != null) {
-      return b;
+    Boolean b;
+    // Avoid allocating a key for the common case where no links are configured
+    if (!linkActive.isEmpty()) {
+      b = linkActive.get(new ImmutablePair<>(from, to));
+      if (b != null) {
+        return b;
+      }
     }
     b = senderActive.get(from);
     if (b != null) {
@@ -25,7 +25,10 @@ package dslabs.framework.testing.junit;
 import static dslabs.framework.testing.search.SearchResults.EndCondition.EXCEPTION_THROWN;
 import static dslabs.framework.testing.search.SearchResults.EndCondition.GOAL_FOUND;
 import static dslabs.framework.testing.search.SearchResults.EndCondition.INVARIANT_VIOLATED;
+import static dslabs.framework.testing.search.SearchResults.EndCondition.MEMORY_EXHAUSTED;
 import static dslabs.framework.testing.search.SearchResults.EndCondition.SPACE_EXHAUSTED;
+import static dslabs.framework.testing.search.SearchResults.EndCondition.STATES_DROPPED;
+import static dslabs.framework.testing.search.SearchResults.EndCondition.STATE_LIMIT_EXCEEDED;
 import static dslabs.framework.testing.search.SearchResults.EndCondition.TIME_EXHAUSTED;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.fail;
@@ -265,6 +268,42 @@ public abstract class BaseJUnitTest extends DSLabsJUnitTest {
     bfs(searchState, searchSettings);
   }
 
+  protected final void externalBfs(SearchState searchState, SearchSettings searchSettings) {
+    assert searchState != null;
+    bfsStartState = searchState;
+    lastSearchSettings = searchSettings.clone();
+    searchResults = Search.externalBfs(searchState, searchSettings);
+    assertEndConditionValid();
+  }
+
+  protected final void externalBfs(SearchState searchState) {
+    externalBfs(searchState, searchSettings);
+  }
+
+  protected final void bestFirst(SearchState searchState, SearchSettings searchSettings) {
+    assert searchState != null;
+    bfsStartState = searchState;
+    lastSearchSettings = searchSettings.clone();
+    searchResults = Search.bestFirst(searchState, searchSettings);
+    assertEndConditionValid();
+  }
+
+  protected final void bestFirst(SearchState searchState) {
+    bestFirst(searchState, searchSettings);
+  }
+
+  protected final void exhaustiveDfs(SearchState searchState, SearchSettings searchSettings) {
+    assert searchState != null;
+    bfsStartState = searchState;
+    lastSearchSettings = searchSettings.clone();
+    searchResults = Search.exhaustiveDfs(searchState, searchSettings);
+    assertEndConditionValid();
+  }
+
+  protected final void exhaustiveDfs(SearchState searchState) {
+    exhaustiveDfs(searchState, searchSettings);
+  }
+
   protected final void dfs(SearchState searchState, SearchSettings searchSettings) {
     assert searchState != null;
     lastSearchSettings = searchSettings.clone();
@@ -276,6 +315,28 @@ public abstract class BaseJUnitTest extends DSLabsJUnitTest {
     dfs(searchState, searchSettings);
   }
 
+  protected final void swarm(SearchState searchState, SearchSettings searchSettings) {
+    assert searchState != null;
+    lastSearchSettings = searchSettings.clone();
+    searchResults = Search.swarm(searchState, searchSettings);
+    assertEndConditionValid();
+  }
+
+  protected final void swarm(SearchState searchState) {
+    swarm(searchState, searchSettings);
+  }
+
+  protected final void coverageGuided(SearchState searchState, SearchSettings searchSettings) {
+    assert searchState != null;
+    lastSearchSettings = searchSettings.clone();
+    searchResults = Search.coverageGuided(searchState, searchSettings);
+    assertEndConditionValid();
+  }
+
+  protected final void coverageGuided(SearchState searchState) {
+    coverageGuided(searchState, searchSettings);
+  }
+
   final void traceReplay(SearchState searchState, List<Event> trace) {
     assert searchState != null;
     lastSearchSettings = searchSettings.clone();
@@ -399,6 +460,9 @@ public abstract class BaseJUnitTest extends DSLabsJUnitTest {
         switch (ec) {
           case SPACE_EXHAUSTED -> "\nSearch space was exhausted.";
           case TIME_EXHAUSTED -> "\nSearch ran out of time.";
+          case MEMORY_EXHAUSTED -> "\nSearch ran out of memory.";
+          case STATE_LIMIT_EXCEEDED -> "\nSearch reached its state limit.";
+          case STATES_DROPPED -> "\nSearch dropped states from its frontier.";
           default -> "";
         });
 
@@ -437,9 +501,19 @@ public abstract class BaseJUnitTest extends DSLabsJUnitTest {
       return;
     }
 
-    assert ec == TIME_EXHAUSTED;
-
-    System.err.println("Could not exhaust search space, ran out of time.");
+    assert ec == TIME_EXHAUSTED
+        || ec == MEMORY_EXHAUSTED
+        || ec == STATE_LIMIT_EXCEEDED
+        || ec == STATES_DROPPED;
+
+    System.err.println(
+        "Could not exhaust search space, "
+            + switch (ec) {
+              case TIME_EXHAUSTED -> "ran out of time.";
+              case MEMORY_EXHAUSTED -> "ran out of memory.";
+              case STATES_DROPPED -> "dropped states from the frontier.";
+              default -> "reached state limit.";
+            });
     failTestAndContinue();
   }
 
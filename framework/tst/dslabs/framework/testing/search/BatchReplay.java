@@ -0,0 +1,200 @@
+/*
+ * Copyright (c) 2018 Ellis Michael (emichael@cs.washington.edu)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package dslabs.framework.testing.search;
+
+import dslabs.framework.testing.Event;
+import dslabs.framework.testing.StatePredicate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import lombok.RequiredArgsConstructor;
+
+/**
+ * Replays many saved traces at once, checking each state of each trace against that trace's
+ * invariants, as {@code CheckSavedTracesTest} does one trace at a time.
+ *
+ * <p>Traces with equal initial states are merged into a trie of their event histories, and each
+ * prefix shared by several traces is replayed once. Since stepping a state creates a new state and
+ * leaves it unchanged, the state at a branch point is shared by all of its subtrees rather than
+ * cloned. Subtrees are replayed in parallel on a {@link ForkJoinPool}; chains without branches are
+ * replayed by a single task.
+ */
+public final class BatchReplay {
+  /** How replaying a trace ended. */
+  public enum Outcome {
+    /** Every event was replayed and every state satisfied the trace's invariants. */
+    PASSED,
+    /** Some state violated one of the trace's invariants. */
+    INVARIANT_VIOLATED,
+    /** Some event threw an exception. */
+    EXCEPTION_THROWN,
+    /** Some event could not be delivered. */
+    NOT_REPLAYABLE
+  }
+
+  /** A node of the trie; stands for the state reached by its event from its parent's state. */
+  @RequiredArgsConstructor
+  private static final class Prefix {
+    private final Event event;
+    private final List<Integer> traces = new ArrayList<>();
+    private final Map<Event, Prefix> next = new LinkedHashMap<>();
+  }
+
+  private final List<SerializableTrace> traces;
+  private final Outcome[] outcomes;
+  private final SearchSettings settings = new SearchSettings();
+
+  private BatchReplay(Collection<SerializableTrace> traces) {
+    this.traces = new ArrayList<>(traces);
+    outcomes = new Outcome[this.traces.size()];
+  }
+
+  /**
+   * Replays the traces.
+   *
+   * @param traces the traces
+   * @param numThreads the number of threads to replay them on
+   * @return the outcome of each trace
+   */
+  public static Map<SerializableTrace, Outcome> replay(
+      Collection<SerializableTrace> traces, int numThreads) {
+    final BatchReplay replay = new BatchReplay(traces);
+    final List<Replay> roots = new ArrayList<>();
+    for (Map.Entry<SearchState, Prefix> e : replay.tries().entrySet()) {
+      roots.add(replay.new Replay(e.getValue(), e.getKey()));
+    }
+
+    final ForkJoinPool pool = new ForkJoinPool(Math.max(numThreads, 1));
+    try {
+      pool.invoke(
+          new RecursiveAction() {
+            @Override
+            protected void compute() {
+              invokeAll(roots);
+            }
+          });
+    } finally {
+      pool.shutdown();
+    }
+
+    final Map<SerializableTrace, Outcome> results = new HashMap<>();
+    for (int i = 0; i < replay.traces.size(); i++) {
+      results.put(replay.traces.get(i), replay.outcomes[i]);
+    }
+    return results;
+  }
+
+  /* One trie per distinct initial state */
+  private Map<SearchState, Prefix> tries() {
+    final Map<SearchState, Prefix> tries = new LinkedHashMap<>();
+    for (int i = 0; i < traces.size(); i++) {
+      Prefix prefix = tries.computeIfAbsent(traces.get(i).initialState(), __ -> new Prefix(null));
+      prefix.traces.add(i);
+      for (Event e : traces.get(i).history()) {
+        prefix = prefix.next.computeIfAbsent(e, Prefix::new);
+        prefix.traces.add(i);
+      }
+    }
+    return tries;
+  }
+
+  /* Replays the subtree rooted at a prefix, given the state of the prefix's parent. */
+  @RequiredArgsConstructor
+  private final class Replay extends RecursiveAction {
+    private final Prefix prefix;
+    private final SearchState from;
+
+    @Override
+    protected void compute() {
+      Prefix p = prefix;
+      SearchState s = p.event == null ? from : from.stepEvent(p.event, settings, false);
+      while (true) {
+        if (s == null) {
+          finish(p, Outcome.NOT_REPLAYABLE);
+          return;
+        }
+        check(p, s);
+
+        final List<Prefix> live = new ArrayList<>();
+        for (Prefix n : p.next.values()) {
+          if (anyLive(n)) {
+            live.add(n);
+          }
+        }
+        if (live.size() != 1) {
+          final List<Replay> subtrees = new ArrayList<>();
+          for (Prefix n : live) {
+            subtrees.add(new Replay(n, s));
+          }
+          invokeAll(subtrees);
+          break;
+        }
+        p = live.get(0);
+        s = s.stepEvent(p.event, settings, false);
+      }
+      // Traces which end at a prefix were replayed fully
+      finish(prefix, Outcome.PASSED);
+    }
+  }
+
+  private boolean anyLive(Prefix p) {
+    for (int t : p.traces) {
+      if (outcomes[t] == null) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /* Sets the outcome of the traces through the prefix which have none yet. */
+  private void finish(Prefix p, Outcome outcome) {
+    for (int t : p.traces) {
+      if (outcomes[t] == null) {
+        outcomes[t] = outcome;
+      }
+    }
+  }
+
+  private void check(Prefix p, SearchState s) {
+    for (int t : p.traces) {
+      if (outcomes[t] != null) {
+        continue;
+      }
+      if (s.thrownException() != null) {
+        outcomes[t] = Outcome.EXCEPTION_THROWN;
+        continue;
+      }
+      for (StatePredicate invariant : traces.get(t).invariants()) {
+        if (invariant.test(s, true) != null) {
+          outcomes[t] = Outcome.INVARIANT_VIOLATED;
+          break;
+        }
+      }
+    }
+  }
+}
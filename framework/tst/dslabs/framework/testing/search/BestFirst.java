@@ -0,0 +1,197 @@
+/*
+ * Copyright (c) 2018 Ellis Michael (emichael@cs.washington.edu)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package dslabs.framework.testing.search;
+
+import dslabs.framework.testing.Event;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.java.Log;
+
+/**
+ * Best-first search, guided by {@link SearchSettings#heuristic()}. The frontier is ordered by each
+ * state's score, {@code heuristic(s) + heuristicDepthWeight * s.depth()}, and the lowest-scoring
+ * state is always explored next; states with equal scores are explored in the order they were
+ * discovered. With a depth weight of 1 and an admissible heuristic, this is A*.
+ *
+ * <p>Every state is explored at most once, the first time it is discovered, so the traces of the
+ * states found are not necessarily the shortest ones; they are run through the {@link
+ * TraceMinimizer}.
+ *
+ * <p>The frontier is a concurrent skip list holding at most {@link
+ * SearchSettings#bestFirstFrontierSize()} states. When it is full, the worst-scoring state is
+ * dropped, after which the search is no longer exhaustive. The search still ends once the frontier
+ * is empty, but with {@link SearchResults.EndCondition#STATES_DROPPED} rather than {@link
+ * SearchResults.EndCondition#SPACE_EXHAUSTED}, and logs how many states were dropped. When memory
+ * runs low (see {@link MemoryGovernor}), the frontier's capacity is halved, and the worst-scoring
+ * states beyond it are dropped.
+ */
+@Log
+class BestFirst extends Search {
+  @RequiredArgsConstructor
+  private static final class Entry implements Comparable<Entry> {
+    private final double score;
+    private final long sequence;
+    private final SearchState state;
+
+    @Override
+    public int compareTo(Entry other) {
+      final int c = Double.compare(score, other.score);
+      return c != 0 ? c : Long.compare(sequence, other.sequence);
+    }
+  }
+
+  private final NavigableSet<Entry> frontier = new ConcurrentSkipListSet<>();
+  private final AtomicInteger frontierSize = new AtomicInteger();
+  private final AtomicLong sequence = new AtomicLong();
+  private final AtomicLong dropped = new AtomicLong();
+  private volatile int frontierLimit;
+
+  private final VisitedSet discovered;
+
+  private final AtomicLong states = new AtomicLong();
+  private final AtomicInteger depth = new AtomicInteger();
+  private volatile double bestScore = Double.NaN;
+
+  BestFirst(SearchSettings settings) {
+    super(settings);
+    if (settings.heuristic() == null) {
+      throw new IllegalArgumentException("Best-first search requires a heuristic");
+    }
+    discovered = VisitedSet.create(settings);
+    frontierLimit = settings.bestFirstFrontierSize();
+  }
+
+  @Override
+  protected String searchType() {
+    return "best-first";
+  }
+
+  @Override
+  protected String status(double elapsedSecs) {
+    long explored = states.get();
+    return String.format(
+        "Explored: %s, Depth: %s, Best score: %s, Frontier: %s (%.2fs, %.2fK states/s)",
+        explored,
+        depth.get(),
+        bestScore,
+        frontierSize.get(),
+        elapsedSecs,
+        explored / elapsedSecs / 1000.0);
+  }
+
+  private void push(SearchState s) {
+    detach(s);
+    final double score =
+        settings.heuristic().apply(s) + settings.heuristicDepthWeight() * s.depth();
+    frontier.add(new Entry(score, sequence.getAndIncrement(), s));
+    if (frontierSize.incrementAndGet() > frontierLimit && frontier.pollLast() != null) {
+      frontierSize.decrementAndGet();
+      dropped.incrementAndGet();
+    }
+  }
+
+  private void shrinkFrontier() {
+    frontierLimit = Math.max(Math.min(frontierLimit, frontierSize.get()) / 2, 1);
+    while (frontierSize.get() > frontierLimit && frontier.pollLast() != null) {
+      frontierSize.decrementAndGet();
+      dropped.incrementAndGet();
+    }
+    if (settings.shouldOutputStatus()) {
+      System.out.printf("\tMemory running low, frontier limited to %s states%n", frontierLimit);
+    }
+  }
+
+  @Override
+  protected void initSearch(SearchState initialState) {
+    depth.set(initialState.depth());
+    states.set(1);
+    discovered.add(initialState);
+
+    // For now, don't consider PRUNED initial states
+    if (!checkState(initialState, true).equals(StateStatus.TERMINAL)) {
+      push(initialState);
+    }
+  }
+
+  @Override
+  protected boolean spaceExhausted() {
+    return frontier.isEmpty();
+  }
+
+  @Override
+  protected boolean statesDropped() {
+    return dropped.get() > 0;
+  }
+
+  @Override
+  protected Runnable getWorker() {
+    if (shouldShedMemory()) {
+      shrinkFrontier();
+    }
+    final Entry best = frontier.pollFirst();
+    if (best == null) {
+      return null;
+    }
+    frontierSize.decrementAndGet();
+    bestScore = best.score;
+    return () -> explore(best.state);
+  }
+
+  private void explore(SearchState node) {
+    for (Event e : node.events(settings)) {
+      final SearchState successor = node.stepEvent(e, settings, true);
+      if (successor == null || !discovered.add(successor)) {
+        continue;
+      }
+
+      depth.getAndAccumulate(successor.depth(), Math::max);
+      states.incrementAndGet();
+
+      final StateStatus status = checkState(successor, true);
+      if (status.equals(StateStatus.TERMINAL)) {
+        return;
+      } else if (status.equals(StateStatus.PRUNED)) {
+        continue;
+      }
+
+      push(successor);
+    }
+  }
+
+  @Override
+  protected SearchResults run(SearchState initialState) {
+    SearchResults results = super.run(initialState);
+    discovered.reportLossiness(results, settings);
+    if (dropped.get() > 0) {
+      LOG.warning(
+          String.format(
+              "%s states were dropped from the full best-first frontier; the search was not"
+                  + " exhaustive",
+              dropped.get()));
+    }
+    return results;
+  }
+}
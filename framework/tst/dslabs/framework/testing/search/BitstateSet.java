@@ -0,0 +1,178 @@
+/*
+ * Copyright (c) 2018 Ellis Michael (emichael@cs.washington.edu)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package dslabs.framework.testing.search;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed-size bit array with {@code k} hash functions (a Bloom filter), as used by bitstate
+ * ("supertrace") hashing. Each element sets {@code k} bits, derived from its 128-bit fingerprint by
+ * double hashing. An element is considered present if all of its bits are set, so a new element is
+ * wrongly considered present with probability about {@code (1 - e^(-kn/m))^k} after {@code n}
+ * elements have been added to an array of {@code m} bits. The memory used never grows.
+ *
+ * <p>Safe for concurrent access.
+ */
+final class BitstateSet {
+  /* Larger arrays cannot be indexed by an int */
+  private static final long MAX_BITS = (long) Integer.MAX_VALUE * Long.SIZE;
+
+  private final AtomicLongArray words;
+  private final long numBits;
+  private final int numHashes;
+  private final AtomicLong size = new AtomicLong();
+
+  /**
+   * @param memoryBytes the size of the bit array in bytes; rounded down to a multiple of 8 bytes
+   * @param numHashes the number of hash functions, {@code k}
+   */
+  BitstateSet(long memoryBytes, int numHashes) {
+    if (numHashes < 1) {
+      throw new IllegalArgumentException("Need at least one hash function");
+    }
+    final long bits = Math.min(Math.max(memoryBytes * 8, Long.SIZE), MAX_BITS);
+    words = new AtomicLongArray((int) (bits / Long.SIZE));
+    numBits = (long) words.length() * Long.SIZE;
+    this.numHashes = numHashes;
+  }
+
+  /**
+   * Writes the bit array and the number of elements; see {@link #readFrom(DataInputStream)}.
+   * Elements must not be added concurrently.
+   */
+  void writeTo(DataOutputStream out) throws IOException {
+    out.writeInt(numHashes);
+    out.writeLong(size.get());
+    out.writeInt(words.length());
+    for (int i = 0; i < words.length(); i++) {
+      out.writeLong(words.get(i));
+    }
+  }
+
+  static BitstateSet readFrom(DataInputStream in) throws IOException {
+    final int numHashes = in.readInt();
+    final long size = in.readLong();
+    final BitstateSet set = new BitstateSet((long) in.readInt() * Long.BYTES, numHashes);
+    for (int i = 0; i < set.words.length(); i++) {
+      set.words.set(i, in.readLong());
+    }
+    set.size.set(size);
+    return set;
+  }
+
+  /**
+   * Sets the element's bits.
+   *
+   * @param high the high 64 bits of the element's fingerprint
+   * @param low the low 64 bits of the element's fingerprint
+   * @return whether any of the element's bits were not already set
+   */
+  boolean add(long high, long low) {
+    final long step = high | 1;
+    boolean added = false;
+    long h = low;
+    for (int i = 0; i < numHashes; i++, h += step) {
+      final long bit = Long.remainderUnsigned(mix(h), numBits);
+      final int word = (int) (bit >>> 6);
+      final long mask = 1L << bit;
+      long current;
+      while (((current = words.get(word)) & mask) == 0) {
+        if (words.compareAndSet(word, current, current | mask)) {
+          added = true;
+          break;
+        }
+      }
+    }
+    if (added) {
+      size.incrementAndGet();
+    }
+    return added;
+  }
+
+  /* The double-hashing sequence is linear, so mix it before reducing it to a bit index. */
+  private static long mix(long k) {
+    k ^= k >>> 33;
+    k *= 0xff51afd7ed558ccdL;
+    k ^= k >>> 33;
+    return k;
+  }
+
+  /**
+   * The number of elements considered new when they were added.
+   *
+   * @return the number of elements
+   */
+  long size() {
+    return size.get();
+  }
+
+  long numBits() {
+    return numBits;
+  }
+
+  int numHashes() {
+    return numHashes;
+  }
+
+  /**
+   * The approximate probability that an element is wrongly considered present when {@code n}
+   * elements have already been added.
+   */
+  static double falsePositiveProbability(double n, long bits, int k) {
+    return Math.pow(-Math.expm1(-k * n / bits), k);
+  }
+
+  /**
+   * The expected fraction of distinct elements which were wrongly considered already present, and
+   * so never counted in {@code n}, when {@code n} elements were reported new.
+   *
+   * <p>Each element is omitted with the false positive probability at the time it is added; the sum
+   * of those probabilities is approximated by integrating over the number of elements added.
+   *
+   * @param n the number of elements reported new
+   * @param bits the number of bits in the array
+   * @param k the number of hash functions
+   * @return the expected omission rate
+   */
+  static double expectedOmissionRate(long n, long bits, int k) {
+    if (n == 0) {
+      return 0.0;
+    }
+    final int steps = 1000;
+    double omitted = 0;
+    for (int i = 0; i < steps; i++) {
+      final double x = n * (i + 0.5) / steps;
+      final double p = falsePositiveProbability(x, bits, k);
+      if (p >= 1) {
+        return 1.0;
+      }
+      // While a fraction p of new elements is omitted, n grows by 1 per 1 / (1 - p) elements
+      omitted += p / (1 - p) * n / steps;
+    }
+    return omitted / (n + omitted);
+  }
+}
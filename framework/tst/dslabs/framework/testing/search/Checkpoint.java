@@ -0,0 +1,268 @@
+/*
+ * Copyright (c) 2018 Ellis Michael (emichael@cs.washington.edu)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package dslabs.framework.testing.search;
+
+import static dslabs.framework.testing.search.SearchFiles.compressedInput;
+import static dslabs.framework.testing.search.SearchFiles.compressedOutput;
+import static dslabs.framework.testing.search.SearchFiles.readBytes;
+import static dslabs.framework.testing.search.SearchFiles.writeBytes;
+
+import dslabs.framework.testing.Event;
+import dslabs.framework.testing.utils.Cloning;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import lombok.Getter;
+import lombok.extern.java.Log;
+import org.apache.commons.lang3.SerializationException;
+
+/**
+ * A snapshot of a breadth-first search taken between two depth layers, from which the search can be
+ * resumed (see {@link Search#resume}).
+ *
+ * <p>A checkpoint holds the search's settings (if they can be serialized), its initial state, the
+ * number of states explored, the serialized frontier, and the visited set (see {@link
+ * VisitedSet#writeTo(java.io.DataOutputStream)}). Frontier states are restored without their
+ * previous states. Instead, the checkpoint stores a tree of the events leading from the initial
+ * state to every frontier state, with one node per distinct ancestor. The tree is restored as the
+ * resumed search's {@link TraceStore}, with the frontier states detached at their nodes, so the
+ * trace of a state found after resuming is rebuilt by replaying those events from the initial
+ * state.
+ *
+ * <p>The checkpoint is one compressed file, which is written next to the previous checkpoint and
+ * then moved over it, so a search killed while writing a checkpoint can still be resumed from the
+ * previous one.
+ */
+@Log
+final class Checkpoint {
+  private static final String FILE_NAME = "checkpoint";
+  private static final int MAGIC = 0x44534c43, VERSION = 1;
+
+  @Getter private final SearchSettings settings;
+  @Getter private final SearchState initialState;
+  @Getter private final long statesExplored;
+  @Getter private final List<SearchState> frontier;
+  @Getter private final VisitedSet discovered;
+
+  /* The event tree; parents precede their children, so node ids are entry ids. */
+  @Getter private final TraceStore traces = new TraceStore();
+
+  private Checkpoint(Path dir, SearchSettings settings) throws IOException {
+    try (DataInputStream in = compressedInput(dir.resolve(FILE_NAME))) {
+      if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+        throw new IOException("Not a search checkpoint: " + dir.resolve(FILE_NAME));
+      }
+
+      final byte[] savedSettings = readBytes(in);
+      if (settings == null) {
+        if (savedSettings.length == 0) {
+          throw new IllegalStateException(
+              "The checkpoint's settings could not be saved; resume with explicit settings");
+        }
+        settings = Cloning.deserialize(savedSettings);
+        settings.checkpointDir(dir);
+      }
+      this.settings = settings;
+
+      final int initialDepth = in.readInt();
+      initialState = Cloning.<SearchState>deserialize(readBytes(in)).restored(initialDepth);
+      statesExplored = in.readLong();
+
+      final int numNodes = in.readInt();
+      for (int i = 0; i < numNodes; i++) {
+        traces.add(in.readInt(), Cloning.deserialize(readBytes(in)));
+      }
+
+      final int frontierSize = in.readInt();
+      frontier = new ArrayList<>(frontierSize);
+      for (int i = 0; i < frontierSize; i++) {
+        final int node = in.readInt();
+        final int depth = in.readInt();
+        final SearchState s = Cloning.<SearchState>deserialize(readBytes(in)).restored(depth);
+        s.detach(node, settings);
+        frontier.add(s);
+      }
+
+      discovered = VisitedSet.readFrom(in, settings);
+    }
+  }
+
+  /**
+   * Reads the checkpoint in the directory.
+   *
+   * @param dir the checkpoint directory
+   * @param settings the settings to resume the search with, or {@code null} to use the settings the
+   *     checkpoint was written with
+   * @return the checkpoint
+   */
+  static Checkpoint read(Path dir, SearchSettings settings) {
+    try {
+      return new Checkpoint(dir, settings);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Writes a checkpoint to the settings' {@link SearchSettings#checkpointDir()}, replacing any
+   * previous one. Must only be called while no states are being explored.
+   *
+   * @param settings the search settings
+   * @param initialState the initial state of the search
+   * @param frontier the states which have been discovered but not explored
+   * @param discovered the visited set
+   * @param statesExplored the number of states explored
+   * @param traces the traces of the search's detached states
+   */
+  static void write(
+      SearchSettings settings,
+      SearchState initialState,
+      Collection<SearchState> frontier,
+      VisitedSet discovered,
+      long statesExplored,
+      TraceStore traces) {
+    final Path dir = settings.checkpointDir();
+    final Path tmp = dir.resolve(FILE_NAME + ".tmp");
+    try {
+      Files.createDirectories(dir);
+      try (DataOutputStream out = compressedOutput(tmp)) {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        writeBytes(out, serializedSettings(settings));
+        out.writeInt(initialState.depth());
+        writeBytes(out, Cloning.serialize(initialState));
+        out.writeLong(statesExplored);
+
+        final EventTree tree = new EventTree(traces);
+        final int[] nodes = new int[frontier.size()];
+        int i = 0;
+        for (SearchState s : frontier) {
+          nodes[i++] = tree.node(s);
+        }
+        out.writeInt(tree.parents.size());
+        for (int n = 0; n < tree.parents.size(); n++) {
+          out.writeInt(tree.parents.get(n));
+          writeBytes(out, Cloning.serialize(tree.events.get(n)));
+        }
+
+        out.writeInt(frontier.size());
+        i = 0;
+        for (SearchState s : frontier) {
+          out.writeInt(nodes[i++]);
+          out.writeInt(s.depth());
+          writeBytes(out, Cloning.serialize(s));
+        }
+
+        discovered.writeTo(out);
+      }
+      Files.move(
+          tmp,
+          dir.resolve(FILE_NAME),
+          StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private static byte[] serializedSettings(SearchSettings settings) {
+    try {
+      return Cloning.serialize(settings);
+    } catch (SerializationException e) {
+      LOG.warning(
+          "Search settings could not be serialized, so the checkpoint can only be resumed with"
+              + " explicit settings: "
+              + e.getMessage());
+      return new byte[0];
+    }
+  }
+
+  /** Numbers the ancestors of the frontier states, sharing common prefixes of their traces. */
+  private static final class EventTree {
+    private final TraceStore traces;
+    private final List<Integer> parents = new ArrayList<>();
+    private final List<Event> events = new ArrayList<>();
+    private final Map<SearchState, Integer> nodes = new IdentityHashMap<>();
+    private final Map<Integer, Integer> entryNodes = new HashMap<>();
+
+    private EventTree(TraceStore traces) {
+      this.traces = traces;
+    }
+
+    private int add(int parent, Event event) {
+      parents.add(parent);
+      events.add(event);
+      return parents.size() - 1;
+    }
+
+    /* The node of the state, adding it and its ancestors as necessary. */
+    int node(SearchState s) {
+      final Deque<SearchState> unnumbered = new ArrayDeque<>();
+      Integer node;
+      while ((node = nodes.get(s)) == null) {
+        if (s.previous() == null) {
+          node = entryNode(s.traceId());
+          break;
+        }
+        unnumbered.push(s);
+        s = s.previous();
+      }
+      for (SearchState u : unnumbered) {
+        node = add(node, u.previousEvent());
+        nodes.put(u, node);
+      }
+      return node;
+    }
+
+    /* The node of an entry in the search's trace store. */
+    private int entryNode(int entry) {
+      final Deque<Integer> unnumbered = new ArrayDeque<>();
+      Integer node;
+      while ((node = entryNodes.get(entry)) == null) {
+        if (entry == TraceStore.ROOT) {
+          node = -1;
+          break;
+        }
+        unnumbered.push(entry);
+        entry = traces.parent(entry);
+      }
+      for (int u : unnumbered) {
+        node = add(node, traces.event(u));
+        entryNodes.put(u, node);
+      }
+      return node;
+    }
+  }
+}
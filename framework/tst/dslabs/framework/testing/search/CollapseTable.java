@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) 2018 Ellis Michael (emichael@cs.washington.edu)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package dslabs.framework.testing.search;
+
+import dslabs.framework.Address;
+import dslabs.framework.testing.search.SearchState.ComponentConsumer;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import lombok.EqualsAndHashCode;
+import lombok.RequiredArgsConstructor;
+
+/**
+ * Collapse compression of search states. Every distinct component of a state (a node at some
+ * address, a node's timer queue, the network; see {@link
+ * SearchState#forEachComponent(ComponentConsumer)}) is interned once in a global table and assigned
+ * a small integer id. A state is then represented by the sorted ids of its components.
+ *
+ * <p>Since successor states differ from their predecessors in only one node and a few messages, and
+ * equal nodes recur across many states, the table grows far more slowly than the number of states.
+ * The representation is lossless: two states have equal {@link Tuple}s iff they are
+ * search-equivalent.
+ *
+ * <p>Safe for concurrent access.
+ */
+final class CollapseTable {
+  @RequiredArgsConstructor
+  private static final class Component {
+    private final int tag;
+    private final Address address;
+    private final Object component;
+    private final long hash;
+
+    @Override
+    public boolean equals(Object o) {
+      if (o == this) {
+        return true;
+      }
+      if (!(o instanceof Component)) {
+        return false;
+      }
+      final Component other = (Component) o;
+      return hash == other.hash
+          && tag == other.tag
+          && Objects.equals(address, other.address)
+          && Objects.equals(component, other.component);
+    }
+
+    @Override
+    public int hashCode() {
+      return Long.hashCode(hash);
+    }
+  }
+
+  /** A collapsed state. */
+  @EqualsAndHashCode
+  static final class Tuple {
+    private final int[] ids;
+
+    private Tuple(int[] ids) {
+      this.ids = ids;
+    }
+
+    int size() {
+      return ids.length;
+    }
+  }
+
+  private final Map<Component, Integer> ids = new ConcurrentHashMap<>();
+  private final AtomicInteger nextId = new AtomicInteger();
+
+  private int id(int tag, Address address, Object component, long hash) {
+    final Component c = new Component(tag, address, component, hash);
+    final Integer id = ids.get(c);
+    if (id != null) {
+      return id;
+    }
+    return ids.computeIfAbsent(c, __ -> nextId.getAndIncrement());
+  }
+
+  /**
+   * Interns the components of the state.
+   *
+   * @param state the state
+   * @return the collapsed state
+   */
+  Tuple collapse(SearchState state) {
+    final TupleBuilder builder = new TupleBuilder();
+    state.forEachComponent(builder);
+    return builder.build();
+  }
+
+  private final class TupleBuilder implements ComponentConsumer {
+    private int[] ids = new int[8];
+    private int size = 0;
+
+    @Override
+    public void accept(int tag, Address address, Object component, long hash) {
+      if (size == ids.length) {
+        ids = Arrays.copyOf(ids, size * 2);
+      }
+      ids[size++] = id(tag, address, component, hash);
+    }
+
+    Tuple build() {
+      final int[] tuple = Arrays.copyOf(ids, size);
+      Arrays.sort(tuple);
+      return new Tuple(tuple);
+    }
+  }
+
+  /**
+   * The number of distinct components interned.
+   *
+   * @return the number of components
+   */
+  int size() {
+    return nextId.get();
+  }
+}
@@ -0,0 +1,375 @@
+/*
+ * Copyright (c) 2018 Ellis Michael (emichael@cs.washington.edu)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package dslabs.framework.testing.search;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import dslabs.framework.Node;
+import dslabs.framework.testing.ClientWorker;
+import dslabs.framework.testing.TimerEnvelope;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 128-bit hashes of the contents of state components (nodes, messages, and timers), which {@link
+ * SearchState#fingerprint()} is summed from.
+ *
+ * <p>Unlike {@link Object#hashCode()}, which only has 32 bits however wide the fingerprint built
+ * from it, the hash is computed by walking the object and feeding what its {@code equals} compares
+ * to a 128-bit {@link Hasher}: strings, boxed primitives, enums, and arrays by value, lists in
+ * order, sets and maps independently of their iteration order, and other objects field by field.
+ * The walk is consistent with {@code equals} for objects whose {@code equals} is generated by
+ * Lombok or is a record's, over all of their non-static, non-transient fields (the framework's own
+ * classes which exclude fields from {@code equals} are special-cased). Objects with a hand-written
+ * {@code equals}, objects using identity, and JDK classes other than the above only contribute
+ * their {@code hashCode}.
+ *
+ * <p>If a class breaks these assumptions (e.g., a Lombok-generated {@code equals} which excludes
+ * fields), equal states might get different fingerprints. They are then explored separately, which
+ * is wasteful but never causes states to be missed.
+ */
+final class ContentHash {
+  private static final HashFunction FUNCTION = Hashing.murmur3_128();
+
+  /* The fields compared by the equals of framework classes which do not compare all of theirs */
+  private static final Map<Class<?>, List<String>> EQUALITY_FIELDS =
+      Map.of(
+          Node.class,
+          List.of("subNodes"),
+          ClientWorker.class,
+          List.of("client", "results"),
+          TimerEnvelope.class,
+          List.of("to", "timer", "minTimerLengthMillis", "maxTimerLengthMillis"));
+
+  private static final byte NULL = 0,
+      STRING = 1,
+      INTEGER = 2,
+      LONG = 3,
+      BOOLEAN = 4,
+      CHARACTER = 5,
+      SHORT = 6,
+      BYTE = 7,
+      DOUBLE = 8,
+      FLOAT = 9,
+      ENUM = 10,
+      CLASS = 11,
+      ARRAY = 12,
+      ORDERED = 13,
+      UNORDERED = 14,
+      OBJECT = 15,
+      HASH_CODE = 16,
+      CYCLE = 17;
+
+  /** How instances of a class are hashed: field by field, or by their hashCode if null. */
+  private static final class Shape {
+    private final String name;
+    private final Field[] fields;
+
+    private Shape(String name, Field[] fields) {
+      this.name = name;
+      this.fields = fields;
+    }
+  }
+
+  private static final Shape BY_HASH_CODE = new Shape(null, null);
+
+  private static final ClassValue<Shape> SHAPES =
+      new ClassValue<>() {
+        @Override
+        protected Shape computeValue(Class<?> type) {
+          return shape(type);
+        }
+      };
+
+  /**
+   * @param o the object
+   * @return the low and high 64 bits of the object's hash
+   */
+  static long[] of(Object o) {
+    final Hasher h = FUNCTION.newHasher();
+    hash(o, h, newAncestors());
+    return lanes(h.hash());
+  }
+
+  /**
+   * @param o1 the first object
+   * @param o2 the second object
+   * @return the low and high 64 bits of the hash of the pair of objects
+   */
+  static long[] of(Object o1, Object o2) {
+    final Hasher h = FUNCTION.newHasher();
+    final Set<Object> ancestors = newAncestors();
+    hash(o1, h, ancestors);
+    hash(o2, h, ancestors);
+    return lanes(h.hash());
+  }
+
+  private static Set<Object> newAncestors() {
+    return Collections.newSetFromMap(new IdentityHashMap<>());
+  }
+
+  private static long[] lanes(HashCode hash) {
+    final ByteBuffer b = ByteBuffer.wrap(hash.asBytes()).order(ByteOrder.LITTLE_ENDIAN);
+    return new long[] {b.getLong(0), b.getLong(8)};
+  }
+
+  private static void putString(Hasher h, String s) {
+    h.putInt(s.length()).putUnencodedChars(s);
+  }
+
+  private static void hash(Object o, Hasher h, Set<Object> ancestors) {
+    if (o == null) {
+      h.putByte(NULL);
+    } else if (o instanceof String) {
+      putString(h.putByte(STRING), (String) o);
+    } else if (o instanceof Integer) {
+      h.putByte(INTEGER).putInt((Integer) o);
+    } else if (o instanceof Long) {
+      h.putByte(LONG).putLong((Long) o);
+    } else if (o instanceof Boolean) {
+      h.putByte(BOOLEAN).putBoolean((Boolean) o);
+    } else if (o instanceof Character) {
+      h.putByte(CHARACTER).putChar((Character) o);
+    } else if (o instanceof Short) {
+      h.putByte(SHORT).putShort((Short) o);
+    } else if (o instanceof Byte) {
+      h.putByte(BYTE).putByte((Byte) o);
+    } else if (o instanceof Double) {
+      h.putByte(DOUBLE).putLong(Double.doubleToLongBits((Double) o));
+    } else if (o instanceof Float) {
+      h.putByte(FLOAT).putInt(Float.floatToIntBits((Float) o));
+    } else if (o instanceof Enum) {
+      putString(h.putByte(ENUM), ((Enum<?>) o).getDeclaringClass().getName());
+      putString(h, ((Enum<?>) o).name());
+    } else if (o instanceof Class) {
+      putString(h.putByte(CLASS), ((Class<?>) o).getName());
+    } else if (o.getClass().isArray()) {
+      hashArray(o, h.putByte(ARRAY), ancestors);
+    } else if (o instanceof TimerQueue) {
+      hashOrdered(((TimerQueue) o).size(), (TimerQueue) o, h, ancestors);
+    } else if (o instanceof List) {
+      hashOrdered(((List<?>) o).size(), (List<?>) o, h, ancestors);
+    } else if (o instanceof Set) {
+      hashUnordered(((Set<?>) o).size(), (Set<?>) o, h, ancestors);
+    } else if (o instanceof Map) {
+      hashUnordered(((Map<?, ?>) o).size(), ((Map<?, ?>) o).entrySet(), h, ancestors);
+    } else {
+      hashObject(o, h, ancestors);
+    }
+  }
+
+  private static void hashOrdered(int size, Iterable<?> elements, Hasher h, Set<Object> ancestors) {
+    h.putByte(ORDERED).putInt(size);
+    for (Object e : elements) {
+      hash(e, h, ancestors);
+    }
+  }
+
+  /* Sums the hashes of the elements, so the order they are iterated in does not matter */
+  private static void hashUnordered(
+      int size, Iterable<?> elements, Hasher h, Set<Object> ancestors) {
+    long low = 0, high = 0;
+    for (Object e : elements) {
+      final Hasher eh = FUNCTION.newHasher();
+      if (e instanceof Map.Entry) {
+        hash(((Map.Entry<?, ?>) e).getKey(), eh, ancestors);
+        hash(((Map.Entry<?, ?>) e).getValue(), eh, ancestors);
+      } else {
+        hash(e, eh, ancestors);
+      }
+      final long[] lanes = lanes(eh.hash());
+      low += lanes[0];
+      high += lanes[1];
+    }
+    h.putByte(UNORDERED).putInt(size).putLong(low).putLong(high);
+  }
+
+  private static void hashArray(Object a, Hasher h, Set<Object> ancestors) {
+    if (a instanceof Object[]) {
+      h.putInt(((Object[]) a).length);
+      for (Object e : (Object[]) a) {
+        hash(e, h, ancestors);
+      }
+    } else if (a instanceof int[]) {
+      h.putInt(((int[]) a).length);
+      for (int e : (int[]) a) {
+        h.putInt(e);
+      }
+    } else if (a instanceof long[]) {
+      h.putInt(((long[]) a).length);
+      for (long e : (long[]) a) {
+        h.putLong(e);
+      }
+    } else if (a instanceof byte[]) {
+      h.putInt(((byte[]) a).length).putBytes((byte[]) a);
+    } else if (a instanceof boolean[]) {
+      h.putInt(((boolean[]) a).length);
+      for (boolean e : (boolean[]) a) {
+        h.putBoolean(e);
+      }
+    } else if (a instanceof char[]) {
+      h.putInt(((char[]) a).length);
+      for (char e : (char[]) a) {
+        h.putChar(e);
+      }
+    } else if (a instanceof short[]) {
+      h.putInt(((short[]) a).length);
+      for (short e : (short[]) a) {
+        h.putShort(e);
+      }
+    } else if (a instanceof double[]) {
+      h.putInt(((double[]) a).length);
+      for (double e : (double[]) a) {
+        h.putLong(Double.doubleToLongBits(e));
+      }
+    } else {
+      h.putInt(((float[]) a).length);
+      for (float e : (float[]) a) {
+        h.putInt(Float.floatToIntBits(e));
+      }
+    }
+  }
+
+  private static void hashObject(Object o, Hasher h, Set<Object> ancestors) {
+    final Shape shape = SHAPES.get(o.getClass());
+    if (shape.fields == null) {
+      h.putByte(HASH_CODE).putInt(o.hashCode());
+      return;
+    }
+    if (!ancestors.add(o)) {
+      h.putByte(CYCLE);
+      return;
+    }
+    putString(h.putByte(OBJECT), shape.name);
+    try {
+      for (Field f : shape.fields) {
+        hashField(f, o, h, ancestors);
+      }
+    } catch (IllegalAccessException e) {
+      throw new IllegalStateException(e);
+    }
+    ancestors.remove(o);
+  }
+
+  private static void hashField(Field f, Object o, Hasher h, Set<Object> ancestors)
+      throws IllegalAccessException {
+    final Class<?> type = f.getType();
+    if (!type.isPrimitive()) {
+      hash(f.get(o), h, ancestors);
+    } else if (type == int.class) {
+      h.putInt(f.getInt(o));
+    } else if (type == long.class) {
+      h.putLong(f.getLong(o));
+    } else if (type == boolean.class) {
+      h.putBoolean(f.getBoolean(o));
+    } else if (type == char.class) {
+      h.putChar(f.getChar(o));
+    } else if (type == short.class) {
+      h.putShort(f.getShort(o));
+    } else if (type == byte.class) {
+      h.putByte(f.getByte(o));
+    } else if (type == double.class) {
+      h.putLong(Double.doubleToLongBits(f.getDouble(o)));
+    } else {
+      h.putInt(Float.floatToIntBits(f.getFloat(o)));
+    }
+  }
+
+  private static Shape shape(Class<?> type) {
+    // JDK classes can't be walked reflectively
+    if (type.getModule().isNamed()) {
+      return BY_HASH_CODE;
+    }
+
+    // equals is inherited from the most derived class declaring it, which defines what is compared
+    Class<?> declaring = type;
+    while (declaring != null && !declares(declaring, "equals")) {
+      declaring = declaring.getSuperclass();
+    }
+    if (declaring == null
+        || declaring == Object.class
+        || !(EQUALITY_FIELDS.containsKey(declaring)
+            || declaring.isRecord()
+            || declares(declaring, "canEqual"))) {
+      return BY_HASH_CODE;
+    }
+
+    final List<Field> fields = new ArrayList<>();
+    for (Class<?> c = declaring;
+        c != null && c != Object.class && !c.getModule().isNamed();
+        c = c.getSuperclass()) {
+      final List<Field> declared = new ArrayList<>();
+      final List<String> only = EQUALITY_FIELDS.get(c);
+      for (Field f : c.getDeclaredFields()) {
+        final int modifiers = f.getModifiers();
+        if (Modifier.isStatic(modifiers)
+            || Modifier.isTransient(modifiers)
+            || f.isSynthetic()
+            || f.getName().startsWith("$")
+            || (only != null && !only.contains(f.getName()))) {
+          continue;
+        }
+        declared.add(f);
+      }
+      declared.sort(Comparator.comparing(Field::getName));
+      fields.addAll(declared);
+      if (only != null) {
+        break;
+      }
+    }
+
+    try {
+      for (Field f : fields) {
+        f.setAccessible(true);
+      }
+    } catch (RuntimeException e) {
+      return BY_HASH_CODE;
+    }
+    return new Shape(declaring.getName(), fields.toArray(new Field[0]));
+  }
+
+  private static boolean declares(Class<?> type, String method) {
+    try {
+      type.getDeclaredMethod(method, Object.class);
+      return true;
+    } catch (NoSuchMethodException e) {
+      return false;
+    }
+  }
+
+  private ContentHash() {
+    // Uninstantiable utility class
+    throw new UnsupportedOperationException();
+  }
+}
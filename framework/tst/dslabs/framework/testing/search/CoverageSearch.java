@@ -0,0 +1,306 @@
+/*
+ * Copyright (c) 2018 Ellis Michael (emichael@cs.washington.edu)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package dslabs.framework.testing.search;
+
+import dslabs.framework.Node;
+import dslabs.framework.testing.Event;
+import dslabs.framework.testing.MessageEnvelope;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Coverage-guided search, in the style of greybox fuzzers such as AFL.
+ *
+ * <p>Keeps a corpus of states which reached new coverage, each with the schedule of events which
+ * reached it from the initial state. Coverage is abstracted into two kinds of features:
+ *
+ * <ul>
+ *   <li>the state of each node, identified by its hash, and
+ *   <li>pairs of the type of a delivered message or timer and the type of each message sent in
+ *       response (or of no message, if none was sent).
+ * </ul>
+ *
+ * <p>Each execution picks a corpus entry, favoring entries which were mutated less often, and
+ * mutates its schedule by truncating it, deleting or reordering events, or splicing it with another
+ * entry's schedule. The mutated schedule is replayed from the initial state, skipping events which
+ * are not enabled, and then extended with up to {@link SearchSettings#coverageRandomSteps()} random
+ * events. Every state reached which has not been seen before is checked, and added to the corpus if
+ * it has a new feature.
+ *
+ * <p>Node states are unbounded in general, so new features may be found for as long as the search
+ * runs. The corpus therefore holds at most {@link SearchSettings#coverageCorpusSize()} entries;
+ * once it is full, each new entry replaces the more often mutated of two random entries (other than
+ * the initial state's).
+ *
+ * <p>Like {@link RandomDFS}, the search never exhausts the state space; unlike it, a visited set
+ * keeps it from checking states more than once.
+ */
+class CoverageSearch extends Search {
+  /* The maximum number of mutations applied to a schedule in one execution */
+  private static final int MAX_MUTATIONS = 4;
+
+  private static final class Entry {
+    private final List<Event> schedule;
+    private final AtomicInteger mutated = new AtomicInteger();
+
+    private Entry(SearchState state) {
+      final List<Event> schedule = new ArrayList<>();
+      for (SearchState s = state; s.previous() != null; s = s.previous()) {
+        schedule.add(s.previousEvent());
+      }
+      Collections.reverse(schedule);
+      this.schedule = Collections.unmodifiableList(schedule);
+    }
+  }
+
+  private final VisitedSet discovered;
+  private final List<Entry> corpus = new ArrayList<>();
+  private final Set<Long> nodeCoverage = ConcurrentHashMap.newKeySet();
+  private final Set<Long> messageCoverage = ConcurrentHashMap.newKeySet();
+
+  private final AtomicLong states = new AtomicLong(), executions = new AtomicLong();
+
+  private SearchState initialState;
+  private volatile boolean stopped = false;
+
+  CoverageSearch(SearchSettings settings) {
+    super(settings);
+    discovered = VisitedSet.create(settings);
+  }
+
+  @Override
+  protected String searchType() {
+    return "coverage-guided";
+  }
+
+  @Override
+  protected String status(double elapsedSecs) {
+    long explored = states.get();
+    return String.format(
+        "Explored: %s, Executions: %s, Corpus: %s, Coverage: %s node states, %s message pairs"
+            + " (%.2fs, %.2fK states/s)",
+        explored,
+        executions.get(),
+        corpusSize(),
+        nodeCoverage.size(),
+        messageCoverage.size(),
+        elapsedSecs,
+        explored / elapsedSecs / 1000.0);
+  }
+
+  @Override
+  protected void initSearch(SearchState initialState) {
+    this.initialState = initialState;
+    states.set(1);
+    executions.set(0);
+
+    discovered.add(initialState);
+    addCoverage(initialState);
+    synchronized (corpus) {
+      corpus.add(new Entry(initialState));
+    }
+
+    // For now, don't consider PRUNED initial states
+    if (checkState(initialState, false).equals(StateStatus.TERMINAL)) {
+      stopped = true;
+    }
+  }
+
+  @Override
+  protected boolean spaceExhausted() {
+    return false;
+  }
+
+  @Override
+  protected Runnable getWorker() {
+    if (stopped) {
+      return null;
+    }
+    return this::execute;
+  }
+
+  int corpusSize() {
+    synchronized (corpus) {
+      return corpus.size();
+    }
+  }
+
+  private Entry randomEntry(ThreadLocalRandom random) {
+    synchronized (corpus) {
+      return corpus.get(random.nextInt(corpus.size()));
+    }
+  }
+
+  /* Adds the state's features; returns whether any of them were new. */
+  private boolean addCoverage(SearchState s) {
+    final boolean[] added = {false};
+    s.forEachComponent(
+        (tag, address, component, hash) -> {
+          if (component instanceof Node && nodeCoverage.add(hash)) {
+            added[0] = true;
+          }
+        });
+
+    final Event e = s.previousEvent();
+    if (e == null) {
+      return added[0];
+    }
+    final long received =
+        (e.isMessage() ? e.message().message().getClass() : e.timer().timer().getClass())
+                .getName()
+                .hashCode()
+            * 0x9e3779b97f4a7c15L;
+    if (s.newMessages().isEmpty()) {
+      added[0] |= messageCoverage.add(received);
+    }
+    for (MessageEnvelope me : s.newMessages()) {
+      added[0] |= messageCoverage.add(received + me.message().getClass().getName().hashCode());
+    }
+    return added[0];
+  }
+
+  private List<Event> mutate(Entry entry, ThreadLocalRandom random) {
+    final List<Event> schedule = new ArrayList<>(entry.schedule);
+    for (int i = random.nextInt(MAX_MUTATIONS + 1); i > 0 && !schedule.isEmpty(); i--) {
+      final int n = schedule.size();
+      switch (random.nextInt(4)) {
+        case 0: // Truncate
+          schedule.subList(random.nextInt(n), n).clear();
+          break;
+        case 1: // Delete an event
+          schedule.remove(random.nextInt(n));
+          break;
+        case 2: // Reorder two adjacent events
+          if (n > 1) {
+            final int j = random.nextInt(n - 1);
+            Collections.swap(schedule, j, j + 1);
+          }
+          break;
+        default: // Splice with another entry's schedule
+          final List<Event> other = randomEntry(random).schedule;
+          schedule.subList(random.nextInt(n), n).clear();
+          if (!other.isEmpty()) {
+            schedule.addAll(other.subList(random.nextInt(other.size()), other.size()));
+          }
+      }
+    }
+    return schedule;
+  }
+
+  private boolean atMaxDepth(SearchState s) {
+    return settings.depthLimited() && s.depth() >= settings.maxDepth();
+  }
+
+  private void execute() {
+    executions.incrementAndGet();
+    final ThreadLocalRandom random = ThreadLocalRandom.current();
+
+    // Pick the less mutated of two random entries
+    Entry entry = randomEntry(random);
+    final Entry other = randomEntry(random);
+    if (other.mutated.get() < entry.mutated.get()) {
+      entry = other;
+    }
+    entry.mutated.incrementAndGet();
+
+    final List<Event> schedule = mutate(entry, random);
+    SearchState current = initialState;
+    for (Event e : schedule) {
+      final SearchState next = current.stepEvent(e, settings, false);
+      if (next == null) {
+        continue;
+      }
+      current = next;
+      if (!visit(current)) {
+        return;
+      }
+    }
+    for (int i = random.nextInt(settings.coverageRandomSteps() + 1); i > 0; i--) {
+      final List<Event> events = new ArrayList<>(current.events(settings));
+      if (events.isEmpty()) {
+        return;
+      }
+      final SearchState next =
+          current.stepEvent(events.get(random.nextInt(events.size())), settings, true);
+      if (next != null) {
+        current = next;
+        if (!visit(current)) {
+          return;
+        }
+      }
+    }
+  }
+
+  /* Checks the state if it is new; returns whether the execution can continue from it. */
+  private boolean visit(SearchState s) {
+    if (stopped) {
+      return false;
+    }
+    if (!discovered.add(s)) {
+      return !atMaxDepth(s) && !settings.shouldPrune(s);
+    }
+
+    states.incrementAndGet();
+    final StateStatus status = checkState(s, true);
+    if (status.equals(StateStatus.TERMINAL)) {
+      stopped = true;
+      return false;
+    } else if (status.equals(StateStatus.PRUNED)) {
+      return false;
+    }
+
+    if (addCoverage(s)) {
+      addEntry(new Entry(s));
+    }
+    return true;
+  }
+
+  private void addEntry(Entry entry) {
+    synchronized (corpus) {
+      final int n = corpus.size();
+      if (n < settings.coverageCorpusSize()) {
+        corpus.add(entry);
+        return;
+      }
+      if (n < 2) {
+        return;
+      }
+      final ThreadLocalRandom random = ThreadLocalRandom.current();
+      final int i = 1 + random.nextInt(n - 1), j = 1 + random.nextInt(n - 1);
+      corpus.set(corpus.get(i).mutated.get() >= corpus.get(j).mutated.get() ? i : j, entry);
+    }
+  }
+
+  @Override
+  protected SearchResults run(SearchState initialState) {
+    SearchResults results = super.run(initialState);
+    discovered.reportLossiness(results, settings);
+    return results;
+  }
+}
@@ -0,0 +1,297 @@
+/*
+ * Copyright (c) 2018 Ellis Michael (emichael@cs.washington.edu)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package dslabs.framework.testing.search;
+
+import dslabs.framework.testing.Event;
+import dslabs.framework.testing.search.SearchSettings.VisitedSetMode;
+import dslabs.framework.testing.search.VisitedSet.DepthVisitedSet;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import lombok.RequiredArgsConstructor;
+
+/**
+ * Exhaustive, stateful depth-first search.
+ *
+ * <p>Unlike {@link RandomDFS}, keeps a visited set and an explicit stack of frames, each holding a
+ * state and an iterator over the events not yet explored from it, so every reachable state is
+ * explored once and the search can finish with the space exhausted. Apart from the visited set,
+ * memory use is proportional to the depth of the search rather than the width of the frontier.
+ *
+ * <p>In multi-threaded mode, each thread runs its own depth-first search from the initial state,
+ * exploring events in a different random order, and all of them share the visited set. A state is
+ * only marked as visited by the thread which then goes on to explore it, so once every thread's
+ * stack is empty, every discovered state has been explored.
+ *
+ * <p>When the search is depth-limited, a state first reached close to the limit might later be
+ * reached by a shorter path and must then be explored again. Depth-limited searches therefore add
+ * states to the visited set along with their depth (see {@link VisitedSet#add(SearchState, int)}),
+ * which keeps the smallest depth each state was reached at. Bitstate sets cannot keep depths, so
+ * they cannot be used for depth-limited searches.
+ *
+ * <p>With {@link SearchSettings#iterativeDeepeningStep()} positive, the search is repeated with a
+ * depth bound that grows by that step each time, until a terminal state is found or no state was
+ * cut off by the bound. Traces found this way are at most one step's worth longer than the shortest
+ * ones. Each iteration starts with an empty visited set.
+ */
+class DFS extends Search {
+  /* Number of events a worker steps before returning, so status and time limits are checked */
+  private static final int STEPS_PER_WORKER = 1000;
+
+  /* Marks states which were pruned and must never be explored */
+  private static final int NEVER_EXPLORE = Integer.MIN_VALUE;
+
+  private enum Visit {
+    NEW,
+    SHALLOWER,
+    SEEN
+  }
+
+  @RequiredArgsConstructor
+  private static final class Frame {
+    private final SearchState state;
+    private final Iterator<Event> events;
+  }
+
+  private final boolean depthAware;
+  private final List<Probe> probes = new ArrayList<>();
+
+  private final AtomicLong states = new AtomicLong();
+  private final AtomicInteger depth = new AtomicInteger();
+
+  private SearchState initialState;
+  private int initialDepth;
+
+  /* Current iteration; only modified while no workers are running. */
+  private VisitedSet discovered;
+  /* The same set as discovered, if the search is depth-aware */
+  private DepthVisitedSet depths;
+  private int bound;
+  private volatile boolean cutoff = false;
+
+  private final Queue<Probe> idle = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger running = new AtomicInteger();
+  private volatile boolean stopped = false;
+
+  DFS(SearchSettings settings) {
+    super(settings);
+    depthAware = settings.depthLimited() || settings.iterativeDeepening();
+    if (depthAware && settings.visitedSetMode() == VisitedSetMode.BITSTATE) {
+      throw new IllegalArgumentException(
+          "Depth-limited depth-first search cannot use bitstate hashing");
+    }
+    resetDiscovered();
+    final int numProbes = settings.multiThreaded() ? Math.max(settings.numThreads(), 1) : 1;
+    for (int i = 0; i < numProbes; i++) {
+      probes.add(new Probe(i == 0 ? null : new Random(i)));
+    }
+  }
+
+  @Override
+  protected String searchType() {
+    return "exhaustive depth-first";
+  }
+
+  @Override
+  protected String status(double elapsedSecs) {
+    long explored = states.get();
+    if (settings.iterativeDeepening()) {
+      return String.format(
+          "Explored: %s, Depth: %s, Bound: %s (%.2fs, %.2fK states/s)",
+          explored, depth.get(), bound, elapsedSecs, explored / elapsedSecs / 1000.0);
+    }
+    return String.format(
+        "Explored: %s, Depth: %s (%.2fs, %.2fK states/s)",
+        explored, depth.get(), elapsedSecs, explored / elapsedSecs / 1000.0);
+  }
+
+  @Override
+  protected void initSearch(SearchState initialState) {
+    this.initialState = initialState;
+    initialDepth = initialState.depth();
+    states.set(1);
+    depth.getAndAccumulate(initialDepth, Math::max);
+
+    // For now, don't consider PRUNED initial states
+    if (checkState(initialState, false).equals(StateStatus.TERMINAL)) {
+      stopped = true;
+      return;
+    }
+    startIteration(settings.iterativeDeepening() ? settings.iterativeDeepeningStep() : -1);
+  }
+
+  private void startIteration(int bound) {
+    this.bound = bound;
+    cutoff = false;
+    visit(initialState);
+    for (Probe probe : probes) {
+      probe.reset();
+      idle.add(probe);
+    }
+  }
+
+  private boolean canDeepen() {
+    return bound >= 0
+        && cutoff
+        && (!settings.depthLimited() || initialDepth + bound < settings.maxDepth());
+  }
+
+  @Override
+  protected boolean spaceExhausted() {
+    return !stopped && running.get() == 0 && idle.isEmpty() && !canDeepen();
+  }
+
+  @Override
+  protected Runnable getWorker() {
+    if (stopped) {
+      return null;
+    }
+    Probe probe = idle.poll();
+    if (probe == null) {
+      if (running.get() > 0 || !canDeepen()) {
+        return null;
+      }
+      resetDiscovered();
+      startIteration(bound + settings.iterativeDeepeningStep());
+      probe = idle.poll();
+    }
+
+    running.incrementAndGet();
+    final Probe p = probe;
+    return () -> {
+      try {
+        p.run();
+      } finally {
+        if (!p.stack.isEmpty()) {
+          idle.add(p);
+        }
+        running.decrementAndGet();
+      }
+    };
+  }
+
+  private void resetDiscovered() {
+    if (depthAware) {
+      discovered = depths = VisitedSet.createWithDepths(settings);
+    } else {
+      discovered = VisitedSet.create(settings);
+    }
+  }
+
+  private Visit visit(SearchState s) {
+    if (!depthAware) {
+      return discovered.add(s) ? Visit.NEW : Visit.SEEN;
+    }
+    final int previous = depths.add(s, s.depth());
+    if (previous == VisitedSet.NOT_VISITED) {
+      return Visit.NEW;
+    }
+    return s.depth() < previous ? Visit.SHALLOWER : Visit.SEEN;
+  }
+
+  private boolean atMaxDepth(SearchState s) {
+    return settings.depthLimited() && s.depth() >= settings.maxDepth();
+  }
+
+  /** One depth-first search, run by one thread at a time. */
+  @RequiredArgsConstructor
+  private final class Probe {
+    /* Event order; null for the order the events are returned by the state */
+    private final Random random;
+    private final Deque<Frame> stack = new ArrayDeque<>();
+
+    private void reset() {
+      stack.clear();
+      stack.push(new Frame(initialState, events(initialState)));
+    }
+
+    private Iterator<Event> events(SearchState s) {
+      final List<Event> events = new ArrayList<>(s.events(settings));
+      if (random != null) {
+        Collections.shuffle(events, random);
+      }
+      return events.iterator();
+    }
+
+    private void run() {
+      for (int steps = 0; steps < STEPS_PER_WORKER && !stack.isEmpty() && !stopped; ) {
+        final Frame top = stack.peek();
+        if (!top.events.hasNext()) {
+          stack.pop();
+          continue;
+        }
+
+        steps++;
+        final SearchState s = top.state.stepEvent(top.events.next(), settings, true);
+        if (s == null) {
+          continue;
+        }
+
+        final Visit visit = visit(s);
+        if (visit == Visit.SEEN) {
+          continue;
+        }
+
+        if (visit == Visit.NEW) {
+          depth.getAndAccumulate(s.depth(), Math::max);
+          states.incrementAndGet();
+
+          StateStatus status = checkState(s, false);
+          if (status.equals(StateStatus.TERMINAL)) {
+            stopped = true;
+            return;
+          } else if (status.equals(StateStatus.PRUNED)) {
+            if (depthAware && (!atMaxDepth(s) || settings.shouldPrune(s))) {
+              depths.add(s, NEVER_EXPLORE);
+            }
+            continue;
+          }
+        } else if (atMaxDepth(s)) {
+          continue;
+        }
+
+        if (bound >= 0 && s.depth() - initialDepth >= bound) {
+          cutoff = true;
+          continue;
+        }
+
+        stack.push(new Frame(s, events(s)));
+      }
+    }
+  }
+
+  @Override
+  protected SearchResults run(SearchState initialState) {
+    SearchResults results = super.run(initialState);
+    discovered.reportLossiness(results, settings);
+    return results;
+  }
+}
@@ -0,0 +1,405 @@
+/*
+ * Copyright (c) 2018 Ellis Michael (emichael@cs.washington.edu)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package dslabs.framework.testing.search;
+
+import static dslabs.framework.testing.search.SearchFiles.BUFFER_SIZE;
+import static dslabs.framework.testing.search.SearchFiles.readBytes;
+import static dslabs.framework.testing.search.SearchFiles.writeBytes;
+
+import dslabs.framework.testing.Event;
+import dslabs.framework.testing.utils.Cloning;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.commons.lang3.SerializationException;
+
+/**
+ * Breadth-first search spread over several worker JVMs on the same host (see {@link
+ * DistributedWorker}), so that the frontier and visited set are not limited by one JVM's heap and
+ * garbage collection runs in parallel in every worker.
+ *
+ * <p>Every state is owned by one worker, chosen by its fingerprint. Each worker keeps the visited
+ * set and frontier of the states it owns. The search proceeds one depth layer at a time: this
+ * coordinator tells every worker to expand its frontier, and each worker sends every successor to
+ * its owner over a loopback socket, followed by an end-of-layer marker. Owners check the states
+ * they discover and add them to their next frontier. Once a worker has received a marker from every
+ * other worker, it reports to the coordinator, so the search has finished a layer (and, if no
+ * worker has a next frontier, the space is exhausted) when every worker has reported.
+ *
+ * <p>Workers keep a reference to the owner and index of each owned state's parent and the event
+ * leading to it, but not the parent itself. When a worker reports a terminal state, the coordinator
+ * follows these references back to the initial state and replays the events to rebuild the state
+ * with its full trace.
+ *
+ * <p>The settings and initial state are sent to the workers, so they must be serializable.
+ * Fingerprints hash enums by name and most other objects by their contents (see {@link
+ * ContentHash}), but objects only hashed by {@link Object#hashCode()} may hash differently in each
+ * JVM (e.g., classes which do not override {@code hashCode} use identity hash codes). A state with
+ * such components may be explored by more than one worker, which is wasteful but still sound. The
+ * memory governor only watches the coordinator's heap. The search fails if any worker fails (e.g.,
+ * runs out of memory) or disconnects. Partial-order reduction and checkpointing are not supported.
+ * The coordinator only waits on the workers, so it always runs single-threaded.
+ */
+class DistributedBFS extends Search {
+  /* Coordinator to worker */
+  static final byte EXPAND = 1, TRACE = 2, FINISH = 3;
+
+  /* Worker to worker */
+  static final byte STATE = 4, END_OF_LAYER = 5;
+
+  /* Reported by a worker instead of a terminal state's index when it failed, with its stack trace */
+  static final int FAILED = -2;
+
+  /* How long workers have to start up and connect */
+  private static final long STARTUP_TIMEOUT_MILLIS = 60_000;
+
+  private final int numWorkers;
+  private final List<Process> processes = new ArrayList<>();
+  private final List<SocketChannel> channels = new ArrayList<>();
+  private final List<DataInputStream> inputs = new ArrayList<>();
+  private final List<DataOutputStream> outputs = new ArrayList<>();
+
+  private final AtomicLong states = new AtomicLong();
+  private final AtomicInteger depth = new AtomicInteger();
+  private volatile long frontierSize;
+
+  private SearchState initialState;
+  private boolean exhausted = false;
+
+  DistributedBFS(SearchSettings settings) {
+    super(settings.clone().singleThreaded(true));
+    numWorkers = Math.max(settings.numWorkerProcesses(), 1);
+  }
+
+  @Override
+  protected String searchType() {
+    return "distributed breadth-first";
+  }
+
+  @Override
+  protected String status(double elapsedSecs) {
+    long explored = states.get();
+    return String.format(
+        "Explored: %s, Depth: %s, Frontier: %s, Workers: %s (%.2fs, %.2fK states/s)",
+        explored,
+        depth.get(),
+        frontierSize,
+        numWorkers,
+        elapsedSecs,
+        explored / elapsedSecs / 1000.0);
+  }
+
+  /**
+   * The worker which owns the state.
+   *
+   * @param s the state
+   * @param symmetry the symmetry reduction of the search, or {@code null}
+   * @param numWorkers the number of workers
+   * @return the index of the owning worker
+   */
+  static int owner(SearchState s, SymmetryReduction symmetry, int numWorkers) {
+    final SearchState key = symmetry == null ? s : symmetry.canonical(s);
+    return (int) Long.remainderUnsigned(key.fingerprintHigh(), numWorkers);
+  }
+
+  static DataOutputStream output(SocketChannel channel) {
+    return new DataOutputStream(
+        new BufferedOutputStream(Channels.newOutputStream(channel), BUFFER_SIZE));
+  }
+
+  static DataInputStream input(SocketChannel channel) {
+    return new DataInputStream(
+        new BufferedInputStream(Channels.newInputStream(channel), BUFFER_SIZE));
+  }
+
+  static InetSocketAddress loopback(int port) {
+    return new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+  }
+
+  @Override
+  protected void initSearch(SearchState initialState) {
+    this.initialState = initialState;
+    depth.set(initialState.depth());
+    states.set(1);
+
+    // For now, don't consider PRUNED initial states
+    if (checkState(initialState, false).equals(StateStatus.TERMINAL)) {
+      return;
+    }
+
+    final byte[] serializedSettings;
+    try {
+      serializedSettings = Cloning.serialize(settings);
+    } catch (SerializationException e) {
+      throw new IllegalArgumentException(
+          "Distributed search requires serializable search settings", e);
+    }
+
+    try {
+      startWorkers(serializedSettings);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    frontierSize = 1;
+  }
+
+  private void startWorkers(byte[] serializedSettings) throws IOException {
+    final int[] ports = new int[numWorkers];
+    try (ServerSocketChannel server = ServerSocketChannel.open()) {
+      server.bind(loopback(0));
+      final int port = ((InetSocketAddress) server.getLocalAddress()).getPort();
+      for (int i = 0; i < numWorkers; i++) {
+        processes.add(launchWorker(port));
+      }
+
+      // Workers are numbered in the order they connect
+      server.configureBlocking(false);
+      final long deadline = System.currentTimeMillis() + STARTUP_TIMEOUT_MILLIS;
+      while (channels.size() < numWorkers) {
+        final SocketChannel channel = server.accept();
+        if (channel == null) {
+          for (Process p : processes) {
+            if (!p.isAlive()) {
+              throw new IOException("Search worker exited with status " + p.exitValue());
+            }
+          }
+          if (System.currentTimeMillis() > deadline) {
+            throw new IOException("Timed out waiting for search workers to start");
+          }
+          sleep(10);
+          continue;
+        }
+        channel.configureBlocking(true);
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        channels.add(channel);
+        inputs.add(input(channel));
+        outputs.add(output(channel));
+        ports[channels.size() - 1] = inputs.get(channels.size() - 1).readInt();
+      }
+    }
+
+    final int initialOwner = owner(initialState, SymmetryReduction.create(settings), numWorkers);
+    final byte[] serializedInitialState = Cloning.serialize(initialState);
+    for (int i = 0; i < numWorkers; i++) {
+      final DataOutputStream out = outputs.get(i);
+      out.writeInt(i);
+      out.writeInt(numWorkers);
+      for (int port : ports) {
+        out.writeInt(port);
+      }
+      writeBytes(out, serializedSettings);
+      out.writeInt(initialOwner);
+      out.writeInt(initialState.depth());
+      writeBytes(out, serializedInitialState);
+      out.flush();
+    }
+
+    // Wait until the workers have connected to each other
+    for (DataInputStream in : inputs) {
+      in.readBoolean();
+    }
+  }
+
+  private static Process launchWorker(int port) throws IOException {
+    final List<String> command = new ArrayList<>();
+    command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+    // Pass on the heap size and properties (e.g., GlobalSettings), but not agents or debuggers
+    for (String arg : ManagementFactory.getRuntimeMXBean().getInputArguments()) {
+      if ((arg.startsWith("-D") && !arg.startsWith("-Djava.security.manager"))
+          || arg.startsWith("-Xmx")
+          || arg.startsWith("-Xss")) {
+        command.add(arg);
+      }
+    }
+    if (DistributedBFS.class.desiredAssertionStatus()) {
+      command.add("-ea");
+    }
+    command.add("-cp");
+    command.add(System.getProperty("java.class.path"));
+    command.add(DistributedWorker.class.getName());
+    command.add(Integer.toString(port));
+    return new ProcessBuilder(command).inheritIO().start();
+  }
+
+  private static void sleep(long millis) {
+    try {
+      Thread.sleep(millis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  @Override
+  protected boolean spaceExhausted() {
+    return exhausted;
+  }
+
+  @Override
+  protected Runnable getWorker() {
+    return () -> {
+      try {
+        expandLayer();
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    };
+  }
+
+  private void expandLayer() throws IOException {
+    for (DataOutputStream out : outputs) {
+      out.writeByte(EXPAND);
+      out.flush();
+    }
+
+    long discovered = 0, frontier = 0;
+    int terminalOwner = -1, terminalIndex = -1;
+    for (int i = 0; i < numWorkers; i++) {
+      final DataInputStream in = inputs.get(i);
+      discovered += in.readLong();
+      frontier += in.readLong();
+      final int terminal = in.readInt();
+      if (terminal == FAILED) {
+        throw new IllegalStateException(
+            "Search worker " + i + " failed: " + new String(readBytes(in), StandardCharsets.UTF_8));
+      }
+      if (terminal >= 0 && terminalOwner < 0) {
+        terminalOwner = i;
+        terminalIndex = terminal;
+      }
+    }
+
+    states.addAndGet(discovered);
+    countStatesChecked(discovered);
+    if (discovered > 0) {
+      depth.incrementAndGet();
+    }
+    frontierSize = frontier;
+
+    if (terminalOwner >= 0) {
+      final SearchState s = tracedState(terminalOwner, terminalIndex);
+      if (!checkState(s, false).equals(StateStatus.TERMINAL)) {
+        throw new IllegalStateException(
+            "A worker found a terminal state, but replaying its trace did not reach one; the"
+                + " nodes may not be deterministic");
+      }
+    } else if (frontier == 0) {
+      exhausted = true;
+    }
+  }
+
+  /* Rebuilds a state with its full trace by following the references to its ancestors. */
+  private SearchState tracedState(int owner, int index) throws IOException {
+    final LinkedList<Event> trace = new LinkedList<>();
+    while (owner >= 0) {
+      final DataOutputStream out = outputs.get(owner);
+      out.writeByte(TRACE);
+      out.writeInt(index);
+      out.flush();
+
+      final DataInputStream in = inputs.get(owner);
+      owner = in.readInt();
+      index = in.readInt();
+      final byte[] event = readBytes(in);
+      if (owner >= 0) {
+        trace.addFirst(Cloning.deserialize(event));
+      }
+    }
+
+    SearchState s = initialState;
+    for (Event event : trace) {
+      s = s.stepEvent(event, settings, true);
+      if (s == null) {
+        throw new IllegalStateException("Could not replay the trace of a state: " + trace);
+      }
+    }
+    return s;
+  }
+
+  /* Collects the visited set estimates from every worker and shuts them down. */
+  private void finish(SearchResults results) throws IOException {
+    long size = 0;
+    Double p = null, omitted = null;
+    for (int i = 0; i < numWorkers; i++) {
+      final DataOutputStream out = outputs.get(i);
+      out.writeByte(FINISH);
+      out.flush();
+
+      final DataInputStream in = inputs.get(i);
+      final long workerSize = in.readLong();
+      final double workerP = in.readDouble(), workerOmitted = in.readDouble();
+      size += workerSize;
+      if (!Double.isNaN(workerP)) {
+        // The probability that any of the workers had a collision is at most the sum
+        p = Math.min((p == null ? 0 : p) + workerP, 1.0);
+      }
+      if (!Double.isNaN(workerOmitted)) {
+        omitted = (omitted == null ? 0 : omitted) + workerOmitted * workerSize;
+      }
+    }
+    if (omitted != null) {
+      omitted = size == 0 ? 0 : omitted / size;
+    }
+    VisitedSet.reportLossiness(results, settings, p, omitted, size);
+  }
+
+  @Override
+  protected SearchResults run(SearchState initialState) {
+    try {
+      SearchResults results = super.run(initialState);
+      if (!channels.isEmpty()) {
+        finish(results);
+      }
+      return results;
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    } finally {
+      for (SocketChannel channel : channels) {
+        try {
+          channel.close();
+        } catch (IOException ignored) {
+          // The worker exits when its connection closes
+        }
+      }
+      for (Process p : processes) {
+        p.destroy();
+      }
+    }
+  }
+}
@@ -0,0 +1,317 @@
+/*
+ * Copyright (c) 2018 Ellis Michael (emichael@cs.washington.edu)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package dslabs.framework.testing.search;
+
+import static dslabs.framework.testing.search.DistributedBFS.END_OF_LAYER;
+import static dslabs.framework.testing.search.DistributedBFS.EXPAND;
+import static dslabs.framework.testing.search.DistributedBFS.FAILED;
+import static dslabs.framework.testing.search.DistributedBFS.FINISH;
+import static dslabs.framework.testing.search.DistributedBFS.STATE;
+import static dslabs.framework.testing.search.DistributedBFS.TRACE;
+import static dslabs.framework.testing.search.DistributedBFS.input;
+import static dslabs.framework.testing.search.DistributedBFS.loopback;
+import static dslabs.framework.testing.search.DistributedBFS.output;
+import static dslabs.framework.testing.search.SearchFiles.readBytes;
+import static dslabs.framework.testing.search.SearchFiles.writeBytes;
+
+import com.google.common.base.Throwables;
+import dslabs.framework.testing.Event;
+import dslabs.framework.testing.search.Search.StateStatus;
+import dslabs.framework.testing.utils.Cloning;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import lombok.RequiredArgsConstructor;
+
+/**
+ * A worker process of a {@link DistributedBFS}, which owns one partition of the state space.
+ * Started by the coordinator with the port to connect back to as its only argument; exits once the
+ * coordinator finishes the search or disconnects.
+ *
+ * <p>States received from other workers are processed by one thread per connection while the main
+ * thread expands the frontier, so the visited set and the next frontier are shared between threads.
+ * If a connection fails (or a received state cannot be read or checked), the receiving thread
+ * closes it, so that its sender does not block, and the worker reports the failure to the
+ * coordinator at the end of the layer instead of waiting for the rest of it.
+ */
+final class DistributedWorker {
+  private static final byte[] NO_EVENT = new byte[0];
+
+  @RequiredArgsConstructor
+  private static final class Owned {
+    private final int index;
+    private final SearchState state;
+  }
+
+  private final int id, numWorkers;
+  private final SearchSettings settings;
+  private final SymmetryReduction symmetry;
+  private final VisitedSet discovered;
+
+  private final DataInputStream fromCoordinator;
+  private final DataOutputStream toCoordinator;
+  private final DataOutputStream[] toPeers;
+  private final Semaphore layerEnds = new Semaphore(0);
+
+  /* The parent reference and event of every owned state, by index; protected by this */
+  private int[] parentOwners = new int[1024], parentIndices = new int[1024];
+  private final List<byte[]> events = new ArrayList<>();
+
+  private Queue<Owned> frontier = new ConcurrentLinkedQueue<>();
+  private volatile Queue<Owned> next = new ConcurrentLinkedQueue<>();
+  private final AtomicLong discoveredInLayer = new AtomicLong();
+  private final AtomicInteger terminal = new AtomicInteger(-1);
+  private final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+  private DistributedWorker(SocketChannel coordinator) throws IOException {
+    fromCoordinator = input(coordinator);
+    toCoordinator = output(coordinator);
+
+    try (ServerSocketChannel server = ServerSocketChannel.open()) {
+      server.bind(loopback(0));
+      toCoordinator.writeInt(((InetSocketAddress) server.getLocalAddress()).getPort());
+      toCoordinator.flush();
+
+      id = fromCoordinator.readInt();
+      numWorkers = fromCoordinator.readInt();
+      final int[] ports = new int[numWorkers];
+      for (int i = 0; i < numWorkers; i++) {
+        ports[i] = fromCoordinator.readInt();
+      }
+      settings = Cloning.deserialize(readBytes(fromCoordinator));
+      symmetry = SymmetryReduction.create(settings);
+      discovered = VisitedSet.create(settings);
+
+      final int initialOwner = fromCoordinator.readInt();
+      final int initialDepth = fromCoordinator.readInt();
+      final byte[] initialState = readBytes(fromCoordinator);
+      if (initialOwner == id) {
+        final SearchState s = Cloning.<SearchState>deserialize(initialState).restored(initialDepth);
+        discovered.add(s);
+        frontier.add(new Owned(own(-1, -1, NO_EVENT), s));
+      }
+
+      // Connections are only ever written in one direction
+      toPeers = new DataOutputStream[numWorkers];
+      for (int i = 0; i < numWorkers; i++) {
+        if (i != id) {
+          final SocketChannel peer = SocketChannel.open(loopback(ports[i]));
+          peer.setOption(StandardSocketOptions.TCP_NODELAY, true);
+          toPeers[i] = output(peer);
+          toPeers[i].writeInt(id);
+          toPeers[i].flush();
+        }
+      }
+      for (int i = 0; i < numWorkers - 1; i++) {
+        final DataInputStream in = input(server.accept());
+        final int peer = in.readInt();
+        final Thread t = new Thread(() -> receive(peer, in));
+        t.setDaemon(true);
+        t.start();
+      }
+    }
+
+    toCoordinator.writeBoolean(true);
+    toCoordinator.flush();
+  }
+
+  public static void main(String[] args) throws IOException {
+    try (SocketChannel coordinator = SocketChannel.open(loopback(Integer.parseInt(args[0])))) {
+      coordinator.setOption(StandardSocketOptions.TCP_NODELAY, true);
+      new DistributedWorker(coordinator).run();
+    } catch (EOFException e) {
+      // The coordinator stopped the search
+    }
+    System.exit(0);
+  }
+
+  private void run() throws IOException {
+    while (true) {
+      final byte command = fromCoordinator.readByte();
+      if (command == EXPAND) {
+        expandLayer();
+      } else if (command == TRACE) {
+        final int index = fromCoordinator.readInt();
+        synchronized (this) {
+          toCoordinator.writeInt(parentOwners[index]);
+          toCoordinator.writeInt(parentIndices[index]);
+          writeBytes(toCoordinator, events.get(index));
+        }
+        toCoordinator.flush();
+      } else if (command == FINISH) {
+        final Double p = discovered.collisionProbability(), omitted = discovered.omissionRate();
+        toCoordinator.writeLong(discovered.size());
+        toCoordinator.writeDouble(p == null ? Double.NaN : p);
+        toCoordinator.writeDouble(omitted == null ? Double.NaN : omitted);
+        toCoordinator.flush();
+        return;
+      } else {
+        throw new IOException("Unknown command: " + command);
+      }
+    }
+  }
+
+  private void expandLayer() throws IOException {
+    Owned o;
+    while ((o = frontier.poll()) != null) {
+      for (Event e : o.state.events(settings)) {
+        final SearchState s = o.state.stepEvent(e, settings, true);
+        if (s == null) {
+          continue;
+        }
+        final int owner = DistributedBFS.owner(s, symmetry, numWorkers);
+        if (owner == id) {
+          // Don't keep the state's ancestors reachable
+          discover(id, o.index, e, null, s.restored(s.depth()));
+        } else {
+          final DataOutputStream out = toPeers[owner];
+          out.writeByte(STATE);
+          out.writeInt(o.index);
+          writeBytes(out, Cloning.serialize(e));
+          out.writeInt(s.depth());
+          writeBytes(out, Cloning.serialize(s));
+        }
+      }
+    }
+
+    for (DataOutputStream out : toPeers) {
+      if (out != null) {
+        out.writeByte(END_OF_LAYER);
+        out.flush();
+      }
+    }
+    layerEnds.acquireUninterruptibly(numWorkers - 1);
+
+    final Throwable f = failure.get();
+    if (f != null) {
+      toCoordinator.writeLong(0);
+      toCoordinator.writeLong(0);
+      toCoordinator.writeInt(FAILED);
+      writeBytes(
+          toCoordinator, Throwables.getStackTraceAsString(f).getBytes(StandardCharsets.UTF_8));
+      toCoordinator.flush();
+      return;
+    }
+
+    // Other workers only send states of the next layer after every worker has reported
+    frontier = next;
+    next = new ConcurrentLinkedQueue<>();
+    toCoordinator.writeLong(discoveredInLayer.getAndSet(0));
+    toCoordinator.writeLong(frontier.size());
+    toCoordinator.writeInt(terminal.get());
+    toCoordinator.flush();
+  }
+
+  /* Reads the states sent by another worker until it disconnects. */
+  private void receive(int peer, DataInputStream in) {
+    try {
+      while (true) {
+        final byte tag = in.readByte();
+        if (tag == END_OF_LAYER) {
+          layerEnds.release();
+        } else if (tag == STATE) {
+          final int parentIndex = in.readInt();
+          final byte[] event = readBytes(in);
+          final int depth = in.readInt();
+          final SearchState s = Cloning.<SearchState>deserialize(readBytes(in)).restored(depth);
+          discover(peer, parentIndex, null, event, s);
+        } else {
+          throw new IOException("Unknown message: " + tag);
+        }
+      }
+    } catch (EOFException e) {
+      // Harmless once the search is over; otherwise, the other worker failed
+      fail(new EOFException("Search worker " + peer + " disconnected"));
+    } catch (IOException | RuntimeException | Error e) {
+      fail(e);
+    } finally {
+      try {
+        in.close();
+      } catch (IOException ignored) {
+        // The connection is not used again
+      }
+    }
+  }
+
+  /* Records the first failure and stops waiting for the rest of the layer. */
+  private void fail(Throwable t) {
+    failure.compareAndSet(null, t);
+    layerEnds.release(numWorkers);
+  }
+
+  /* Checks an owned state and adds it to the next frontier if it is new; one event is null. */
+  private void discover(int parentOwner, int parentIndex, Event e, byte[] event, SearchState s) {
+    if (!discovered.add(s)) {
+      return;
+    }
+    final int index = own(parentOwner, parentIndex, event != null ? event : Cloning.serialize(e));
+    discoveredInLayer.incrementAndGet();
+
+    final StateStatus status = check(s);
+    if (status.equals(StateStatus.TERMINAL)) {
+      terminal.compareAndSet(-1, index);
+    } else if (status.equals(StateStatus.VALID)) {
+      next.add(new Owned(index, s));
+    }
+  }
+
+  private synchronized int own(int parentOwner, int parentIndex, byte[] event) {
+    final int index = events.size();
+    if (index == parentOwners.length) {
+      parentOwners = Arrays.copyOf(parentOwners, index * 2);
+      parentIndices = Arrays.copyOf(parentIndices, index * 2);
+    }
+    parentOwners[index] = parentOwner;
+    parentIndices[index] = parentIndex;
+    events.add(event);
+    return index;
+  }
+
+  /* The same checks as Search#checkState; the coordinator records terminal states. */
+  private StateStatus check(SearchState s) {
+    if (s.thrownException() != null
+        || settings.invariantViolated(s) != null
+        || settings.goalMatched(s) != null) {
+      return StateStatus.TERMINAL;
+    }
+    if (settings.shouldPrune(s) || (settings.depthLimited() && s.depth() >= settings.maxDepth())) {
+      return StateStatus.PRUNED;
+    }
+    return StateStatus.VALID;
+  }
+}
@@ -0,0 +1,578 @@
+/*
+ * Copyright (c) 2018 Ellis Michael (emichael@cs.washington.edu)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package dslabs.framework.testing.search;
+
+import static dslabs.framework.testing.search.SearchFiles.BUFFER_SIZE;
+import static dslabs.framework.testing.search.SearchFiles.compressedInput;
+import static dslabs.framework.testing.search.SearchFiles.compressedOutput;
+import static dslabs.framework.testing.search.SearchFiles.readBytes;
+import static dslabs.framework.testing.search.SearchFiles.writeBytes;
+
+import dslabs.framework.testing.Event;
+import dslabs.framework.testing.utils.Cloning;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+import lombok.NonNull;
+import lombok.RequiredArgsConstructor;
+
+/**
+ * Breadth-first search which keeps the frontier and the set of discovered states on disk, so that
+ * the size of the search is bounded by disk space rather than heap space.
+ *
+ * <p>Each depth of the search is a layer. While a layer is being expanded, successor states are
+ * serialized into an in-memory buffer which is sorted by fingerprint and spilled to disk as a
+ * compressed segment whenever it reaches {@link SearchSettings#externalMemorySegmentSize()} states.
+ * Once the whole layer has been expanded, the segments are merged with the sorted file of all
+ * previously discovered fingerprints (delayed duplicate detection). The states that were not
+ * discovered before become the next layer, and the merged fingerprints become the new discovered
+ * set. Duplicates within a single layer are also filtered in memory as they are generated, which
+ * only costs 16 bytes per state of the layer being generated.
+ *
+ * <p>States are compared by their 128-bit fingerprints, so the search is subject to the same
+ * (reported) collision probability as {@link SearchSettings.VisitedSetMode#FINGERPRINTS_128}.
+ *
+ * <p>States read back from disk have no previous states. For every state in a layer, only the index
+ * of its parent in the previous layer and the event leading to it are kept. When the search needs
+ * the trace of a state (e.g., because it violates an invariant), it is rebuilt by replaying those
+ * events from the initial state.
+ *
+ * <p>The merge runs as a worker of its own, outside the search lock, once every state of the layer
+ * has been expanded. An I/O error fails the search (see {@link Search#fail(Throwable)}).
+ *
+ * <p>All files are written to a fresh directory inside {@link SearchSettings#externalMemoryDir()}
+ * (or the system temporary directory), which is deleted when the search finishes.
+ */
+class ExternalBFS extends Search {
+  private static final int BATCH_SIZE = 32;
+
+  private static final Comparator<Record> RECORD_ORDER =
+      Comparator.<Record>comparingLong(r -> r.high).thenComparingLong(r -> r.low);
+
+  @RequiredArgsConstructor
+  private static final class Record {
+    final long high, low, parent;
+    final byte[] event, state;
+  }
+
+  private final AtomicLong states = new AtomicLong();
+  private final AtomicInteger depth = new AtomicInteger();
+  private final AtomicInteger activeWorkers = new AtomicInteger();
+  private final SymmetryReduction symmetry;
+
+  private SearchState initialState;
+  private int initialDepth;
+  private Path dir;
+
+  /*
+   * Current layer; only accessed by getWorker while no merge is running, and by the merge, which
+   * publishes the next layer by clearing merging.
+   */
+  private volatile boolean merging = false;
+  private int layer;
+  private DataInputStream layerIn;
+  private long layerSize, nextOrdinal;
+
+  /* Discovered fingerprints of all layers up to and including the current one. */
+  private Path visited;
+  private long visitedSize;
+
+  /* Successors of the current layer. */
+  private volatile FingerprintSet nextLayer;
+  private final List<Record> buffer = new ArrayList<>();
+  private final List<Path> segments = new ArrayList<>();
+
+  /* States read back from disk which are currently being explored, mapped to their index. */
+  private final Map<SearchState, Long> expanding =
+      Collections.synchronizedMap(new IdentityHashMap<>());
+
+  ExternalBFS(SearchSettings settings) {
+    super(settings);
+    symmetry = SymmetryReduction.create(settings);
+  }
+
+  /** The state whose fingerprint identifies the state in the visited set. */
+  private SearchState representative(SearchState state) {
+    return symmetry == null ? state : symmetry.canonical(state);
+  }
+
+  @Override
+  protected String searchType() {
+    return "external-memory breadth-first";
+  }
+
+  @Override
+  protected String status(double elapsedSecs) {
+    long explored = states.get();
+    return String.format(
+        "Explored: %s, Depth: %s (%.2fs, %.2fK states/s)",
+        explored, depth.get(), elapsedSecs, explored / elapsedSecs / 1000.0);
+  }
+
+  @Override
+  protected void initSearch(SearchState initialState) {
+    this.initialState = initialState;
+    initialDepth = initialState.depth();
+    depth.getAndAccumulate(initialDepth, Math::max);
+    states.set(0);
+    nextLayer = new FingerprintSet(true, settings.numThreads());
+
+    try {
+      final Path parent = settings.externalMemoryDir();
+      if (parent != null) {
+        Files.createDirectories(parent);
+        dir = Files.createTempDirectory(parent, "search");
+      } else {
+        dir = Files.createTempDirectory("dslabs-search");
+      }
+
+      layer = 0;
+      try (DataOutputStream statesOut = compressedOutput(statesPath(0));
+          DataOutputStream traceOut = compressedOutput(tracePath(0));
+          DataOutputStream visitedOut = fingerprintOutput(visitedPath(0))) {
+        writeBytes(statesOut, Cloning.serialize(initialState));
+        traceOut.writeLong(-1);
+        writeBytes(traceOut, new byte[0]);
+        final SearchState representative = representative(initialState);
+        visitedOut.writeLong(representative.fingerprintHigh());
+        visitedOut.writeLong(representative.fingerprint());
+      }
+      visited = visitedPath(0);
+      visitedSize = 1;
+      openLayer(1);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  @Override
+  protected boolean spaceExhausted() {
+    // A finished layer is merged by a worker, so the space is only exhausted once a merge finds
+    // no new states
+    return !merging && layerSize == 0;
+  }
+
+  @Override
+  protected Runnable getWorker() {
+    if (merging) {
+      return null;
+    }
+    if (nextOrdinal == layerSize) {
+      // Don't start workers for multiple layers at the same time
+      if (activeWorkers.get() > 0 || layerSize == 0) {
+        return null;
+      }
+      merging = true;
+      activeWorkers.incrementAndGet();
+      return () -> {
+        try {
+          advanceLayer();
+        } finally {
+          merging = false;
+          activeWorkers.decrementAndGet();
+        }
+      };
+    }
+
+    final long firstOrdinal = nextOrdinal;
+    final int currentLayer = layer;
+    final List<byte[]> batch = new ArrayList<>(BATCH_SIZE);
+    try {
+      while (batch.size() < BATCH_SIZE && nextOrdinal < layerSize) {
+        batch.add(readBytes(layerIn));
+        nextOrdinal++;
+      }
+    } catch (IOException e) {
+      fail(e);
+      return null;
+    }
+
+    activeWorkers.incrementAndGet();
+    return () -> exploreBatch(currentLayer, firstOrdinal, batch);
+  }
+
+  private void exploreBatch(int layer, long firstOrdinal, List<byte[]> batch) {
+    try {
+      for (int i = 0; i < batch.size(); i++) {
+        final SearchState node =
+            Cloning.<SearchState>deserialize(batch.get(i)).restored(initialDepth + layer);
+        expanding.put(node, firstOrdinal + i);
+        try {
+          if (!exploreNode(node, layer, firstOrdinal + i)) {
+            return;
+          }
+        } finally {
+          expanding.remove(node);
+        }
+      }
+    } finally {
+      activeWorkers.decrementAndGet();
+    }
+  }
+
+  /**
+   * Checks the node and writes out its successors.
+   *
+   * @return whether the search should continue
+   */
+  private boolean exploreNode(@NonNull SearchState node, int layer, long ordinal) {
+    states.incrementAndGet();
+
+    StateStatus status = checkState(node, false);
+    if (status.equals(StateStatus.TERMINAL)) {
+      return false;
+    }
+    // For now, don't consider PRUNED initial states
+    if (status.equals(StateStatus.PRUNED) && layer > 0) {
+      return true;
+    }
+
+    for (Event event : node.events(settings)) {
+      SearchState successor = node.stepEvent(event, settings, true);
+      if (successor == null) {
+        continue;
+      }
+
+      // Exceptions are transient and lost on serialization, so check for them right away
+      if (successor.thrownException() != null) {
+        checkState(successor, false);
+        return false;
+      }
+
+      final SearchState representative = representative(successor);
+      if (!nextLayer.add(representative.fingerprintHigh(), representative.fingerprint())) {
+        continue;
+      }
+      depth.getAndAccumulate(successor.depth(), Math::max);
+
+      addRecord(
+          new Record(
+              representative.fingerprintHigh(),
+              representative.fingerprint(),
+              ordinal,
+              Cloning.serialize(event),
+              Cloning.serialize(successor)));
+    }
+    return true;
+  }
+
+  private void addRecord(Record record) {
+    synchronized (buffer) {
+      buffer.add(record);
+      if (buffer.size() >= settings.externalMemorySegmentSize()) {
+        spill();
+      }
+    }
+  }
+
+  /** Sorts the buffer and writes it to a new segment. Must hold the buffer's lock. */
+  private void spill() {
+    if (buffer.isEmpty()) {
+      return;
+    }
+    buffer.sort(RECORD_ORDER);
+    final Path segment = dir.resolve(String.format("segment-%s-%s", layer, segments.size()));
+    try (DataOutputStream out = compressedOutput(segment)) {
+      out.writeInt(buffer.size());
+      for (Record r : buffer) {
+        out.writeLong(r.high);
+        out.writeLong(r.low);
+        out.writeLong(r.parent);
+        writeBytes(out, r.event);
+        writeBytes(out, r.state);
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    segments.add(segment);
+    buffer.clear();
+  }
+
+  /**
+   * Merges the segments of the finished layer with the previously discovered fingerprints, writing
+   * out the newly discovered states as the next layer. Must only be called while no other workers
+   * are active.
+   */
+  private void advanceLayer() {
+    try {
+      layerIn.close();
+      Files.delete(statesPath(layer));
+      synchronized (buffer) {
+        spill();
+      }
+      layer++;
+
+      final PriorityQueue<SegmentReader> readers =
+          new PriorityQueue<>(Comparator.comparing(r -> r.current, RECORD_ORDER));
+      for (Path segment : segments) {
+        SegmentReader reader = new SegmentReader(segment);
+        if (reader.advance()) {
+          readers.add(reader);
+        } else {
+          reader.close();
+        }
+      }
+
+      final Path newVisited = visitedPath(layer);
+      long discovered = 0;
+      try (FingerprintReader oldFingerprints = new FingerprintReader(visited, visitedSize);
+          DataOutputStream visitedOut = fingerprintOutput(newVisited);
+          DataOutputStream statesOut = compressedOutput(statesPath(layer));
+          DataOutputStream traceOut = compressedOutput(tracePath(layer))) {
+        boolean haveOld = oldFingerprints.advance();
+        Record last = null;
+        while (!readers.isEmpty()) {
+          final SegmentReader reader = readers.poll();
+          final Record r = reader.current;
+          if (reader.advance()) {
+            readers.add(reader);
+          } else {
+            reader.close();
+          }
+
+          if (last != null && RECORD_ORDER.compare(last, r) == 0) {
+            continue;
+          }
+          last = r;
+
+          while (haveOld && oldFingerprints.compareTo(r) < 0) {
+            oldFingerprints.writeTo(visitedOut);
+            haveOld = oldFingerprints.advance();
+          }
+          if (haveOld && oldFingerprints.compareTo(r) == 0) {
+            // Discovered in a previous layer
+            continue;
+          }
+
+          visitedOut.writeLong(r.high);
+          visitedOut.writeLong(r.low);
+          writeBytes(statesOut, r.state);
+          traceOut.writeLong(r.parent);
+          writeBytes(traceOut, r.event);
+          discovered++;
+        }
+        while (haveOld) {
+          oldFingerprints.writeTo(visitedOut);
+          haveOld = oldFingerprints.advance();
+        }
+      }
+
+      for (Path segment : segments) {
+        Files.delete(segment);
+      }
+      segments.clear();
+      Files.delete(visited);
+      visited = newVisited;
+      visitedSize += discovered;
+      nextLayer = new FingerprintSet(true, settings.numThreads());
+      openLayer(discovered);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private void openLayer(long size) throws IOException {
+    layerIn = compressedInput(statesPath(layer));
+    layerSize = size;
+    nextOrdinal = 0;
+  }
+
+  @Override
+  protected SearchState traceableState(SearchState s) {
+    // Find the closest state read back from disk, remembering the events after it
+    final LinkedList<Event> suffix = new LinkedList<>();
+    SearchState current = s;
+    Long ordinal;
+    while ((ordinal = expanding.get(current)) == null) {
+      if (current.previous() == null) {
+        return s;
+      }
+      suffix.addFirst(current.previousEvent());
+      current = current.previous();
+    }
+
+    final LinkedList<Event> events = new LinkedList<>();
+    try {
+      long index = ordinal;
+      for (int l = current.depth() - initialDepth; l > 0; l--) {
+        try (DataInputStream in = compressedInput(tracePath(l))) {
+          for (long i = 0; i < index; i++) {
+            in.readLong();
+            readBytes(in);
+          }
+          index = in.readLong();
+          events.addFirst(Cloning.deserialize(readBytes(in)));
+        }
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    events.addAll(suffix);
+
+    SearchState traced = initialState;
+    for (Event event : events) {
+      traced = traced.stepEvent(event, settings, true);
+    }
+    return traced;
+  }
+
+  @Override
+  protected SearchResults run(SearchState initialState) {
+    final SearchResults results;
+    try {
+      results = super.run(initialState);
+    } catch (RuntimeException | Error e) {
+      // Don't let a failure to clean up mask the reason the search failed
+      try {
+        cleanup();
+      } catch (UncheckedIOException cleanupFailure) {
+        e.addSuppressed(cleanupFailure);
+      }
+      throw e;
+    }
+    cleanup();
+
+    double p = FingerprintSet.collisionProbability(visitedSize, 128);
+    results.fingerprintCollisionProbability(p);
+    if (settings.shouldOutputStatus()) {
+      System.out.printf(
+          "Estimated fingerprint collision probability: %.3g (%s states)%n%n", p, visitedSize);
+    }
+    return results;
+  }
+
+  private void cleanup() {
+    if (dir == null) {
+      return;
+    }
+    try {
+      if (layerIn != null) {
+        layerIn.close();
+      }
+      try (Stream<Path> files = Files.list(dir)) {
+        for (Path file : (Iterable<Path>) files::iterator) {
+          Files.delete(file);
+        }
+      }
+      Files.delete(dir);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private Path statesPath(int layer) {
+    return dir.resolve("layer-" + layer + ".states");
+  }
+
+  private Path tracePath(int layer) {
+    return dir.resolve("layer-" + layer + ".trace");
+  }
+
+  private Path visitedPath(int layer) {
+    return dir.resolve("visited-" + layer);
+  }
+
+  private static final class SegmentReader implements Closeable {
+    private final DataInputStream in;
+    private int remaining;
+    private Record current;
+
+    SegmentReader(Path path) throws IOException {
+      in = compressedInput(path);
+      remaining = in.readInt();
+    }
+
+    boolean advance() throws IOException {
+      if (remaining == 0) {
+        current = null;
+        return false;
+      }
+      remaining--;
+      current =
+          new Record(in.readLong(), in.readLong(), in.readLong(), readBytes(in), readBytes(in));
+      return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+      in.close();
+    }
+  }
+
+  private static final class FingerprintReader implements Closeable {
+    private final DataInputStream in;
+    private long remaining;
+    private long high, low;
+
+    FingerprintReader(Path path, long size) throws IOException {
+      in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), BUFFER_SIZE));
+      remaining = size;
+    }
+
+    boolean advance() throws IOException {
+      if (remaining == 0) {
+        return false;
+      }
+      remaining--;
+      high = in.readLong();
+      low = in.readLong();
+      return true;
+    }
+
+    int compareTo(Record r) {
+      int c = Long.compare(high, r.high);
+      return c != 0 ? c : Long.compare(low, r.low);
+    }
+
+    void writeTo(DataOutputStream out) throws IOException {
+      out.writeLong(high);
+      out.writeLong(low);
+    }
+
+    @Override
+    public void close() throws IOException {
+      in.close();
+    }
+  }
+
+  private static DataOutputStream fingerprintOutput(Path path) throws IOException {
+    return new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path), BUFFER_SIZE));
+  }
+}
@@ -0,0 +1,327 @@
+/*
+ * Copyright (c) 2018 Ellis Michael (emichael@cs.washington.edu)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package dslabs.framework.testing.search;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A set of 64- or 128-bit fingerprints stored in primitive, open-addressing hash tables. The set is
+ * split into independently locked stripes, each of which grows on its own, so concurrent insertions
+ * only contend when they land in the same stripe.
+ *
+ * <p>The all-zero fingerprint is used to mark empty slots; it is silently remapped to another value
+ * on insertion.
+ *
+ * <p>Fingerprints can also be added along with a depth (see {@link #add(long, long, int)}), in
+ * which case the smallest depth each fingerprint was added with is kept in an array parallel to the
+ * table. The array is only allocated once the first depth is added.
+ *
+ * <p>Safe for concurrent access.
+ */
+final class FingerprintSet {
+  private static final int INITIAL_STRIPE_CAPACITY = 1 << 10;
+  private static final double MAX_LOAD_FACTOR = 0.6;
+
+  private final boolean wide;
+  private final Stripe[] stripes;
+  private final int stripeShift;
+  private final AtomicLong size = new AtomicLong();
+
+  /**
+   * @param wide whether fingerprints are 128 bits wide (otherwise, only the low 64 bits are stored)
+   * @param concurrency the expected number of concurrently inserting threads
+   */
+  FingerprintSet(boolean wide, int concurrency) {
+    this.wide = wide;
+
+    int numStripes = Integer.highestOneBit(Math.max(1, concurrency) * 8 - 1) << 1;
+    stripes = new Stripe[numStripes];
+    for (int i = 0; i < numStripes; i++) {
+      stripes[i] = new Stripe(wide ? 2 : 1);
+    }
+    stripeShift = 64 - Integer.numberOfTrailingZeros(numStripes);
+  }
+
+  boolean wide() {
+    return wide;
+  }
+
+  /**
+   * Adds the fingerprint to the set.
+   *
+   * @param high the high 64 bits of the fingerprint (ignored unless the set is wide)
+   * @param low the low 64 bits of the fingerprint
+   * @return whether the fingerprint was not previously in the set
+   */
+  boolean add(long high, long low) {
+    if (!wide) {
+      high = 0;
+    }
+    if (high == 0 && low == 0) {
+      low = 1;
+    }
+
+    final Stripe stripe = stripes[stripeShift == 64 ? 0 : (int) (low >>> stripeShift)];
+    final boolean added;
+    synchronized (stripe) {
+      added = stripe.add(high, low);
+    }
+    if (added) {
+      size.incrementAndGet();
+    }
+    return added;
+  }
+
+  boolean add(long fingerprint) {
+    return add(0, fingerprint);
+  }
+
+  /**
+   * Adds the fingerprint to the set along with a depth, keeping the smallest depth it was added
+   * with. Fingerprints added without a depth count as added with {@link Integer#MIN_VALUE}.
+   *
+   * @param high the high 64 bits of the fingerprint (ignored unless the set is wide)
+   * @param low the low 64 bits of the fingerprint
+   * @param depth the depth
+   * @return the smallest depth the fingerprint was previously added with, or {@link
+   *     Integer#MAX_VALUE} if it was not previously in the set
+   */
+  int add(long high, long low, int depth) {
+    if (!wide) {
+      high = 0;
+    }
+    if (high == 0 && low == 0) {
+      low = 1;
+    }
+
+    final Stripe stripe = stripes[stripeShift == 64 ? 0 : (int) (low >>> stripeShift)];
+    final int previous;
+    synchronized (stripe) {
+      previous = stripe.add(high, low, depth);
+    }
+    if (previous == Integer.MAX_VALUE) {
+      size.incrementAndGet();
+    }
+    return previous;
+  }
+
+  /**
+   * Whether the fingerprint is in the set.
+   *
+   * @param high the high 64 bits of the fingerprint (ignored unless the set is wide)
+   * @param low the low 64 bits of the fingerprint
+   * @return whether the fingerprint was added to the set
+   */
+  boolean contains(long high, long low) {
+    if (!wide) {
+      high = 0;
+    }
+    if (high == 0 && low == 0) {
+      low = 1;
+    }
+
+    final Stripe stripe = stripes[stripeShift == 64 ? 0 : (int) (low >>> stripeShift)];
+    synchronized (stripe) {
+      return stripe.contains(high, low);
+    }
+  }
+
+  /** Receives the fingerprints in a set; see {@link #forEach(FingerprintConsumer)}. */
+  interface FingerprintConsumer {
+    void accept(long high, long low) throws IOException;
+  }
+
+  /**
+   * Passes every fingerprint in the set to the consumer. The high bits are 0 unless the set is
+   * wide. Fingerprints must not be added concurrently.
+   *
+   * @param consumer the consumer
+   */
+  void forEach(FingerprintConsumer consumer) throws IOException {
+    for (Stripe stripe : stripes) {
+      final long[] t;
+      synchronized (stripe) {
+        t = stripe.table;
+      }
+      for (int slot = 0; slot < t.length; slot += stripe.width) {
+        final long l = t[slot];
+        final long h = stripe.width == 2 ? t[slot + 1] : 0;
+        if (l != 0 || h != 0) {
+          consumer.accept(h, l);
+        }
+      }
+    }
+  }
+
+  long size() {
+    return size.get();
+  }
+
+  /** Approximate number of bytes used by the backing tables. */
+  long memoryBytes() {
+    long bytes = 0;
+    for (Stripe stripe : stripes) {
+      synchronized (stripe) {
+        bytes += stripe.table.length * 8L;
+        if (stripe.depths != null) {
+          bytes += stripe.depths.length * 4L;
+        }
+      }
+    }
+    return bytes;
+  }
+
+  private static final class Stripe {
+    private final int width;
+    private long[] table;
+    private int[] depths;
+    private int entries = 0;
+
+    Stripe(int width) {
+      this.width = width;
+      table = new long[INITIAL_STRIPE_CAPACITY * width];
+    }
+
+    private int capacity() {
+      return table.length / width;
+    }
+
+    boolean add(long high, long low) {
+      if (entries + 1 > capacity() * MAX_LOAD_FACTOR) {
+        resize();
+      }
+      final int i = insert(table, high, low);
+      if (i < 0) {
+        return false;
+      }
+      entries++;
+      if (depths != null) {
+        depths[i] = Integer.MIN_VALUE;
+      }
+      return true;
+    }
+
+    int add(long high, long low, int depth) {
+      if (depths == null) {
+        depths = new int[capacity()];
+        Arrays.fill(depths, Integer.MIN_VALUE);
+      }
+      if (entries + 1 > capacity() * MAX_LOAD_FACTOR) {
+        resize();
+      }
+      final int i = insert(table, high, low);
+      if (i >= 0) {
+        entries++;
+        depths[i] = depth;
+        return Integer.MAX_VALUE;
+      }
+      final int previous = depths[-i - 1];
+      depths[-i - 1] = Math.min(previous, depth);
+      return previous;
+    }
+
+    boolean contains(long high, long low) {
+      final int mask = table.length / width - 1;
+      int i = slot(high, low, mask);
+      while (true) {
+        final int slot = i * width;
+        final long l = table[slot];
+        final long h = width == 2 ? table[slot + 1] : 0;
+        if (l == low && h == high) {
+          return true;
+        }
+        if (l == 0 && h == 0) {
+          return false;
+        }
+        i = (i + 1) & mask;
+      }
+    }
+
+    private static int slot(long high, long low, int mask) {
+      // The stripe was chosen by the top bits of low, so probe with the bottom bits
+      return (int) (low ^ (low >>> 29) ^ high) & mask;
+    }
+
+    /**
+     * Returns the index of the fingerprint's entry if it was inserted, or {@code -index - 1} if it
+     * was already in the table.
+     */
+    private int insert(long[] t, long high, long low) {
+      final int mask = t.length / width - 1;
+      int i = slot(high, low, mask);
+      while (true) {
+        final int slot = i * width;
+        final long l = t[slot];
+        final long h = width == 2 ? t[slot + 1] : 0;
+        if (l == 0 && h == 0) {
+          t[slot] = low;
+          if (width == 2) {
+            t[slot + 1] = high;
+          }
+          return i;
+        }
+        if (l == low && h == high) {
+          return -i - 1;
+        }
+        i = (i + 1) & mask;
+      }
+    }
+
+    private void resize() {
+      final long[] old = table;
+      final long[] t = new long[old.length * 2];
+      final int[] d = depths == null ? null : new int[depths.length * 2];
+      for (int slot = 0; slot < old.length; slot += width) {
+        final long l = old[slot];
+        final long h = width == 2 ? old[slot + 1] : 0;
+        if (l != 0 || h != 0) {
+          final int i = insert(t, h, l);
+          if (d != null) {
+            d[i] = depths[slot / width];
+          }
+        }
+      }
+      table = t;
+      depths = d;
+    }
+  }
+
+  /**
+   * The approximate probability that at least one pair of distinct elements among {@code n}
+   * inserted elements share a fingerprint of the given width, assuming fingerprints are uniformly
+   * distributed.
+   *
+   * @param n the number of distinct fingerprints inserted
+   * @param bits the width of the fingerprints
+   * @return the probability
+   */
+  static double collisionProbability(long n, int bits) {
+    if (n < 2) {
+      return 0.0;
+    }
+    final double pairs = (double) n * (double) (n - 1) / 2.0;
+    return -Math.expm1(-pairs / Math.pow(2.0, bits));
+  }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright (c) 2018 Ellis Michael (emichael@cs.washington.edu)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package dslabs.framework.testing.search;
+
+import dslabs.framework.Node;
+import dslabs.framework.testing.ClientWorker;
+import dslabs.framework.testing.StatePredicate;
+import dslabs.framework.testing.utils.SerializableFunction;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Heuristics for best-first search (see {@link SearchSettings#heuristic()}). Lower scores are
+ * explored first, so heuristics estimate the remaining distance to a goal; measures of progress
+ * should be negated.
+ */
+public final class Heuristics {
+  private Heuristics() {}
+
+  /**
+   * Scores a state by the number of commands its client workers have yet to get results for. Each
+   * client worker with an infinite workload counts as one pending command until it is done. Useful
+   * for goals like {@link StatePredicate#CLIENTS_DONE}.
+   *
+   * @return the heuristic
+   */
+  public static SerializableFunction<SearchState, Double> pendingCommands() {
+    return s -> {
+      double pending = 0;
+      for (ClientWorker cw : s.clientWorkers()) {
+        if (cw.workload().infinite()) {
+          pending += cw.done() ? 0 : 1;
+        } else {
+          pending += Math.max(cw.workload().size() - cw.results().size(), 0);
+        }
+      }
+      return pending;
+    };
+  }
+
+  /**
+   * Scores a state by the number of the given predicates which do not hold in it. Predicates which
+   * hold on the way to a goal (e.g., {@link StatePredicate#clientDone} for each client whose
+   * workload must finish) act as hints of the distance to the goal.
+   *
+   * @param hints the predicates
+   * @return the heuristic
+   */
+  public static SerializableFunction<SearchState, Double> unsatisfied(StatePredicate... hints) {
+    final List<StatePredicate> ps = new ArrayList<>(Arrays.asList(hints));
+    return s -> {
+      double unsatisfied = 0;
+      for (StatePredicate p : ps) {
+        if (p.test(s, true) != null) {
+          unsatisfied++;
+        }
+      }
+      return unsatisfied;
+    };
+  }
+
+  /**
+   * Scores a state by the sum of a measure of each of its servers. For instance, a Paxos test can
+   * prefer states in which more log slots are chosen by summing the negated number of chosen slots,
+   * {@code serverSum(n -> -chosenSlots((PaxosServer) n))}.
+   *
+   * @param measure the measure of a server
+   * @return the heuristic
+   */
+  public static SerializableFunction<SearchState, Double> serverSum(
+      SerializableFunction<Node, ? extends Number> measure) {
+    return s -> {
+      double sum = 0;
+      for (Node n : s.servers()) {
+        sum += measure.apply(n).doubleValue();
+      }
+      return sum;
+    };
+  }
+
+  /**
+   * The sum of two heuristics, each multiplied by a weight. Nest calls to combine more.
+   *
+   * @param weight the weight of the first heuristic
+   * @param heuristic the first heuristic
+   * @param weight2 the weight of the second heuristic
+   * @param heuristic2 the second heuristic
+   * @return the heuristic
+   */
+  public static SerializableFunction<SearchState, Double> weightedSum(
+      double weight,
+      SerializableFunction<SearchState, Double> heuristic,
+      double weight2,
+      SerializableFunction<SearchState, Double> heuristic2) {
+    return s -> weight * heuristic.apply(s) + weight2 * heuristic2.apply(s);
+  }
+}
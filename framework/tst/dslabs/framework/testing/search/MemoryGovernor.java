@@ -0,0 +1,150 @@
+/*
+ * Copyright (c) 2018 Ellis Michael (emichael@cs.washington.edu)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package dslabs.framework.testing.search;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Watches heap occupancy on behalf of a search, so that the search can shed memory or stop before
+ * the JVM runs out of it.
+ *
+ * <p>Occupancy is measured as the usage of the heap's memory pools right after the latest garbage
+ * collection (their {@link MemoryPoolMXBean#getCollectionUsage() collection usage}, which their
+ * collection usage thresholds are also compared against), so it reflects live data rather than
+ * garbage. It is compared against a budget: {@link SearchSettings#maxMemoryBytes()} if set, and at
+ * most the maximum heap size. Above {@link #HIGH_FRACTION} of the budget, strategies should shed
+ * memory; above {@link #CRITICAL_FRACTION}, the search stops.
+ *
+ * <p>Safe for concurrent access.
+ */
+final class MemoryGovernor {
+  static final double HIGH_FRACTION = 0.75, CRITICAL_FRACTION = 0.9;
+
+  /* Reading the pools is cheap, but not free; searches poll between every worker */
+  private static final long POLL_NANOS = 50_000_000L;
+
+  enum Pressure {
+    NORMAL,
+    HIGH,
+    CRITICAL
+  }
+
+  private final List<MemoryPoolMXBean> pools = new ArrayList<>();
+  private final List<GarbageCollectorMXBean> collectors =
+      ManagementFactory.getGarbageCollectorMXBeans();
+  private final long budget;
+
+  private volatile long lastPollNanos = System.nanoTime() - POLL_NANOS;
+  private volatile long used = 0;
+  private volatile long collections = -1;
+  private long lastReliefCollections = -1;
+
+  MemoryGovernor(SearchSettings settings) {
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if (pool.getType() == MemoryType.HEAP && pool.isCollectionUsageThresholdSupported()) {
+        pools.add(pool);
+      }
+    }
+    long max = Runtime.getRuntime().maxMemory();
+    if (max == Long.MAX_VALUE) {
+      max = -1;
+    }
+    if (settings.maxMemoryBytes() > 0) {
+      max = max < 0 ? settings.maxMemoryBytes() : Math.min(max, settings.maxMemoryBytes());
+    }
+    budget = max;
+  }
+
+  /**
+   * The heap occupancy after the latest garbage collection, relative to the budget.
+   *
+   * @return the memory pressure
+   */
+  Pressure pressure() {
+    poll();
+    return pressure(used, budget);
+  }
+
+  static Pressure pressure(long used, long budget) {
+    if (budget < 0) {
+      return Pressure.NORMAL;
+    }
+    if (used >= CRITICAL_FRACTION * budget) {
+      return Pressure.CRITICAL;
+    }
+    if (used >= HIGH_FRACTION * budget) {
+      return Pressure.HIGH;
+    }
+    return Pressure.NORMAL;
+  }
+
+  /**
+   * Whether strategies should shed memory. Returns {@code true} at most once per garbage
+   * collection, since memory that was shed is only reflected in the occupancy after the next one.
+   *
+   * @return whether memory should be shed
+   */
+  synchronized boolean shouldShed() {
+    if (pressure() == Pressure.NORMAL || collections == lastReliefCollections) {
+      return false;
+    }
+    lastReliefCollections = collections;
+    return true;
+  }
+
+  long usedBytes() {
+    return used;
+  }
+
+  long budgetBytes() {
+    return budget;
+  }
+
+  private void poll() {
+    final long now = System.nanoTime();
+    if (now - lastPollNanos < POLL_NANOS) {
+      return;
+    }
+    lastPollNanos = now;
+
+    long count = 0;
+    for (GarbageCollectorMXBean collector : collectors) {
+      count += Math.max(collector.getCollectionCount(), 0);
+    }
+    long total = 0;
+    for (MemoryPoolMXBean pool : pools) {
+      final MemoryUsage usage = pool.getCollectionUsage();
+      if (usage != null) {
+        total += usage.getUsed();
+      }
+    }
+    used = total;
+    collections = count;
+  }
+}
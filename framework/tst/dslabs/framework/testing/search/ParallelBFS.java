@@ -0,0 +1,184 @@
+/*
+ * Copyright (c) 2018 Ellis Michael (emichael@cs.washington.edu)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package dslabs.framework.testing.search;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import lombok.RequiredArgsConstructor;
+
+/**
+ * Breadth-first search which expands each depth layer with a {@link ForkJoinPool}.
+ *
+ * <p>Unlike {@link BFS}, workers do not take the search lock to get work. The current layer is
+ * split recursively into chunks, which idle threads steal from busy ones. Each chunk collects its
+ * successors locally and hands them off to the next layer in a single batch. A layer is finished
+ * when the root task completes, so termination detection needs no coordination between workers.
+ * Since the next layer is only started after the current one is finished, the first terminal state
+ * found is still at the lowest possible depth.
+ *
+ * <p>Only used in multi-threaded mode, since the pool only pays off with several threads.
+ */
+class ParallelBFS extends BreadthFirst {
+  private static final int CHUNK_SIZE = 64;
+
+  /* Only accessed by one thread at a time, between layers. */
+  private List<SearchState> frontier;
+
+  private final Queue<List<SearchState>> nextLayer = new ConcurrentLinkedQueue<>();
+  private volatile boolean exhausted = false, stopped = false;
+
+  ParallelBFS(SearchSettings settings) {
+    super(settings);
+    if (settings.singleThreaded()) {
+      throw new IllegalArgumentException("Parallel breadth-first search needs several threads");
+    }
+  }
+
+  @Override
+  protected String searchType() {
+    return "parallel breadth-first";
+  }
+
+  @Override
+  protected void initSearch(SearchState initialState) {
+    frontier = new ArrayList<>(initFrontier(initialState));
+    exhausted = frontier.isEmpty();
+  }
+
+  @Override
+  protected boolean spaceExhausted() {
+    return exhausted;
+  }
+
+  @Override
+  protected Runnable getWorker() {
+    // Layers are expanded by the pool started in startWorkerThreads
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  protected Collection<Thread> startWorkerThreads() {
+    Thread t = new Thread(this::runLayers);
+    t.start();
+    return Collections.singletonList(t);
+  }
+
+  private void runLayers() {
+    final ForkJoinPool pool = new ForkJoinPool(settings.numThreads());
+    try {
+      while (!exhausted && !stopped) {
+        Future<?> layer = pool.submit(new ExpandTask(frontier, 0, frontier.size()));
+        try {
+          layer.get();
+        } catch (InterruptedException e) {
+          stopped = true;
+          break;
+        } catch (ExecutionException e) {
+          stopped = true;
+          fail(e.getCause());
+          break;
+        }
+        collectNextLayer();
+        signalIfSearchFinished();
+      }
+    } finally {
+      // Running tasks must not check states or record results once the search has returned
+      stopped = true;
+      pool.shutdownNow();
+      awaitTermination(pool);
+      signalIfSearchFinished();
+    }
+  }
+
+  private static void awaitTermination(ForkJoinPool pool) {
+    boolean interrupted = false;
+    while (true) {
+      try {
+        if (pool.awaitTermination(1, TimeUnit.SECONDS)) {
+          break;
+        }
+      } catch (InterruptedException e) {
+        interrupted = true;
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /** Collects the next layer. Must only be called once all of the current layer is expanded. */
+  private void collectNextLayer() {
+    int size = 0;
+    for (List<SearchState> batch : nextLayer) {
+      size += batch.size();
+    }
+    final List<SearchState> next = new ArrayList<>(size);
+    for (List<SearchState> batch; (batch = nextLayer.poll()) != null; ) {
+      next.addAll(batch);
+    }
+    frontier = next;
+    if (next.isEmpty() && !stopped) {
+      exhausted = true;
+    } else if (!stopped) {
+      shedMemoryIfLow();
+      checkpointIfDue(frontier, discovered, states.get());
+    }
+  }
+
+  @RequiredArgsConstructor
+  private final class ExpandTask extends RecursiveAction {
+    private final List<SearchState> layer;
+    private final int from, to;
+
+    @Override
+    protected void compute() {
+      if (to - from <= CHUNK_SIZE) {
+        expand(layer, from, to);
+        return;
+      }
+      final int mid = (from + to) >>> 1;
+      invokeAll(new ExpandTask(layer, from, mid), new ExpandTask(layer, mid, to));
+    }
+  }
+
+  private void expand(List<SearchState> layer, int from, int to) {
+    final List<SearchState> successors = new ArrayList<>();
+    for (int i = from; i < to && !stopped; i++) {
+      if (!exploreNode(layer.get(i), successors::add)) {
+        stopped = true;
+      }
+    }
+    if (!successors.isEmpty()) {
+      nextLayer.add(successors);
+    }
+  }
+}
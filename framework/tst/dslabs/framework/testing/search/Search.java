@@ -25,14 +25,19 @@ package dslabs.framework.testing.search;
 import static dslabs.framework.testing.search.SearchResults.EndCondition.EXCEPTION_THROWN;
 import static dslabs.framework.testing.search.SearchResults.EndCondition.GOAL_FOUND;
 import static dslabs.framework.testing.search.SearchResults.EndCondition.INVARIANT_VIOLATED;
+import static dslabs.framework.testing.search.SearchResults.EndCondition.MEMORY_EXHAUSTED;
 import static dslabs.framework.testing.search.SearchResults.EndCondition.SPACE_EXHAUSTED;
+import static dslabs.framework.testing.search.SearchResults.EndCondition.STATES_DROPPED;
+import static dslabs.framework.testing.search.SearchResults.EndCondition.STATE_LIMIT_EXCEEDED;
 import static dslabs.framework.testing.search.SearchResults.EndCondition.TIME_EXHAUSTED;
 
 import dslabs.framework.testing.Event;
 import dslabs.framework.testing.StatePredicate.PredicateResult;
-import dslabs.framework.testing.search.SearchState.SearchEquivalenceWrappedSearchState;
+import dslabs.framework.testing.search.MemoryGovernor.Pressure;
+import dslabs.framework.testing.search.SleepSets.Discovery;
 import dslabs.framework.testing.utils.CheckLogger;
 import dslabs.framework.testing.utils.GlobalSettings;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
@@ -40,16 +45,19 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Objects;
 import java.util.Queue;
-import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import lombok.AccessLevel;
+import lombok.Getter;
 import lombok.NonNull;
+import lombok.Setter;
 
 /**
  * The base class other search strategies are built off of. Based on the search settings, either
@@ -61,6 +69,9 @@ import lombok.NonNull;
  * <p>Ordinarily, tests should only use the static convenience methods on this class.
  */
 public abstract class Search {
+  /* How often the main thread checks memory while waiting for multi-threaded workers */
+  private static final long MEMORY_POLL_MILLIS = 100;
+
   protected final SearchSettings settings;
 
   private final Lock lock = new ReentrantLock();
@@ -74,8 +85,33 @@ public abstract class Search {
 
   private long startTimeMillis;
 
+  /* Only set while the search is running; see TransitionCache */
+  @Getter(AccessLevel.PACKAGE)
+  @Setter(AccessLevel.PACKAGE)
+  private volatile TransitionCache transitionCache;
+
+  /* Checkpointing; see Checkpoint */
+  private SearchState initialState;
+  private long lastCheckpointMillis;
+
+  @Getter(AccessLevel.PACKAGE)
+  private Checkpoint resumedFrom;
+
+  /* The traces of detached states; see detach(SearchState) */
+  private TraceStore traces = new TraceStore();
+
+  /* Memory and state budgets; see MemoryGovernor */
+  private final MemoryGovernor governor;
+  private final AtomicLong statesChecked = new AtomicLong();
+  private volatile boolean memoryExhausted = false;
+  private volatile boolean stateLimitExceeded = false;
+
+  /* An error in the search strategy itself (e.g., an I/O error); see fail(Throwable) */
+  private volatile Throwable failure;
+
   protected Search(SearchSettings settings) {
     this.settings = settings;
+    governor = settings.memoryGovernor() ? new MemoryGovernor(settings) : null;
     results.invariantsTested(new LinkedList<>(settings.invariants()));
     results.goalsSought(new LinkedList<>(settings.goals()));
   }
@@ -114,6 +150,17 @@ public abstract class Search {
    */
   protected abstract boolean spaceExhausted();
 
+  /**
+   * Whether the strategy dropped states it discovered without exploring them (other than pruned
+   * ones), in which case {@link #spaceExhausted()} only means there is nothing left to explore.
+   * Only called by the main thread once the search has finished.
+   *
+   * @return whether any states were dropped
+   */
+  protected boolean statesDropped() {
+    return false;
+  }
+
   /**
    * Get an executable for the worker thread (or the main thread in single-threaded mode) to run, or
    * {@code null} if there are no workers waiting to run. If {@link #spaceExhausted()} returns
@@ -133,12 +180,59 @@ public abstract class Search {
                   > (settings.maxTimeSecs() * 1000L)))
           || (results.invariantViolated() != null)
           || (results.exceptionThrown())
-          || (results.goalMatched() != null);
+          || (results.goalMatched() != null)
+          || (failure != null)
+          || stateLimitExceeded
+          || memoryExhausted();
     } finally {
       lock.unlock();
     }
   }
 
+  private boolean memoryExhausted() {
+    if (!memoryExhausted && governor != null && governor.pressure() == Pressure.CRITICAL) {
+      memoryExhausted = true;
+    }
+    return memoryExhausted;
+  }
+
+  /**
+   * Whether the strategy should shed memory, because heap occupancy is above the {@link
+   * MemoryGovernor}'s threshold. Returns {@code true} at most once per garbage collection, so
+   * strategies which shed memory each time it returns {@code true} do so progressively.
+   * Thread-safe.
+   *
+   * @return whether memory should be shed
+   */
+  protected final boolean shouldShedMemory() {
+    return governor != null && governor.shouldShed();
+  }
+
+  /**
+   * Sheds memory held by a visited set by switching it to fingerprints (see {@link
+   * VisitedSet#fingerprinted(SearchSettings)}), if it isn't compact already and the settings allow
+   * it (see {@link SearchSettings#fingerprintsUnderMemoryPressure()}). Must only be called between
+   * depth layers, while no states are being explored.
+   *
+   * @param discovered the visited set
+   * @return the set to use from now on
+   */
+  final VisitedSet shedMemory(VisitedSet discovered) {
+    if (!settings.fingerprintsUnderMemoryPressure()) {
+      return discovered;
+    }
+    final VisitedSet fingerprinted = discovered.fingerprinted(settings);
+    if (fingerprinted == null) {
+      return discovered;
+    }
+    if (settings.shouldOutputStatus()) {
+      System.out.printf(
+          "\tMemory running low (%s MB of %s MB), switching to fingerprints%n",
+          governor.usedBytes() >> 20, governor.budgetBytes() >> 20);
+    }
+    return fingerprinted;
+  }
+
   private void printStatus() {
     double time = (System.currentTimeMillis() - startTimeMillis) / 1000.0;
     if (time == 0.0) {
@@ -147,6 +241,66 @@ public abstract class Search {
     System.out.println("\t" + status(time));
   }
 
+  /**
+   * Returns a state equal to the given one whose trace leads all the way back to the initial state
+   * of the search. Called by {@link #checkState(SearchState, boolean)} before recording a terminal
+   * state in the results. By default, rebuilds the traces of states reached from detached states
+   * (see {@link #detach(SearchState)}) by replaying their events from the initial state. Strategies
+   * which keep traces elsewhere should override this method.
+   *
+   * @param s the state to reconstruct the trace of
+   * @return the state with its full trace
+   */
+  protected SearchState traceableState(SearchState s) {
+    final LinkedList<Event> suffix = new LinkedList<>();
+    SearchState current = s;
+    while (current.previous() != null) {
+      suffix.addFirst(current.previousEvent());
+      current = current.previous();
+    }
+    if (current.traceId() == TraceStore.ROOT) {
+      return s;
+    }
+
+    final List<Event> trace = traces.trace(current.traceId());
+    trace.addAll(suffix);
+    SearchState traced = initialState;
+    for (Event event : trace) {
+      traced = traced.stepEvent(event, settings, true);
+    }
+    return traced;
+  }
+
+  /**
+   * Drops the state's reference to its previous state, recording its trace in the search's {@link
+   * TraceStore} instead, so that the states it was reached through can be garbage collected once
+   * they are explored. The previous state must itself be detached or have no previous state.
+   * Strategies which keep a frontier of states should detach states as they add them to it. Does
+   * nothing unless {@link SearchSettings#compactTraces()}.
+   *
+   * @param s the state to detach
+   */
+  protected final void detach(SearchState s) {
+    final SearchState previous = s.previous();
+    if (!settings.compactTraces() || previous == null) {
+      return;
+    }
+    s.detach(traces.add(previous.traceId(), s.previousEvent()), settings);
+  }
+
+  /**
+   * Counts states checked against {@link SearchSettings#maxStates()}. Called by {@link
+   * #checkState(SearchState, boolean)}, and by strategies whose states are checked elsewhere.
+   * Thread-safe.
+   *
+   * @param n the number of states checked
+   */
+  protected final void countStatesChecked(long n) {
+    if (settings.stateLimited() && statesChecked.addAndGet(n) >= settings.maxStates()) {
+      stateLimitExceeded = true;
+    }
+  }
+
   protected enum StateStatus {
     VALID,
     TERMINAL,
@@ -160,39 +314,44 @@ public abstract class Search {
    * @param shouldMinimize whether or not traces should be run through the minimizer
    */
   protected final StateStatus checkState(SearchState s, boolean shouldMinimize) {
+    countStatesChecked(1);
+
     if (s.thrownException() != null) {
+      s = traceableState(s);
       if (shouldMinimize) {
         // Log the exception to shut the other threads down
         results.exceptionThrown(null);
 
         // Minimize the trace and log the actual exception-causing state
-        s = TraceMinimizer.minimizeExceptionCausingTrace(s);
+        s = TraceMinimizer.minimizeExceptionCausingTrace(s, settings);
       }
       results.exceptionThrown(s);
       return StateStatus.TERMINAL;
     }
 
-    PredicateResult r = settings.invariantViolated(s);
+    PredicateResult r = settings.invariantViolated(s, this);
     if (r != null) {
+      s = traceableState(s);
       if (shouldMinimize) {
         // Log the violation to shut the other threads down
         results.invariantViolated(null, r);
 
         // Minimize the trace and log the actual invariant-violating state
-        s = TraceMinimizer.minimizeTrace(s, r);
+        s = TraceMinimizer.minimizeTrace(s, r, settings);
       }
       results.invariantViolated(s, r);
       return StateStatus.TERMINAL;
     }
 
-    r = settings.goalMatched(s);
+    r = settings.goalMatched(s, this);
     if (r != null) {
+      s = traceableState(s);
       if (shouldMinimize) {
         // Log the goal to shut the other threads down
         results.goalFound(null, r);
 
         // Minimize the trace and log the actual goal-matching state
-        s = TraceMinimizer.minimizeTrace(s, r);
+        s = TraceMinimizer.minimizeTrace(s, r, settings);
       }
       results.goalFound(s, r);
       return StateStatus.TERMINAL;
@@ -219,7 +378,7 @@ public abstract class Search {
       }
     }
 
-    if (settings.shouldPrune(s)) {
+    if (settings.shouldPrune(s, this)) {
       return StateStatus.PRUNED;
     }
 
@@ -227,56 +386,194 @@ public abstract class Search {
       return StateStatus.PRUNED;
     }
 
+    s.validIn(this);
     return StateStatus.VALID;
   }
 
+  /**
+   * Starts the threads which run the search in multi-threaded mode. By default, starts {@link
+   * SearchSettings#numThreads()} threads which repeatedly run the workers returned by {@link
+   * #getWorker()}. Strategies which schedule their own work can override this method; their threads
+   * should call {@link #signalIfSearchFinished()} whenever the search might have finished and must
+   * stop when interrupted.
+   *
+   * @return the started threads
+   */
+  protected Collection<Thread> startWorkerThreads() {
+    Collection<Thread> workerThreads = new LinkedList<>();
+
+    for (int i = 0; i < settings.numThreads(); i++) {
+      Thread t =
+          new Thread(
+              () -> {
+                while (!Thread.interrupted()) {
+                  Runnable worker;
+                  lock.lock();
+                  try {
+                    while ((worker = getWorker()) == null) {
+                      workerFinished.await();
+                    }
+                    numActiveWorkers++;
+                  } catch (InterruptedException e) {
+                    return;
+                  } finally {
+                    lock.unlock();
+                  }
+
+                  try {
+                    worker.run();
+                  } catch (RuntimeException | Error e) {
+                    fail(e);
+                  }
+
+                  lock.lock();
+                  try {
+                    numActiveWorkers--;
+                    workerFinished.signal();
+                    if (searchFinished()) {
+                      searchFinished.signal();
+                    }
+                  } finally {
+                    lock.unlock();
+                  }
+                }
+              });
+      workerThreads.add(t);
+      t.start();
+    }
+    return workerThreads;
+  }
+
+  /**
+   * Writes a checkpoint if checkpointing is enabled and the checkpoint interval has passed since
+   * the last one. Must only be called between depth layers, while no states are being explored.
+   *
+   * @param frontier the states which have been discovered but not explored
+   * @param discovered the visited set
+   * @param statesExplored the number of states explored
+   */
+  final void checkpointIfDue(
+      Collection<SearchState> frontier, VisitedSet discovered, long statesExplored) {
+    if (!settings.checkpointing()
+        || System.currentTimeMillis() - lastCheckpointMillis
+            < settings.checkpointIntervalSecs() * 1000L) {
+      return;
+    }
+    Checkpoint.write(settings, initialState, frontier, discovered, statesExplored, traces);
+    lastCheckpointMillis = System.currentTimeMillis();
+    if (settings.shouldOutputStatus()) {
+      System.out.printf(
+          "\tCheckpoint written (%s states explored, %s in frontier)%n",
+          statesExplored, frontier.size());
+    }
+  }
+
+  /**
+   * Fails the search because of an error in the search strategy itself, rather than in the system
+   * being searched (e.g., an I/O error). The search stops, and {@link #run(SearchState)} throws the
+   * first failure once all of its threads have stopped. Exceptions thrown by workers are recorded
+   * this way. Thread-safe.
+   *
+   * @param t the error
+   */
+  protected final void fail(@NonNull Throwable t) {
+    lock.lock();
+    try {
+      if (failure == null) {
+        failure = t;
+      }
+      searchFinished.signal();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /** Wakes up the main thread if the search has finished. Thread-safe. */
+  protected final void signalIfSearchFinished() {
+    lock.lock();
+    try {
+      if (searchFinished()) {
+        searchFinished.signal();
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
   protected SearchResults run(SearchState initialState) {
     startTimeMillis = System.currentTimeMillis();
-    initSearch(initialState);
+    this.initialState = initialState;
+    lastCheckpointMillis = startTimeMillis;
+    // The cache holds nodes of this search's states, which the caller may modify afterwards
+    transitionCache = TransitionCache.create(settings);
+    settings.activeSearch(this);
+    final TransitionCache transitionCache = this.transitionCache;
+    try {
+      runWorkers(initialState);
+    } finally {
+      settings.activeSearch(null);
+      this.transitionCache = null;
+    }
+
+    if (failure instanceof RuntimeException) {
+      throw (RuntimeException) failure;
+    } else if (failure instanceof Error) {
+      throw (Error) failure;
+    } else if (failure != null) {
+      throw new RuntimeException("Search failed", failure);
+    }
 
     if (settings.shouldOutputStatus()) {
-      System.out.printf("Starting %s search...%n", searchType());
+      printStatus();
+      if (transitionCache != null) {
+        System.out.printf(
+            "Transition cache: %s hits, %s misses%n",
+            transitionCache.hits(), transitionCache.misses());
+      }
+      if (stateLimitExceeded) {
+        System.out.printf("State budget of %s states exhausted.%n", settings.maxStates());
+      } else if (memoryExhausted) {
+        System.out.printf(
+            "Memory budget exhausted (%s MB of %s MB).%n",
+            governor.usedBytes() >> 20, governor.budgetBytes() >> 20);
+      }
+      System.out.println("Search finished.\n");
     }
 
-    if (settings.multiThreaded()) {
-      Collection<Thread> workerThreads = new LinkedList<>();
+    lock.lock();
+    try {
+      if (results.exceptionalState() != null) {
+        results.endCondition(EXCEPTION_THROWN);
+      } else if (results.invariantViolatingState() != null) {
+        results.endCondition(INVARIANT_VIOLATED);
+      } else if (results.goalMatchingState() != null) {
+        results.endCondition(GOAL_FOUND);
+      } else if (numActiveWorkers == 0 && spaceExhausted()) {
+        results.endCondition(statesDropped() ? STATES_DROPPED : SPACE_EXHAUSTED);
+      } else if (stateLimitExceeded) {
+        results.endCondition(STATE_LIMIT_EXCEEDED);
+      } else if (memoryExhausted) {
+        results.endCondition(MEMORY_EXHAUSTED);
+      } else {
+        results.endCondition(TIME_EXHAUSTED);
+      }
+    } finally {
+      lock.unlock();
+    }
 
-      // Start all of the worker threads
-      for (int i = 0; i < settings.numThreads(); i++) {
-        Thread t =
-            new Thread(
-                () -> {
-                  while (!Thread.interrupted()) {
-                    Runnable worker;
-                    lock.lock();
-                    try {
-                      while ((worker = getWorker()) == null) {
-                        workerFinished.await();
-                      }
-                      numActiveWorkers++;
-                    } catch (InterruptedException e) {
-                      return;
-                    } finally {
-                      lock.unlock();
-                    }
+    return results;
+  }
 
-                    worker.run();
+  /** Initializes the search and runs its workers until the search finishes. */
+  private void runWorkers(SearchState initialState) {
+    initSearch(initialState);
 
-                    lock.lock();
-                    try {
-                      numActiveWorkers--;
-                      workerFinished.signal();
-                      if (searchFinished()) {
-                        searchFinished.signal();
-                      }
-                    } finally {
-                      lock.unlock();
-                    }
-                  }
-                });
-        workerThreads.add(t);
-        t.start();
-      }
+    if (settings.shouldOutputStatus()) {
+      System.out.printf("Starting %s search...%n", searchType());
+    }
+
+    if (settings.multiThreaded()) {
+      Collection<Thread> workerThreads = startWorkerThreads();
 
       // If should output status, start the status thread
       Thread statusThread = null;
@@ -313,8 +610,13 @@ public abstract class Search {
             long timeRemaining =
                 settings.maxTimeSecs() * 1000L + startTimeMillis - System.currentTimeMillis();
             if (timeRemaining > 0) {
-              searchFinished.await(timeRemaining, TimeUnit.MILLISECONDS);
+              searchFinished.await(
+                  governor == null ? timeRemaining : Math.min(timeRemaining, MEMORY_POLL_MILLIS),
+                  TimeUnit.MILLISECONDS);
             }
+          } else if (governor != null) {
+            // Workers only signal when they finish, but memory can run out at any time
+            searchFinished.await(MEMORY_POLL_MILLIS, TimeUnit.MILLISECONDS);
           } else {
             searchFinished.await();
           }
@@ -358,40 +660,150 @@ public abstract class Search {
         }
 
         // Then, run a single worker
-        getWorker().run();
+        try {
+          getWorker().run();
+        } catch (RuntimeException | Error e) {
+          fail(e);
+        }
       }
     }
+  }
 
+  /**
+   * Runs a breadth-first search. In multi-threaded mode, uses {@link ParallelBFS}.
+   *
+   * @param initialState the state to start the search from
+   * @param settings the settings or {@code null} to use the default {@link SearchSettings}
+   * @return the results of the search
+   */
+  public static SearchResults bfs(@NonNull SearchState initialState, SearchSettings settings) {
+    if (settings == null) {
+      settings = new SearchSettings();
+    }
+    if (settings.multiThreaded()) {
+      return new ParallelBFS(settings).run(initialState);
+    }
+    return new BFS(settings).run(initialState);
+  }
+
+  /**
+   * Continues a breadth-first search from the latest checkpoint it wrote to the directory (see
+   * {@link SearchSettings#checkpointDir()}). The states explored after that checkpoint was written
+   * are explored again. The resumed search keeps writing checkpoints if its settings call for it.
+   *
+   * @param checkpointDir the directory the search wrote checkpoints to
+   * @param settings the settings to continue the search with, or {@code null} to use the settings
+   *     the checkpoint was written with, which then keep writing checkpoints to the same directory
+   * @return the results of the search
+   */
+  public static SearchResults resume(@NonNull Path checkpointDir, SearchSettings settings) {
+    final Checkpoint checkpoint = Checkpoint.read(checkpointDir, settings);
+    settings = checkpoint.settings();
     if (settings.shouldOutputStatus()) {
-      printStatus();
-      System.out.println("Search finished.\n");
+      System.out.printf(
+          "Resuming from checkpoint (%s states explored, %s in frontier)%n",
+          checkpoint.statesExplored(), checkpoint.frontier().size());
     }
 
-    lock.lock();
-    try {
-      if (results.exceptionalState() != null) {
-        results.endCondition(EXCEPTION_THROWN);
-      } else if (results.invariantViolatingState() != null) {
-        results.endCondition(INVARIANT_VIOLATED);
-      } else if (results.goalMatchingState() != null) {
-        results.endCondition(GOAL_FOUND);
-      } else if (numActiveWorkers == 0 && spaceExhausted()) {
-        results.endCondition(SPACE_EXHAUSTED);
-      } else {
-        results.endCondition(TIME_EXHAUSTED);
-      }
-    } finally {
-      lock.unlock();
+    final Search search = settings.multiThreaded() ? new ParallelBFS(settings) : new BFS(settings);
+    search.resumedFrom = checkpoint;
+    search.traces = checkpoint.traces();
+    return search.run(checkpoint.initialState());
+  }
+
+  public static SearchResults resume(@NonNull Path checkpointDir) {
+    return resume(checkpointDir, null);
+  }
+
+  /**
+   * Runs a breadth-first search which keeps the frontier and the set of discovered states on disk
+   * rather than in memory. See {@link ExternalBFS}.
+   *
+   * @param initialState the state to start the search from
+   * @param settings the settings or {@code null} to use the default {@link SearchSettings}
+   * @return the results of the search
+   */
+  public static SearchResults externalBfs(
+      @NonNull SearchState initialState, SearchSettings settings) {
+    if (settings == null) {
+      settings = new SearchSettings();
     }
+    return new ExternalBFS(settings).run(initialState);
+  }
 
-    return results;
+  /**
+   * Runs a breadth-first search partitioned across {@link SearchSettings#numWorkerProcesses()}
+   * worker JVMs on this host. See {@link DistributedBFS}.
+   *
+   * @param initialState the state to start the search from
+   * @param settings the settings or {@code null} to use the default {@link SearchSettings}
+   * @return the results of the search
+   */
+  public static SearchResults distributedBfs(
+      @NonNull SearchState initialState, SearchSettings settings) {
+    if (settings == null) {
+      settings = new SearchSettings();
+    }
+    return new DistributedBFS(settings).run(initialState);
   }
 
-  public static SearchResults bfs(@NonNull SearchState initialState, SearchSettings settings) {
+  /**
+   * Runs a best-first search guided by {@link SearchSettings#heuristic()}, which must be set. See
+   * {@link BestFirst}.
+   *
+   * @param initialState the state to start the search from
+   * @param settings the settings
+   * @return the results of the search
+   */
+  public static SearchResults bestFirst(
+      @NonNull SearchState initialState, @NonNull SearchSettings settings) {
+    return new BestFirst(settings).run(initialState);
+  }
+
+  /**
+   * Runs an exhaustive, stateful depth-first search. See {@link DFS}.
+   *
+   * @param initialState the state to start the search from
+   * @param settings the settings or {@code null} to use the default {@link SearchSettings}
+   * @return the results of the search
+   */
+  public static SearchResults exhaustiveDfs(
+      @NonNull SearchState initialState, SearchSettings settings) {
     if (settings == null) {
       settings = new SearchSettings();
     }
-    return new BFS(settings).run(initialState);
+    return new DFS(settings).run(initialState);
+  }
+
+  /**
+   * Runs random probes under {@link SearchSettings#swarmSize()} diversified configurations. See
+   * {@link SwarmSearch}.
+   *
+   * @param initialState the state to start the search from
+   * @param settings the settings or {@code null} to use the default {@link SearchSettings}
+   * @return the results of the search
+   */
+  public static SearchResults swarm(@NonNull SearchState initialState, SearchSettings settings) {
+    if (settings == null) {
+      settings = new SearchSettings();
+    }
+    return new SwarmSearch(settings).run(initialState);
+  }
+
+  /**
+   * Runs a coverage-guided search, which mutates the schedules of states that reached new coverage.
+   * See {@link CoverageSearch}.
+   *
+   * @param initialState the state to start the search from
+   * @param settings the settings or {@code null} to use the default {@link SearchSettings}
+   * @return the results of the search
+   */
+  public static SearchResults coverageGuided(
+      @NonNull SearchState initialState, SearchSettings settings) {
+    if (settings == null) {
+      settings = new SearchSettings();
+    }
+    return new CoverageSearch(settings).run(initialState);
   }
 
   public static SearchResults dfs(@NonNull SearchState initialState, SearchSettings settings) {
@@ -402,26 +814,23 @@ public abstract class Search {
   }
 }
 
-class BFS extends Search {
-  private final Queue<SearchState> queue = new ConcurrentLinkedQueue<>();
-  private final Set<SearchEquivalenceWrappedSearchState> discovered =
-      Collections.newSetFromMap(new ConcurrentHashMap<>());
+/**
+ * The state and node expansion shared by the in-memory breadth-first searches, {@link BFS} and
+ * {@link ParallelBFS}, which differ only in how they schedule the nodes of each depth layer.
+ */
+abstract class BreadthFirst extends Search {
+  protected VisitedSet discovered;
+  protected SleepSets sleepSets;
 
-  private final AtomicLong states = new AtomicLong();
-  private final AtomicInteger depth = new AtomicInteger();
+  protected final AtomicLong states = new AtomicLong();
+  protected final AtomicInteger depth = new AtomicInteger();
 
-  private final AtomicInteger activeWorkers = new AtomicInteger();
-  private int initialDepth, currentDepth;
+  protected int initialDepth;
 
-  BFS(SearchSettings settings) {
+  BreadthFirst(SearchSettings settings) {
     super(settings);
   }
 
-  @Override
-  protected String searchType() {
-    return "breadth-first";
-  }
-
   @Override
   protected String status(double elapsedSecs) {
     long explored = states.get();
@@ -430,42 +839,48 @@ class BFS extends Search {
         explored, depth.get(), elapsedSecs, explored / elapsedSecs / 1000.0);
   }
 
-  @Override
-  protected void initSearch(SearchState initialState) {
-    queue.add(initialState);
-    discovered.add(initialState.wrapped());
-    states.set(0);
-    depth.getAndAccumulate(initialState.depth(), Math::max);
+  /**
+   * Starts the search from the initial state or the checkpoint it resumed from.
+   *
+   * @param initialState the state to start the search from
+   * @return the first frontier
+   */
+  protected final Collection<SearchState> initFrontier(SearchState initialState) {
     initialDepth = initialState.depth();
-  }
-
-  @Override
-  protected boolean spaceExhausted() {
-    return queue.isEmpty();
-  }
-
-  @Override
-  protected Runnable getWorker() {
-    final int currentWorkers = activeWorkers.get();
-    final SearchState head = queue.peek();
-
-    // Don't start workers for multiple depths at the same time
-    if (head == null || (currentWorkers > 0 && head.depth() > currentDepth)) {
-      return null;
+    depth.getAndAccumulate(initialDepth, Math::max);
+
+    final Checkpoint checkpoint = resumedFrom();
+    if (checkpoint != null) {
+      discovered = checkpoint.discovered();
+      states.set(checkpoint.statesExplored());
+      for (SearchState s : checkpoint.frontier()) {
+        depth.getAndAccumulate(s.depth(), Math::max);
+      }
+      return checkpoint.frontier();
     }
 
-    // getWorker (and dequeuing) protected by lock; will be same as peek
-    final SearchState toExplore = queue.poll();
-    assert toExplore != null;
+    discovered = VisitedSet.create(settings);
+    sleepSets = SleepSets.create(discovered, settings);
+    discovered.add(initialState);
+    states.set(0);
+    return Collections.singletonList(initialState);
+  }
 
-    if (toExplore.depth() > currentDepth) {
-      currentDepth = toExplore.depth();
+  /** Sheds memory if it is running low. Must only be called between depth layers. */
+  protected final void shedMemoryIfLow() {
+    // Sleep sets hold on to the visited set
+    if (sleepSets == null && shouldShedMemory()) {
+      discovered = shedMemory(discovered);
     }
-    activeWorkers.incrementAndGet();
-    return () -> exploreNode(toExplore);
   }
 
-  private void exploreNode(@NonNull SearchState node) {
+  /**
+   * Checks the node if it is the initial state, then steps it through its events and passes each
+   * new, valid successor to {@code successors}.
+   *
+   * @return whether the search should continue
+   */
+  protected final boolean exploreNode(@NonNull SearchState node, Consumer<SearchState> successors) {
     // Check the initial state
     if (node.depth() == initialDepth) {
       states.incrementAndGet();
@@ -474,15 +889,30 @@ class BFS extends Search {
 
       // For now, don't consider PRUNED initial states
       if (status.equals(StateStatus.TERMINAL)) {
-        activeWorkers.decrementAndGet();
-        return;
+        return false;
       }
     }
 
-    for (Event event : node.events(settings)) {
-      SearchState successor = node.stepEvent(event, settings, true);
+    final List<Event> events =
+        sleepSets == null
+            ? new ArrayList<>(node.events(settings))
+            : sleepSets.events(node, settings);
+    for (int i = 0; i < events.size(); i++) {
+      SearchState successor = node.stepEvent(events.get(i), settings, true);
 
-      if (successor == null || !discovered.add(successor.wrapped())) {
+      if (successor == null) {
+        continue;
+      }
+      if (sleepSets != null) {
+        Discovery discovery = sleepSets.discover(node, events, i, successor);
+        if (discovery == Discovery.REEXPAND) {
+          detach(successor);
+          successors.accept(successor);
+        }
+        if (discovery != Discovery.NEW) {
+          continue;
+        }
+      } else if (!discovered.add(successor)) {
         continue;
       }
 
@@ -490,17 +920,85 @@ class BFS extends Search {
       states.incrementAndGet();
 
       StateStatus status = checkState(successor, false);
+      if (sleepSets != null) {
+        sleepSets.checked(successor, status.equals(StateStatus.PRUNED));
+      }
 
       if (status.equals(StateStatus.TERMINAL)) {
-        activeWorkers.decrementAndGet();
-        return;
+        return false;
       } else if (status.equals(StateStatus.PRUNED)) {
         continue;
       }
 
-      queue.add(successor);
+      detach(successor);
+      successors.accept(successor);
     }
-    activeWorkers.decrementAndGet();
+    if (sleepSets != null) {
+      SleepSets.expanded(node);
+    }
+    return true;
+  }
+
+  @Override
+  protected SearchResults run(SearchState initialState) {
+    SearchResults results = super.run(initialState);
+    discovered.reportLossiness(results, settings);
+    return results;
+  }
+}
+
+class BFS extends BreadthFirst {
+  private final Queue<SearchState> queue = new ConcurrentLinkedQueue<>();
+
+  private final AtomicInteger activeWorkers = new AtomicInteger();
+  private int currentDepth;
+
+  BFS(SearchSettings settings) {
+    super(settings);
+  }
+
+  @Override
+  protected String searchType() {
+    return "breadth-first";
+  }
+
+  @Override
+  protected void initSearch(SearchState initialState) {
+    queue.addAll(initFrontier(initialState));
+  }
+
+  @Override
+  protected boolean spaceExhausted() {
+    return queue.isEmpty();
+  }
+
+  @Override
+  protected Runnable getWorker() {
+    final int currentWorkers = activeWorkers.get();
+    final SearchState head = queue.peek();
+
+    // Don't start workers for multiple depths at the same time
+    if (head == null || (currentWorkers > 0 && head.depth() > currentDepth)) {
+      return null;
+    }
+
+    if (currentWorkers == 0 && head.depth() > currentDepth && head.depth() > initialDepth) {
+      shedMemoryIfLow();
+      checkpointIfDue(queue, discovered, states.get());
+    }
+
+    // getWorker (and dequeuing) protected by lock; will be same as peek
+    final SearchState toExplore = queue.poll();
+    assert toExplore != null;
+
+    if (toExplore.depth() > currentDepth) {
+      currentDepth = toExplore.depth();
+    }
+    activeWorkers.incrementAndGet();
+    return () -> {
+      exploreNode(toExplore, queue::add);
+      activeWorkers.decrementAndGet();
+    };
   }
 }
 
@@ -558,7 +1056,7 @@ class RandomDFS extends Search {
         current = next, next = null) {
 
       List<Event> events = new ArrayList<>(current.events(settings));
-      Collections.shuffle(events);
+      Collections.shuffle(events, ThreadLocalRandom.current());
 
       for (Event event : events) {
         SearchState s = current.stepEvent(event, settings, true);
@@ -37,7 +37,16 @@ public class SearchResults {
     TIME_EXHAUSTED,
     INVARIANT_VIOLATED,
     GOAL_FOUND,
-    EXCEPTION_THROWN
+    EXCEPTION_THROWN,
+    /** The search stopped before running out of memory; see {@link MemoryGovernor}. */
+    MEMORY_EXHAUSTED,
+    /** The search checked {@link SearchSettings#maxStates()} states. */
+    STATE_LIMIT_EXCEEDED,
+    /**
+     * The search ran out of states to explore, but only after dropping some it had discovered (see
+     * {@link SearchSettings#bestFirstFrontierSize()}), so the space was not exhausted.
+     */
+    STATES_DROPPED
   }
 
   // Only set by main thread
@@ -45,6 +54,24 @@ public class SearchResults {
   @Setter private Collection<StatePredicate> goalsSought;
   @Setter private EndCondition endCondition;
 
+  /**
+   * The estimated probability that some state was never explored because its fingerprint collided
+   * with that of an already discovered state, or {@code null} if the search did not store
+   * fingerprints.
+   *
+   * @see SearchSettings.VisitedSetMode
+   */
+  @Setter(AccessLevel.PACKAGE)
+  private volatile Double fingerprintCollisionProbability;
+
+  /**
+   * The expected fraction of reachable states which were never explored because they were wrongly
+   * considered already discovered, or {@code null} if the search's visited set was not expected to
+   * omit states (i.e., was not a {@link SearchSettings.VisitedSetMode#BITSTATE} set).
+   */
+  @Setter(AccessLevel.PACKAGE)
+  private volatile Double expectedOmissionRate;
+
   // Set by worker threads
   private final AtomicReference<SearchState> invariantViolatingState = new AtomicReference<>();
   private volatile PredicateResult invariantViolated;
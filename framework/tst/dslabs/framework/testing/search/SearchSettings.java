@@ -22,12 +22,18 @@
 
 package dslabs.framework.testing.search;
 
+import com.google.common.collect.ImmutableList;
+import dslabs.framework.Address;
 import dslabs.framework.testing.StatePredicate;
 import dslabs.framework.testing.StatePredicate.PredicateResult;
 import dslabs.framework.testing.TestSettings;
 import dslabs.framework.testing.utils.GlobalSettings;
+import dslabs.framework.testing.utils.SerializableFunction;
+import java.nio.file.Path;
 import java.util.Collection;
+import java.util.List;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import lombok.AccessLevel;
 import lombok.Getter;
 import lombok.Setter;
 import lombok.extern.java.Log;
@@ -41,13 +47,179 @@ import lombok.extern.java.Log;
 @Setter
 @Log
 public class SearchSettings extends TestSettings<SearchSettings> implements Cloneable {
+  /**
+   * How search strategies store the set of states they have already discovered.
+   *
+   * <p>{@link #FULL_STATES} keeps every discovered state and is lossless. The fingerprint modes
+   * only store a 64- or 128-bit fingerprint of each state, which uses a small fraction of the
+   * memory but means that a new state could (with low probability) be mistaken for an already
+   * discovered one and never explored. The estimated probability of such a collision is reported in
+   * {@link SearchResults#fingerprintCollisionProbability()}.
+   *
+   * <p>Fingerprints are summed from 128-bit hashes of the contents of the state's nodes, messages,
+   * and timers (see {@link ContentHash}), not from their 32-bit {@code hashCode}s, so the full
+   * width of the fingerprint counts against collisions.
+   *
+   * <p>{@link #COLLAPSED} is lossless, like {@link #FULL_STATES}, but interns each distinct node,
+   * timer queue, and network once and stores each state as a tuple of integer ids (see {@link
+   * CollapseTable}). States need not be kept reachable once they have been explored.
+   *
+   * <p>{@link #BITSTATE} ("supertrace") gives up on exhaustiveness: each state only sets {@link
+   * #bitstateHashes()} bits in a fixed array of {@link #bitstateMemoryBytes()}, so memory use does
+   * not grow with the number of states, but a growing fraction of new states is mistaken for
+   * already discovered ones. The expected fraction is reported in {@link
+   * SearchResults#expectedOmissionRate()}. A search that exhausts the space in this mode has not
+   * necessarily explored every reachable state. Bitstate hashing cannot be used by depth-limited or
+   * iteratively deepening {@link DFS}, which must remember the depth each state was reached at.
+   */
+  public enum VisitedSetMode {
+    FULL_STATES,
+    FINGERPRINTS_64,
+    FINGERPRINTS_128,
+    COLLAPSED,
+    BITSTATE
+  }
+
   private volatile int maxDepth = -1;
   private volatile int numThreads = defaultNumThreads();
   private volatile int outputFreqSecs = GlobalSettings.verbose() ? 5 : -1;
+  private volatile VisitedSetMode visitedSetMode = VisitedSetMode.FULL_STATES;
+
+  /* Bitstate hashing; see VisitedSetMode#BITSTATE */
+  private volatile long bitstateMemoryBytes = 64L << 20;
+  private volatile int bitstateHashes = 3;
+
+  /**
+   * Whether breadth-first search should use sleep-set partial-order reduction (see {@link
+   * SleepSets}). Every reachable state is still checked, but interleavings of events delivered to
+   * different nodes which are known to lead to already discovered states are not explored. Only
+   * used with {@link VisitedSetMode#FULL_STATES} and without prune predicates.
+   */
+  private volatile boolean partialOrderReduction = false;
+
+  /**
+   * When positive, exhaustive depth-first search (see {@link Search#exhaustiveDfs}) is run
+   * repeatedly with a depth bound that starts at this step and grows by it after each iteration.
+   */
+  private volatile int iterativeDeepeningStep = -1;
+
+  /**
+   * The maximum number of node transitions each search caches (see {@link TransitionCache}), or 0
+   * to disable the cache. The cache is always disabled when error checks are enabled.
+   */
+  private volatile int transitionCacheSize = 1 << 14;
+
+  /*
+   * The search currently running with these settings, if any. States cache data derived from the
+   * settings (e.g., their enabled events) only while a search is running, since the settings do
+   * not change during a search.
+   */
+  @Getter(AccessLevel.PACKAGE)
+  @Setter(AccessLevel.PACKAGE)
+  private transient volatile Search activeSearch = null;
+
+  /* External-memory search; see Search#externalBfs */
+  private transient volatile Path externalMemoryDir = null;
+  private volatile int externalMemorySegmentSize = 1 << 15;
+
+  /**
+   * Scores states for best-first search (see {@link Search#bestFirst}), which explores the states
+   * with the lowest {@code heuristic(s) + heuristicDepthWeight * s.depth()} first. A depth weight
+   * of 0 gives greedy best-first search; a weight of 1 gives A* (with each event costing 1). See
+   * {@link Heuristics} for common heuristics.
+   */
+  private volatile SerializableFunction<SearchState, Double> heuristic = null;
+
+  private volatile double heuristicDepthWeight = 0;
+
+  /**
+   * The maximum number of states best-first search keeps in its frontier. Once it is full, the
+   * worst-scoring states are dropped, and the search is no longer exhaustive.
+   */
+  private volatile int bestFirstFrontierSize = 1 << 20;
+
+  /**
+   * Swarm search (see {@link Search#swarm}) runs random probes under this many diversified
+   * configurations, drawn from {@code swarmSeed} ({@code null} for a different seed each run).
+   * Probes skip the checks of states whose fingerprints are in a shared cache of {@code
+   * swarmCacheSize} recently seen states.
+   */
+  private volatile int swarmSize = 16;
+
+  private volatile Long swarmSeed = null;
+  private volatile int swarmCacheSize = 1 << 20;
+
+  /**
+   * Coverage-guided search (see {@link Search#coverageGuided}) extends each mutated schedule with
+   * up to this many random events.
+   */
+  private volatile int coverageRandomSteps = 32;
+
+  /**
+   * The maximum number of entries in the corpus of coverage-guided search. Once the corpus is full,
+   * each new entry replaces an old one, so the corpus does not grow with the state space.
+   */
+  private volatile int coverageCorpusSize = 1 << 14;
+
+  /**
+   * Whether searches which keep a frontier of states (breadth-first and best-first search) drop the
+   * previous states of frontier states and record their traces in a compact table instead (see
+   * {@link TraceStore}), so that explored states can be garbage collected. Traces are then rebuilt
+   * by replaying their events when a terminal state is found.
+   */
+  private volatile boolean compactTraces = true;
+
+  /**
+   * Whether searches watch heap occupancy (see {@link MemoryGovernor}). As memory fills up,
+   * best-first search shrinks its frontier, breadth-first searches switch to fingerprints if {@link
+   * #fingerprintsUnderMemoryPressure()}, and eventually any search stops with {@link
+   * SearchResults.EndCondition#MEMORY_EXHAUSTED} rather than running out of memory.
+   */
+  private volatile boolean memoryGovernor = true;
+
+  /**
+   * Whether breadth-first searches which store full states switch to storing fingerprints when the
+   * memory governor finds memory running low, so they can go on for longer before stopping. Off by
+   * default, because it makes a lossless search lossy: once switched, an exhausted space no longer
+   * proves that no reachable state is violating. The switch is reported through {@link
+   * SearchResults#fingerprintCollisionProbability()}.
+   */
+  private volatile boolean fingerprintsUnderMemoryPressure = false;
+
+  /**
+   * The heap occupancy the memory governor budgets for, or -1 to use the maximum heap size. Can
+   * only lower the budget.
+   */
+  private volatile long maxMemoryBytes = -1;
+
+  /**
+   * The maximum number of states a search checks before stopping with {@link
+   * SearchResults.EndCondition#STATE_LIMIT_EXCEEDED}, or -1 for no limit. Distributed searches
+   * count the states their workers check at the end of each depth layer, so they may check up to a
+   * layer more.
+   */
+  private volatile long maxStates = -1;
+
+  /* Distributed search; see Search#distributedBfs */
+  private volatile int numWorkerProcesses = 2;
+
+  /**
+   * The directory breadth-first searches write checkpoints to, or {@code null} to disable
+   * checkpointing. A checkpoint is written at the end of a depth layer once {@link
+   * #checkpointIntervalSecs()} have passed since the previous one, replacing it; the search can be
+   * continued from the latest checkpoint with {@link Search#resume}. Checkpointing disables {@link
+   * #partialOrderReduction()}.
+   */
+  private transient volatile Path checkpointDir = null;
+
+  private volatile int checkpointIntervalSecs = 300;
 
   private final Collection<StatePredicate> prunes = new ConcurrentLinkedQueue<>();
   private final Collection<StatePredicate> goals = new ConcurrentLinkedQueue<>();
 
+  /* Groups of interchangeable nodes; see SymmetryReduction */
+  private final Collection<List<Address>> symmetricNodes = new ConcurrentLinkedQueue<>();
+
   private static int defaultNumThreads() {
     return Runtime.getRuntime().availableProcessors();
   }
@@ -75,7 +247,15 @@ public class SearchSettings extends TestSettings<SearchSettings> implements Clon
    * @return true if any prune predicates match the state
    */
   public final boolean shouldPrune(SearchState state) {
+    return shouldPrune(state, null);
+  }
+
+  /* Only evaluates the prunes which might have changed since the previous state; see Search */
+  final boolean shouldPrune(SearchState state, Search search) {
     for (StatePredicate p : prunes) {
+      if (!state.mustEvaluate(p, search)) {
+        continue;
+      }
       PredicateResult r = p.test(state, false);
       if (r == null) {
         continue;
@@ -101,6 +281,19 @@ public class SearchSettings extends TestSettings<SearchSettings> implements Clon
     return false;
   }
 
+  final PredicateResult invariantViolated(SearchState state, Search search) {
+    for (StatePredicate p : invariants()) {
+      if (!state.mustEvaluate(p, search)) {
+        continue;
+      }
+      PredicateResult r = p.test(state, true);
+      if (r != null) {
+        return r;
+      }
+    }
+    return null;
+  }
+
   public final SearchSettings addGoal(StatePredicate goal) {
     goals.add(goal);
     return this;
@@ -119,7 +312,14 @@ public class SearchSettings extends TestSettings<SearchSettings> implements Clon
    * @return the result or {@code null}
    */
   public final PredicateResult goalMatched(SearchState state) {
+    return goalMatched(state, null);
+  }
+
+  final PredicateResult goalMatched(SearchState state, Search search) {
     for (StatePredicate p : goals) {
+      if (!state.mustEvaluate(p, search)) {
+        continue;
+      }
       PredicateResult r = p.test(state, false);
       if (r == null) {
         continue;
@@ -134,6 +334,35 @@ public class SearchSettings extends TestSettings<SearchSettings> implements Clon
     return null;
   }
 
+  /**
+   * Declares the nodes with the given addresses to be interchangeable, enabling symmetry reduction.
+   * The search then only explores one state out of each set of states which differ only by a
+   * permutation of these addresses (see {@link SymmetryReduction}).
+   *
+   * <p>This is only sound if the nodes really are interchangeable: permuting their addresses
+   * everywhere in a reachable state must give a state that is also reachable and that every
+   * invariant, prune, and goal treats the same way. Symmetry reduction disables {@link
+   * #partialOrderReduction()}.
+   *
+   * @param addresses the addresses of the interchangeable nodes
+   * @return this
+   */
+  public final SearchSettings addSymmetricNodes(Address... addresses) {
+    if (addresses.length > 1) {
+      symmetricNodes.add(ImmutableList.copyOf(addresses));
+    }
+    return this;
+  }
+
+  public final SearchSettings clearSymmetricNodes() {
+    symmetricNodes.clear();
+    return this;
+  }
+
+  public boolean symmetryReduction() {
+    return !symmetricNodes.isEmpty();
+  }
+
   @Override
   public SearchSettings singleThreaded(boolean singleThreaded) {
     super.singleThreaded(singleThreaded);
@@ -164,6 +393,18 @@ public class SearchSettings extends TestSettings<SearchSettings> implements Clon
     return maxDepth >= 0;
   }
 
+  public boolean stateLimited() {
+    return maxStates >= 0;
+  }
+
+  public boolean iterativeDeepening() {
+    return iterativeDeepeningStep > 0;
+  }
+
+  public boolean checkpointing() {
+    return checkpointDir != null;
+  }
+
   @Override
   public SearchSettings maxTimeSecs(int maxTimeSecs) {
     super.maxTimeSecs(maxTimeSecs);
@@ -175,9 +416,34 @@ public class SearchSettings extends TestSettings<SearchSettings> implements Clon
     super.clear();
     clearPrunes();
     clearGoals();
+    clearSymmetricNodes();
     maxDepth(-1);
     outputFreqSecs(5);
     numThreads(defaultNumThreads());
+    visitedSetMode(VisitedSetMode.FULL_STATES);
+    bitstateMemoryBytes(64L << 20);
+    bitstateHashes(3);
+    partialOrderReduction(false);
+    iterativeDeepeningStep(-1);
+    transitionCacheSize(1 << 14);
+    heuristic(null);
+    heuristicDepthWeight(0);
+    bestFirstFrontierSize(1 << 20);
+    swarmSize(16);
+    swarmSeed(null);
+    swarmCacheSize(1 << 20);
+    coverageRandomSteps(32);
+    coverageCorpusSize(1 << 14);
+    compactTraces(true);
+    memoryGovernor(true);
+    fingerprintsUnderMemoryPressure(false);
+    maxMemoryBytes(-1);
+    maxStates(-1);
+    externalMemoryDir(null);
+    externalMemorySegmentSize(1 << 15);
+    numWorkerProcesses(2);
+    checkpointDir(null);
+    checkpointIntervalSecs(300);
     return this;
   }
 
@@ -187,9 +453,34 @@ public class SearchSettings extends TestSettings<SearchSettings> implements Clon
     super(s);
     goals.addAll(s.goals);
     prunes.addAll(s.prunes);
+    symmetricNodes.addAll(s.symmetricNodes);
     maxDepth = s.maxDepth;
     numThreads = s.numThreads;
     outputFreqSecs = s.outputFreqSecs;
+    visitedSetMode = s.visitedSetMode;
+    bitstateMemoryBytes = s.bitstateMemoryBytes;
+    bitstateHashes = s.bitstateHashes;
+    partialOrderReduction = s.partialOrderReduction;
+    iterativeDeepeningStep = s.iterativeDeepeningStep;
+    transitionCacheSize = s.transitionCacheSize;
+    heuristic = s.heuristic;
+    heuristicDepthWeight = s.heuristicDepthWeight;
+    bestFirstFrontierSize = s.bestFirstFrontierSize;
+    swarmSize = s.swarmSize;
+    swarmSeed = s.swarmSeed;
+    swarmCacheSize = s.swarmCacheSize;
+    coverageRandomSteps = s.coverageRandomSteps;
+    coverageCorpusSize = s.coverageCorpusSize;
+    compactTraces = s.compactTraces;
+    memoryGovernor = s.memoryGovernor;
+    fingerprintsUnderMemoryPressure = s.fingerprintsUnderMemoryPressure;
+    maxMemoryBytes = s.maxMemoryBytes;
+    maxStates = s.maxStates;
+    externalMemoryDir = s.externalMemoryDir;
+    externalMemorySegmentSize = s.externalMemorySegmentSize;
+    numWorkerProcesses = s.numWorkerProcesses;
+    checkpointDir = s.checkpointDir;
+    checkpointIntervalSecs = s.checkpointIntervalSecs;
   }
 
   @Override
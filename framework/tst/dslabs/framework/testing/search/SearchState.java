@@ -22,6 +22,7 @@
 
 package dslabs.framework.testing.search;
 
+import com.google.common.base.Predicate;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
@@ -40,6 +41,8 @@ import dslabs.framework.testing.StatePredicate;
 import dslabs.framework.testing.TimerEnvelope;
 import dslabs.framework.testing.Workload;
 import dslabs.framework.testing.utils.Cloning;
+import dslabs.framework.testing.utils.PersistentMap;
+import dslabs.framework.testing.utils.PersistentSet;
 import java.io.PrintStream;
 import java.io.Serializable;
 import java.util.ArrayList;
@@ -53,6 +56,7 @@ import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
 import java.util.Stack;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 import lombok.AccessLevel;
 import lombok.AllArgsConstructor;
@@ -60,30 +64,96 @@ import lombok.EqualsAndHashCode;
 import lombok.Getter;
 import lombok.NonNull;
 import lombok.RequiredArgsConstructor;
+import lombok.Setter;
 import lombok.extern.java.Log;
 import org.apache.commons.lang3.tuple.ImmutablePair;
 import org.apache.commons.lang3.tuple.Pair;
+import org.apache.commons.lang3.tuple.Triple;
 
 @Log
 @EqualsAndHashCode(callSuper = true, onlyExplicitlyIncluded = true)
 public final class SearchState extends AbstractState implements Serializable, Cloneable {
 
-  private final Set<MessageEnvelope> network;
+  /*
+   * The network and timers are persistent collections, so successor states share them with their
+   * predecessors and only pay for what changed.
+   */
+  private PersistentSet<MessageEnvelope> network;
 
   /**
    * Allows the state to store (temporarily) ignored messages, which are not considered as potential
    * steps during search.
    */
-  private final Set<MessageEnvelope> droppedNetwork;
+  private PersistentSet<MessageEnvelope> droppedNetwork;
 
-  @EqualsAndHashCode.Include private final Map<Address, TimerQueue> timers;
+  @EqualsAndHashCode.Include private PersistentMap<Address, TimerQueue> timers;
 
-  @Getter private final transient SearchState previous;
+  @Getter private transient SearchState previous;
   @Getter private final transient Event previousEvent;
   @Getter private final transient int depth;
 
   @Getter private transient Throwable thrownException;
 
+  /*
+   * The entry recording this state's trace in the search's TraceStore, once the state was detached
+   * from its previous state; TraceStore.ROOT if the trace starts at this state.
+   */
+  @Getter(AccessLevel.PACKAGE)
+  private transient int traceId = TraceStore.ROOT;
+
+  /*
+   * Partial-order reduction (see SleepSets): the events asleep in this state and, if the state is
+   * being expanded again, the only events left to explore. Only set on states in a search frontier.
+   */
+  @Getter(AccessLevel.PACKAGE)
+  @Setter(AccessLevel.PACKAGE)
+  private transient Set<Event> sleepSet, awakened;
+
+  /* Lazily computed fingerprint; invalidated whenever the state is modified. */
+  private transient boolean fingerprinted = false;
+  private transient long fingerprint, fingerprintHigh;
+
+  /*
+   * The terms the fingerprint is summed from, maintained incrementally so that a successor state
+   * only rehashes the node it cloned, that node's timers, and newly sent messages. Node and timer
+   * terms are computed lazily and removed whenever the node or its timers might change; the
+   * addresses whose terms were removed are stale. termsLow and termsHigh are the running sums of
+   * the node and timer terms which are not stale, carried over from the previous state, so
+   * computing a fingerprint only touches the stale addresses.
+   */
+  private transient PersistentMap<Address, long[]> nodeTerms;
+  private transient PersistentMap<Address, long[]> timerTerms;
+  private transient PersistentSet<Address> staleNodes, staleTimers;
+  private transient long termsLow, termsHigh;
+  private transient long networkLow, networkHigh, undroppedLow, undroppedHigh;
+
+  /*
+   * The undropped network indexed by destination root address, and the events enabled in this
+   * state while a search is running (see events()). A successor state derives its enabled events
+   * from its previous state's, only adding the messages it sent and recomputing the timers of the
+   * node it stepped, unless it was modified after being created.
+   */
+  private transient PersistentMap<Address, PersistentSet<MessageEnvelope>> messagesTo;
+  private transient volatile EnabledEvents enabledEvents;
+
+  /*
+   * The undropped network indexed by message class, built the first time it is queried and then
+   * maintained by successor states (see messagesOfType()); null until then.
+   */
+  private transient volatile PersistentMap<Class<?>, PersistentSet<MessageEnvelope>> messagesByType;
+
+  /* Whether this state differs from its previous state only by the step that created it */
+  private transient boolean onlyStepped;
+
+  /* The search which found this state valid, so all of its predicates had their normal values */
+  private transient volatile Search validIn;
+
+  @RequiredArgsConstructor
+  private static final class EnabledEvents {
+    private final Search search;
+    private final PersistentMap<Address, ImmutableList<Event>> messages, timers;
+  }
+
   // TODO: only return iterable for these in getter?
   @Getter private final transient Set<MessageEnvelope> newMessages;
   @Getter private final transient Set<TimerEnvelope> newTimers;
@@ -91,36 +161,95 @@ public final class SearchState extends AbstractState implements Serializable, Cl
   public SearchState(StateGenerator stateGenerator) {
     super(Collections.emptySet(), Collections.emptySet(), Collections.emptySet(), stateGenerator);
 
-    this.network = new HashSet<>();
-    this.droppedNetwork = new HashSet<>();
-    this.timers = new HashMap<>();
+    this.network = PersistentSet.empty();
+    this.droppedNetwork = PersistentSet.empty();
+    this.timers = PersistentMap.empty();
     this.previous = null;
     this.previousEvent = null;
     this.depth = 0;
     this.newMessages = new HashSet<>();
     this.newTimers = new HashSet<>();
+    this.nodeTerms = PersistentMap.empty();
+    this.timerTerms = PersistentMap.empty();
+    this.staleNodes = PersistentSet.empty();
+    this.staleTimers = PersistentSet.empty();
+    this.messagesTo = PersistentMap.empty();
   }
 
   /**
-   * Creates a successor state, only actually cloning the Node specified by address. Only that
-   * node's TimerQueue is cloned. Only that node is configured.
+   * Creates a successor state, only actually cloning the Node specified by address. Only that node
+   * is configured.
    */
   private SearchState(SearchState previous, Address addressToClone, Event previousEvent) {
     super(previous, addressToClone);
 
-    network = new HashSet<>(previous.network);
-    droppedNetwork = new HashSet<>(previous.droppedNetwork);
-    timers = new HashMap<>(previous.timers);
+    network = previous.network;
+    droppedNetwork = previous.droppedNetwork;
+    timers = previous.timers;
     this.previous = previous;
     this.previousEvent = previousEvent;
     depth = previous.depth + 1;
     newMessages = new HashSet<>();
     newTimers = new HashSet<>();
+    copyFingerprintTerms(previous);
+    invalidateNodeTerms(addressToClone);
+    invalidateTimerTerms(addressToClone);
+    messagesTo = previous.messagesTo;
+    messagesByType = previous.messagesByType;
+    onlyStepped = true;
 
-    timers.put(addressToClone, new TimerQueue(timers.get(addressToClone)));
     configNode(addressToClone);
   }
 
+  /**
+   * Creates a successor state from a cached transition of the node at address, sharing the cached
+   * node and its fingerprint terms instead of cloning and stepping it. The cached node is not
+   * reconfigured (see {@link #detachNode(Address)}).
+   */
+  private SearchState(
+      SearchState previous, Address address, Event previousEvent, TransitionCache.Outcome outcome) {
+    super(previous, address, outcome.node());
+
+    network = previous.network;
+    droppedNetwork = previous.droppedNetwork;
+    this.previous = previous;
+    this.previousEvent = previousEvent;
+    depth = previous.depth + 1;
+    newMessages = new HashSet<>();
+    newTimers = new HashSet<>();
+    copyFingerprintTerms(previous);
+    invalidateNodeTerms(address);
+    putNodeTerms(address, outcome.nodeTerms());
+    invalidateTimerTerms(address);
+    messagesTo = previous.messagesTo;
+    messagesByType = previous.messagesByType;
+    onlyStepped = true;
+
+    for (MessageEnvelope me : outcome.messages()) {
+      addToNetwork(me);
+      newMessages.add(me);
+    }
+    TimerQueue queue = previous.timers.get(address);
+    for (TimerEnvelope te : outcome.timers()) {
+      queue = queue.plus(te);
+      newTimers.add(te);
+    }
+    timers = previous.timers.plus(address, queue);
+  }
+
+  /**
+   * Records the outcome of stepping the node at address from this state to the successor ns, whose
+   * handler has already run. Detaches the node from ns, since the cache shares it.
+   */
+  private TransitionCache.Outcome outcome(SearchState ns, Address address) {
+    ns.detachNode(address);
+    return new TransitionCache.Outcome(
+        ns.node(address),
+        ns.lockedNodeTerms(address),
+        new ArrayList<>(ns.newMessages),
+        Lists.newArrayList(Iterables.skip(ns.timers.get(address), timers.get(address).size())));
+  }
+
   /**
    * Creates a shallow clone of this state. Does not actually clone any nodes, messages, timers,
    * etc.
@@ -128,14 +257,19 @@ public final class SearchState extends AbstractState implements Serializable, Cl
   private SearchState(SearchState source) {
     super(source, null);
 
-    network = new HashSet<>(source.network);
-    droppedNetwork = new HashSet<>(source.droppedNetwork);
-    timers = new HashMap<>(source.timers);
+    network = source.network;
+    droppedNetwork = source.droppedNetwork;
+    timers = source.timers;
     this.previous = source.previous;
     this.previousEvent = source.previousEvent;
     depth = source.depth;
     newMessages = new HashSet<>(source.newMessages);
     newTimers = new HashSet<>(source.newTimers);
+    copyFingerprintTerms(source);
+    messagesTo = source.messagesTo;
+    messagesByType = source.messagesByType;
+    enabledEvents = source.enabledEvents;
+    traceId = source.traceId;
   }
 
   /**
@@ -150,12 +284,95 @@ public final class SearchState extends AbstractState implements Serializable, Cl
     return new SearchState(this);
   }
 
+  /**
+   * Creates a copy of a state which was read back after being serialized, re-initializing the
+   * transient fields which serialization drops. The copy has no previous state.
+   */
+  private SearchState(SearchState deserialized, int depth) {
+    super(deserialized, null);
+
+    network = deserialized.network;
+    droppedNetwork = deserialized.droppedNetwork;
+    timers = deserialized.timers;
+    this.previous = null;
+    this.previousEvent = null;
+    this.depth = depth;
+    newMessages = new HashSet<>();
+    newTimers = new HashSet<>();
+    nodeTerms = PersistentMap.empty();
+    timerTerms = PersistentMap.empty();
+    staleNodes = PersistentSet.copyOf(Lists.newArrayList(addresses()));
+    staleTimers = PersistentSet.copyOf(timers.keySet());
+    recomputeNetworkTerms();
+    messagesTo = PersistentMap.empty();
+    for (MessageEnvelope me : network) {
+      indexMessage(me);
+    }
+  }
+
+  /**
+   * Re-initializes a state which was serialized and then deserialized so that it can be stepped.
+   * Used by search strategies which store states outside of memory.
+   *
+   * @param depth the depth of the state in the search
+   * @return an equal state with the given depth and no previous state
+   */
+  SearchState restored(int depth) {
+    return new SearchState(this, depth);
+  }
+
+  /**
+   * Drops this state's reference to its previous state, whose trace must then be recorded in the
+   * search's {@link TraceStore}. First computes the events enabled in this state, since they are
+   * derived from the previous state's.
+   *
+   * @param traceId the entry recording this state's trace
+   * @param settings the search settings
+   */
+  void detach(int traceId, SearchSettings settings) {
+    if (previous != null) {
+      enabledEvents(settings);
+      previous = null;
+    }
+    this.traceId = traceId;
+  }
+
   @Override
   @EqualsAndHashCode.Include
   public Iterable<MessageEnvelope> network() {
     return Sets.union(network, droppedNetwork);
   }
 
+  @Override
+  public Iterable<MessageEnvelope> messagesOfType(Class<? extends Message> type) {
+    PersistentMap<Class<?>, PersistentSet<MessageEnvelope>> byType = messagesByType;
+    if (byType == null) {
+      byType = PersistentMap.empty();
+      for (MessageEnvelope me : network) {
+        byType = indexByType(byType, me);
+      }
+      messagesByType = byType;
+    }
+
+    final List<Iterable<MessageEnvelope>> matching = new ArrayList<>();
+    for (Map.Entry<Class<?>, PersistentSet<MessageEnvelope>> e : byType.entrySet()) {
+      if (type.isAssignableFrom(e.getKey())) {
+        matching.add(e.getValue());
+      }
+    }
+    matching.add(droppedMatching(me -> type.isInstance(me.message())));
+    return Iterables.concat(matching);
+  }
+
+  @Override
+  public Iterable<MessageEnvelope> messagesTo(Address to) {
+    final PersistentSet<MessageEnvelope> inbox = messagesTo.get(to.rootAddress());
+    final Predicate<MessageEnvelope> sentTo = me -> me.to().equals(to);
+    return Iterables.concat(
+        inbox == null ? Collections.emptyList() : Iterables.filter(inbox, sentTo),
+        droppedMatching(sentTo));
+  }
+
   @Override
   public Iterable<TimerEnvelope> timers(Address address) {
     return timers.get(address);
@@ -171,14 +388,22 @@ public final class SearchState extends AbstractState implements Serializable, Cl
       }
     }
 
-    timers.put(address, new TimerQueue());
+    timers = timers.plus(address, TimerQueue.empty());
     configNode(address);
     node(address).init();
+    invalidateNodeTerms(address);
+    invalidateTimerTerms(address);
+    fingerprinted = false;
+    modified();
   }
 
   @Override
   protected void ensureNodeConfig(Address address) {
     configNode(address);
+    // The node is about to be modified
+    invalidateNodeTerms(address);
+    fingerprinted = false;
+    modified();
   }
 
   @Override
@@ -194,17 +419,19 @@ public final class SearchState extends AbstractState implements Serializable, Cl
               Message m = Cloning.clone(me.getRight());
               MessageEnvelope messageEnvelope =
                   new MessageEnvelope(me.getLeft(), me.getMiddle(), m);
-              network.add(messageEnvelope);
+              addToNetwork(messageEnvelope);
               newMessages.add(messageEnvelope);
+              fingerprinted = false;
             },
             me -> {
               // Clone on message send
               Message m = Cloning.clone(me.getRight());
               for (Address to : me.getMiddle()) {
                 MessageEnvelope messageEnvelope = new MessageEnvelope(me.getLeft(), to, m);
-                network.add(messageEnvelope);
+                addToNetwork(messageEnvelope);
                 newMessages.add(messageEnvelope);
               }
+              fingerprinted = false;
             },
             te -> {
               // Clone on timer set
@@ -212,43 +439,175 @@ public final class SearchState extends AbstractState implements Serializable, Cl
               Pair<Integer, Integer> bounds = te.getRight();
               TimerEnvelope timerEnvelope =
                   new TimerEnvelope(te.getLeft(), t, bounds.getLeft(), bounds.getRight());
-              timers.get(timerEnvelope.to().rootAddress()).add(timerEnvelope);
+              final Address root = timerEnvelope.to().rootAddress();
+              timers = timers.plus(root, timers.get(root).plus(timerEnvelope));
+              invalidateTimerTerms(root);
               newTimers.add(timerEnvelope);
+              fingerprinted = false;
             },
             t -> {
               assert t != null;
               assert thrownException == null;
               thrownException = t;
+              fingerprinted = false;
             },
             false);
   }
 
+  /* Stepping a detached node is a bug; see detachNode */
+  private static final Consumer<Triple<Address, Address, Message>> DETACHED_MESSAGE_ADDER =
+      me -> {
+        throw new IllegalStateException("Detached node must be cloned before it is stepped");
+      };
+  private static final Consumer<Triple<Address, Timer, Pair<Integer, Integer>>>
+      DETACHED_TIMER_ADDER =
+          te -> {
+            throw new IllegalStateException("Detached node must be cloned before it is stepped");
+          };
+
+  /**
+   * Reconfigures the node at address so that it no longer refers to this state. Nodes are cloned
+   * (and the clones configured) before they are stepped, so the node of a state is only ever
+   * stepped by the state which cloned it; after that, the node can be shared without keeping the
+   * state reachable.
+   */
+  private void detachNode(Address address) {
+    node(address).config(DETACHED_MESSAGE_ADDER, null, DETACHED_TIMER_ADDER, null, true);
+  }
+
   Collection<Event> events(SearchSettings settings) {
     if (settings == null) {
       settings = new SearchSettings();
     }
 
-    List<Event> events = new LinkedList<>();
+    final EnabledEvents enabled = enabledEvents(settings);
+    final List<Event> events = new ArrayList<>();
+    for (Address address : addresses()) {
+      events.addAll(enabled.messages.getOrDefault(address, ImmutableList.of()));
+      events.addAll(enabled.timers.getOrDefault(address, ImmutableList.of()));
+    }
+    return events;
+  }
 
-    // These checks MUST stay in-sync with the individual step methods
+  private EnabledEvents enabledEvents(SearchSettings settings) {
+    final Search search = settings.activeSearch();
+    EnabledEvents enabled = enabledEvents;
+    if (search != null && enabled != null && enabled.search == search) {
+      return enabled;
+    }
 
-    // Deliver all possible messages
-    for (MessageEnvelope message : network) {
-      if (hasNode(message.to().rootAddress()) && settings.shouldDeliver(message)) {
-        events.add(new Event(message));
-      }
+    final EnabledEvents previousEnabled = previous == null ? null : previous.enabledEvents;
+    if (search != null
+        && onlyStepped
+        && previousEnabled != null
+        && previousEnabled.search == search) {
+      enabled = successorEvents(previousEnabled, settings);
+    } else {
+      enabled = computeEvents(search, settings);
     }
 
-    // Deliver all possible timers
+    // Outside of a search, the settings might change before the next call
+    if (search != null) {
+      enabledEvents = enabled;
+    }
+    return enabled;
+  }
+
+  // These checks MUST stay in-sync with the individual step methods
+
+  private EnabledEvents computeEvents(Search search, SearchSettings settings) {
+    PersistentMap<Address, ImmutableList<Event>> messages = PersistentMap.empty(),
+        timers = PersistentMap.empty();
     for (Address address : addresses()) {
-      if (settings.deliverTimers(address)) {
-        for (TimerEnvelope timer : timers.get(address).deliverable()) {
-          events.add(new Event(timer));
+      // Deliver all possible messages
+      final PersistentSet<MessageEnvelope> inbox = messagesTo.get(address);
+      if (inbox != null) {
+        final ImmutableList.Builder<Event> events = ImmutableList.builder();
+        for (MessageEnvelope message : inbox) {
+          if (settings.shouldDeliver(message)) {
+            events.add(new Event(message));
+          }
         }
+        messages = messages.plus(address, events.build());
       }
+
+      // Deliver all possible timers
+      timers = timers.plus(address, timerEvents(address, settings));
     }
+    return new EnabledEvents(search, messages, timers);
+  }
 
-    return events;
+  private EnabledEvents successorEvents(EnabledEvents previousEnabled, SearchSettings settings) {
+    PersistentMap<Address, ImmutableList<Event>> messages = previousEnabled.messages;
+    for (MessageEnvelope message : newMessages) {
+      final Address to = message.to().rootAddress();
+      // Messages already in the network were enabled (or not) in the previous state
+      if (previous.network.contains(message) || !hasNode(to) || !settings.shouldDeliver(message)) {
+        continue;
+      }
+      messages =
+          messages.plus(
+              to,
+              ImmutableList.<Event>builder()
+                  .addAll(messages.getOrDefault(to, ImmutableList.of()))
+                  .add(new Event(message))
+                  .build());
+    }
+
+    final Address stepped = previousEvent.locationRootAddress();
+    return new EnabledEvents(
+        previousEnabled.search,
+        messages,
+        previousEnabled.timers.plus(stepped, timerEvents(stepped, settings)));
+  }
+
+  private ImmutableList<Event> timerEvents(Address address, SearchSettings settings) {
+    if (!settings.deliverTimers(address)) {
+      return ImmutableList.of();
+    }
+    final ImmutableList.Builder<Event> events = ImmutableList.builder();
+    for (TimerEnvelope timer : timers.get(address).deliverable()) {
+      events.add(new Event(timer));
+    }
+    return events.build();
+  }
+
+  /* Called whenever the state is modified other than by the step that created it */
+  private void modified() {
+    enabledEvents = null;
+    onlyStepped = false;
+    validIn = null;
+  }
+
+  /**
+   * Records that the search checked this state and found it valid: every invariant held, and no
+   * goal or prune matched.
+   */
+  void validIn(Search search) {
+    validIn = search;
+  }
+
+  /**
+   * Whether the predicate must be evaluated on this state during the search, or whether it is known
+   * to have its normal value because the search found the previous state valid and the step in
+   * between changed nothing the predicate reads (see {@link StatePredicate.ReadSet}).
+   *
+   * @param predicate the predicate
+   * @param search the running search, or {@code null} to always evaluate the predicate
+   * @return whether the predicate must be evaluated
+   */
+  boolean mustEvaluate(StatePredicate predicate, Search search) {
+    if (search == null
+        || !onlyStepped
+        || previous == null
+        || previous.validIn != search
+        || previousEvent == null) {
+      return true;
+    }
+    final Address stepped = previousEvent.locationRootAddress();
+    return predicate
+        .readSet()
+        .affectedBy(stepped, clientWorker(stepped) != null, network != previous.network);
   }
 
   /**
@@ -285,6 +644,11 @@ public final class SearchState extends AbstractState implements Serializable, Cl
     return null;
   }
 
+  private static TransitionCache transitionCache(SearchSettings settings) {
+    final Search search = settings.activeSearch();
+    return search == null ? null : search.transitionCache();
+  }
+
   public SearchState stepMessage(
       MessageEnvelope message, SearchSettings settings, boolean skipChecks) {
     if (settings == null) {
@@ -299,12 +663,26 @@ public final class SearchState extends AbstractState implements Serializable, Cl
       return null;
     }
 
+    final TransitionCache cache = transitionCache(settings);
+    TransitionCache.Transition transition = null;
+    if (cache != null) {
+      transition = TransitionCache.messageTransition(lockedNodeTerms(toAddress), message);
+      TransitionCache.Outcome outcome = cache.get(transition);
+      if (outcome != null) {
+        return new SearchState(this, toAddress, new Event(message), outcome);
+      }
+    }
+
     SearchState ns = new SearchState(this, toAddress, new Event(message));
     Message nm = Cloning.clone(message.message());
     Node n = ns.node(toAddress);
 
     // Just handle, don't remove since messages can be duplicated.
     n.handleMessage(nm, message.from(), message.to());
+
+    if (cache != null && ns.thrownException == null) {
+      cache.put(transition, outcome(ns, toAddress));
+    }
     return ns;
   }
 
@@ -355,12 +733,32 @@ public final class SearchState extends AbstractState implements Serializable, Cl
       return null;
     }
 
-    SearchState ns = new SearchState(this, toAddress, new Event(timer));
-    Timer nt = Cloning.clone(timer.timer());
-    Node n = ns.node(toAddress);
+    final TransitionCache cache = transitionCache(settings);
+    TransitionCache.Transition transition = null;
+    SearchState ns = null;
+    if (cache != null) {
+      transition = TransitionCache.timerTransition(lockedNodeTerms(toAddress), timer);
+      TransitionCache.Outcome outcome = cache.get(transition);
+      if (outcome != null) {
+        ns = new SearchState(this, toAddress, new Event(timer), outcome);
+      }
+    }
+
+    if (ns == null) {
+      ns = new SearchState(this, toAddress, new Event(timer));
+      Timer nt = Cloning.clone(timer.timer());
+      Node n = ns.node(toAddress);
+
+      n.onTimer(nt, timer.to());
 
-    n.onTimer(nt, timer.to());
-    ns.timers.get(toAddress).remove(timer);
+      if (cache != null && ns.thrownException == null) {
+        cache.put(transition, outcome(ns, toAddress));
+      }
+    }
+
+    ns.timers = ns.timers.plus(toAddress, ns.timers.get(toAddress).minus(timer));
+    ns.invalidateTimerTerms(toAddress);
+    ns.fingerprinted = false;
     return ns;
   }
 
@@ -543,28 +941,42 @@ public final class SearchState extends AbstractState implements Serializable, Cl
    * potential steps. Allows re-narrowing of a search. Use with caution.
    */
   public void dropPendingMessages() {
-    droppedNetwork.addAll(network);
-    network.clear();
+    droppedNetwork = droppedNetwork.plusAll(network);
+    network = PersistentSet.empty();
+    messagesTo = PersistentMap.empty();
+    messagesByType = null;
+    modified();
+    undroppedLow = 0;
+    undroppedHigh = 0;
+    fingerprinted = false;
   }
 
   public void undropMessages() {
-    network.addAll(droppedNetwork);
+    for (MessageEnvelope m : droppedNetwork) {
+      addToNetwork(m);
+    }
+    fingerprinted = false;
+    modified();
   }
 
   public void undropMessagesFrom(Address a) {
     for (MessageEnvelope m : droppedNetwork) {
       if (m.from().equals(a)) {
-        network.add(m);
+        addToNetwork(m);
       }
     }
+    fingerprinted = false;
+    modified();
   }
 
   public void undropMessagesTo(Address a) {
     for (MessageEnvelope m : droppedNetwork) {
       if (m.to().equals(a)) {
-        network.add(m);
+        addToNetwork(m);
       }
     }
+    fingerprinted = false;
+    modified();
   }
 
   /**
@@ -595,6 +1007,10 @@ public final class SearchState extends AbstractState implements Serializable, Cl
         return false;
       }
       final SearchEquivalenceWrappedSearchState other = (SearchEquivalenceWrappedSearchState) o;
+      // Fingerprints respect search-equivalence and are much cheaper to compare
+      if (state.fingerprint() != other.state.fingerprint()) {
+        return false;
+      }
       if (!Objects.equals(state, other.state)) {
         return false;
       }
@@ -608,16 +1024,7 @@ public final class SearchState extends AbstractState implements Serializable, Cl
     }
 
     public int hashCode() {
-      final int PRIME = 59;
-      int result = 1;
-      result = result * PRIME + (state == null ? 43 : state.hashCode());
-      result =
-          result * PRIME + (state.thrownException == null ? 43 : state.thrownException.hashCode());
-      if (state.droppedNetwork.isEmpty()) {
-        return result;
-      }
-      result = result * PRIME + (state.network == null ? 43 : state.network.hashCode());
-      return result;
+      return Long.hashCode(state.fingerprint());
     }
   }
 
@@ -625,6 +1032,266 @@ public final class SearchState extends AbstractState implements Serializable, Cl
     return new SearchEquivalenceWrappedSearchState(this);
   }
 
+  /*
+   * Fingerprints are computed from 128-bit content hashes of the individual nodes, envelopes, and
+   * timer queues (see ContentHash), each mixed into two independent 64-bit lanes. The per-component
+   * terms are summed, so the result does not depend on iteration order and can be updated
+   * incrementally. Fingerprints respect search-equivalence: states whose wrapped versions are equal
+   * have equal fingerprints, as long as the components' equals satisfy ContentHash's assumptions.
+   */
+
+  private static final long FINGERPRINT_SEED = 0x9e3779b97f4a7c15L,
+      FINGERPRINT_HIGH_SEED = 0xc2b2ae3d27d4eb4fL;
+  private static final int SERVER_TAG = 1,
+      CLIENT_WORKER_TAG = 2,
+      CLIENT_TAG = 3,
+      NETWORK_TAG = 4,
+      TIMERS_TAG = 5,
+      EXCEPTION_TAG = 6,
+      UNDROPPED_NETWORK_TAG = 7;
+
+  private static long fmix64(long k) {
+    k ^= k >>> 33;
+    k *= 0xff51afd7ed558ccdL;
+    k ^= k >>> 33;
+    k *= 0xc4ceb9fe1a85ec53L;
+    k ^= k >>> 33;
+    return k;
+  }
+
+  private static long fingerprintTerm(long seed, int tag, long hash) {
+    return fmix64(seed ^ fmix64(hash + seed * tag));
+  }
+
+  /* Each lane is a bijection of the corresponding lane of the content hash */
+  private static long[] fingerprintTerms(int tag, long[] hash) {
+    return new long[] {
+      fingerprintTerm(FINGERPRINT_SEED, tag, hash[0]),
+      fingerprintTerm(FINGERPRINT_HIGH_SEED, tag, hash[1])
+    };
+  }
+
+  /** Adds the message to the non-dropped network, updating the network terms. */
+  private void addToNetwork(MessageEnvelope me) {
+    final PersistentSet<MessageEnvelope> n = network.plus(me);
+    if (n == network) {
+      return;
+    }
+    network = n;
+    indexMessage(me);
+    final long[] mh = ContentHash.of(me);
+    undroppedLow += fingerprintTerm(FINGERPRINT_SEED, UNDROPPED_NETWORK_TAG, mh[0]);
+    undroppedHigh += fingerprintTerm(FINGERPRINT_HIGH_SEED, UNDROPPED_NETWORK_TAG, mh[1]);
+    if (!droppedNetwork.contains(me)) {
+      networkLow += fingerprintTerm(FINGERPRINT_SEED, NETWORK_TAG, mh[0]);
+      networkHigh += fingerprintTerm(FINGERPRINT_HIGH_SEED, NETWORK_TAG, mh[1]);
+    }
+  }
+
+  private void indexMessage(MessageEnvelope me) {
+    final Address to = me.to().rootAddress();
+    messagesTo = messagesTo.plus(to, messagesTo.getOrDefault(to, PersistentSet.empty()).plus(me));
+    final PersistentMap<Class<?>, PersistentSet<MessageEnvelope>> byType = messagesByType;
+    if (byType != null) {
+      messagesByType = indexByType(byType, me);
+    }
+  }
+
+  private static PersistentMap<Class<?>, PersistentSet<MessageEnvelope>> indexByType(
+      PersistentMap<Class<?>, PersistentSet<MessageEnvelope>> byType, MessageEnvelope me) {
+    final Class<?> type = me.message().getClass();
+    return byType.plus(type, byType.getOrDefault(type, PersistentSet.empty()).plus(me));
+  }
+
+  /* Dropped messages are not indexed; they are scanned, skipping any which were undropped. */
+  private Iterable<MessageEnvelope> droppedMatching(Predicate<MessageEnvelope> predicate) {
+    if (droppedNetwork.isEmpty()) {
+      return Collections.emptyList();
+    }
+    return Iterables.filter(droppedNetwork, me -> !network.contains(me) && predicate.test(me));
+  }
+
+  private void recomputeNetworkTerms() {
+    networkLow = networkHigh = undroppedLow = undroppedHigh = 0;
+    for (MessageEnvelope me : network()) {
+      final long[] mh = ContentHash.of(me);
+      networkLow += fingerprintTerm(FINGERPRINT_SEED, NETWORK_TAG, mh[0]);
+      networkHigh += fingerprintTerm(FINGERPRINT_HIGH_SEED, NETWORK_TAG, mh[1]);
+      if (network.contains(me)) {
+        undroppedLow += fingerprintTerm(FINGERPRINT_SEED, UNDROPPED_NETWORK_TAG, mh[0]);
+        undroppedHigh += fingerprintTerm(FINGERPRINT_HIGH_SEED, UNDROPPED_NETWORK_TAG, mh[1]);
+      }
+    }
+  }
+
+  private void copyFingerprintTerms(SearchState source) {
+    synchronized (source) {
+      nodeTerms = source.nodeTerms;
+      timerTerms = source.timerTerms;
+      staleNodes = source.staleNodes;
+      staleTimers = source.staleTimers;
+      termsLow = source.termsLow;
+      termsHigh = source.termsHigh;
+      networkLow = source.networkLow;
+      networkHigh = source.networkHigh;
+      undroppedLow = source.undroppedLow;
+      undroppedHigh = source.undroppedHigh;
+    }
+  }
+
+  private void invalidateNodeTerms(Address a) {
+    final long[] t = nodeTerms.get(a);
+    if (t != null) {
+      nodeTerms = nodeTerms.minus(a);
+      termsLow -= t[0];
+      termsHigh -= t[1];
+    }
+    staleNodes = staleNodes.plus(a);
+  }
+
+  private void invalidateTimerTerms(Address a) {
+    final long[] t = timerTerms.get(a);
+    if (t != null) {
+      timerTerms = timerTerms.minus(a);
+      termsLow -= t[0];
+      termsHigh -= t[1];
+    }
+    staleTimers = staleTimers.plus(a);
+  }
+
+  private int nodeTag(Address a) {
+    if (server(a) != null) {
+      return SERVER_TAG;
+    }
+    if (clientWorker(a) != null) {
+      return CLIENT_WORKER_TAG;
+    }
+    return CLIENT_TAG;
+  }
+
+  private long[] nodeTerms(Address a) {
+    long[] t = nodeTerms.get(a);
+    if (t == null) {
+      t = fingerprintTerms(nodeTag(a), ContentHash.of(a, node(a)));
+      putNodeTerms(a, t);
+    }
+    return t;
+  }
+
+  /** The fingerprint terms of the node at address, for use outside of fingerprinting. */
+  private synchronized long[] lockedNodeTerms(Address a) {
+    return nodeTerms(a);
+  }
+
+  /** Must only be called when the node's terms are stale. */
+  private void putNodeTerms(Address a, long[] t) {
+    nodeTerms = nodeTerms.plus(a, t);
+    staleNodes = staleNodes.minus(a);
+    termsLow += t[0];
+    termsHigh += t[1];
+  }
+
+  private long[] timerTerms(Address a) {
+    long[] t = timerTerms.get(a);
+    if (t == null) {
+      t = fingerprintTerms(TIMERS_TAG, ContentHash.of(a, timers.get(a)));
+      timerTerms = timerTerms.plus(a, t);
+      staleTimers = staleTimers.minus(a);
+      termsLow += t[0];
+      termsHigh += t[1];
+    }
+    return t;
+  }
+
+  private void computeFingerprint() {
+    // Only the stale terms are (re)computed; the rest are already in the running sums
+    for (Address a : staleNodes) {
+      nodeTerms(a);
+    }
+    for (Address a : staleTimers) {
+      timerTerms(a);
+    }
+    long low = termsLow + networkLow + undroppedLow, high = termsHigh + networkHigh + undroppedHigh;
+
+    if (thrownException != null) {
+      final long[] eh = ContentHash.of(thrownException);
+      low += fingerprintTerm(FINGERPRINT_SEED, EXCEPTION_TAG, eh[0]);
+      high += fingerprintTerm(FINGERPRINT_HIGH_SEED, EXCEPTION_TAG, eh[1]);
+    }
+
+    fingerprint = fmix64(low);
+    fingerprintHigh = fmix64(high ^ FINGERPRINT_HIGH_SEED);
+    fingerprinted = true;
+  }
+
+  /**
+   * A 64-bit fingerprint of this state, consistent with search-equivalence. Distinct states might
+   * share a fingerprint.
+   *
+   * @return the fingerprint
+   */
+  synchronized long fingerprint() {
+    if (!fingerprinted) {
+      computeFingerprint();
+    }
+    return fingerprint;
+  }
+
+  /**
+   * A second, independently computed 64-bit fingerprint. Together with {@link #fingerprint()},
+   * forms a 128-bit fingerprint of this state.
+   *
+   * @return the high 64 bits of the fingerprint
+   */
+  synchronized long fingerprintHigh() {
+    if (!fingerprinted) {
+      computeFingerprint();
+    }
+    return fingerprintHigh;
+  }
+
+  /** Receives the components of a state; see {@link #forEachComponent(ComponentConsumer)}. */
+  @FunctionalInterface
+  interface ComponentConsumer {
+    /**
+     * @param tag the kind of component
+     * @param address the address the component belongs to, or {@code null}
+     * @param component the component
+     * @param hash a hash of the tag, address, and component, consistent with their equals
+     */
+    void accept(int tag, Address address, Object component, long hash);
+  }
+
+  /**
+   * Passes every component of this state which search-equivalence compares to the consumer: each
+   * node and timer queue, the network (both with and without dropped messages), and the thrown
+   * exception, if any. Two states are search-equivalent iff they have equal sets of (tag, address,
+   * component) triples. The hashes are the cached fingerprint terms, so they are cheap to compute.
+   */
+  synchronized void forEachComponent(ComponentConsumer consumer) {
+    for (Address a : serverAddresses()) {
+      consumer.accept(SERVER_TAG, a, node(a), nodeTerms(a)[0]);
+    }
+    for (Address a : clientWorkerAddresses()) {
+      consumer.accept(CLIENT_WORKER_TAG, a, node(a), nodeTerms(a)[0]);
+    }
+    for (Address a : clientAddresses()) {
+      consumer.accept(CLIENT_TAG, a, node(a), nodeTerms(a)[0]);
+    }
+    for (Map.Entry<Address, TimerQueue> e : timers.entrySet()) {
+      consumer.accept(TIMERS_TAG, e.getKey(), e.getValue(), timerTerms(e.getKey())[0]);
+    }
+    consumer.accept(
+        NETWORK_TAG,
+        null,
+        droppedNetwork.isEmpty() ? network : Sets.union(network, droppedNetwork),
+        networkLow);
+    consumer.accept(UNDROPPED_NETWORK_TAG, null, network, undroppedLow);
+    if (thrownException != null) {
+      consumer.accept(EXCEPTION_TAG, null, thrownException, thrownException.hashCode());
+    }
+  }
+
   @Override
   public String toString() {
     return String.format(
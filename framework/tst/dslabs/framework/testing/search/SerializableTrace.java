@@ -28,12 +28,12 @@ import dslabs.framework.testing.StateGenerator;
 import dslabs.framework.testing.StatePredicate;
 import dslabs.framework.testing.Workload;
 import dslabs.framework.testing.utils.GlobalSettings;
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.OutputStream;
 import java.io.Serial;
 import java.io.Serializable;
 import java.nio.file.Files;
@@ -44,20 +44,21 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
 import java.util.Objects;
-import lombok.AccessLevel;
 import lombok.Getter;
 import lombok.NonNull;
-import lombok.RequiredArgsConstructor;
 import org.apache.commons.lang3.tuple.Pair;
 
 /**
  * Fully serializable object containing the configuration information, full event history, and
  * correctness checking information. Used to save and replay model checking test case failures.
+ *
+ * <p>Traces are saved in the binary format described in {@link TraceFormat}, compressed if {@link
+ * GlobalSettings#compressTraces()}. Traces saved with plain Java serialization by older versions of
+ * the framework can still be loaded.
  */
-@RequiredArgsConstructor(access = AccessLevel.PACKAGE)
 @Getter
 public class SerializableTrace implements Serializable {
-  // Increment this when compatability is broken
+  // Increment this when compatability is broken (only used by traces in the legacy format)
   @Serial private static final long serialVersionUID = 42L;
 
   private static final String TRACE_DIR_NAME = "traces", TRACE_FILE_EXTENSION = ".trace";
@@ -68,16 +69,62 @@ public class SerializableTrace implements Serializable {
   private final Collection<Address> servers;
   private final Collection<Pair<Address, Workload>> clientWorkers;
 
-  @NonNull private final String labId;
+  private final String labId;
   private final Integer labPart;
 
   private final String testClassName;
   private final String testMethodName;
 
-  private final LocalDateTime createdDate = LocalDateTime.now();
+  private final LocalDateTime createdDate;
 
   private transient String fileName = null;
 
+  SerializableTrace(
+      List<Event> history,
+      Collection<StatePredicate> invariants,
+      StateGenerator stateGenerator,
+      Collection<Address> servers,
+      Collection<Pair<Address, Workload>> clientWorkers,
+      @NonNull String labId,
+      Integer labPart,
+      String testClassName,
+      String testMethodName) {
+    this(
+        history,
+        invariants,
+        stateGenerator,
+        servers,
+        clientWorkers,
+        labId,
+        labPart,
+        testClassName,
+        testMethodName,
+        LocalDateTime.now());
+  }
+
+  SerializableTrace(
+      List<Event> history,
+      Collection<StatePredicate> invariants,
+      StateGenerator stateGenerator,
+      Collection<Address> servers,
+      Collection<Pair<Address, Workload>> clientWorkers,
+      @NonNull String labId,
+      Integer labPart,
+      String testClassName,
+      String testMethodName,
+      LocalDateTime createdDate) {
+    this.history = history;
+    this.invariants = invariants;
+    this.stateGenerator = stateGenerator;
+    this.servers = servers;
+    this.clientWorkers = clientWorkers;
+    this.labId = labId;
+    this.labPart = labPart;
+    this.testClassName = testClassName;
+    this.testMethodName = testMethodName;
+    this.createdDate = createdDate;
+  }
+
   private static void ensureTraceDirExists() {
     final File traceDir = new File(TRACE_DIR_NAME);
     if (!traceDir.exists() || !traceDir.isDirectory()) {
@@ -112,9 +159,8 @@ public class SerializableTrace implements Serializable {
   void save() {
     ensureTraceDirExists();
     final Path filePath = savePath();
-    try (ObjectOutputStream traceFile =
-        new ObjectOutputStream(new FileOutputStream(filePath.toString()))) {
-      traceFile.writeObject(this);
+    try (OutputStream traceFile = new BufferedOutputStream(Files.newOutputStream(filePath))) {
+      TraceFormat.write(this, traceFile, GlobalSettings.compressTraces());
       if (GlobalSettings.verbose()) {
         System.out.println("Saved trace to " + filePath + "\n");
       }
@@ -168,8 +214,15 @@ public class SerializableTrace implements Serializable {
 
   private static SerializableTrace loadTrace(Path tracePath) {
     SerializableTrace trace;
-    try (ObjectInputStream is = new ObjectInputStream(new FileInputStream(tracePath.toFile()))) {
-      trace = (SerializableTrace) is.readObject();
+    try {
+      if (TraceFormat.isTraceFile(tracePath)) {
+        trace = TraceFormat.read(tracePath);
+      } else {
+        try (ObjectInputStream is =
+            new ObjectInputStream(new FileInputStream(tracePath.toFile()))) {
+          trace = (SerializableTrace) is.readObject();
+        }
+      }
       trace.fileName = tracePath.getFileName().toString();
     } catch (ClassNotFoundException | IOException e) {
       if (GlobalSettings.verbose()) {
@@ -0,0 +1,252 @@
+/*
+ * Copyright (c) 2018 Ellis Michael (emichael@cs.washington.edu)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package dslabs.framework.testing.search;
+
+import dslabs.framework.testing.Event;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Sleep-set partial-order reduction for search strategies with a visited set.
+ *
+ * <p>Two events are independent if they are delivered to different root nodes. Stepping an event
+ * only clones and modifies its destination node (and that node's timers), and messages are never
+ * removed from the network, so independent events commute and neither disables the other. When a
+ * state is expanded, each event is put to "sleep" in the successors reached by the events explored
+ * after it that are independent of it; a sleeping event is not explored again until a dependent
+ * event is taken. The interleavings skipped this way all reach states reachable through an explored
+ * interleaving of the same length.
+ *
+ * <p>Sleep sets only prune transitions, never states: every reachable state is still discovered and
+ * checked, so any invariant or goal predicate is evaluated on exactly the same states as without
+ * reduction. The savings are in the successors that are never generated, which would otherwise each
+ * require cloning and stepping a node only to be found in the visited set.
+ *
+ * <p>That argument relies on the explored interleaving reaching every state the skipped ones do.
+ * Prune predicates break it: a state on the explored interleaving may be pruned while the states of
+ * a skipped interleaving are not, losing everything beyond them. Partial-order reduction is
+ * therefore not used with prune predicates. A depth limit is fine, since all interleavings of the
+ * same events have the same length.
+ *
+ * <p>Because the visited set cuts off states reached again through a different interleaving, the
+ * sleep set a state was first expanded with is remembered. If the state is reached again with a
+ * sleep set that is missing some of those events, it is expanded once more with only the missing
+ * events (Godefroid's "sleep sets with state caching"). Only non-empty sleep sets are remembered,
+ * and only for states which were not pruned: a state that is reached again before it has been
+ * checked just has its pending sleep set narrowed, and a pruned state is never expanded.
+ *
+ * <p>The remembered sleep sets must outlive the states' expansions, so their memory grows with the
+ * number of states discovered. Partial-order reduction is therefore only used with {@link
+ * SearchSettings.VisitedSetMode#FULL_STATES}, whose visited set keeps every state anyway; it would
+ * defeat the point of the compact visited sets.
+ *
+ * <p>Safe for concurrent access.
+ */
+final class SleepSets {
+  /** The result of {@link #discover(SearchState, List, int, SearchState)}. */
+  enum Discovery {
+    /** The state was not previously discovered. */
+    NEW,
+    /** The state was discovered before, but must be expanded again with some events. */
+    REEXPAND,
+    /** The state was discovered before, and needs no further expansion. */
+    SEEN
+  }
+
+  private static final int NUM_LOCKS = 256;
+
+  private final VisitedSet discovered;
+
+  /** A remembered sleep set, and whether its state passed {@link Search#checkState}. */
+  private static final class Sleeping {
+    private final Set<Event> events;
+    private boolean checked;
+
+    private Sleeping(Set<Event> events, boolean checked) {
+      this.events = events;
+      this.checked = checked;
+    }
+  }
+
+  private final Map<Object, Sleeping> sleeping = new ConcurrentHashMap<>();
+  private final Object[] locks = new Object[NUM_LOCKS];
+
+  private SleepSets(VisitedSet discovered) {
+    this.discovered = discovered;
+    for (int i = 0; i < NUM_LOCKS; i++) {
+      locks[i] = new Object();
+    }
+  }
+
+  /**
+   * @param discovered the search's visited set
+   * @param settings the search settings
+   * @return the sleep sets for a search, or {@code null} if the settings do not call for
+   *     partial-order reduction
+   */
+  static SleepSets create(VisitedSet discovered, SearchSettings settings) {
+    // A state's sleep set says nothing about the states symmetric to it, prunes can cut off the
+    // interleaving a sleeping event is left to, checkpoints don't record sleep sets, and
+    // remembering sleep sets per state would undo the savings of a compact visited set
+    if (!settings.partialOrderReduction()
+        || settings.symmetryReduction()
+        || !settings.prunes().isEmpty()
+        || settings.checkpointing()
+        || settings.visitedSetMode() != SearchSettings.VisitedSetMode.FULL_STATES) {
+      return null;
+    }
+    return new SleepSets(discovered);
+  }
+
+  static boolean independent(Event e1, Event e2) {
+    return !e1.locationRootAddress().equals(e2.locationRootAddress());
+  }
+
+  /**
+   * The events which should be explored from the state, in the order they should be explored: the
+   * state's enabled events, except for those which are asleep and, if the state is being expanded
+   * again, those which were already explored.
+   *
+   * @param state the state to be expanded
+   * @param settings the search settings
+   * @return the events to explore
+   */
+  List<Event> events(SearchState state, SearchSettings settings) {
+    final Set<Event> sleep = state.sleepSet(), only = state.awakened();
+    final List<Event> events = new ArrayList<>();
+    for (Event e : state.events(settings)) {
+      if ((sleep == null || !sleep.contains(e)) && (only == null || only.contains(e))) {
+        events.add(e);
+      }
+    }
+    return events;
+  }
+
+  /**
+   * Adds a successor to the visited set and computes its sleep set.
+   *
+   * <p>If the result is {@link Discovery#NEW} or {@link Discovery#REEXPAND}, the successor carries
+   * the sleep set (and events) it should be expanded with. A {@link Discovery#NEW} successor must
+   * then be checked and the outcome reported with {@link #checked(SearchState, boolean)}. A {@link
+   * Discovery#REEXPAND}ed successor has already been checked and counted, was not pruned, and
+   * should be added to the frontier.
+   *
+   * @param state the state being expanded
+   * @param events the events being explored from the state, as returned by {@link
+   *     #events(SearchState, SearchSettings)}
+   * @param index the index of the event which produced the successor
+   * @param successor the successor
+   * @return whether and how the successor should be expanded
+   */
+  Discovery discover(SearchState state, List<Event> events, int index, SearchState successor) {
+    final Event taken = events.get(index);
+    final Set<Event> sleep = new HashSet<>();
+    if (state.sleepSet() != null) {
+      for (Event e : state.sleepSet()) {
+        if (independent(e, taken)) {
+          sleep.add(e);
+        }
+      }
+    }
+    for (int i = 0; i < index; i++) {
+      final Event e = events.get(i);
+      if (independent(e, taken)) {
+        sleep.add(e);
+      }
+    }
+
+    final Object key = discovered.key(successor);
+    synchronized (locks[(key.hashCode() & 0x7fffffff) % NUM_LOCKS]) {
+      if (discovered.add(successor)) {
+        if (!sleep.isEmpty()) {
+          sleeping.put(key, new Sleeping(sleep, false));
+          successor.sleepSet(sleep);
+        }
+        return Discovery.NEW;
+      }
+
+      final Sleeping previous = sleeping.get(key);
+      if (previous == null || sleep.containsAll(previous.events)) {
+        return Discovery.SEEN;
+      }
+
+      if (!previous.checked) {
+        // The state has not been checked, let alone expanded; it can still be expanded with fewer
+        // events asleep (its discoverer's successor shares the set)
+        previous.events.retainAll(sleep);
+        return Discovery.SEEN;
+      }
+
+      final Set<Event> awakened = new HashSet<>(previous.events);
+      awakened.removeAll(sleep);
+      final Set<Event> remaining = new HashSet<>(previous.events);
+      remaining.retainAll(sleep);
+      if (remaining.isEmpty()) {
+        sleeping.remove(key);
+      } else {
+        sleeping.put(key, new Sleeping(remaining, true));
+      }
+
+      successor.sleepSet(remaining.isEmpty() ? null : remaining);
+      successor.awakened(awakened);
+      return Discovery.REEXPAND;
+    }
+  }
+
+  /**
+   * Records the outcome of checking a successor for which {@link #discover(SearchState, List, int,
+   * SearchState)} returned {@link Discovery#NEW}. The sleep set of a pruned state is forgotten, so
+   * that it is never expanded again.
+   *
+   * @param successor the successor
+   * @param pruned whether the successor was pruned
+   */
+  void checked(SearchState successor, boolean pruned) {
+    final Set<Event> sleep = successor.sleepSet();
+    if (sleep == null) {
+      return;
+    }
+
+    final Object key = discovered.key(successor);
+    synchronized (locks[(key.hashCode() & 0x7fffffff) % NUM_LOCKS]) {
+      if (pruned || sleep.isEmpty()) {
+        sleeping.remove(key);
+      } else {
+        sleeping.get(key).checked = true;
+      }
+    }
+  }
+
+  /**
+   * Drops the sleep set of a state once it has been expanded; the state itself stays reachable
+   * through its successors' traces.
+   */
+  static void expanded(SearchState state) {
+    state.sleepSet(null);
+    state.awakened(null);
+  }
+}
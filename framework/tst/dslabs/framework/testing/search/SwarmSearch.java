@@ -0,0 +1,287 @@
+/*
+ * Copyright (c) 2018 Ellis Michael (emichael@cs.washington.edu)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package dslabs.framework.testing.search;
+
+import dslabs.framework.Address;
+import dslabs.framework.testing.Event;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.SplittableRandom;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Swarm testing applied to random search. Like {@link RandomDFS}, repeatedly runs random probes
+ * from the initial state, but each probe runs under one of {@link SearchSettings#swarmSize()}
+ * configurations, which differ in:
+ *
+ * <ul>
+ *   <li>their depth bound, between an eighth of the search's depth limit and the limit itself (or
+ *       {@value #DEFAULT_MAX_DEPTH} if the search is not depth-limited),
+ *   <li>their bias between delivering messages and timers, and
+ *   <li>the weight of each node; events at lightly weighted nodes are rarely chosen, which
+ *       approximates slow or crashed nodes.
+ * </ul>
+ *
+ * <p>A probe chooses each event with probability proportional to its weight. Diversifying the
+ * configurations makes probes reach states which uniformly random probes only reach rarely. The
+ * first configuration is neutral: it uses the full depth bound and weighs all events equally.
+ *
+ * <p>Each configuration has its own {@link SplittableRandom}, split from {@link
+ * SearchSettings#swarmSeed()}, and is run by at most one thread at a time, so at most {@code
+ * swarmSize} threads are used. Probes share a direct-mapped cache of the fingerprints of recently
+ * seen states (see {@link SearchSettings#swarmCacheSize()}). States in the cache are not checked
+ * again, and probes step to states not in the cache whenever possible. The number of new states
+ * each configuration found per step, its yield, is printed when the search finishes.
+ */
+class SwarmSearch extends Search {
+  static final int DEFAULT_MAX_DEPTH = 1000;
+
+  private final List<Configuration> configurations = new ArrayList<>();
+  private final Queue<Configuration> idle = new ConcurrentLinkedQueue<>();
+  private final AtomicLongArray recentlySeen;
+
+  private final AtomicLong states = new AtomicLong(), probes = new AtomicLong();
+
+  private final long seed;
+  private SearchState initialState;
+  private volatile Configuration finder;
+
+  SwarmSearch(SearchSettings settings) {
+    super(settings);
+    seed = settings.swarmSeed() != null ? settings.swarmSeed() : System.nanoTime();
+    recentlySeen =
+        new AtomicLongArray(Integer.highestOneBit(Math.max(settings.swarmCacheSize(), 1)));
+  }
+
+  @Override
+  protected String searchType() {
+    return "swarm random";
+  }
+
+  @Override
+  protected String status(double elapsedSecs) {
+    long explored = states.get();
+    return String.format(
+        "Explored: %s, Num Probes: %s, Configurations: %s (%.2fs, %.2fK explored/s)",
+        explored,
+        probes.get(),
+        configurations.size(),
+        elapsedSecs,
+        explored / elapsedSecs / 1000.0);
+  }
+
+  @Override
+  protected void initSearch(SearchState initialState) {
+    this.initialState = initialState;
+    probes.set(0);
+    states.set(0);
+
+    final int initialDepth = initialState.depth();
+    final int maxDepth = settings.depthLimited() ? settings.maxDepth() : DEFAULT_MAX_DEPTH;
+    final SplittableRandom random = new SplittableRandom(seed);
+    for (int i = 0; i < Math.max(settings.swarmSize(), 1); i++) {
+      final SplittableRandom r = random.split();
+      final Configuration c =
+          i == 0
+              ? new Configuration(i, r, maxDepth, 0.5, false)
+              : new Configuration(
+                  i,
+                  r,
+                  initialDepth + Math.max((maxDepth - initialDepth) >> r.nextInt(4), 1),
+                  0.05 + 0.9 * r.nextDouble(),
+                  true);
+      configurations.add(c);
+      idle.add(c);
+    }
+
+    if (settings.shouldOutputStatus()) {
+      System.out.printf("Swarm seed: %s%n", seed);
+    }
+  }
+
+  @Override
+  protected boolean spaceExhausted() {
+    return false;
+  }
+
+  @Override
+  protected Runnable getWorker() {
+    final Configuration c = idle.poll();
+    if (c == null) {
+      return null;
+    }
+    return () -> {
+      try {
+        c.runProbe();
+      } finally {
+        idle.add(c);
+      }
+    };
+  }
+
+  /* Whether the state was seen recently; direct-mapped, so a newer state can evict it. */
+  private boolean recentlySeen(SearchState s) {
+    final long fp = s.fingerprint() == 0 ? 1 : s.fingerprint();
+    return recentlySeen.get((int) fp & (recentlySeen.length() - 1)) == fp;
+  }
+
+  private void markSeen(SearchState s) {
+    final long fp = s.fingerprint() == 0 ? 1 : s.fingerprint();
+    recentlySeen.set((int) fp & (recentlySeen.length() - 1), fp);
+  }
+
+  private boolean atMaxDepth(SearchState s) {
+    return settings.depthLimited() && s.depth() >= settings.maxDepth();
+  }
+
+  private final class Configuration {
+    private final int id;
+    private final SplittableRandom random;
+    private final int maxDepth;
+    private final double timerBias;
+    private final boolean weighNodes;
+    private final Map<Address, Double> nodeWeights = new HashMap<>();
+
+    /* Only accessed by the thread running the configuration, or after the search */
+    private long probes, steps, newStates;
+
+    private Configuration(
+        int id, SplittableRandom random, int maxDepth, double timerBias, boolean weighNodes) {
+      this.id = id;
+      this.random = random;
+      this.maxDepth = maxDepth;
+      this.timerBias = timerBias;
+      this.weighNodes = weighNodes;
+    }
+
+    private double weight(Event e) {
+      final double w = e.isTimer() ? timerBias : 1 - timerBias;
+      if (!weighNodes) {
+        return w;
+      }
+      return w
+          * nodeWeights.computeIfAbsent(
+              e.locationRootAddress(), __ -> Math.max(random.nextDouble(), 0.05));
+    }
+
+    /* Picks one of the first n events by weight and moves it to position n - 1. */
+    private void choose(List<Event> events, double[] weights, int n) {
+      double total = 0;
+      for (int i = 0; i < n; i++) {
+        total += weights[i];
+      }
+      double r = random.nextDouble() * total;
+      int chosen = n - 1;
+      for (int i = 0; i < n - 1; i++) {
+        r -= weights[i];
+        if (r < 0) {
+          chosen = i;
+          break;
+        }
+      }
+      Collections.swap(events, chosen, n - 1);
+      final double w = weights[chosen];
+      weights[chosen] = weights[n - 1];
+      weights[n - 1] = w;
+    }
+
+    private void runProbe() {
+      probes++;
+      SwarmSearch.this.probes.incrementAndGet();
+
+      SearchState current = initialState;
+      while (current != null && current.depth() < maxDepth) {
+        final List<Event> events = new ArrayList<>(current.events(settings));
+        final double[] weights = new double[events.size()];
+        for (int i = 0; i < weights.length; i++) {
+          weights[i] = weight(events.get(i));
+        }
+
+        SearchState next = null, seen = null;
+        for (int n = events.size(); n > 0 && next == null; n--) {
+          choose(events, weights, n);
+          final SearchState s = current.stepEvent(events.get(n - 1), settings, true);
+          if (s == null) {
+            continue;
+          }
+          steps++;
+          if (recentlySeen(s)) {
+            if (seen == null && !atMaxDepth(s) && !settings.shouldPrune(s)) {
+              seen = s;
+            }
+            continue;
+          }
+
+          newStates++;
+          states.incrementAndGet();
+          final StateStatus status = checkState(s, true);
+          if (status.equals(StateStatus.TERMINAL)) {
+            finder = this;
+            return;
+          }
+          markSeen(s);
+          if (status.equals(StateStatus.PRUNED)) {
+            continue;
+          }
+          next = s;
+        }
+        current = next != null ? next : seen;
+      }
+    }
+
+    @Override
+    public String toString() {
+      return String.format(
+          "Configuration %s (depth bound %s, timer bias %.2f%s): %s probes, %s steps, %s new"
+              + " states (yield %.1f%%)",
+          id,
+          maxDepth,
+          timerBias,
+          weighNodes ? ", weighted nodes" : "",
+          probes,
+          steps,
+          newStates,
+          steps == 0 ? 0.0 : 100.0 * newStates / steps);
+    }
+  }
+
+  @Override
+  protected SearchResults run(SearchState initialState) {
+    SearchResults results = super.run(initialState);
+    if (settings.shouldOutputStatus()) {
+      for (Configuration c : configurations) {
+        System.out.println("\t" + c);
+      }
+      if (finder != null) {
+        System.out.printf("Terminal state found by configuration %s%n%n", finder.id);
+      }
+    }
+    return results;
+  }
+}
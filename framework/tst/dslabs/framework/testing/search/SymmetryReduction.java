@@ -0,0 +1,155 @@
+/*
+ * Copyright (c) 2018 Ellis Michael (emichael@cs.washington.edu)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package dslabs.framework.testing.search;
+
+import dslabs.framework.Address;
+import dslabs.framework.testing.utils.Cloning;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Symmetry reduction over groups of interchangeable nodes (see {@link
+ * SearchSettings#addSymmetricNodes(Address...)}).
+ *
+ * <p>Each state is mapped to a canonical representative of its equivalence class: of all the states
+ * obtained by permuting the addresses within each group, the one with the smallest 128-bit
+ * fingerprint. Permuting addresses renames every {@link Address} in the state, including the keys
+ * of the node and timer maps, the senders and destinations of messages and timers, and any fields
+ * of nodes, messages, and timers which hold addresses (or sub-addresses of the permuted nodes).
+ * Addresses stored in other forms (e.g., as strings) are not renamed.
+ *
+ * <p>A permuted state is built by serializing the state once and deserializing it once per
+ * permutation, substituting addresses as they are read. The number of permutations is the product
+ * of the factorials of the group sizes, so this is only practical for small groups.
+ *
+ * <p>Safe for concurrent access.
+ */
+final class SymmetryReduction {
+  private final List<Map<Address, Address>> permutations = new ArrayList<>();
+
+  private SymmetryReduction(Collection<? extends List<Address>> groups) {
+    permutations.add(new HashMap<>());
+    for (List<Address> group : groups) {
+      final List<Map<Address, Address>> extended = new ArrayList<>();
+      for (List<Address> ordering : orderings(group)) {
+        for (Map<Address, Address> p : permutations) {
+          final Map<Address, Address> q = new HashMap<>(p);
+          for (int i = 0; i < group.size(); i++) {
+            if (!group.get(i).equals(ordering.get(i))) {
+              q.put(group.get(i), ordering.get(i));
+            }
+          }
+          extended.add(q);
+        }
+      }
+      permutations.clear();
+      permutations.addAll(extended);
+    }
+    // The identity is handled by canonical() directly
+    permutations.removeIf(Map::isEmpty);
+  }
+
+  /**
+   * @param settings the search settings
+   * @return the symmetry reduction for the settings' symmetric node groups, or {@code null} if
+   *     there are none
+   */
+  static SymmetryReduction create(SearchSettings settings) {
+    if (!settings.symmetryReduction()) {
+      return null;
+    }
+    return new SymmetryReduction(settings.symmetricNodes());
+  }
+
+  private static List<List<Address>> orderings(List<Address> group) {
+    final List<List<Address>> orderings = new ArrayList<>();
+    if (group.isEmpty()) {
+      orderings.add(new ArrayList<>());
+      return orderings;
+    }
+    for (int i = 0; i < group.size(); i++) {
+      final List<Address> rest = new ArrayList<>(group);
+      final Address first = rest.remove(i);
+      for (List<Address> ordering : orderings(rest)) {
+        ordering.add(0, first);
+        orderings.add(ordering);
+      }
+    }
+    return orderings;
+  }
+
+  /**
+   * Returns the canonical representative of the state's equivalence class. The representative has
+   * the same depth as the state but no previous state, so it should only be used for comparison.
+   *
+   * @param state the state
+   * @return the canonical representative, which might be the state itself
+   */
+  SearchState canonical(SearchState state) {
+    final byte[] serialized = Cloning.serialize(state);
+
+    SearchState best = state;
+    for (Map<Address, Address> permutation : permutations) {
+      final SearchState permuted = permuted(serialized, permutation).restored(state.depth());
+      if (lessThan(permuted, best)) {
+        best = permuted;
+      }
+    }
+    return best;
+  }
+
+  private static boolean lessThan(SearchState s1, SearchState s2) {
+    final int c = Long.compareUnsigned(s1.fingerprintHigh(), s2.fingerprintHigh());
+    return c < 0 || (c == 0 && Long.compareUnsigned(s1.fingerprint(), s2.fingerprint()) < 0);
+  }
+
+  private static SearchState permuted(byte[] serialized, Map<Address, Address> permutation) {
+    try (ObjectInputStream in =
+        new ObjectInputStream(new ByteArrayInputStream(serialized)) {
+          {
+            enableResolveObject(true);
+          }
+
+          @Override
+          protected Object resolveObject(Object obj) {
+            if (obj instanceof Address) {
+              return permutation.getOrDefault(obj, (Address) obj);
+            }
+            return obj;
+          }
+        }) {
+      return (SearchState) in.readObject();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    } catch (ClassNotFoundException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
@@ -23,112 +23,359 @@
 package dslabs.framework.testing.search;
 
 import dslabs.framework.testing.TimerEnvelope;
+import dslabs.framework.testing.utils.PersistentMap;
 import java.io.Serializable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.Objects;
 import javax.annotation.Nonnull;
-import lombok.EqualsAndHashCode;
 
 /**
  * Implements an abstract timer queue for a single node. In an asynchronous system, the only
  * restriction on timer delivery is the following: if a node sets timers t1, t2 in that order, and
  * t2.minTimerLength >= t1.maxTimerLength, then it must deliver t1 before t2.
  *
- * <p>This datastructure is not threadsafe.
+ * <p>This datastructure is immutable: {@link #plus(TimerEnvelope)} and {@link
+ * #minus(TimerEnvelope)} return new queues which share all but O(log n) of their structure with the
+ * original. Timers are kept in a balanced tree ordered by the sequence number they were added with,
+ * where each subtree records the smallest minimum and maximum length of its timers. A timer is
+ * deliverable iff its minimum length is less than the maximum length of every timer before it, so
+ * {@link #isDeliverable(TimerEnvelope)} takes O(log n) time, and {@link #deliverable()} skips
+ * subtrees which cannot contain deliverable timers.
  *
- * <p>TODO: make this datastructure more efficient? Better way of representing?
- *
- * <p>TODO: equality checking is definitely wrong now
+ * <p>Two queues are equal iff they contain equal timers in the same order.
  */
-@EqualsAndHashCode
-class TimerQueue implements Serializable, Iterable<TimerEnvelope> {
-  private final List<TimerEnvelope> timers;
+final class TimerQueue implements Serializable, Iterable<TimerEnvelope> {
+  private static final TimerQueue EMPTY = new TimerQueue(null, PersistentMap.empty(), 0);
+
+  private final Entry root;
+
+  /* The sequence numbers of each distinct timer in the queue, in ascending order */
+  private final PersistentMap<TimerEnvelope, long[]> sequenceNumbers;
+
+  private final long nextSequenceNumber;
+
+  /* Lazily computed hashCode, or 0 if not yet computed; a single field, so racy reads are safe */
+  private transient int hash;
+
+  private TimerQueue(
+      Entry root, PersistentMap<TimerEnvelope, long[]> sequenceNumbers, long nextSequenceNumber) {
+    this.root = root;
+    this.sequenceNumbers = sequenceNumbers;
+    this.nextSequenceNumber = nextSequenceNumber;
+  }
+
+  static TimerQueue empty() {
+    return EMPTY;
+  }
+
+  /**
+   * Returns a queue with the timer added after all other timers.
+   *
+   * @param timerEnvelope the timer
+   * @return the new queue
+   */
+  TimerQueue plus(TimerEnvelope timerEnvelope) {
+    final long sequenceNumber = nextSequenceNumber;
+    final long[] existing = sequenceNumbers.get(timerEnvelope);
+    final long[] updated;
+    if (existing == null) {
+      updated = new long[] {sequenceNumber};
+    } else {
+      updated = Arrays.copyOf(existing, existing.length + 1);
+      updated[existing.length] = sequenceNumber;
+    }
+    return new TimerQueue(
+        insert(root, sequenceNumber, timerEnvelope),
+        sequenceNumbers.plus(timerEnvelope, updated),
+        sequenceNumber + 1);
+  }
 
-  TimerQueue() {
-    this.timers = new LinkedList<>();
+  /**
+   * Returns a queue with the first timer equal to the given timer removed.
+   *
+   * @param timerEnvelope the timer
+   * @return the new queue, or this queue if it does not contain the timer
+   */
+  TimerQueue minus(TimerEnvelope timerEnvelope) {
+    final long[] existing = sequenceNumbers.get(timerEnvelope);
+    if (existing == null) {
+      return this;
+    }
+    return new TimerQueue(
+        delete(root, existing[0]),
+        existing.length == 1
+            ? sequenceNumbers.minus(timerEnvelope)
+            : sequenceNumbers.plus(timerEnvelope, Arrays.copyOfRange(existing, 1, existing.length)),
+        nextSequenceNumber);
+  }
+
+  int size() {
+    return size(root);
   }
 
   /**
-   * Creates a copy of the other TimerQueue.
+   * Returns the timers which can be delivered next, in order.
    *
-   * <p>TODO: maybe add in a delayed copy mechanism?
+   * @return the deliverable timers
    */
-  TimerQueue(TimerQueue other) {
-    this.timers = new LinkedList<>(other.timers);
+  List<TimerEnvelope> deliverable() {
+    final List<TimerEnvelope> deliverable = new ArrayList<>();
+    collectDeliverable(root, Integer.MAX_VALUE, deliverable);
+    return deliverable;
   }
 
-  void add(TimerEnvelope timerEnvelope) {
-    timers.add(timerEnvelope);
+  /*
+   * Adds the deliverable timers of the subtree to the list, given the smallest maximum length of the
+   * timers before it. Returns the smallest maximum length of the timers up to the end of the
+   * subtree. Subtrees whose timers are all at least as long as that bound contain no deliverable
+   * timers and cannot lower the bound, so they are skipped.
+   */
+  private static int collectDeliverable(Entry e, int minMax, List<TimerEnvelope> deliverable) {
+    if (e == null || e.minMin >= minMax) {
+      return minMax;
+    }
+    minMax = collectDeliverable(e.left, minMax, deliverable);
+    if (e.timer.minTimerLengthMillis() < minMax) {
+      deliverable.add(e.timer);
+      minMax = Math.min(minMax, e.timer.maxTimerLengthMillis());
+    }
+    return collectDeliverable(e.right, minMax, deliverable);
   }
 
-  Iterable<TimerEnvelope> deliverable() {
-    return new Iterable<>() {
+  boolean isDeliverable(TimerEnvelope timerEnvelope) {
+    final long[] existing = sequenceNumbers.get(timerEnvelope);
+    if (existing == null) {
+      return false;
+    }
+
+    // The smallest maximum length of the timers before the first occurrence
+    final long sequenceNumber = existing[0];
+    int minMax = Integer.MAX_VALUE;
+    Entry e = root;
+    while (e != null) {
+      if (e.sequenceNumber < sequenceNumber) {
+        minMax = Math.min(minMax, Math.min(minMax(e.left), e.timer.maxTimerLengthMillis()));
+        e = e.right;
+      } else {
+        e = e.left;
+      }
+    }
+    return timerEnvelope.minTimerLengthMillis() < minMax;
+  }
+
+  @Override
+  @Nonnull
+  public Iterator<TimerEnvelope> iterator() {
+    return new Iterator<>() {
+      private final Deque<Entry> stack = new ArrayDeque<>();
+
+      {
+        pushLeft(root);
+      }
+
+      private void pushLeft(Entry e) {
+        for (; e != null; e = e.left) {
+          stack.push(e);
+        }
+      }
+
       @Override
-      @Nonnull
-      public Iterator<TimerEnvelope> iterator() {
-        return new Iterator<>() {
-          Integer minMaxTime = null;
-          int i = 0;
-
-          private void skip() {
-            while (i < timers.size()
-                && minMaxTime != null
-                && timers.get(i).minTimerLengthMillis() >= minMaxTime) {
-              i++;
-            }
-          }
-
-          @Override
-          public boolean hasNext() {
-            return i < timers.size();
-          }
-
-          @Override
-          public TimerEnvelope next() throws NoSuchElementException {
-            if (hasNext()) {
-              TimerEnvelope next = timers.get(i);
-              i++;
-              if (minMaxTime == null || next.maxTimerLengthMillis() < minMaxTime) {
-                minMaxTime = next.maxTimerLengthMillis();
-              }
-              skip();
-              return next;
-            } else {
-              throw new NoSuchElementException();
-            }
-          }
-        };
+      public boolean hasNext() {
+        return !stack.isEmpty();
+      }
+
+      @Override
+      public TimerEnvelope next() {
+        if (stack.isEmpty()) {
+          throw new NoSuchElementException();
+        }
+        final Entry e = stack.pop();
+        pushLeft(e.right);
+        return e.timer;
       }
     };
   }
 
-  boolean isDeliverable(TimerEnvelope timerEnvelope) {
-    // TODO: quadratic
-    for (TimerEnvelope te : timers) {
-      if (te.equals(timerEnvelope)) {
-        return true;
-      }
-      if (timerEnvelope.minTimerLengthMillis() >= te.maxTimerLengthMillis()) {
+  @Override
+  public boolean equals(Object o) {
+    if (o == this) {
+      return true;
+    }
+    if (!(o instanceof TimerQueue)) {
+      return false;
+    }
+    final TimerQueue other = (TimerQueue) o;
+    if (size() != other.size() || hashCode() != other.hashCode()) {
+      return false;
+    }
+    final Iterator<TimerEnvelope> i1 = iterator(), i2 = other.iterator();
+    while (i1.hasNext()) {
+      if (!Objects.equals(i1.next(), i2.next())) {
         return false;
       }
     }
-    return false;
+    return true;
+  }
+
+  @Override
+  public int hashCode() {
+    int h = hash;
+    if (h == 0) {
+      h = 1;
+      for (TimerEnvelope te : this) {
+        h = 31 * h + te.hashCode();
+      }
+      hash = h;
+    }
+    return h;
   }
 
   @Override
   public String toString() {
+    final List<TimerEnvelope> timers = new ArrayList<>();
+    forEach(timers::add);
     return timers.toString();
   }
 
-  @Override
-  @Nonnull
-  public Iterator<TimerEnvelope> iterator() {
-    return timers.iterator();
+  /* An AVL tree, keyed by sequence number, with subtree aggregates. */
+
+  private static final class Entry {
+    private final long sequenceNumber;
+    private final TimerEnvelope timer;
+    private final Entry left, right;
+    private final int height, size;
+    private final int minMin, minMax;
+
+    private Entry(long sequenceNumber, TimerEnvelope timer, Entry left, Entry right) {
+      this.sequenceNumber = sequenceNumber;
+      this.timer = timer;
+      this.left = left;
+      this.right = right;
+      height = Math.max(height(left), height(right)) + 1;
+      size = size(left) + size(right) + 1;
+      minMin = Math.min(timer.minTimerLengthMillis(), Math.min(minMin(left), minMin(right)));
+      minMax = Math.min(timer.maxTimerLengthMillis(), Math.min(minMax(left), minMax(right)));
+    }
+
+    private Entry with(Entry left, Entry right) {
+      if (left == this.left && right == this.right) {
+        return this;
+      }
+      return balance(sequenceNumber, timer, left, right);
+    }
+  }
+
+  private static int height(Entry e) {
+    return e == null ? 0 : e.height;
+  }
+
+  private static int size(Entry e) {
+    return e == null ? 0 : e.size;
+  }
+
+  private static int minMin(Entry e) {
+    return e == null ? Integer.MAX_VALUE : e.minMin;
+  }
+
+  private static int minMax(Entry e) {
+    return e == null ? Integer.MAX_VALUE : e.minMax;
+  }
+
+  private static Entry insert(Entry e, long sequenceNumber, TimerEnvelope timer) {
+    if (e == null) {
+      return new Entry(sequenceNumber, timer, null, null);
+    }
+    if (sequenceNumber < e.sequenceNumber) {
+      return e.with(insert(e.left, sequenceNumber, timer), e.right);
+    }
+    return e.with(e.left, insert(e.right, sequenceNumber, timer));
+  }
+
+  private static Entry delete(Entry e, long sequenceNumber) {
+    if (e == null) {
+      return null;
+    }
+    if (sequenceNumber < e.sequenceNumber) {
+      return e.with(delete(e.left, sequenceNumber), e.right);
+    }
+    if (sequenceNumber > e.sequenceNumber) {
+      return e.with(e.left, delete(e.right, sequenceNumber));
+    }
+    if (e.left == null) {
+      return e.right;
+    }
+    if (e.right == null) {
+      return e.left;
+    }
+    Entry successor = e.right;
+    while (successor.left != null) {
+      successor = successor.left;
+    }
+    return balance(
+        successor.sequenceNumber,
+        successor.timer,
+        e.left,
+        delete(e.right, successor.sequenceNumber));
   }
 
-  void remove(TimerEnvelope timerEnvelope) {
-    timers.remove(timerEnvelope);
+  private static Entry balance(long sequenceNumber, TimerEnvelope timer, Entry left, Entry right) {
+    final int diff = height(left) - height(right);
+    if (diff > 1) {
+      if (height(left.left) < height(left.right)) {
+        left = rotateLeft(left);
+      }
+      return rotateRight(new Entry(sequenceNumber, timer, left, right));
+    }
+    if (diff < -1) {
+      if (height(right.right) < height(right.left)) {
+        right = rotateRight(right);
+      }
+      return rotateLeft(new Entry(sequenceNumber, timer, left, right));
+    }
+    return new Entry(sequenceNumber, timer, left, right);
+  }
+
+  private static Entry rotateLeft(Entry e) {
+    final Entry r = e.right;
+    return new Entry(
+        r.sequenceNumber, r.timer, new Entry(e.sequenceNumber, e.timer, e.left, r.left), r.right);
+  }
+
+  private static Entry rotateRight(Entry e) {
+    final Entry l = e.left;
+    return new Entry(
+        l.sequenceNumber, l.timer, l.left, new Entry(e.sequenceNumber, e.timer, l.right, e.right));
+  }
+
+  /* Serialize the timers rather than the tree. */
+
+  private Object writeReplace() {
+    return new SerializedForm(this);
+  }
+
+  private static final class SerializedForm implements Serializable {
+    private final TimerEnvelope[] timers;
+
+    SerializedForm(TimerQueue queue) {
+      timers = new TimerEnvelope[queue.size()];
+      int i = 0;
+      for (TimerEnvelope te : queue) {
+        timers[i++] = te;
+      }
+    }
+
+    private Object readResolve() {
+      TimerQueue queue = empty();
+      for (TimerEnvelope te : timers) {
+        queue = queue.plus(te);
+      }
+      return queue;
+    }
   }
 }
@@ -0,0 +1,556 @@
+/*
+ * Copyright (c) 2018 Ellis Michael (emichael@cs.washington.edu)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package dslabs.framework.testing.search;
+
+import dslabs.framework.Address;
+import dslabs.framework.Message;
+import dslabs.framework.Timer;
+import dslabs.framework.testing.Event;
+import dslabs.framework.testing.LocalAddress;
+import dslabs.framework.testing.MessageEnvelope;
+import dslabs.framework.testing.StateGenerator;
+import dslabs.framework.testing.StatePredicate;
+import dslabs.framework.testing.TimerEnvelope;
+import dslabs.framework.testing.Workload;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.io.StreamCorruptedException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+import org.apache.commons.lang3.tuple.ImmutablePair;
+import org.apache.commons.lang3.tuple.Pair;
+
+/**
+ * The binary format {@link SerializableTrace}s are saved in.
+ *
+ * <p>Rather than serializing the whole trace as one object graph, a trace file holds a string
+ * table, a class table, an address table and an object table, and each event is a few varints
+ * referring to those tables. Only objects the framework cannot encode itself (messages, timers,
+ * predicates, state generators and workloads) are written with Java serialization, each into its
+ * own blob, with class descriptors replaced by references into the class table. Equal messages and
+ * timers are written once.
+ *
+ * <p>The class table records each class's serial version UID; a trace whose classes no longer exist
+ * or are no longer compatible fails to load up front, as with plain Java serialization. Objects and
+ * events are decoded lazily, so uncompressed traces are memory-mapped and open without reading the
+ * history. Compressed traces are smaller but must be inflated into memory when loaded.
+ *
+ * <p>Layout, after the magic number, the format version and a flags byte (the rest of the file is
+ * deflated if {@link #COMPRESSED} is set):
+ *
+ * <pre>
+ *   strings:   n, (length, UTF-8 bytes)*
+ *   classes:   n, (name string, serial version UID as 8 bytes)*
+ *   objects:   n, (length, serialized bytes)*
+ *   addresses: n, (LOCAL_ADDRESS, name string | OTHER_ADDRESS, object)*
+ *   header:    lab ID string, lab part + 1, test class string + 1, test method string + 1,
+ *              creation date string
+ *   setup:     state generator object, n, server address*, n, (client address, workload object)*,
+ *              n, invariant object*
+ *   events:    n, (MESSAGE, from address, to address, message object
+ *                 | TIMER, to address, timer object, min length, max length)*
+ * </pre>
+ *
+ * All counts, lengths and references are unsigned varints; nullable references are stored plus one,
+ * with zero meaning null.
+ */
+final class TraceFormat {
+  private static final int MAGIC = 0x44534c54; // "DSLT"
+  private static final int VERSION = 1;
+  private static final int HEADER_BYTES = Integer.BYTES + 2;
+
+  private static final int COMPRESSED = 1;
+
+  private static final int MESSAGE = 0, TIMER = 1;
+  private static final int LOCAL_ADDRESS = 0, OTHER_ADDRESS = 1;
+
+  private TraceFormat() {}
+
+  /**
+   * Whether the file starts with this format's magic number, as opposed to being a trace saved with
+   * plain Java serialization.
+   */
+  static boolean isTraceFile(Path path) throws IOException {
+    try (InputStream in = Files.newInputStream(path)) {
+      final byte[] magic = in.readNBytes(Integer.BYTES);
+      return magic.length == Integer.BYTES && ByteBuffer.wrap(magic).getInt() == MAGIC;
+    }
+  }
+
+  /* Writing */
+
+  static void write(SerializableTrace trace, OutputStream out, boolean compress)
+      throws IOException {
+    final Writer writer = new Writer();
+    final byte[] body = writer.encode(trace);
+
+    final DataOutputStream header = new DataOutputStream(out);
+    header.writeInt(MAGIC);
+    header.writeByte(VERSION);
+    header.writeByte(compress ? COMPRESSED : 0);
+    if (compress) {
+      final DeflaterOutputStream deflated =
+          new DeflaterOutputStream(out, new Deflater(Deflater.BEST_COMPRESSION));
+      deflated.write(body);
+      deflated.finish();
+    } else {
+      out.write(body);
+    }
+    out.flush();
+  }
+
+  private static final class Writer {
+    private final Map<String, Integer> stringIds = new HashMap<>();
+    private final List<String> strings = new ArrayList<>();
+    private final Map<String, Integer> classIds = new HashMap<>();
+    private final List<ObjectStreamClass> classes = new ArrayList<>();
+    private final Map<Address, Integer> addressIds = new HashMap<>();
+    private final List<Address> addresses = new ArrayList<>();
+    private final Map<Object, Integer> sharedObjectIds = new HashMap<>();
+    private final List<byte[]> objects = new ArrayList<>();
+
+    private int string(String s) {
+      return stringIds.computeIfAbsent(
+          s,
+          __ -> {
+            strings.add(s);
+            return strings.size() - 1;
+          });
+    }
+
+    private int nullableString(String s) {
+      return s == null ? 0 : string(s) + 1;
+    }
+
+    private int object(Object o) throws IOException {
+      final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      try (ObjectOutputStream out = new ClassTableOutputStream(bytes)) {
+        out.writeObject(o);
+      }
+      objects.add(bytes.toByteArray());
+      return objects.size() - 1;
+    }
+
+    /* Messages and timers are immutable, so equal ones can be written once. */
+    private int sharedObject(Object o) throws IOException {
+      final Integer id = sharedObjectIds.get(o);
+      if (id != null) {
+        return id;
+      }
+      final int newId = object(o);
+      sharedObjectIds.put(o, newId);
+      return newId;
+    }
+
+    private int address(Address a) throws IOException {
+      final Integer id = addressIds.get(a);
+      if (id != null) {
+        return id;
+      }
+      if (a.getClass() == LocalAddress.class) {
+        string(a.toString());
+      } else {
+        sharedObject(a);
+      }
+      addresses.add(a);
+      addressIds.put(a, addresses.size() - 1);
+      return addresses.size() - 1;
+    }
+
+    byte[] encode(SerializableTrace trace) throws IOException {
+      // Encode the parts referring to the tables first, so the tables are complete
+      final ByteArrayOutputStream rest = new ByteArrayOutputStream();
+      final DataOutputStream out = new DataOutputStream(rest);
+
+      writeVarint(out, string(trace.labId()));
+      writeVarint(out, trace.labPart() == null ? 0 : trace.labPart() + 1);
+      writeVarint(out, nullableString(trace.testClassName()));
+      writeVarint(out, nullableString(trace.testMethodName()));
+      writeVarint(out, string(trace.createdDate().toString()));
+
+      writeVarint(out, object(trace.stateGenerator()));
+      writeVarint(out, trace.servers().size());
+      for (Address a : trace.servers()) {
+        writeVarint(out, address(a));
+      }
+      writeVarint(out, trace.clientWorkers().size());
+      for (Pair<Address, Workload> p : trace.clientWorkers()) {
+        writeVarint(out, address(p.getLeft()));
+        writeVarint(out, object(p.getRight()));
+      }
+      writeVarint(out, trace.invariants().size());
+      for (StatePredicate invariant : trace.invariants()) {
+        writeVarint(out, object(invariant));
+      }
+
+      writeVarint(out, trace.history().size());
+      for (Event e : trace.history()) {
+        if (e.isMessage()) {
+          final MessageEnvelope me = e.message();
+          writeVarint(out, MESSAGE);
+          writeVarint(out, address(me.from()));
+          writeVarint(out, address(me.to()));
+          writeVarint(out, sharedObject(me.message()));
+        } else {
+          final TimerEnvelope te = e.timer();
+          writeVarint(out, TIMER);
+          writeVarint(out, address(te.to()));
+          writeVarint(out, sharedObject(te.timer()));
+          writeVarint(out, te.minTimerLengthMillis());
+          writeVarint(out, te.maxTimerLengthMillis());
+        }
+      }
+      out.flush();
+
+      // Addresses must be written before the string and class tables are
+      final ByteArrayOutputStream addressBytes = new ByteArrayOutputStream();
+      final DataOutputStream addressOut = new DataOutputStream(addressBytes);
+      writeVarint(addressOut, addresses.size());
+      for (Address a : addresses) {
+        if (a.getClass() == LocalAddress.class) {
+          writeVarint(addressOut, LOCAL_ADDRESS);
+          writeVarint(addressOut, string(a.toString()));
+        } else {
+          writeVarint(addressOut, OTHER_ADDRESS);
+          writeVarint(addressOut, sharedObject(a));
+        }
+      }
+      addressOut.flush();
+
+      final ByteArrayOutputStream body = new ByteArrayOutputStream();
+      final DataOutputStream bodyOut = new DataOutputStream(body);
+      writeVarint(bodyOut, strings.size());
+      for (String s : strings) {
+        final byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        writeVarint(bodyOut, bytes.length);
+        bodyOut.write(bytes);
+      }
+      writeVarint(bodyOut, classes.size());
+      for (ObjectStreamClass c : classes) {
+        writeVarint(bodyOut, stringIds.get(c.getName()));
+        bodyOut.writeLong(c.getSerialVersionUID());
+      }
+      writeVarint(bodyOut, objects.size());
+      for (byte[] o : objects) {
+        writeVarint(bodyOut, o.length);
+        bodyOut.write(o);
+      }
+      addressBytes.writeTo(bodyOut);
+      rest.writeTo(bodyOut);
+      bodyOut.flush();
+      return body.toByteArray();
+    }
+
+    /** Writes class descriptors as references into the class table. */
+    private final class ClassTableOutputStream extends ObjectOutputStream {
+      ClassTableOutputStream(OutputStream out) throws IOException {
+        super(out);
+      }
+
+      @Override
+      protected void writeStreamHeader() {}
+
+      @Override
+      protected void writeClassDescriptor(ObjectStreamClass desc) throws IOException {
+        final Integer id = classIds.get(desc.getName());
+        if (id != null) {
+          writeVarint(this, id);
+          return;
+        }
+        string(desc.getName());
+        classes.add(desc);
+        classIds.put(desc.getName(), classes.size() - 1);
+        writeVarint(this, classes.size() - 1);
+      }
+    }
+  }
+
+  /* Reading */
+
+  static SerializableTrace read(Path path) throws IOException, ClassNotFoundException {
+    final ByteBuffer body;
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      final ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+      while (header.hasRemaining() && channel.read(header) >= 0) {}
+      header.flip();
+      if (header.remaining() < HEADER_BYTES || header.getInt() != MAGIC) {
+        throw new StreamCorruptedException("Not a trace file: " + path);
+      }
+      final int version = header.get();
+      if (version != VERSION) {
+        throw new StreamCorruptedException("Unsupported trace format version " + version);
+      }
+      if ((header.get() & COMPRESSED) != 0) {
+        try (InputStream in = new InflaterInputStream(Channels.newInputStream(channel))) {
+          body = ByteBuffer.wrap(in.readAllBytes());
+        }
+      } else {
+        // The mapping stays valid after the channel is closed
+        body =
+            channel.map(FileChannel.MapMode.READ_ONLY, HEADER_BYTES, channel.size() - HEADER_BYTES);
+      }
+    }
+    return new Reader(body).decode();
+  }
+
+  private static final class Reader {
+    private final ByteBuffer buffer;
+    private String[] strings;
+    private ObjectStreamClass[] classes;
+    private int[] objectOffsets;
+    private Address[] addresses;
+
+    Reader(ByteBuffer buffer) {
+      this.buffer = buffer;
+    }
+
+    SerializableTrace decode() throws IOException, ClassNotFoundException {
+      strings = new String[readVarint(buffer)];
+      for (int i = 0; i < strings.length; i++) {
+        final byte[] bytes = new byte[readVarint(buffer)];
+        buffer.get(bytes);
+        strings[i] = new String(bytes, StandardCharsets.UTF_8);
+      }
+
+      // Resolve every class now, so incompatible traces fail to load rather than to replay
+      classes = new ObjectStreamClass[readVarint(buffer)];
+      for (int i = 0; i < classes.length; i++) {
+        final String name = strings[readVarint(buffer)];
+        final long serialVersionUID = buffer.getLong();
+        final ObjectStreamClass local =
+            ObjectStreamClass.lookupAny(
+                Class.forName(name, false, TraceFormat.class.getClassLoader()));
+        if (local.getSerialVersionUID() != serialVersionUID) {
+          throw new InvalidClassException(name, "local class incompatible");
+        }
+        classes[i] = local;
+      }
+
+      objectOffsets = new int[readVarint(buffer)];
+      for (int i = 0; i < objectOffsets.length; i++) {
+        objectOffsets[i] = buffer.position();
+        final int length = readVarint(buffer);
+        buffer.position(buffer.position() + length);
+      }
+
+      addresses = new Address[readVarint(buffer)];
+      for (int i = 0; i < addresses.length; i++) {
+        final int tag = readVarint(buffer);
+        final int ref = readVarint(buffer);
+        addresses[i] =
+            tag == LOCAL_ADDRESS ? new LocalAddress(strings[ref]) : (Address) object(ref);
+      }
+
+      final String labId = strings[readVarint(buffer)];
+      final int labPart = readVarint(buffer);
+      final String testClassName = nullableString(readVarint(buffer));
+      final String testMethodName = nullableString(readVarint(buffer));
+      final LocalDateTime createdDate = LocalDateTime.parse(strings[readVarint(buffer)]);
+
+      final StateGenerator stateGenerator = (StateGenerator) object(readVarint(buffer));
+      final List<Address> servers = new ArrayList<>();
+      for (int n = readVarint(buffer); n > 0; n--) {
+        servers.add(addresses[readVarint(buffer)]);
+      }
+      final List<Pair<Address, Workload>> clientWorkers = new ArrayList<>();
+      for (int n = readVarint(buffer); n > 0; n--) {
+        final Address a = addresses[readVarint(buffer)];
+        clientWorkers.add(new ImmutablePair<>(a, (Workload) object(readVarint(buffer))));
+      }
+      final List<StatePredicate> invariants = new ArrayList<>();
+      for (int n = readVarint(buffer); n > 0; n--) {
+        invariants.add((StatePredicate) object(readVarint(buffer)));
+      }
+
+      final int numEvents = readVarint(buffer);
+      return new SerializableTrace(
+          new History(this, numEvents, buffer.position()),
+          invariants,
+          stateGenerator,
+          servers,
+          clientWorkers,
+          labId,
+          labPart == 0 ? null : labPart - 1,
+          testClassName,
+          testMethodName,
+          createdDate);
+    }
+
+    private String nullableString(int ref) {
+      return ref == 0 ? null : strings[ref - 1];
+    }
+
+    /* Each call decodes a fresh copy of the object. */
+    private Object object(int id) throws IOException, ClassNotFoundException {
+      final ByteBuffer b = buffer.duplicate();
+      b.position(objectOffsets[id]);
+      final byte[] bytes = new byte[readVarint(b)];
+      b.get(bytes);
+      try (ObjectInputStream in = new ClassTableInputStream(new ByteArrayInputStream(bytes))) {
+        return in.readObject();
+      }
+    }
+
+    /** Reads class descriptors written by {@link Writer.ClassTableOutputStream}. */
+    private final class ClassTableInputStream extends ObjectInputStream {
+      ClassTableInputStream(InputStream in) throws IOException {
+        super(in);
+      }
+
+      @Override
+      protected void readStreamHeader() {}
+
+      @Override
+      protected ObjectStreamClass readClassDescriptor() throws IOException {
+        int value = 0;
+        for (int shift = 0; ; shift += 7) {
+          final int b = readUnsignedByte();
+          value |= (b & 0x7f) << shift;
+          if ((b & 0x80) == 0) {
+            return classes[value];
+          }
+        }
+      }
+    }
+
+    private Event event(int offset) throws IOException, ClassNotFoundException {
+      final ByteBuffer b = buffer.duplicate();
+      b.position(offset);
+      if (readVarint(b) == MESSAGE) {
+        final Address from = addresses[readVarint(b)], to = addresses[readVarint(b)];
+        return new Event(new MessageEnvelope(from, to, (Message) object(readVarint(b))));
+      }
+      final Address to = addresses[readVarint(b)];
+      final Timer timer = (Timer) object(readVarint(b));
+      return new Event(new TimerEnvelope(to, timer, readVarint(b), readVarint(b)));
+    }
+  }
+
+  /**
+   * A trace's events, decoded on first access. Offsets are found by scanning the records in order,
+   * which doesn't decode any objects. Once every event has been decoded, the history lets go of the
+   * reader and its (possibly memory-mapped) buffer. Serialized as a plain list of its events.
+   */
+  private static final class History extends AbstractList<Event>
+      implements RandomAccess, Serializable {
+    private final transient Event[] events;
+    private final transient int[] offsets;
+    private transient Reader reader;
+    private transient ByteBuffer scan;
+    private transient int scanned = 0, decoded = 0;
+
+    History(Reader reader, int size, int start) {
+      events = new Event[size];
+      offsets = new int[size];
+      if (size > 0) {
+        this.reader = reader;
+        scan = reader.buffer.duplicate();
+        scan.position(start);
+      }
+    }
+
+    @Override
+    public int size() {
+      return events.length;
+    }
+
+    @Override
+    public synchronized Event get(int index) {
+      if (index < 0 || index >= events.length) {
+        throw new IndexOutOfBoundsException(index);
+      }
+      if (events[index] == null) {
+        while (scanned <= index) {
+          offsets[scanned++] = scan.position();
+          final int fields = readVarint(scan) == MESSAGE ? 3 : 4;
+          for (int i = 0; i < fields; i++) {
+            readVarint(scan);
+          }
+        }
+        try {
+          events[index] = reader.event(offsets[index]);
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        } catch (ClassNotFoundException e) {
+          throw new IllegalStateException(e);
+        }
+        if (++decoded == events.length) {
+          reader = null;
+          scan = null;
+        }
+      }
+      return events[index];
+    }
+
+    private Object writeReplace() {
+      return new ArrayList<>(this);
+    }
+  }
+
+  /* Varints */
+
+  private static void writeVarint(DataOutput out, int value) throws IOException {
+    while ((value & ~0x7f) != 0) {
+      out.writeByte((value & 0x7f) | 0x80);
+      value >>>= 7;
+    }
+    out.writeByte(value);
+  }
+
+  private static int readVarint(ByteBuffer buffer) {
+    int value = 0;
+    for (int shift = 0; ; shift += 7) {
+      final byte b = buffer.get();
+      value |= (b & 0x7f) << shift;
+      if (b >= 0) {
+        return value;
+      }
+    }
+  }
+}
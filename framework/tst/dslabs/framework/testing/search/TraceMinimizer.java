@@ -25,28 +25,61 @@ package dslabs.framework.testing.search;
 import dslabs.framework.testing.Event;
 import dslabs.framework.testing.StatePredicate;
 import dslabs.framework.testing.StatePredicate.PredicateResult;
+import dslabs.framework.testing.search.SearchState.SearchEquivalenceWrappedSearchState;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import lombok.RequiredArgsConstructor;
 
+/**
+ * Shortens the traces of terminal states with delta debugging (ddmin).
+ *
+ * <p>The events of the trace are split into {@code n} chunks, starting with two. If the events of
+ * one chunk alone reproduce the result, the trace is reduced to that chunk; otherwise, if all
+ * events but one chunk's do, that chunk is removed. If neither, the chunks are halved, until they
+ * hold single events. The minimized trace is 1-minimal: removing any one of its events no longer
+ * reproduces the result.
+ *
+ * <p>A candidate trace is replayed from the first state of the original trace, and reproduces the
+ * result if each of its events is enabled in turn and the final state matches. Replays share a trie
+ * of the states reached by the prefixes replayed so far, so only the events after a candidate's
+ * longest replayed prefix are stepped. Which candidates reproduced the result, and which final
+ * states matched, are memoized.
+ *
+ * <p>In multi-threaded mode, each round's candidates are tested in parallel on {@link
+ * SearchSettings#numThreads()} threads. The first candidate, in order, which reproduces the result
+ * is taken, so the minimized trace does not depend on scheduling.
+ */
 abstract class TraceMinimizer {
+  /*
+   * The maximum numbers of states kept in the trie of replayed prefixes, of memoized tests, and of
+   * memoized final-state matches
+   */
+  private static final int MAX_CACHED_STATES = 1 << 16, MAX_TESTED = 1 << 16, MAX_MATCHED = 1 << 16;
+
   static SearchState minimizeTrace(SearchState state, final PredicateResult expectedResult) {
-    // TODO: maintain set of "bad" states so we don't have to unwind every time
-    boolean shortenedEventsList;
-    do {
-      shortenedEventsList = false;
-      LinkedList<Event> events = new LinkedList<>();
-      for (SearchState s = state; s.previous() != null; s = s.previous()) {
-        SearchState test = applyEvents(s.previous(), events);
-        if (stateMatches(test, expectedResult)) {
-          shortenedEventsList = true;
-          state = test;
-        } else {
-          events.addFirst(s.previousEvent());
-        }
-      }
-    } while (shortenedEventsList);
-    return state;
+    return minimizeTrace(state, expectedResult, new SearchSettings());
+  }
+
+  /**
+   * Returns a state matching the expected result with a 1-minimal trace.
+   *
+   * @param state the state, which matches the expected result
+   * @param expectedResult the result
+   * @param settings the settings events are replayed with
+   * @return the state with the minimized trace, or the given state if no event can be removed
+   */
+  static SearchState minimizeTrace(
+      SearchState state, final PredicateResult expectedResult, SearchSettings settings) {
+    return new Minimization(state, expectedResult, settings).run();
   }
 
   private static boolean stateMatches(final SearchState s, final PredicateResult r) {
@@ -60,13 +93,18 @@ abstract class TraceMinimizer {
     return r2 != null && !r2.exceptionThrown();
   }
 
+  static SearchState minimizeExceptionCausingTrace(SearchState state) {
+    return minimizeExceptionCausingTrace(state, new SearchSettings());
+  }
+
   /**
    * Returns a state that results in an exception of the same class as the original one.
    *
    * @param state the state that throws an exception
+   * @param settings the settings events are replayed with
    * @return another state throwing the same type of exception
    */
-  static SearchState minimizeExceptionCausingTrace(SearchState state) {
+  static SearchState minimizeExceptionCausingTrace(SearchState state, SearchSettings settings) {
     final Throwable exception = state.thrownException();
     assert exception != null;
 
@@ -89,21 +127,180 @@ abstract class TraceMinimizer {
     PredicateResult r = exceptionWasThrown.test(state);
     assert r.value();
 
-    return minimizeTrace(state, r);
+    return minimizeTrace(state, r, settings);
+  }
+
+  /** A node of the trie of replayed prefixes. */
+  @RequiredArgsConstructor
+  private static final class Prefix {
+    /* Marks events which are not enabled after the prefix */
+    private static final Prefix DISABLED = new Prefix(null);
+
+    private final SearchState state;
+    private final Map<Event, Prefix> next = new ConcurrentHashMap<>();
   }
 
-  private static SearchState applyEvents(SearchState initialState, List<Event> events) {
-    SearchState s = initialState;
-    for (Event e : events) {
-      // TODO: don't use null settings here, it's re-initialized every time
-      // TODO: do we need to use same settings as the search?
-      SearchState next = s.stepEvent(e, null, false);
-      if (next == null) {
-        break;
+  private static final class Minimization {
+    private final SearchState state;
+    private final PredicateResult expectedResult;
+    private final SearchSettings settings;
+    private final Prefix root;
+    private final List<Event> trace;
+
+    private final Map<List<Event>, Optional<SearchState>> tested = new ConcurrentHashMap<>();
+    private final Map<SearchEquivalenceWrappedSearchState, Boolean> matched =
+        new ConcurrentHashMap<>();
+    private final AtomicInteger cachedStates = new AtomicInteger();
+
+    private ForkJoinPool pool;
+
+    private Minimization(
+        SearchState state, PredicateResult expectedResult, SearchSettings settings) {
+      this.state = state;
+      this.expectedResult = expectedResult;
+      this.settings = settings;
+
+      final LinkedList<Event> trace = new LinkedList<>();
+      SearchState first = state;
+      for (; first.previous() != null; first = first.previous()) {
+        trace.addFirst(first.previousEvent());
       }
-      s = next;
+      this.trace = new ArrayList<>(trace);
+      root = new Prefix(first);
     }
 
-    return s;
+    private SearchState run() {
+      if (settings.multiThreaded() && settings.numThreads() > 1) {
+        pool = new ForkJoinPool(settings.numThreads());
+      }
+      try {
+        return ddmin();
+      } finally {
+        if (pool != null) {
+          pool.shutdownNow();
+        }
+      }
+    }
+
+    private SearchState ddmin() {
+      List<Event> events = trace;
+      SearchState minimized = state;
+      int n = 2;
+      while (!events.isEmpty()) {
+        final int size = events.size();
+        n = Math.min(n, size);
+
+        final List<List<Event>> candidates = new ArrayList<>();
+        final int subsets = n > 1 ? n : 0;
+        for (int i = 0; i < subsets; i++) {
+          candidates.add(new ArrayList<>(events.subList(i * size / n, (i + 1) * size / n)));
+        }
+        for (int i = 0; i < n; i++) {
+          final List<Event> complement = new ArrayList<>(events.subList(0, i * size / n));
+          complement.addAll(events.subList((i + 1) * size / n, size));
+          candidates.add(complement);
+        }
+
+        final int found = firstReproducing(candidates);
+        if (found < 0) {
+          if (n == size) {
+            break;
+          }
+          n = Math.min(2 * n, size);
+          continue;
+        }
+        events = candidates.get(found);
+        minimized = test(events);
+        n = found < subsets ? 2 : Math.max(n - 1, 2);
+      }
+      return minimized;
+    }
+
+    /* The index of the first candidate which reproduces the result, or -1. */
+    private int firstReproducing(List<List<Event>> candidates) {
+      if (pool == null) {
+        for (int i = 0; i < candidates.size(); i++) {
+          if (test(candidates.get(i)) != null) {
+            return i;
+          }
+        }
+        return -1;
+      }
+
+      final List<ForkJoinTask<SearchState>> results = new ArrayList<>();
+      for (List<Event> candidate : candidates) {
+        results.add(pool.submit(() -> test(candidate)));
+      }
+      // join() is not interruptible; worker threads are interrupted when the search finishes
+      for (int i = 0; i < results.size(); i++) {
+        if (results.get(i).join() != null) {
+          for (ForkJoinTask<SearchState> r : results.subList(i + 1, results.size())) {
+            r.cancel(false);
+          }
+          return i;
+        }
+      }
+      return -1;
+    }
+
+    /* The final state of the candidate if it reproduces the result, otherwise null. */
+    private SearchState test(List<Event> candidate) {
+      Optional<SearchState> result = tested.get(candidate);
+      if (result == null) {
+        final SearchState s = replay(candidate);
+        result = Optional.ofNullable(s != null && matches(s) ? s : null);
+        if (tested.size() < MAX_TESTED) {
+          tested.put(Collections.unmodifiableList(candidate), result);
+        }
+      }
+      return result.orElse(null);
+    }
+
+    private boolean matches(SearchState s) {
+      final SearchEquivalenceWrappedSearchState key = s.wrapped();
+      Boolean matches = matched.get(key);
+      if (matches == null) {
+        matches = stateMatches(s, expectedResult);
+        if (matched.size() < MAX_MATCHED) {
+          matched.put(key, matches);
+        }
+      }
+      return matches;
+    }
+
+    /* The state reached by the events, or null if one of them is not enabled. */
+    private SearchState replay(List<Event> events) {
+      Prefix prefix = root;
+      SearchState s = root.state;
+      for (Event e : events) {
+        if (prefix != null) {
+          final Prefix next = prefix.next.get(e);
+          if (next == Prefix.DISABLED) {
+            return null;
+          } else if (next != null) {
+            prefix = next;
+            s = next.state;
+            continue;
+          }
+        }
+
+        final SearchState next = s.stepEvent(e, settings, false);
+        if (prefix != null && cachedStates.get() < MAX_CACHED_STATES) {
+          final Prefix p = next == null ? Prefix.DISABLED : new Prefix(next);
+          final Prefix existing = prefix.next.putIfAbsent(e, p);
+          if (existing == null) {
+            cachedStates.incrementAndGet();
+          }
+          prefix = existing == null ? p : existing;
+        } else {
+          prefix = null;
+        }
+        if (next == null) {
+          return null;
+        }
+        s = prefix == null ? next : prefix.state;
+      }
+      return s;
+    }
   }
 }
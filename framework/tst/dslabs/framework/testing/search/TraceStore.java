@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) 2018 Ellis Michael (emichael@cs.washington.edu)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package dslabs.framework.testing.search;
+
+import dslabs.framework.testing.Event;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An append-only table of (parent, event) entries, which records the traces of states whose
+ * previous states were dropped during a search (see {@link Search#detach(SearchState)}). Each entry
+ * stands for the state reached by its event from the state of its parent entry, or from the
+ * search's initial state if the parent is {@link #ROOT}. A state's trace is rebuilt by following
+ * its entry's parents and replaying their events from the initial state.
+ *
+ * <p>Entries are stored in fixed-size chunks, so the table never copies entries as it grows.
+ *
+ * <p>Safe for concurrent access. An entry is visible to any thread which obtained its id from the
+ * thread which added it through a happens-before edge, e.g., by taking the state it was added for
+ * from a concurrent queue.
+ */
+final class TraceStore {
+  /** The parent of entries whose events were taken from the initial state. */
+  static final int ROOT = -1;
+
+  private static final int CHUNK_BITS = 14, CHUNK_SIZE = 1 << CHUNK_BITS;
+
+  private final AtomicInteger size = new AtomicInteger();
+  private volatile int[][] parents = new int[0][];
+  private volatile Event[][] events = new Event[0][];
+
+  /**
+   * Adds an entry.
+   *
+   * @param parent the id of the parent entry, or {@link #ROOT}
+   * @param event the event taken from the parent's state
+   * @return the id of the new entry
+   */
+  int add(int parent, Event event) {
+    final int id = size.getAndIncrement();
+    if (id < 0) {
+      throw new IllegalStateException("Too many traces");
+    }
+    final int chunk = id >>> CHUNK_BITS;
+    if (chunk >= parents.length) {
+      grow(chunk);
+    }
+    parents[chunk][id & (CHUNK_SIZE - 1)] = parent;
+    events[chunk][id & (CHUNK_SIZE - 1)] = event;
+    return id;
+  }
+
+  private synchronized void grow(int chunk) {
+    final int length = parents.length;
+    if (chunk < length) {
+      return;
+    }
+    final int newLength = Math.max(chunk + 1, length * 2);
+    final int[][] newParents = Arrays.copyOf(parents, newLength);
+    final Event[][] newEvents = Arrays.copyOf(events, newLength);
+    for (int i = length; i < newLength; i++) {
+      newParents[i] = new int[CHUNK_SIZE];
+      newEvents[i] = new Event[CHUNK_SIZE];
+    }
+    // Publish the events first; add() checks the parents' length
+    events = newEvents;
+    parents = newParents;
+  }
+
+  int parent(int id) {
+    return parents[id >>> CHUNK_BITS][id & (CHUNK_SIZE - 1)];
+  }
+
+  Event event(int id) {
+    return events[id >>> CHUNK_BITS][id & (CHUNK_SIZE - 1)];
+  }
+
+  /**
+   * The events leading from the initial state to the state of an entry.
+   *
+   * @param id the id of the entry, or {@link #ROOT}
+   * @return the events, in order
+   */
+  List<Event> trace(int id) {
+    final LinkedList<Event> trace = new LinkedList<>();
+    for (int n = id; n != ROOT; n = parent(n)) {
+      trace.addFirst(event(n));
+    }
+    return trace;
+  }
+
+  /**
+   * The number of entries added.
+   *
+   * @return the number of entries
+   */
+  int size() {
+    return Math.max(size.get(), 0);
+  }
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright (c) 2018 Ellis Michael (emichael@cs.washington.edu)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package dslabs.framework.testing.search;
+
+import dslabs.framework.Address;
+import dslabs.framework.Node;
+import dslabs.framework.testing.MessageEnvelope;
+import dslabs.framework.testing.TimerEnvelope;
+import dslabs.framework.testing.utils.GlobalSettings;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.LongAdder;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+
+/**
+ * A bounded cache of node transitions. Handlers are deterministic, so delivering the same message
+ * or timer to equal nodes always results in equal nodes which sent the same messages and set the
+ * same timers, in the same order. On a hit, {@link SearchState} reuses the resulting node instead
+ * of cloning the receiving node and running its handler again.
+ *
+ * <p>Keys identify the receiving node by its 128-bit fingerprint terms (see {@link
+ * SearchState#fingerprint()}), which states cache anyway, rather than by the node itself, so
+ * looking up a transition neither hashes nor compares whole nodes. Two different nodes are only
+ * confused if their terms collide, which is as unlikely as a collision of full 128-bit
+ * fingerprints.
+ *
+ * <p>Values hold references to the resulting nodes, which are shared with the states they are
+ * reused in, so those nodes must not be modified while the cache is in use. A cache is therefore
+ * only used for the duration of a single search (see {@link Search#run(SearchState)}). Cached nodes
+ * are configured not to refer back to the state whose step created them, so the cache does not keep
+ * those states or their traces reachable. Transitions which threw an exception are not cached.
+ *
+ * <p>The cache is split into segments by hash, each evicting its least recently used entries once
+ * full.
+ *
+ * <p>Safe for concurrent access.
+ */
+final class TransitionCache {
+  private static final int MAX_SEGMENTS = 64;
+
+  /** The fingerprint terms of the receiving node and the delivered message or timer. */
+  static final class Transition {
+    private final long nodeLow, nodeHigh;
+    private final Address from, to;
+    private final Object delivered;
+    private final int hash;
+
+    private Transition(long[] nodeTerms, Address from, Address to, Object delivered) {
+      nodeLow = nodeTerms[0];
+      nodeHigh = nodeTerms[1];
+      this.from = from;
+      this.to = to;
+      this.delivered = delivered;
+      hash = 31 * Long.hashCode(nodeLow) + Objects.hash(from, to, delivered);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (o == this) {
+        return true;
+      }
+      if (!(o instanceof Transition)) {
+        return false;
+      }
+      final Transition other = (Transition) o;
+      return hash == other.hash
+          && nodeLow == other.nodeLow
+          && nodeHigh == other.nodeHigh
+          && Objects.equals(from, other.from)
+          && Objects.equals(to, other.to)
+          && Objects.equals(delivered, other.delivered);
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+  }
+
+  /** The resulting node, its fingerprint terms, and the messages sent and timers set, in order. */
+  @RequiredArgsConstructor
+  @Getter
+  static final class Outcome {
+    private final Node node;
+    private final long[] nodeTerms;
+    private final List<MessageEnvelope> messages;
+    private final List<TimerEnvelope> timers;
+  }
+
+  private static final class Segment extends LinkedHashMap<Transition, Outcome> {
+    private final int capacity;
+
+    private Segment(int capacity) {
+      super(16, 0.75f, true);
+      this.capacity = capacity;
+    }
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<Transition, Outcome> eldest) {
+      return size() > capacity;
+    }
+  }
+
+  private final Segment[] segments;
+  private final LongAdder hits = new LongAdder(), misses = new LongAdder();
+
+  private TransitionCache(int size) {
+    segments = new Segment[Math.min(size, MAX_SEGMENTS)];
+    for (int i = 0; i < segments.length; i++) {
+      segments[i] = new Segment(Math.max(size / segments.length, 1));
+    }
+  }
+
+  /**
+   * @param settings the search settings
+   * @return a new cache of {@link SearchSettings#transitionCacheSize()} entries, or {@code null} if
+   *     the cache is disabled or error checks are enabled, since the determinism check re-runs
+   *     handlers and would otherwise only ever see cached transitions
+   */
+  static TransitionCache create(SearchSettings settings) {
+    if (settings.transitionCacheSize() <= 0 || GlobalSettings.doErrorChecks()) {
+      return null;
+    }
+    return new TransitionCache(settings.transitionCacheSize());
+  }
+
+  static Transition messageTransition(long[] nodeTerms, MessageEnvelope message) {
+    return new Transition(nodeTerms, message.from(), message.to(), message.message());
+  }
+
+  static Transition timerTransition(long[] nodeTerms, TimerEnvelope timer) {
+    return new Transition(nodeTerms, null, timer.to(), timer.timer());
+  }
+
+  private Segment segment(Transition transition) {
+    return segments[Math.floorMod(transition.hash, segments.length)];
+  }
+
+  /**
+   * @param transition the transition
+   * @return the cached outcome, or {@code null} if there is none
+   */
+  Outcome get(Transition transition) {
+    final Segment segment = segment(transition);
+    final Outcome outcome;
+    synchronized (segment) {
+      outcome = segment.get(transition);
+    }
+    if (outcome == null) {
+      misses.increment();
+    } else {
+      hits.increment();
+    }
+    return outcome;
+  }
+
+  void put(Transition transition, Outcome outcome) {
+    final Segment segment = segment(transition);
+    synchronized (segment) {
+      segment.put(transition, outcome);
+    }
+  }
+
+  long hits() {
+    return hits.sum();
+  }
+
+  long misses() {
+    return misses.sum();
+  }
+}
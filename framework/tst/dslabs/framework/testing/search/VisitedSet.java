@@ -0,0 +1,572 @@
+/*
+ * Copyright (c) 2018 Ellis Michael (emichael@cs.washington.edu)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package dslabs.framework.testing.search;
+
+import dslabs.framework.testing.search.FingerprintSet.FingerprintConsumer;
+import dslabs.framework.testing.search.SearchSettings.VisitedSetMode;
+import dslabs.framework.testing.search.SearchState.SearchEquivalenceWrappedSearchState;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import lombok.RequiredArgsConstructor;
+import lombok.Value;
+
+/**
+ * The set of states already discovered by a search strategy. States are compared using
+ * search-equivalence (see {@link SearchEquivalenceWrappedSearchState}). Depending on the {@link
+ * VisitedSetMode}, implementations might only store a lossy summary of each state.
+ *
+ * <p>Implementations must be safe for concurrent access.
+ */
+abstract class VisitedSet {
+  /* Formats written by writeTo */
+  private static final byte FINGERPRINTS = 0, BITS = 1;
+
+  /**
+   * Returned by {@link DepthVisitedSet#add(SearchState, int)} for states not previously in the set.
+   */
+  static final int NOT_VISITED = Integer.MAX_VALUE;
+
+  /**
+   * Adds the state to the set.
+   *
+   * @param state the state to add
+   * @return whether the state was not previously in the set
+   */
+  abstract boolean add(SearchState state);
+
+  /**
+   * An object identifying the state the same way this set does: the keys of two states are equal
+   * iff the set considers them the same state. Used by strategies which keep additional information
+   * about discovered states.
+   *
+   * @param state the state
+   * @return the key
+   */
+  abstract Object key(SearchState state);
+
+  /**
+   * The number of distinct states that have been added to the set.
+   *
+   * @return the number of states
+   */
+  abstract long size();
+
+  /**
+   * An estimate of the probability that some new state was wrongly considered already visited, or
+   * {@code null} if the set is lossless.
+   *
+   * @return the probability or {@code null}
+   */
+  Double collisionProbability() {
+    return null;
+  }
+
+  /**
+   * An estimate of the fraction of new states that were wrongly considered already visited, or
+   * {@code null} if the set is not expected to omit a significant fraction of states.
+   *
+   * @return the fraction or {@code null}
+   */
+  Double omissionRate() {
+    return null;
+  }
+
+  /**
+   * Records the estimated collision probability and omission rate in the results and, if the
+   * settings call for status output, prints them.
+   */
+  final void reportLossiness(SearchResults results, SearchSettings settings) {
+    reportLossiness(results, settings, collisionProbability(), omissionRate(), size());
+  }
+
+  /**
+   * Records and prints the estimates for a search whose visited states are spread over several
+   * sets.
+   */
+  static void reportLossiness(
+      SearchResults results, SearchSettings settings, Double p, Double omitted, long size) {
+    results.fingerprintCollisionProbability(p);
+    results.expectedOmissionRate(omitted);
+    if (p != null && settings.shouldOutputStatus()) {
+      System.out.printf(
+          "Estimated fingerprint collision probability: %.3g (%s states)%n%n", p, size);
+    }
+    if (omitted != null && settings.shouldOutputStatus()) {
+      System.out.printf(
+          "Expected fraction of states omitted by bitstate hashing: %.3g (%s states)%n%n",
+          omitted, size);
+    }
+  }
+
+  /**
+   * A set of the 128-bit fingerprints of the states in this set, which considers the same states
+   * discovered but no longer keeps them reachable, or {@code null} if this set is already compact
+   * or cannot enumerate the fingerprints of its states. States must not be added concurrently.
+   *
+   * @param settings the settings of the search
+   * @return the fingerprint set or {@code null}
+   */
+  VisitedSet fingerprinted(SearchSettings settings) {
+    return null;
+  }
+
+  /**
+   * Writes the set so that it can be read back by {@link #readFrom(DataInputStream,
+   * SearchSettings)} when a search is resumed from a {@link Checkpoint}. Lossless sets only write
+   * the 128-bit fingerprints of their states. States must not be added concurrently.
+   *
+   * @param out the stream to write to
+   */
+  abstract void writeTo(DataOutputStream out) throws IOException;
+
+  private interface FingerprintSource {
+    void forEach(FingerprintConsumer consumer) throws IOException;
+  }
+
+  /* The all-zero fingerprint is never stored (see FingerprintSet), so it ends the list */
+  private static void writeFingerprints(
+      DataOutputStream out, boolean wide, FingerprintSource source) throws IOException {
+    out.writeByte(FINGERPRINTS);
+    out.writeBoolean(wide);
+    source.forEach(
+        (high, low) -> {
+          if (high == 0 && low == 0) {
+            low = 1;
+          }
+          out.writeLong(high);
+          out.writeLong(low);
+        });
+    out.writeLong(0);
+    out.writeLong(0);
+  }
+
+  /**
+   * Reads back a set written by {@link #writeTo(DataOutputStream)}. Fingerprint and bitstate sets
+   * are restored as they were. The states of a lossless set are only known by their fingerprints
+   * when it is read back, so new states are considered discovered if they share a fingerprint with
+   * one of them, and are otherwise stored in a set of the settings' {@link VisitedSetMode}.
+   *
+   * @param in the stream to read from
+   * @param settings the settings of the resumed search
+   * @return the set
+   */
+  static VisitedSet readFrom(DataInputStream in, SearchSettings settings) throws IOException {
+    if (in.readByte() == BITS) {
+      return new BitstateVisitedSet(BitstateSet.readFrom(in), SymmetryReduction.create(settings));
+    }
+    final FingerprintSet fingerprints = new FingerprintSet(in.readBoolean(), settings.numThreads());
+    for (long high = in.readLong(), low = in.readLong();
+        high != 0 || low != 0;
+        high = in.readLong(), low = in.readLong()) {
+      fingerprints.add(high, low);
+    }
+    final DepthVisitedSet set;
+    switch (settings.visitedSetMode()) {
+      case FINGERPRINTS_64:
+      case FINGERPRINTS_128:
+      case BITSTATE:
+        set = new FingerprintVisitedSet(fingerprints);
+        break;
+      default:
+        set = new SeededVisitedSet(fingerprints, losslessSet(settings));
+    }
+    return withSymmetry(set, settings);
+  }
+
+  static VisitedSet create(SearchSettings settings) {
+    if (settings.visitedSetMode() == VisitedSetMode.BITSTATE) {
+      return new BitstateVisitedSet(
+          new BitstateSet(settings.bitstateMemoryBytes(), settings.bitstateHashes()),
+          SymmetryReduction.create(settings));
+    }
+    return createWithDepths(settings);
+  }
+
+  /**
+   * @param settings the search settings
+   * @return a new set which keeps depths
+   * @throws IllegalArgumentException if the settings use bitstate hashing, which does not keep
+   *     depths
+   */
+  static DepthVisitedSet createWithDepths(SearchSettings settings) {
+    final DepthVisitedSet set;
+    switch (settings.visitedSetMode()) {
+      case FINGERPRINTS_64:
+        set = new FingerprintVisitedSet(new FingerprintSet(false, settings.numThreads()));
+        break;
+      case FINGERPRINTS_128:
+        set = new FingerprintVisitedSet(new FingerprintSet(true, settings.numThreads()));
+        break;
+      case BITSTATE:
+        throw new IllegalArgumentException("Bitstate hashing does not keep depths");
+      default:
+        set = losslessSet(settings);
+    }
+    return withSymmetry(set, settings);
+  }
+
+  private static LosslessVisitedSet losslessSet(SearchSettings settings) {
+    if (settings.visitedSetMode() == VisitedSetMode.COLLAPSED) {
+      return new CollapsedVisitedSet(
+          settings.checkpointing() ? new FingerprintSet(true, settings.numThreads()) : null);
+    }
+    return new FullStateVisitedSet();
+  }
+
+  private static <K> int addWithDepth(Map<K, Integer> depths, K key, int depth) {
+    final int[] previous = {NOT_VISITED};
+    depths.merge(
+        key,
+        depth,
+        (p, d) -> {
+          previous[0] = p;
+          return Math.min(p, d);
+        });
+    return previous[0];
+  }
+
+  private static DepthVisitedSet withSymmetry(DepthVisitedSet set, SearchSettings settings) {
+    final SymmetryReduction symmetry = SymmetryReduction.create(settings);
+    return symmetry == null ? set : new SymmetricVisitedSet(set, symmetry);
+  }
+
+  @Value
+  private static class FingerprintKey {
+    long high, low;
+  }
+
+  /**
+   * A set which also keeps the smallest depth each state was added with. Every {@link
+   * VisitedSetMode} but bitstate hashing, which only keeps a few bits per state, has one.
+   */
+  abstract static class DepthVisitedSet extends VisitedSet {
+    /**
+     * Adds the state to the set along with the depth it was reached at, keeping the smallest depth
+     * each state was added with. Used by depth-limited searches, which must explore a state again
+     * when they reach it by a shorter path. States added without a depth count as added with {@link
+     * Integer#MIN_VALUE}.
+     *
+     * @param state the state to add
+     * @param depth the depth
+     * @return the smallest depth the state was previously added with, or {@link #NOT_VISITED}
+     */
+    abstract int add(SearchState state, int depth);
+
+    @Override
+    DepthVisitedSet fingerprinted(SearchSettings settings) {
+      return null;
+    }
+  }
+
+  /** A set which stores its states losslessly, and writes their 128-bit fingerprints. */
+  private abstract static class LosslessVisitedSet extends DepthVisitedSet {
+    /**
+     * Passes the 128-bit fingerprint of every state in the set to the consumer. States must not be
+     * added concurrently.
+     *
+     * @param consumer the consumer
+     */
+    abstract void forEachFingerprint(FingerprintConsumer consumer) throws IOException;
+
+    @Override
+    final void writeTo(DataOutputStream out) throws IOException {
+      writeFingerprints(out, true, this::forEachFingerprint);
+    }
+  }
+
+  /** Stores every discovered state in full. Lossless, but keeps all states reachable. */
+  private static final class FullStateVisitedSet extends LosslessVisitedSet {
+    /* Each state's smallest depth; see add(SearchState, int) */
+    private final Map<SearchEquivalenceWrappedSearchState, Integer> states =
+        new ConcurrentHashMap<>();
+
+    @Override
+    boolean add(SearchState state) {
+      return states.putIfAbsent(state.wrapped(), Integer.MIN_VALUE) == null;
+    }
+
+    @Override
+    int add(SearchState state, int depth) {
+      return addWithDepth(states, state.wrapped(), depth);
+    }
+
+    @Override
+    Object key(SearchState state) {
+      return state.wrapped();
+    }
+
+    @Override
+    long size() {
+      return states.size();
+    }
+
+    @Override
+    void forEachFingerprint(FingerprintConsumer consumer) throws IOException {
+      for (SearchEquivalenceWrappedSearchState s : states.keySet()) {
+        consumer.accept(s.state().fingerprintHigh(), s.state().fingerprint());
+      }
+    }
+
+    @Override
+    DepthVisitedSet fingerprinted(SearchSettings settings) {
+      final FingerprintSet fingerprints = new FingerprintSet(true, settings.numThreads());
+      for (SearchEquivalenceWrappedSearchState s : states.keySet()) {
+        fingerprints.add(s.state().fingerprintHigh(), s.state().fingerprint());
+      }
+      return new FingerprintVisitedSet(fingerprints);
+    }
+  }
+
+  /**
+   * Stores every discovered state as a tuple of interned component ids. Lossless. Tuples cannot be
+   * fingerprinted, so when the search writes checkpoints, the fingerprints are also kept.
+   */
+  @RequiredArgsConstructor
+  private static final class CollapsedVisitedSet extends LosslessVisitedSet {
+    private final CollapseTable table = new CollapseTable();
+    /* Each state's smallest depth; see add(SearchState, int) */
+    private final Map<CollapseTable.Tuple, Integer> states = new ConcurrentHashMap<>();
+    private final FingerprintSet fingerprints;
+
+    @Override
+    boolean add(SearchState state) {
+      final boolean added = states.putIfAbsent(table.collapse(state), Integer.MIN_VALUE) == null;
+      if (added && fingerprints != null) {
+        fingerprints.add(state.fingerprintHigh(), state.fingerprint());
+      }
+      return added;
+    }
+
+    @Override
+    int add(SearchState state, int depth) {
+      final int previous = addWithDepth(states, table.collapse(state), depth);
+      if (previous == NOT_VISITED && fingerprints != null) {
+        fingerprints.add(state.fingerprintHigh(), state.fingerprint());
+      }
+      return previous;
+    }
+
+    @Override
+    void forEachFingerprint(FingerprintConsumer consumer) throws IOException {
+      if (fingerprints == null) {
+        throw new IllegalStateException("Fingerprints were not kept");
+      }
+      fingerprints.forEach(consumer);
+    }
+
+    @Override
+    DepthVisitedSet fingerprinted(SearchSettings settings) {
+      return fingerprints == null ? null : new FingerprintVisitedSet(fingerprints);
+    }
+
+    @Override
+    Object key(SearchState state) {
+      return table.collapse(state);
+    }
+
+    @Override
+    long size() {
+      return states.size();
+    }
+  }
+
+  /** Stores only the fingerprints of discovered states. */
+  @RequiredArgsConstructor
+  private static final class FingerprintVisitedSet extends DepthVisitedSet {
+    private final FingerprintSet fingerprints;
+
+    @Override
+    boolean add(SearchState state) {
+      if (fingerprints.wide()) {
+        return fingerprints.add(state.fingerprintHigh(), state.fingerprint());
+      }
+      return fingerprints.add(state.fingerprint());
+    }
+
+    @Override
+    int add(SearchState state, int depth) {
+      return fingerprints.add(state.fingerprintHigh(), state.fingerprint(), depth);
+    }
+
+    @Override
+    Object key(SearchState state) {
+      return new FingerprintKey(state.fingerprintHigh(), state.fingerprint());
+    }
+
+    @Override
+    long size() {
+      return fingerprints.size();
+    }
+
+    @Override
+    Double collisionProbability() {
+      return FingerprintSet.collisionProbability(size(), fingerprints.wide() ? 128 : 64);
+    }
+
+    @Override
+    void writeTo(DataOutputStream out) throws IOException {
+      writeFingerprints(out, fingerprints.wide(), fingerprints::forEach);
+    }
+  }
+
+  /**
+   * The set of a search resumed from a checkpoint of a lossless set: the fingerprints of the states
+   * discovered before the checkpoint, and a lossless set of the states discovered since.
+   */
+  @RequiredArgsConstructor
+  private static final class SeededVisitedSet extends DepthVisitedSet {
+    private final FingerprintSet seeds;
+    private final LosslessVisitedSet discovered;
+
+    @Override
+    boolean add(SearchState state) {
+      if (seeds.contains(state.fingerprintHigh(), state.fingerprint())) {
+        return false;
+      }
+      return discovered.add(state);
+    }
+
+    @Override
+    int add(SearchState state, int depth) {
+      if (seeds.contains(state.fingerprintHigh(), state.fingerprint())) {
+        return Integer.MIN_VALUE;
+      }
+      return discovered.add(state, depth);
+    }
+
+    @Override
+    Object key(SearchState state) {
+      return discovered.key(state);
+    }
+
+    @Override
+    long size() {
+      return seeds.size() + discovered.size();
+    }
+
+    @Override
+    Double collisionProbability() {
+      return FingerprintSet.collisionProbability(size(), seeds.wide() ? 128 : 64);
+    }
+
+    @Override
+    void writeTo(DataOutputStream out) throws IOException {
+      writeFingerprints(
+          out,
+          true,
+          consumer -> {
+            seeds.forEach(consumer);
+            discovered.forEachFingerprint(consumer);
+          });
+    }
+  }
+
+  /**
+   * Stores discovered states as bits in a fixed-size Bloom filter; see {@link BitstateSet}. Adds
+   * the canonical representative of each state if symmetry reduction is enabled.
+   */
+  @RequiredArgsConstructor
+  private static final class BitstateVisitedSet extends VisitedSet {
+    private final BitstateSet bits;
+    private final SymmetryReduction symmetry;
+
+    @Override
+    boolean add(SearchState state) {
+      final SearchState s = symmetry == null ? state : symmetry.canonical(state);
+      return bits.add(s.fingerprintHigh(), s.fingerprint());
+    }
+
+    @Override
+    Object key(SearchState state) {
+      final SearchState s = symmetry == null ? state : symmetry.canonical(state);
+      return new FingerprintKey(s.fingerprintHigh(), s.fingerprint());
+    }
+
+    @Override
+    long size() {
+      return bits.size();
+    }
+
+    @Override
+    Double omissionRate() {
+      return BitstateSet.expectedOmissionRate(size(), bits.numBits(), bits.numHashes());
+    }
+
+    @Override
+    void writeTo(DataOutputStream out) throws IOException {
+      out.writeByte(BITS);
+      bits.writeTo(out);
+    }
+  }
+
+  /** Adds the canonical representative of each state to another visited set. */
+  @RequiredArgsConstructor
+  private static final class SymmetricVisitedSet extends DepthVisitedSet {
+    private final DepthVisitedSet representatives;
+    private final SymmetryReduction symmetry;
+
+    @Override
+    boolean add(SearchState state) {
+      return representatives.add(symmetry.canonical(state));
+    }
+
+    @Override
+    int add(SearchState state, int depth) {
+      return representatives.add(symmetry.canonical(state), depth);
+    }
+
+    @Override
+    Object key(SearchState state) {
+      return representatives.key(symmetry.canonical(state));
+    }
+
+    @Override
+    long size() {
+      return representatives.size();
+    }
+
+    @Override
+    Double collisionProbability() {
+      return representatives.collisionProbability();
+    }
+
+    @Override
+    Double omissionRate() {
+      return representatives.omissionRate();
+    }
+
+    @Override
+    DepthVisitedSet fingerprinted(SearchSettings settings) {
+      final DepthVisitedSet fingerprinted = representatives.fingerprinted(settings);
+      return fingerprinted == null ? null : new SymmetricVisitedSet(fingerprinted, symmetry);
+    }
+
+    @Override
+    void writeTo(DataOutputStream out) throws IOException {
+      representatives.writeTo(out);
+    }
+  }
+}
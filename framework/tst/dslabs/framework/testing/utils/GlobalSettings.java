@@ -55,6 +55,14 @@ public final class GlobalSettings {
   private static boolean saveTraces =
       Boolean.parseBoolean(lookupWithDefault("saveTraces", "false"));
 
+  /**
+   * Whether saved traces are compressed. Compressed traces are smaller, but must be read into
+   * memory in full when loaded instead of being memory-mapped.
+   */
+  @Getter
+  private static final boolean compressTraces =
+      Boolean.parseBoolean(lookupWithDefault("compressTraces", "false"));
+
   private static final boolean doChecks =
       Boolean.parseBoolean(lookupWithDefault("doChecks", "false"));
 
@@ -0,0 +1,419 @@
+/*
+ * Copyright (c) 2018 Ellis Michael (emichael@cs.washington.edu)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package dslabs.framework.testing.utils;
+
+import java.io.Serializable;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * An immutable hash map with structural sharing (a hash array mapped trie). {@link #plus(Object,
+ * Object)} and {@link #minus(Object)} return new maps which share all but O(log n) of their
+ * structure with the original, so keeping many slightly different versions of a map is cheap.
+ *
+ * <p>Implements the read-only parts of {@link Map}; equality and hashing follow the {@link Map}
+ * contract, so a {@code PersistentMap} is equal to any other {@link Map} with the same entries.
+ * Keys must not be {@code null}.
+ *
+ * @param <K> the type of keys
+ * @param <V> the type of values
+ */
+public final class PersistentMap<K, V> extends AbstractMap<K, V> implements Serializable {
+  private static final int BITS = 5, MASK = (1 << BITS) - 1, MAX_DEPTH = 16;
+  private static final Object NOT_FOUND = new Object();
+
+  private static final PersistentMap<?, ?> EMPTY = new PersistentMap<>(BitmapNode.EMPTY, 0);
+
+  private final TrieNode root;
+  private final int size;
+
+  private PersistentMap(TrieNode root, int size) {
+    this.root = root;
+    this.size = size;
+  }
+
+  @SuppressWarnings("unchecked")
+  public static <K, V> PersistentMap<K, V> empty() {
+    return (PersistentMap<K, V>) EMPTY;
+  }
+
+  @SuppressWarnings("unchecked")
+  public static <K, V> PersistentMap<K, V> copyOf(Map<? extends K, ? extends V> map) {
+    if (map instanceof PersistentMap) {
+      return (PersistentMap<K, V>) map;
+    }
+    PersistentMap<K, V> result = empty();
+    for (Entry<? extends K, ? extends V> e : map.entrySet()) {
+      result = result.plus(e.getKey(), e.getValue());
+    }
+    return result;
+  }
+
+  private static int hash(Object key) {
+    final int h = key.hashCode();
+    return h ^ (h >>> 16);
+  }
+
+  /**
+   * Returns a map with the given mapping added, replacing any existing mapping for the key.
+   *
+   * @param key the key
+   * @param value the value
+   * @return the new map, or this map if it already contains the mapping
+   */
+  public PersistentMap<K, V> plus(K key, V value) {
+    Objects.requireNonNull(key);
+    final boolean[] added = new boolean[1];
+    final TrieNode newRoot = root.assoc(0, hash(key), key, value, added);
+    if (newRoot == root) {
+      return this;
+    }
+    return new PersistentMap<>(newRoot, added[0] ? size + 1 : size);
+  }
+
+  /**
+   * Returns a map without any mapping for the given key.
+   *
+   * @param key the key
+   * @return the new map, or this map if it does not contain the key
+   */
+  public PersistentMap<K, V> minus(Object key) {
+    if (key == null) {
+      return this;
+    }
+    final TrieNode newRoot = root.without(0, hash(key), key);
+    if (newRoot == root) {
+      return this;
+    }
+    if (newRoot == null) {
+      return empty();
+    }
+    return new PersistentMap<>(newRoot, size - 1);
+  }
+
+  @Override
+  public int size() {
+    return size;
+  }
+
+  @Override
+  public boolean containsKey(Object key) {
+    return key != null && root.find(0, hash(key), key) != NOT_FOUND;
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public V get(Object key) {
+    if (key == null) {
+      return null;
+    }
+    final Object v = root.find(0, hash(key), key);
+    return v == NOT_FOUND ? null : (V) v;
+  }
+
+  @Override
+  public Set<Entry<K, V>> entrySet() {
+    return new AbstractSet<>() {
+      @Override
+      public Iterator<Entry<K, V>> iterator() {
+        return new EntryIterator<>(root);
+      }
+
+      @Override
+      public int size() {
+        return size;
+      }
+    };
+  }
+
+  /*
+   * Trie nodes store their contents in a single array of key/value pairs. A null key marks a
+   * sub-trie, which is stored in the value slot.
+   */
+
+  private abstract static class TrieNode {
+    final Object[] array;
+
+    TrieNode(Object[] array) {
+      this.array = array;
+    }
+
+    abstract TrieNode assoc(int shift, int hash, Object key, Object value, boolean[] added);
+
+    abstract TrieNode without(int shift, int hash, Object key);
+
+    abstract Object find(int shift, int hash, Object key);
+  }
+
+  private static final class BitmapNode extends TrieNode {
+    static final BitmapNode EMPTY = new BitmapNode(0, new Object[0]);
+
+    private final int bitmap;
+
+    BitmapNode(int bitmap, Object[] array) {
+      super(array);
+      this.bitmap = bitmap;
+    }
+
+    private static int bit(int hash, int shift) {
+      return 1 << ((hash >>> shift) & MASK);
+    }
+
+    private int index(int bit) {
+      return Integer.bitCount(bitmap & (bit - 1));
+    }
+
+    @Override
+    TrieNode assoc(int shift, int hash, Object key, Object value, boolean[] added) {
+      final int bit = bit(hash, shift);
+      final int i = 2 * index(bit);
+
+      if ((bitmap & bit) == 0) {
+        final Object[] a = new Object[array.length + 2];
+        System.arraycopy(array, 0, a, 0, i);
+        a[i] = key;
+        a[i + 1] = value;
+        System.arraycopy(array, i, a, i + 2, array.length - i);
+        added[0] = true;
+        return new BitmapNode(bitmap | bit, a);
+      }
+
+      final Object k = array[i], v = array[i + 1];
+      if (k == null) {
+        final TrieNode child = ((TrieNode) v).assoc(shift + BITS, hash, key, value, added);
+        return child == v ? this : new BitmapNode(bitmap, set(array, i + 1, child));
+      }
+      if (key.equals(k)) {
+        return v == value ? this : new BitmapNode(bitmap, set(array, i + 1, value));
+      }
+
+      added[0] = true;
+      final Object[] a = set(array, i + 1, split(shift + BITS, k, v, hash, key, value));
+      a[i] = null;
+      return new BitmapNode(bitmap, a);
+    }
+
+    private static TrieNode split(
+        int shift, Object k1, Object v1, int hash2, Object k2, Object v2) {
+      final int hash1 = hash(k1);
+      if (hash1 == hash2) {
+        return new CollisionNode(hash1, new Object[] {k1, v1, k2, v2});
+      }
+      final boolean[] ignored = new boolean[1];
+      return EMPTY.assoc(shift, hash1, k1, v1, ignored).assoc(shift, hash2, k2, v2, ignored);
+    }
+
+    @Override
+    TrieNode without(int shift, int hash, Object key) {
+      final int bit = bit(hash, shift);
+      if ((bitmap & bit) == 0) {
+        return this;
+      }
+      final int i = 2 * index(bit);
+      final Object k = array[i], v = array[i + 1];
+
+      if (k == null) {
+        final TrieNode child = ((TrieNode) v).without(shift + BITS, hash, key);
+        if (child == v) {
+          return this;
+        }
+        if (child != null) {
+          return new BitmapNode(bitmap, set(array, i + 1, child));
+        }
+      } else if (!key.equals(k)) {
+        return this;
+      }
+
+      if (bitmap == bit) {
+        return null;
+      }
+      return new BitmapNode(bitmap ^ bit, removePair(array, i));
+    }
+
+    @Override
+    Object find(int shift, int hash, Object key) {
+      final int bit = bit(hash, shift);
+      if ((bitmap & bit) == 0) {
+        return NOT_FOUND;
+      }
+      final int i = 2 * index(bit);
+      final Object k = array[i], v = array[i + 1];
+      if (k == null) {
+        return ((TrieNode) v).find(shift + BITS, hash, key);
+      }
+      return key.equals(k) ? v : NOT_FOUND;
+    }
+  }
+
+  /** Holds keys whose hashes are identical. */
+  private static final class CollisionNode extends TrieNode {
+    private final int hash;
+
+    CollisionNode(int hash, Object[] array) {
+      super(array);
+      this.hash = hash;
+    }
+
+    private int indexOf(Object key) {
+      for (int i = 0; i < array.length; i += 2) {
+        if (key.equals(array[i])) {
+          return i;
+        }
+      }
+      return -1;
+    }
+
+    @Override
+    TrieNode assoc(int shift, int hash, Object key, Object value, boolean[] added) {
+      if (hash != this.hash) {
+        // Push this node down a level
+        return new BitmapNode(BitmapNode.bit(this.hash, shift), new Object[] {null, this})
+            .assoc(shift, hash, key, value, added);
+      }
+      final int i = indexOf(key);
+      if (i >= 0) {
+        return array[i + 1] == value ? this : new CollisionNode(hash, set(array, i + 1, value));
+      }
+      final Object[] a = new Object[array.length + 2];
+      System.arraycopy(array, 0, a, 0, array.length);
+      a[array.length] = key;
+      a[array.length + 1] = value;
+      added[0] = true;
+      return new CollisionNode(hash, a);
+    }
+
+    @Override
+    TrieNode without(int shift, int hash, Object key) {
+      final int i = indexOf(key);
+      if (i < 0) {
+        return this;
+      }
+      if (array.length == 2) {
+        return null;
+      }
+      return new CollisionNode(hash, removePair(array, i));
+    }
+
+    @Override
+    Object find(int shift, int hash, Object key) {
+      final int i = indexOf(key);
+      return i < 0 ? NOT_FOUND : array[i + 1];
+    }
+  }
+
+  private static Object[] set(Object[] array, int i, Object value) {
+    final Object[] a = array.clone();
+    a[i] = value;
+    return a;
+  }
+
+  private static Object[] removePair(Object[] array, int i) {
+    final Object[] a = new Object[array.length - 2];
+    System.arraycopy(array, 0, a, 0, i);
+    System.arraycopy(array, i + 2, a, i, array.length - i - 2);
+    return a;
+  }
+
+  private static final class EntryIterator<K, V> implements Iterator<Entry<K, V>> {
+    private final Object[][] arrays = new Object[MAX_DEPTH][];
+    private final int[] indices = new int[MAX_DEPTH];
+    private int depth = 0;
+    private Entry<K, V> next;
+
+    EntryIterator(TrieNode root) {
+      arrays[0] = root.array;
+      advance();
+    }
+
+    @SuppressWarnings("unchecked")
+    private void advance() {
+      while (depth >= 0) {
+        final Object[] a = arrays[depth];
+        final int i = indices[depth];
+        if (i >= a.length) {
+          arrays[depth] = null;
+          depth--;
+          continue;
+        }
+        indices[depth] = i + 2;
+        if (a[i] != null) {
+          next = new SimpleImmutableEntry<>((K) a[i], (V) a[i + 1]);
+          return;
+        }
+        depth++;
+        arrays[depth] = ((TrieNode) a[i + 1]).array;
+        indices[depth] = 0;
+      }
+      next = null;
+    }
+
+    @Override
+    public boolean hasNext() {
+      return next != null;
+    }
+
+    @Override
+    public Entry<K, V> next() {
+      if (next == null) {
+        throw new NoSuchElementException();
+      }
+      final Entry<K, V> e = next;
+      advance();
+      return e;
+    }
+  }
+
+  /* Serialize the entries rather than the trie. */
+
+  private Object writeReplace() {
+    return new SerializedForm(this);
+  }
+
+  private static final class SerializedForm implements Serializable {
+    private final Object[] keys, values;
+
+    SerializedForm(PersistentMap<?, ?> map) {
+      keys = new Object[map.size];
+      values = new Object[map.size];
+      int i = 0;
+      for (Entry<?, ?> e : map.entrySet()) {
+        keys[i] = e.getKey();
+        values[i] = e.getValue();
+        i++;
+      }
+    }
+
+    private Object readResolve() {
+      PersistentMap<Object, Object> map = empty();
+      for (int i = 0; i < keys.length; i++) {
+        map = map.plus(keys[i], values[i]);
+      }
+      return map;
+    }
+  }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright (c) 2018 Ellis Michael (emichael@cs.washington.edu)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package dslabs.framework.testing.utils;
+
+import java.io.Serializable;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+
+/**
+ * An immutable hash set with structural sharing, backed by a {@link PersistentMap}. Elements must
+ * not be {@code null}.
+ *
+ * @param <E> the type of elements
+ */
+public final class PersistentSet<E> extends AbstractSet<E> implements Serializable {
+  private static final PersistentSet<?> EMPTY = new PersistentSet<>(PersistentMap.empty());
+
+  private final PersistentMap<E, Boolean> map;
+
+  private PersistentSet(PersistentMap<E, Boolean> map) {
+    this.map = map;
+  }
+
+  @SuppressWarnings("unchecked")
+  public static <E> PersistentSet<E> empty() {
+    return (PersistentSet<E>) EMPTY;
+  }
+
+  @SuppressWarnings("unchecked")
+  public static <E> PersistentSet<E> copyOf(Collection<? extends E> elements) {
+    if (elements instanceof PersistentSet) {
+      return (PersistentSet<E>) elements;
+    }
+    return PersistentSet.<E>empty().plusAll(elements);
+  }
+
+  /**
+   * Returns a set with the given element added.
+   *
+   * @param element the element
+   * @return the new set, or this set if it already contains the element
+   */
+  public PersistentSet<E> plus(E element) {
+    final PersistentMap<E, Boolean> m = map.plus(element, Boolean.TRUE);
+    return m == map ? this : new PersistentSet<>(m);
+  }
+
+  /**
+   * Returns a set with all of the given elements added.
+   *
+   * @param elements the elements
+   * @return the new set, or this set if it already contains all of the elements
+   */
+  public PersistentSet<E> plusAll(Iterable<? extends E> elements) {
+    PersistentMap<E, Boolean> m = map;
+    for (E e : elements) {
+      m = m.plus(e, Boolean.TRUE);
+    }
+    return m == map ? this : new PersistentSet<>(m);
+  }
+
+  /**
+   * Returns a set without the given element.
+   *
+   * @param element the element
+   * @return the new set, or this set if it does not contain the element
+   */
+  public PersistentSet<E> minus(Object element) {
+    final PersistentMap<E, Boolean> m = map.minus(element);
+    return m == map ? this : new PersistentSet<>(m);
+  }
+
+  @Override
+  public boolean contains(Object o) {
+    return map.containsKey(o);
+  }
+
+  @Override
+  public Iterator<E> iterator() {
+    return map.keySet().iterator();
+  }
+
+  @Override
+  public int size() {
+    return map.size();
+  }
+
+  /*
+   * Serialize the elements rather than the backing map. Deserialization would otherwise produce
+   * fresh Boolean values, which the map compares by identity, so adding an element already present
+   * would no longer return the same set.
+   */
+
+  private Object writeReplace() {
+    return new SerializedForm(this);
+  }
+
+  private static final class SerializedForm implements Serializable {
+    private final Object[] elements;
+
+    SerializedForm(PersistentSet<?> set) {
+      elements = set.toArray();
+    }
+
+    private Object readResolve() {
+      return PersistentSet.empty().plusAll(Arrays.asList(elements));
+    }
+  }
+}
@@ -9,6 +9,7 @@ import dslabs.framework.Result;
 import dslabs.framework.testing.ClientWorker;
 import dslabs.framework.testing.InfiniteWorkload;
 import dslabs.framework.testing.StatePredicate;
+import dslabs.framework.testing.StatePredicate.ReadSet;
 import dslabs.framework.testing.Workload;
 import dslabs.framework.testing.utils.SerializableFunction;
 import dslabs.kvstore.KVStore.Append;
@@ -282,6 +283,7 @@ public abstract class KVStoreWorkload extends Workload {
   private static StatePredicate appendsLinearizableInternal(Iterable<Address> clientWorkers) {
     return statePredicateWithMessage(
         "Sequence of appends to the same key is linearizable",
+        clientWorkers == null ? ReadSet.clientWorkers() : ReadSet.nodes(clientWorkers),
         s -> {
           List<String> allResults = new ArrayList<>();
 
@@ -103,16 +103,15 @@ public class PrimaryBackupTest extends BaseJUnitTest {
 
   /* Predicates */
   private static StatePredicate hasViewReply(final int viewNum) {
-    return StatePredicate.containsMessageMatching(
-        "ViewReply with viewNum: " + viewNum,
-        m -> (m instanceof ViewReply) && ((ViewReply) m).view().viewNum() >= viewNum);
+    return StatePredicate.containsMessageOfType(
+        "ViewReply with viewNum: " + viewNum, ViewReply.class, m -> m.view().viewNum() >= viewNum);
   }
 
   private static StatePredicate hasViewReply(
       final int viewNum, final Address primary, final Address backup) {
     View v = new View(viewNum, primary, backup);
-    return StatePredicate.containsMessageMatching(
-        "ViewReply with " + v, m -> (m instanceof ViewReply) && ((ViewReply) m).view().equals(v));
+    return StatePredicate.containsMessageOfType(
+        "ViewReply with " + v, ViewReply.class, m -> m.view().equals(v));
   }
 
   /* Search Test Helper Methods */
@@ -739,8 +738,7 @@ public class PrimaryBackupTest extends BaseJUnitTest {
             statePredicate(
                 "Both clients sent messages to primary",
                 s ->
-                    Streams.stream(s.network())
-                        .filter(e -> e.to().equals(server(1)))
+                    Streams.stream(s.messagesTo(server(1)))
                         .map(MessageEnvelope::from)
                         .collect(Collectors.toSet())
                         .containsAll(senders)));